@@ -7,7 +7,10 @@ SET autocommit OFF
 DROP MATERIALIZED VIEW storelocations;
 
 -- Drop existing tables & sequences
+DROP TABLE rprtkeys CASCADE CONSTRAINTS;
 DROP TABLE useractions CASCADE CONSTRAINTS;
+DROP TABLE prdctdlyevts CASCADE CONSTRAINTS;
+DROP TABLE strdlyevts CASCADE CONSTRAINTS;
 DROP TABLE outofstockevents CASCADE CONSTRAINTS;
 DROP TABLE prdctstoprdctpkgs CASCADE CONSTRAINTS;
 DROP TABLE prdctctgrstoprdcts CASCADE CONSTRAINTS;
@@ -457,6 +460,59 @@ CREATE TABLE outofstockevents
 CREATE INDEX idx1900 ON outofstockevents(store);
 CREATE INDEX idx1910 ON outofstockevents(product);
 
+-- Daily rollups of the out of stock events that are not ignored, at the
+-- store x day x reason and product x day x reason grains. They are kept in
+-- step with outofstockevents by the application (see OutOfStockEvent.refreshRollups)
+-- and read by reports instead of the events wherever the grain allows.
+-- metaflags is always 0; it is there so that the reports' conditions on
+-- outofstockevents apply unchanged.
+CREATE TABLE strdlyevts
+(
+	store INTEGER NOT NULL,
+	dateoccurred DATE NOT NULL,
+	reason VARCHAR2(10) NOT NULL,
+	count INTEGER NOT NULL,
+	lostsalesquantity FLOAT NOT NULL,
+	lostsalesamount FLOAT NOT NULL,
+	eventcount INTEGER NOT NULL,
+	metaflags INTEGER DEFAULT 0 NOT NULL,
+
+	-- Constraints
+	PRIMARY KEY (store, dateoccurred, reason),
+	FOREIGN KEY (store) REFERENCES stores(primarykey)
+);
+
+CREATE INDEX idx1920 ON strdlyevts(dateoccurred);
+
+CREATE TABLE prdctdlyevts
+(
+	product INTEGER NOT NULL,
+	dateoccurred DATE NOT NULL,
+	reason VARCHAR2(10) NOT NULL,
+	count INTEGER NOT NULL,
+	lostsalesquantity FLOAT NOT NULL,
+	lostsalesamount FLOAT NOT NULL,
+	eventcount INTEGER NOT NULL,
+	metaflags INTEGER DEFAULT 0 NOT NULL,
+
+	-- Constraints
+	PRIMARY KEY (product, dateoccurred, reason),
+	FOREIGN KEY (product) REFERENCES prdcts(primarykey)
+);
+
+CREATE INDEX idx1930 ON prdctdlyevts(dateoccurred);
+
+-- Large sets of keys (e.g. the stores chosen) that reports restrict their queries
+-- to, joined against instead of listed in the SQL text (see KeyTable). The rows are
+-- private to the session that inserts them, and are deleted when the report is done.
+CREATE GLOBAL TEMPORARY TABLE rprtkeys
+(
+	keyset INTEGER NOT NULL,
+	keyvalue INTEGER NOT NULL
+) ON COMMIT PRESERVE ROWS;
+
+CREATE INDEX idx1940 ON rprtkeys(keyset, keyvalue);
+
 CREATE TABLE useractions
 (
 	-- Instrumented Columns
@@ -569,6 +625,17 @@ INSERT INTO settings (primarykey, category, name, value) VALUES (pkgenerator.nex
 INSERT INTO settings (primarykey, category, name, value) VALUES (pkgenerator.nextval, 'IgnoredEvent', 'ProductCategory', 'TABLE WINE');
 INSERT INTO settings (primarykey, category, name, value) VALUES (pkgenerator.nextval, 'IgnoredEvent', 'ProductCategory', 'VERMOUTH');
 
+-- Fill the daily rollups from the events. This does nothing on a fresh database;
+-- on an existing one, upgradeRollups.sql runs the same statements.
+INSERT INTO strdlyevts (store, dateoccurred, reason, count, lostsalesquantity, lostsalesamount, eventcount)
+SELECT store, dateoccurred, reason, sum(count), sum(lostsalesquantity), sum(lostsalesamount), count(*)
+FROM outofstockevents WHERE bitand(metaflags, 1)+0 = 0
+GROUP BY store, dateoccurred, reason;
+INSERT INTO prdctdlyevts (product, dateoccurred, reason, count, lostsalesquantity, lostsalesamount, eventcount)
+SELECT product, dateoccurred, reason, sum(count), sum(lostsalesquantity), sum(lostsalesamount), count(*)
+FROM outofstockevents WHERE bitand(metaflags, 1)+0 = 0
+GROUP BY product, dateoccurred, reason;
+
 -- Create a single view into the store locations
 CREATE MATERIALIZED VIEW storelocations
 REFRESH COMPLETE ON COMMIT
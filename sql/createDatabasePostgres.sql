@@ -9,7 +9,10 @@ DROP FUNCTION bitor(integer, integer);
 DROP FUNCTION bitand(integer, integer);
 
 -- Drop existing tables & sequences
+DROP TABLE rprtkeys CASCADE;
 DROP TABLE useractions CASCADE;
+DROP TABLE prdctdlyevts CASCADE;
+DROP TABLE strdlyevts CASCADE;
 DROP TABLE outofstockevents CASCADE;
 DROP TABLE prdctstoprdctpkgs CASCADE;
 DROP TABLE prdctctgrstoprdcts CASCADE;
@@ -461,6 +464,60 @@ CREATE TABLE outofstockevents
 CREATE INDEX idx1900 ON outofstockevents(store);
 CREATE INDEX idx1910 ON outofstockevents(product);
 
+-- Daily rollups of the out of stock events that are not ignored, at the
+-- store x day x reason and product x day x reason grains. They are kept in
+-- step with outofstockevents by the application (see OutOfStockEvent.refreshRollups)
+-- and read by reports instead of the events wherever the grain allows.
+-- metaflags is always 0; it is there so that the reports' conditions on
+-- outofstockevents apply unchanged.
+CREATE TABLE strdlyevts
+(
+	store INTEGER NOT NULL,
+	dateoccurred DATE NOT NULL,
+	reason VARCHAR(10) NOT NULL,
+	count INTEGER NOT NULL,
+	lostsalesquantity FLOAT NOT NULL,
+	lostsalesamount FLOAT NOT NULL,
+	eventcount INTEGER NOT NULL,
+	metaflags INTEGER DEFAULT 0 NOT NULL,
+
+	-- Constraints
+	PRIMARY KEY (store, dateoccurred, reason),
+	FOREIGN KEY (store) REFERENCES stores(primarykey)
+);
+
+CREATE INDEX idx1920 ON strdlyevts(dateoccurred);
+
+CREATE TABLE prdctdlyevts
+(
+	product INTEGER NOT NULL,
+	dateoccurred DATE NOT NULL,
+	reason VARCHAR(10) NOT NULL,
+	count INTEGER NOT NULL,
+	lostsalesquantity FLOAT NOT NULL,
+	lostsalesamount FLOAT NOT NULL,
+	eventcount INTEGER NOT NULL,
+	metaflags INTEGER DEFAULT 0 NOT NULL,
+
+	-- Constraints
+	PRIMARY KEY (product, dateoccurred, reason),
+	FOREIGN KEY (product) REFERENCES prdcts(primarykey)
+);
+
+CREATE INDEX idx1930 ON prdctdlyevts(dateoccurred);
+
+-- Large sets of keys (e.g. the stores chosen) that reports restrict their queries
+-- to, joined against instead of listed in the SQL text (see KeyTable). PostgreSQL
+-- has no global temporary tables, so the table is shared; every set of keys has a
+-- key of its own, and is deleted when the report is done.
+CREATE TABLE rprtkeys
+(
+	keyset INTEGER NOT NULL,
+	keyvalue INTEGER NOT NULL
+);
+
+CREATE INDEX idx1940 ON rprtkeys(keyset, keyvalue);
+
 CREATE TABLE useractions
 (
 	-- Instrumented Columns
@@ -502,4 +559,15 @@ INSERT INTO settings (primarykey, category, name, value) VALUES (nextval('pkgene
 INSERT INTO settings (primarykey, category, name, value) VALUES (nextval('pkgenerator'), 'IgnoredEvent', 'ProductCategory', 'TABLE WINE');
 INSERT INTO settings (primarykey, category, name, value) VALUES (nextval('pkgenerator'), 'IgnoredEvent', 'ProductCategory', 'VERMOUTH');
 
+-- Fill the daily rollups from the events. This does nothing on a fresh database;
+-- on an existing one, upgradeRollupsPostgres.sql runs the same statements.
+INSERT INTO strdlyevts (store, dateoccurred, reason, count, lostsalesquantity, lostsalesamount, eventcount)
+SELECT store, dateoccurred, reason, sum(count), sum(lostsalesquantity), sum(lostsalesamount), count(*)
+FROM outofstockevents WHERE bitand(metaflags, 1)+0 = 0
+GROUP BY store, dateoccurred, reason;
+INSERT INTO prdctdlyevts (product, dateoccurred, reason, count, lostsalesquantity, lostsalesamount, eventcount)
+SELECT product, dateoccurred, reason, sum(count), sum(lostsalesquantity), sum(lostsalesamount), count(*)
+FROM outofstockevents WHERE bitand(metaflags, 1)+0 = 0
+GROUP BY product, dateoccurred, reason;
+
 COMMIT TRANSACTION;
@@ -0,0 +1,56 @@
+-- Script for adding the daily rollups of out of stock events to an existing database,
+-- and filling them from the events already there. Reports read the rollups wherever the
+-- grain allows, so run this before deploying a version that has them.
+-- To run from a command prompt: sqlplus kooutofstock/kooutofstock @upgradeRollups.sql
+SET sqlblanklines ON
+SET autocommit OFF
+
+-- See createDatabase.sql
+CREATE TABLE strdlyevts
+(
+	store INTEGER NOT NULL,
+	dateoccurred DATE NOT NULL,
+	reason VARCHAR2(10) NOT NULL,
+	count INTEGER NOT NULL,
+	lostsalesquantity FLOAT NOT NULL,
+	lostsalesamount FLOAT NOT NULL,
+	eventcount INTEGER NOT NULL,
+	metaflags INTEGER DEFAULT 0 NOT NULL,
+
+	-- Constraints
+	PRIMARY KEY (store, dateoccurred, reason),
+	FOREIGN KEY (store) REFERENCES stores(primarykey)
+);
+
+CREATE INDEX idx1920 ON strdlyevts(dateoccurred);
+
+CREATE TABLE prdctdlyevts
+(
+	product INTEGER NOT NULL,
+	dateoccurred DATE NOT NULL,
+	reason VARCHAR2(10) NOT NULL,
+	count INTEGER NOT NULL,
+	lostsalesquantity FLOAT NOT NULL,
+	lostsalesamount FLOAT NOT NULL,
+	eventcount INTEGER NOT NULL,
+	metaflags INTEGER DEFAULT 0 NOT NULL,
+
+	-- Constraints
+	PRIMARY KEY (product, dateoccurred, reason),
+	FOREIGN KEY (product) REFERENCES prdcts(primarykey)
+);
+
+CREATE INDEX idx1930 ON prdctdlyevts(dateoccurred);
+
+-- Fill the daily rollups from the events (the same as OutOfStockEvent.refreshRollups
+-- over all days)
+INSERT INTO strdlyevts (store, dateoccurred, reason, count, lostsalesquantity, lostsalesamount, eventcount)
+SELECT store, dateoccurred, reason, sum(count), sum(lostsalesquantity), sum(lostsalesamount), count(*)
+FROM outofstockevents WHERE bitand(metaflags, 1)+0 = 0
+GROUP BY store, dateoccurred, reason;
+INSERT INTO prdctdlyevts (product, dateoccurred, reason, count, lostsalesquantity, lostsalesamount, eventcount)
+SELECT product, dateoccurred, reason, sum(count), sum(lostsalesquantity), sum(lostsalesamount), count(*)
+FROM outofstockevents WHERE bitand(metaflags, 1)+0 = 0
+GROUP BY product, dateoccurred, reason;
+
+COMMIT;
@@ -193,9 +193,7 @@ public class BatchManager
 	public void addParameters(String handle, Object values[], int types[])
 		throws SQLException
 	{
-		PreparedStatement preparedStatement = (PreparedStatement) preparedStatements.get(handle);
-		if (preparedStatement == null)
-			throw new IllegalArgumentException("Handle not found.");
+		PreparedStatement preparedStatement = getPreparedStatement(handle);
 		
 		for (int i=0; i<values.length; i++)
 		{
@@ -218,9 +216,7 @@ public class BatchManager
 			MainLog.getLog().debug("Values: " + valuesString + "\n");
 		}
 		
-		batchSizes.put(handle, new Integer( ((Integer) batchSizes.get(handle)).intValue() + 1) );
-		if (autoTriggered)
-			triggeredExecute(handle);
+		batchAdded(handle);
 	}
 
 	/**
@@ -239,7 +235,7 @@ public class BatchManager
 	public void addBeanParameters(String handle, BasePersistentBean bean, int batchType)
 		throws SQLException
 	{
-		bean.addToBatch(((PreparedStatement) preparedStatements.get(handle)), batchType, true);
+		bean.addToBatch(getPreparedStatement(handle), batchType, true);
 		
 		if (handle.equals("BottlerBusinessUnitToBottlerMarketUnitMappingCreate") || handle.equals("BottlerMarketUnitCreate") || handle.equals("BottlerBusinessUnitCreate"))
 		{
@@ -247,6 +243,43 @@ public class BatchManager
 			MainLog.getLog().debug("Values: " + bean.getFieldUpdatesAsString() + "\n");
 		}
 
+		batchAdded(handle);
+	}
+
+	/**
+	 * Waits until all the parameters added so far have been placed in the batches of their
+	 * queries. Parameters are placed right away here, so there is nothing to wait for; subclasses
+	 * that place them later (see PipelinedBatchManager) override this.
+	 * 
+	 * @throws SQLException if placing (or executing) earlier parameters failed
+	 */
+	public void flush()
+		throws SQLException
+	{
+	}
+
+	/**
+	 * @param handle the query's handle (see addQuery)
+	 * @return the prepared statement of the query
+	 */
+	protected PreparedStatement getPreparedStatement(String handle)
+	{
+		PreparedStatement preparedStatement = (PreparedStatement) preparedStatements.get(handle);
+		if (preparedStatement == null)
+			throw new IllegalArgumentException("Handle not found.");
+		return preparedStatement;
+	}
+
+	/**
+	 * Counts another instance of parameters just added to the batch of a query, and executes
+	 * the batch if it has reached the threshold (and autoTriggered is true).
+	 * 
+	 * @param handle the query's handle (see addQuery)
+	 * @throws SQLException
+	 */
+	protected void batchAdded(String handle)
+		throws SQLException
+	{
 		batchSizes.put(handle, new Integer( ((Integer) batchSizes.get(handle)).intValue() + 1) );
 		if (autoTriggered)
 			triggeredExecute(handle);
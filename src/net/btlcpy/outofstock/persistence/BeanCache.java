@@ -1,21 +1,208 @@
 package net.btlcpy.outofstock.persistence;
 
+import java.lang.reflect.Method;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import net.btlcpy.outofstock.loggers.MainLog;
 
 import org.apache.commons.collections.map.ListOrderedMap;
 
 /**
+ * <p>
  * A class that represents a cache in RAM of a particular database table. Only tables that rarely
  * change and that are often accessed should be cached (i.e. 'read-only' tables). Examples include
  * the tables for bottlers, Distributor divisions, and bottler sales routes.
+ * </p>
+ * <p>
+ * The cached beans are held in an immutable {@link Snapshot}. A reload builds a complete new
+ * map of beans off to the side and only then publishes it in one step, so readers always see
+ * either the old or the new set of beans - never a null or half-built map - and never wait for
+ * the database. If a reload fails, the previous snapshot stays in place. Optionally, the cache
+ * can reload itself in the background at a fixed interval (see {@link #setRefreshInterval(long)}).
+ * </p>
+ * <p>
+ * Besides the key columns, beans can be looked up through secondary indexes declared with
+ * {@link #addIndex(String, String, boolean)}, keyed by the value of any bean property (e.g.
+ * "name" or "primaryKey"). Indexes are rebuilt with every snapshot, so they always match the
+ * beans they are published with. Caches of whole tables (no conditions) are registered by
+ * the type of their beans (see {@link #getCache(Class, String, String)}), so that finders
+ * such as <code>NamedUploadable.findByName</code> can answer from them.
+ * </p>
  * @author Ahmed A. Abd-Allah
  */
 public class BeanCache
 {
+	// ----- Static members ---------------------------------------------------
+	/** The default interval (in milliseconds) at which the static caches of the beans
+	 * refresh themselves in the background: 15 minutes. */
+	public static final long DEFAULT_REFRESH_INTERVAL = 15 * 60 * 1000;
+
+	/** Runs the background refreshes of all caches. */
+	private static Timer refreshTimer = null;
+
+	/** The caches of whole tables, by the type of their beans. */
+	private static HashMap /* Class, BeanCache */ caches = new HashMap();
+
+	/**
+	 * @param typeOfBean the type of bean looked for
+	 * @param tableName the table the beans are looked for in
+	 * @param indexName the index to look them up by
+	 * @return the cache of the whole table, if one has been loaded and it has the index; null if
+	 * the database has to be asked instead
+	 */
+	public static BeanCache getCache(Class typeOfBean, String tableName, String indexName)
+	{
+		BeanCache cache = null;
+		synchronized (BeanCache.class)
+		{
+			cache = (BeanCache) caches.get(typeOfBean);
+		}
+		if (cache == null || !cache.getTableName().equalsIgnoreCase(tableName))
+			return null;
+
+		Snapshot snapshot = cache.getSnapshot();
+		if (snapshot.getVersion() == 0 || !snapshot.hasIndex(indexName))
+			return null;
+		return cache;
+	}
+
+	synchronized private static Timer getRefreshTimer()
+	{
+		if (refreshTimer == null)
+			refreshTimer = new Timer(true);
+		return refreshTimer;
+	}
+
+	/**
+	 * An immutable, consistent view of the cache contents at one point in time.
+	 */
+	public static class Snapshot
+	{
+		private ListOrderedMap beans;
+		private long version;
+		private long timeLoaded;
+		/** index name to (property value to bean (unique) or to list of beans (multi-valued)) */
+		private HashMap /* String, HashMap<Object, Object> */ indexes;
+
+		public Snapshot(ListOrderedMap beans, long version, long timeLoaded, HashMap indexes)
+		{
+			this.beans = beans;
+			this.version = version;
+			this.timeLoaded = timeLoaded;
+			this.indexes = indexes;
+		}
+
+		/** @return the beans; callers must treat the map as read-only */
+		public ListOrderedMap getBeans() { return beans; }
+		/** @return a number incremented with every snapshot published by the cache */
+		public long getVersion() { return version; }
+		/** @return when (System.currentTimeMillis()) the snapshot was published */
+		public long getTimeLoaded() { return timeLoaded; }
+
+		/**
+		 * @param indexName the name of a unique index
+		 * @param key the property value to look up; must be of the property's type (e.g. an
+		 * Integer for an id)
+		 * @return the bean with that property value, or null if there is none
+		 */
+		public Object findUnique(String indexName, Object key)
+		{
+			Object found = getIndex(indexName).get(key);
+			if (found instanceof List)
+				throw new IllegalArgumentException("Index " + indexName + " is not unique");
+			return found;
+		}
+
+		/**
+		 * @param indexName the name of an index (unique or multi-valued)
+		 * @param key the property value to look up
+		 * @return List<bean>: the beans with that property value, in cache order (never null)
+		 */
+		public List findAll(String indexName, Object key)
+		{
+			Object found = getIndex(indexName).get(key);
+			if (found == null)
+				return Collections.EMPTY_LIST;
+			if (found instanceof List)
+				return (List) found;
+			return Collections.singletonList(found);
+		}
+
+		/**
+		 * @param indexName the name of an index (unique or multi-valued)
+		 * @param key the property value to look up
+		 * @return the beans with that property value, in cache order and keyed by their
+		 * (zero-based) position as PersistenceManager.findBeans would key them without key
+		 * columns; null if there are none. The beans are the cache's own and must be treated
+		 * as read-only.
+		 */
+		public ListOrderedMap findBeans(String indexName, Object key)
+		{
+			List found = findAll(indexName, key);
+			if (found.isEmpty())
+				return null;
+
+			ListOrderedMap results = new ListOrderedMap();
+			for (int i=0; i<found.size(); i++)
+				results.put(Integer.toString(i), found.get(i));
+			return results;
+		}
+
+		/** @return whether the snapshot has an index of that name */
+		public boolean hasIndex(String indexName)
+		{
+			return indexes != null && indexes.containsKey(indexName);
+		}
+
+		private HashMap getIndex(String indexName)
+		{
+			HashMap index = (indexes == null ? null : (HashMap) indexes.get(indexName));
+			if (index == null)
+				throw new IllegalArgumentException("No such index: " + indexName);
+			return index;
+		}
+	}
+
+	/**
+	 * The definition of a secondary index.
+	 */
+	private static class IndexDefinition
+	{
+		private String name;
+		private Method getter;
+		private boolean unique;
+
+		public IndexDefinition(String name, Method getter, boolean unique)
+		{
+			this.name = name;
+			this.getter = getter;
+			this.unique = unique;
+		}
+	}
+
+	// ----- Instance members -------------------------------------------------
 	/** The rows of the table are stored as a list ordered map of beans. These beans will typically
-	 * inherit from <code>net.btlcpy.outofstock.persistence.beans.BasePersistentBean</code>.*/
-	private ListOrderedMap beans = null;
+	 * inherit from <code>net.btlcpy.outofstock.persistence.beans.BasePersistentBean</code>. Only
+	 * ever replaced as a whole, never modified. */
+	private Snapshot snapshot = new Snapshot(null, 0, 0, null);
+
+	/** Serializes reloads (and index declarations), so that snapshots are published in the
+	 * order they were loaded. Readers never take this lock. */
+	private Object reloadLock = new Object();
+
+	/** The secondary indexes, in order of declaration. Only modified holding reloadLock. */
+	private ArrayList /* IndexDefinition */ indexDefinitions = new ArrayList();
+
+	/** The task that refreshes the cache in the background, if any. */
+	private TimerTask refreshTask = null;
 
 	/** The database table name */
 	private String tableName;
@@ -27,7 +214,7 @@ public class BeanCache
 	/** The type of bean that is going to be cached. */
 	private Class typeOfBean;
 	
-	/** The columns that will be used as keys to the beans in the cache (see {@link #beans}).*/
+	/** The columns that will be used as keys to the beans in the cache (see {@link #getBeans()}).*/
 	private String keyColumns[];
 	
 	/** The SQL phrase that represents the ordering columns to use on retrieval. Examples:
@@ -49,18 +236,147 @@ public class BeanCache
 		}
 		catch (Exception e)
 		{
-			beans = null;
+			MainLog.getLog().error("Unable to load cache of " + tableName, e);
+		}
+
+		if (conditions == null)
+		{
+			synchronized (BeanCache.class)
+			{
+				caches.put(typeOfBean, this);
+			}
 		}
 	}
 	
+	/**
+	 * @return the beans of the current snapshot (null if the table had no rows, as with
+	 * PersistenceManager.findBeans, or if the cache was never loaded successfully - see
+	 * {@link #getVersion()} to tell these apart); callers must treat the map as read-only
+	 */
 	public ListOrderedMap getBeans()
 	{
-		return beans;
+		return getSnapshot().getBeans();
 	}
 
+	/**
+	 * Replaces the contents of the cache, publishing a new snapshot.
+	 */
 	public void setBeans(ListOrderedMap beans)
 	{
-		this.beans = beans;
+		synchronized (reloadLock)
+		{
+			publish(beans, true);
+		}
+	}
+
+	/**
+	 * @return the current snapshot; use this rather than several calls to {@link #getBeans()}
+	 * when a consistent view is needed across calls
+	 */
+	synchronized public Snapshot getSnapshot()
+	{
+		return snapshot;
+	}
+
+	/**
+	 * Declares a secondary index, and builds it for the current snapshot right away.
+	 * 
+	 * @param indexName the name to look the index up by
+	 * @param propertyName a property of the cached beans, i.e. "name" for <code>getName()</code>
+	 * @param unique true if every bean has a different value (e.g. a primary key); if two
+	 * beans turn out to share a value, the first one wins and a warning is logged. False
+	 * for a multi-valued index.
+	 */
+	public void addIndex(String indexName, String propertyName, boolean unique)
+	{
+		String suffix = propertyName.substring(0, 1).toUpperCase() + propertyName.substring(1);
+		Method getter = null;
+		try
+		{
+			getter = typeOfBean.getMethod("get" + suffix, new Class[0]);
+		}
+		catch (NoSuchMethodException e)
+		{
+			try
+			{
+				getter = typeOfBean.getMethod("is" + suffix, new Class[0]);
+			}
+			catch (NoSuchMethodException e2)
+			{
+				throw new IllegalArgumentException("No property " + propertyName + " in " + typeOfBean.getName());
+			}
+		}
+
+		synchronized (reloadLock)
+		{
+			for (int i=0; i<indexDefinitions.size(); i++)
+				if (((IndexDefinition) indexDefinitions.get(i)).name.equals(indexName))
+					indexDefinitions.remove(i--);
+			indexDefinitions.add(new IndexDefinition(indexName, getter, unique));
+			publish(getBeans(), false);
+		}
+	}
+
+	/**
+	 * @see Snapshot#findUnique(String, Object)
+	 */
+	public Object findUnique(String indexName, Object key)
+	{
+		return getSnapshot().findUnique(indexName, key);
+	}
+
+	/**
+	 * @see Snapshot#findAll(String, Object)
+	 */
+	public List findAll(String indexName, Object key)
+	{
+		return getSnapshot().findAll(indexName, key);
+	}
+
+	/** @return the version of the current snapshot (0 if never loaded) */
+	public long getVersion()
+	{
+		return getSnapshot().getVersion();
+	}
+
+	/** @return when the current snapshot was published (0 if never loaded) */
+	public long getTimeLoaded()
+	{
+		return getSnapshot().getTimeLoaded();
+	}
+
+	/**
+	 * Schedules (or cancels) a periodic background reload of the cache, using a connection of
+	 * its own. Failed reloads are logged and leave the current snapshot in place.
+	 * 
+	 * @param refreshInterval the interval in milliseconds; zero or less cancels the refresh
+	 */
+	synchronized public void setRefreshInterval(long refreshInterval)
+	{
+		if (refreshTask != null)
+		{
+			refreshTask.cancel();
+			refreshTask = null;
+		}
+		
+		if (refreshInterval > 0)
+		{
+			refreshTask = new TimerTask()
+				{
+					public void run()
+					{
+						try
+						{
+							reload(null);
+						}
+						catch (Exception e)
+						{
+							MainLog.getLog().error("Unable to refresh cache of " + getTableName(), e);
+						}
+					}
+				};
+			getRefreshTimer().schedule(refreshTask, refreshInterval, refreshInterval);
+		}
 	}
 
 	public String getTableName()
@@ -114,7 +430,9 @@ public class BeanCache
 	}
 
 	/**
-	 * Reloads the cache using a simple select query on the database.
+	 * Reloads the cache using a simple select query on the database. The new beans are only
+	 * published once they have all been loaded; if loading fails, the cache keeps its current
+	 * contents.
 	 * 
 	 * @param connection connection to use, if null then a new connection is automatically created
 	 * @throws SQLException
@@ -133,8 +451,12 @@ public class BeanCache
 
 			//MainLog.getLog().debug("\n\n\n************************* PRE-RELOAD CACHE: " + typeOfBean.getName() + " " + beans + " *****************************\n\n\n\n");
 
-			beans = PersistenceManager.getPersistenceManager().
-				findBeans(connection, tableName, conditions, typeOfBean, keyColumns, orderBy);
+			synchronized (reloadLock)
+			{
+				// null if the table has no rows, which callers check for
+				publish(PersistenceManager.getPersistenceManager().
+					findBeans(connection, tableName, conditions, typeOfBean, keyColumns, orderBy), true);
+			}
 			
 			//if (useOwnConnection)
 			//	connection.commit();
@@ -147,4 +469,89 @@ public class BeanCache
 				try { if (connection != null) connection.close(); } catch (Exception e) {}
 		}
 	}
+
+	/**
+	 * Builds the indexes of a set of beans and swaps in a new snapshot. Must be called holding
+	 * reloadLock; the indexes are built without holding the lock readers use.
+	 * 
+	 * @param newVersion true for new contents, false to only rebuild the indexes of the
+	 * current contents (the version and load time are kept)
+	 */
+	private void publish(ListOrderedMap beans, boolean newVersion)
+	{
+		HashMap indexes = new HashMap();
+		for (int i=0; i<indexDefinitions.size(); i++)
+		{
+			IndexDefinition definition = (IndexDefinition) indexDefinitions.get(i);
+			indexes.put(definition.name, buildIndex(definition, beans));
+		}
+
+		synchronized (this)
+		{
+			if (newVersion)
+				snapshot = new Snapshot(beans, snapshot.getVersion() + 1, System.currentTimeMillis(), indexes);
+			else
+				snapshot = new Snapshot(beans, snapshot.getVersion(), snapshot.getTimeLoaded(), indexes);
+		}
+	}
+
+	private HashMap buildIndex(IndexDefinition definition, ListOrderedMap beans)
+	{
+		HashMap index = new HashMap();
+		if (beans == null)
+			return index;
+
+		boolean duplicatesReported = false;
+		Iterator iterator = beans.values().iterator();
+		while (iterator.hasNext())
+		{
+			Object bean = iterator.next();
+			Object key = null;
+			try
+			{
+				key = definition.getter.invoke(bean, new Object[0]);
+			}
+			catch (Exception e)
+			{
+				MainLog.getLog().error("Unable to index " + tableName + " by " + definition.name, e);
+				continue;
+			}
+			if (key == null)
+				continue;
+
+			Object existing = index.get(key);
+			if (definition.unique)
+			{
+				if (existing == null)
+					index.put(key, bean);
+				else if (!duplicatesReported)
+				{
+					MainLog.getLog().warn("Unique index " + definition.name + " on " + tableName + 
+						" has duplicate values (e.g. " + key + "); keeping the first bean");
+					duplicatesReported = true;
+				}
+			}
+			else
+			{
+				if (existing == null)
+				{
+					existing = new ArrayList();
+					index.put(key, existing);
+				}
+				((List) existing).add(bean);
+			}
+		}
+
+		// multi-valued lists are handed out to readers, so make them read-only
+		if (!definition.unique)
+		{
+			Iterator entries = index.entrySet().iterator();
+			while (entries.hasNext())
+			{
+				java.util.Map.Entry entry = (java.util.Map.Entry) entries.next();
+				entry.setValue(Collections.unmodifiableList((List) entry.getValue()));
+			}
+		}
+		return index;
+	}
 }
@@ -0,0 +1,162 @@
+package net.btlcpy.outofstock.persistence;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+
+import net.btlcpy.outofstock.loggers.MainLog;
+
+/**
+ * <p>
+ * Lets a long running piece of work (e.g. a report) be cancelled from another thread while
+ * it is waiting on the database. The work makes a cancellation current on its thread(s) with
+ * {@link #setCurrent(Cancellation)}; from then on the queries {@link PersistenceManager} runs
+ * on those threads register their statements with it, and {@link #cancel()} calls
+ * <code>Statement.cancel()</code> on the statements executing at that moment. Statements
+ * registered after the cancellation fail right away.
+ * </p>
+ *
+ * <p>
+ * A cancellation may have a parent (e.g. the cancellation of a report job, for the queries the
+ * report runs concurrently); cancelling the parent cancels it too, but not the other way around.
+ * Threads without a current cancellation are not affected in any way.
+ * </p>
+ *
+ * @author Ahmed A. Abd-Allah
+ */
+public class Cancellation
+{
+	// ----- Static members ---------------------------------------------------
+	private static ThreadLocal current = new ThreadLocal();
+
+	/**
+	 * @param cancellation the cancellation of the work the current thread is about to do,
+	 * or null once the work is done
+	 */
+	public static void setCurrent(Cancellation cancellation)
+	{
+		current.set(cancellation);
+	}
+
+	/**
+	 * @return the cancellation of the work the current thread is doing, or null if there is none
+	 */
+	public static Cancellation getCurrent()
+	{
+		return (Cancellation) current.get();
+	}
+
+	/**
+	 * Registers a statement that is about to be executed with the current thread's cancellation,
+	 * if any.
+	 *
+	 * @param statement the statement (if null, then nothing is done)
+	 * @throws SQLException if the work has been cancelled already
+	 */
+	static void register(Statement statement)
+		throws SQLException
+	{
+		Cancellation cancellation = getCurrent();
+		if (cancellation != null && statement != null)
+			cancellation.add(statement);
+	}
+
+	/**
+	 * Unregisters a statement that is done executing (and should be unregistered before it is
+	 * closed or handed back to a statement cache).
+	 *
+	 * @param statement the statement (if null, then nothing is done)
+	 */
+	static void unregister(Statement statement)
+	{
+		Cancellation cancellation = getCurrent();
+		if (cancellation != null && statement != null)
+			cancellation.remove(statement);
+	}
+
+	// ----- Instance members -------------------------------------------------
+	private ArrayList /* Statement */ statements = new ArrayList();
+	private ArrayList /* Cancellation */ children = new ArrayList();
+	private boolean cancelled = false;
+
+	public Cancellation()
+	{
+	}
+
+	/**
+	 * @param parent the cancellation whose cancelling cancels this one too (if null, then
+	 * there is none)
+	 */
+	public Cancellation(Cancellation parent)
+	{
+		if (parent != null)
+			parent.addChild(this);
+	}
+
+	/**
+	 * @return true if {@link #cancel()} has been called
+	 */
+	synchronized public boolean isCancelled()
+	{
+		return cancelled;
+	}
+
+	/**
+	 * Cancels the statements executing for the work, and makes any further statements fail.
+	 * May be called from any thread, any number of times.
+	 */
+	synchronized public void cancel()
+	{
+		cancelled = true;
+		for (int i=0; i<children.size(); i++)
+			((Cancellation) children.get(i)).cancel();
+		for (int i=0; i<statements.size(); i++)
+		{
+			try
+			{
+				((Statement) statements.get(i)).cancel();
+			}
+			catch (Exception e)
+			{
+				MainLog.getLog().error("Unable to cancel statement", e);
+			}
+		}
+	}
+
+	/**
+	 * @throws SQLException if the work has been cancelled
+	 */
+	synchronized public void check()
+		throws SQLException
+	{
+		if (cancelled)
+			throw new SQLException("Cancelled");
+	}
+
+	synchronized private void addChild(Cancellation child)
+	{
+		children.add(child);
+		if (cancelled)
+			child.cancel();
+	}
+
+	synchronized private void add(Statement statement)
+		throws SQLException
+	{
+		check();
+		statements.add(statement);
+	}
+
+	synchronized private void remove(Statement statement)
+	{
+		// statements are compared by identity, so cached statements are matched exactly
+		for (int i=0; i<statements.size(); i++)
+		{
+			if (statements.get(i) == statement)
+			{
+				statements.remove(i);
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package net.btlcpy.outofstock.persistence;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+
+import net.btlcpy.outofstock.loggers.MainLog;
+import net.btlcpy.outofstock.utilities.SelectBuilder;
+
+/**
+ * <p>
+ * Restricts a column to a set of keys (e.g. the stores chosen for a report) in an SQL
+ * statement. Small sets are listed as '?' placeholders in an "IN" list. Large sets are
+ * inserted into the temporary table rprtkeys in batch mode instead, and the column is
+ * restricted with a subquery on that table, so the SQL text stays short and the same no
+ * matter how many keys there are (and Oracle's 1000-item limit on "IN" lists does not
+ * apply).
+ * </p>
+ *
+ * <p>
+ * Usage: build the statement with {@link #keys(Object[])} and {@link #parameters(Object[])},
+ * e.g. <code>"store IN (" + keyTable.keys(storePK) + ")"</code>, and {@link #load(Connection)}
+ * the keys on every connection the statement is executed on before executing it. On Oracle
+ * rprtkeys is a global temporary table, so the keys loaded are only visible to the session
+ * that loaded them; {@link #unload(Connection)} removes them once they are no longer needed.
+ * Every set of keys is given a key of its own (see {@link PersistenceManager#generatePrimaryKey(Connection)})
+ * so sets never mix, even where the table is shared between sessions.
+ * </p>
+ *
+ * @author Ahmed A. Abd-Allah
+ */
+public class KeyTable
+{
+	// ----- Static members ---------------------------------------------------
+	/** The table holding the keys */
+	public static final String TABLE = "rprtkeys";
+
+	/** Sets of up to this many keys are listed as placeholders instead of loaded into the table */
+	public static final int MAXIMUM_PLACEHOLDERS = 100;
+
+	// ----- Instance members -------------------------------------------------
+	/** The sets of keys to load into the table, in order of use */
+	private ArrayList /* Object[] */ keySets = new ArrayList();
+	/** The key of each set of keys in the table (null for sets listed as placeholders) */
+	private ArrayList /* Integer */ keySetKeys = new ArrayList();
+	/** The connection to generate the keys of the sets with (if null, one is created) */
+	private Connection connection;
+
+	/**
+	 * @param connection the connection to generate the keys of the sets with (if null, then
+	 * one is created automatically when needed)
+	 */
+	public KeyTable(Connection connection)
+	{
+		this.connection = connection;
+	}
+
+	/**
+	 * @param keys a set of keys
+	 * @return what goes inside the parentheses of "column IN (...)" to restrict the column to the
+	 * keys: either placeholders for the keys, or a subquery on the table
+	 */
+	public String keys(Object[] keys)
+	{
+		Integer keySet = keySet(keys);
+		if (keySet == null)
+			return SelectBuilder.placeholders(keys.length);
+		return "SELECT keyvalue FROM " + TABLE + " WHERE keyset = ?";
+	}
+
+	/**
+	 * @param keys a set of keys, as passed to {@link #keys(Object[])}
+	 * @return the values to bind to the placeholders returned by {@link #keys(Object[])}
+	 */
+	public Object[] parameters(Object[] keys)
+	{
+		Integer keySet = keySet(keys);
+		if (keySet == null)
+			return keys;
+		return new Object[] { keySet };
+	}
+
+	/**
+	 * @return true if there are no keys to load into the table
+	 */
+	public boolean isEmpty()
+	{
+		for (int i=0; i<keySetKeys.size(); i++)
+			if (keySetKeys.get(i) != null)
+				return false;
+		return true;
+	}
+
+	/**
+	 * Inserts the sets of keys into the table, in batch mode.
+	 *
+	 * @param connection the connection the statements using the keys will be executed on
+	 * @throws SQLException
+	 */
+	public void load(Connection connection)
+		throws SQLException
+	{
+		if (isEmpty())
+			return;
+
+		BatchManager batchManager = new BatchManager(connection);
+		try
+		{
+			batchManager.addQuery("ReportKeyCreate",
+				"INSERT INTO " + TABLE + " (keyset, keyvalue) VALUES (?, ?)", new Integer(0));
+			for (int i=0; i<keySets.size(); i++)
+			{
+				if (keySetKeys.get(i) == null)
+					continue;
+				Object[] keys = (Object[]) keySets.get(i);
+				for (int j=0; j<keys.length; j++)
+					batchManager.addParameters("ReportKeyCreate", new Object[] { keySetKeys.get(i), keys[j] }, null);
+			}
+			batchManager.executeAll(true);
+		}
+		finally
+		{
+			batchManager.removeQuery("ReportKeyCreate");
+		}
+	}
+
+	/**
+	 * Deletes the sets of keys from the table. Failures are logged, not thrown, since the
+	 * keys are of no use to anyone else.
+	 *
+	 * @param connection the connection the keys were loaded on
+	 */
+	public void unload(Connection connection)
+	{
+		if (isEmpty())
+			return;
+
+		StringBuffer conditions = new StringBuffer();
+		for (int i=0; i<keySetKeys.size(); i++)
+		{
+			if (keySetKeys.get(i) == null)
+				continue;
+			conditions.append(conditions.length() == 0 ? "keyset IN (" : ", ");
+			conditions.append(keySetKeys.get(i));
+		}
+		if (conditions.length() == 0)
+			return;
+		conditions.append(")");
+
+		try
+		{
+			PersistenceManager.getPersistenceManager().bulkDelete(connection, TABLE, conditions.toString());
+		}
+		catch (Exception e)
+		{
+			MainLog.getLog().error("Unable to unload report keys", e);
+		}
+	}
+
+	/**
+	 * @param keys a set of keys
+	 * @return the key of the set in the table, or null if the set is to be listed as
+	 * placeholders (because it is small, or no key could be generated for it)
+	 */
+	private Integer keySet(Object[] keys)
+	{
+		if (keys.length <= MAXIMUM_PLACEHOLDERS)
+			return null;
+
+		// The same array is usually passed for every statement of a report; the
+		// (identity based) equals of arrays makes sure it is only loaded once.
+		int index = keySets.indexOf(keys);
+		if (index >= 0)
+			return (Integer) keySetKeys.get(index);
+
+		Integer keySet = null;
+		try
+		{
+			keySet = PersistenceManager.getPersistenceManager().generatePrimaryKey(connection);
+		}
+		catch (SQLException e)
+		{
+			MainLog.getLog().error("Unable to generate a key for a set of report keys", e);
+		}
+		// Remember failures too, so that the placeholders and parameters agree
+		keySets.add(keys);
+		keySetKeys.add(keySet);
+		return keySet;
+	}
+}
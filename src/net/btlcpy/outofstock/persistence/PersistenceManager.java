@@ -1,19 +1,21 @@
 package net.btlcpy.outofstock.persistence;
 
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Timestamp;
-
-import javax.naming.Context;
-import javax.naming.InitialContext;
-import javax.sql.DataSource;
+import java.sql.Types;
 
 import net.btlcpy.outofstock.loggers.MainLog;
 import net.btlcpy.outofstock.persistence.beans.BasePersistentBean;
-import oracle.jdbc.pool.OracleDataSource;
+import net.btlcpy.outofstock.persistence.connections.ConnectionProvider;
+import net.btlcpy.outofstock.persistence.connections.DataSourceConnectionProvider;
+import net.btlcpy.outofstock.persistence.connections.PooledConnectionProvider;
+import net.btlcpy.outofstock.persistence.connections.StatementCache;
+import net.btlcpy.outofstock.persistence.connections.StatementCachingConnection;
 
 import org.apache.commons.collections.map.ListOrderedMap;
 
@@ -39,6 +41,67 @@ public class PersistenceManager
 			manager = new PersistenceManager(jndiName);
 	}
 
+	/**
+	 * This method should be called once on application startup.
+	 * 
+	 * @param jndiName the JNDI name of the database to use
+	 * @param primaryKeyBlockSize the increment of the pkgenerator sequence (see
+	 * {@link #setPrimaryKeyBlockSize(int)}); if null or empty, the default (1000) is used
+	 */
+	synchronized static public void initializePersistenceManager(String jndiName, String primaryKeyBlockSize)
+	{
+		initializePersistenceManager(jndiName);
+		if (primaryKeyBlockSize != null && !primaryKeyBlockSize.trim().equals(""))
+			manager.setPrimaryKeyBlockSize(Integer.parseInt(primaryKeyBlockSize.trim()));
+	}
+
+	/**
+	 * Sizes the connection pool; should be called on application startup, after the manager is
+	 * initialized. Settings that are null or empty keep the pool's defaults, as do (with a
+	 * warning) those that are not numbers.
+	 * 
+	 * @param maxActive the maximum number of connections borrowed at the same time
+	 * @param maxIdle the maximum number of idle connections kept in the pool
+	 * @param maxWait the number of seconds to wait for a connection when the pool is exhausted
+	 * (negative means wait indefinitely)
+	 * @param leakThreshold the number of seconds a connection may be borrowed before it is
+	 * reported as leaked
+	 * @param validationQuery the query to validate idle connections with; if null or empty, the
+	 * driver validates them itself where it supports it
+	 */
+	synchronized static public void configureConnectionPool(String maxActive, String maxIdle, String maxWait,
+		String leakThreshold, String validationQuery)
+	{
+		if (manager == null || !(manager.getConnectionProvider() instanceof PooledConnectionProvider))
+			return;
+
+		PooledConnectionProvider pool = (PooledConnectionProvider) manager.getConnectionProvider();
+		pool.setMaxActive((int) parseSetting("connection pool size", maxActive, pool.getMaxActive()));
+		pool.setMaxIdle((int) parseSetting("number of idle connections", maxIdle, pool.getMaxIdle()));
+		pool.setMaxWait(parseSetting("connection wait", maxWait, pool.getMaxWait() / 1000) * 1000);
+		pool.setLeakThreshold(parseSetting("connection leak threshold", leakThreshold,
+			pool.getLeakThreshold() / 1000) * 1000);
+		pool.setValidationQuery(validationQuery);
+	}
+
+	/**
+	 * @return the setting as a number, or the default if it is null, empty, or not a number
+	 */
+	static private long parseSetting(String name, String value, long defaultValue)
+	{
+		if (value == null || value.trim().equals(""))
+			return defaultValue;
+		try
+		{
+			return Long.parseLong(value.trim());
+		}
+		catch (NumberFormatException e)
+		{
+			MainLog.getLog().warn("Invalid " + name + ": " + value + "; using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
 	/** Returns the same manager always. */
 	static public PersistenceManager getPersistenceManager()
 	{
@@ -49,17 +112,13 @@ public class PersistenceManager
 	/** The JNDI name of the database to use */
 	private String jndiName = null;
 	
-	/** The last key that the database generated */
-	private int databaseLastGeneratedKey = -1;
-	
-	/** The increment value that the database is using to generate keys. 
-	 * This is currently set to 1000, matching what is used in the current database schema.
-	 * (TBD: this should be a run time parameter to read in from the XML configuration files.
-	 * Low priority.)*/
-	private int databaseKeyAutoIncrementValue = 1000;
+	/** Hands out primary keys from blocks reserved in the database. The block size defaults
+	 * to 1000, matching the increment of the pkgenerator sequence in the current database
+	 * schema, and can be configured (see {@link #setPrimaryKeyBlockSize(int)}). */
+	private PrimaryKeyAllocator primaryKeyAllocator = new PrimaryKeyAllocator(this, 1000);
 	
-	/** The last generated key to be given to callers. */
-	private int generatedKey = -1;
+	/** Where connections come from. By default, a bounded pool on top of the (cached) data source. */
+	private ConnectionProvider connectionProvider = null;
 	
 	/** 
 	 * The constructor is protected on purpose; use <code>getPersistenceManager()</code> instead.
@@ -68,6 +127,7 @@ public class PersistenceManager
 	protected PersistenceManager(String jndiName)
 	{
 		setJndiName(jndiName);
+		setConnectionProvider(new PooledConnectionProvider(new DataSourceConnectionProvider(jndiName)));
 	}
 
 	public String getJndiName()
@@ -79,6 +139,31 @@ public class PersistenceManager
 	{
 		this.jndiName = jndiName;
 	}
+
+	synchronized public ConnectionProvider getConnectionProvider()
+	{
+		return connectionProvider;
+	}
+
+	/**
+	 * Replaces the source of connections. The previous provider (if any) is closed; connections
+	 * already handed out by it remain usable until their borrowers close them.
+	 * 
+	 * @param connectionProvider the new connection provider
+	 */
+	public void setConnectionProvider(ConnectionProvider connectionProvider)
+	{
+		ConnectionProvider previousConnectionProvider = null;
+		
+		synchronized (this)
+		{
+			previousConnectionProvider = this.connectionProvider;
+			this.connectionProvider = connectionProvider;
+		}
+		
+		if (previousConnectionProvider != null && previousConnectionProvider != connectionProvider)
+			previousConnectionProvider.close();
+	}
 	
 	/**
 	 * Gets a connection to the database.
@@ -97,53 +182,14 @@ public class PersistenceManager
 		
 		try
 		{
-			// TODO: REMOVE THIS IF FROM THE PRODUCTION CODE. LEAVE THE ELSE.
-			if (jndiName == null)
-			{
-				OracleDataSource ds = new OracleDataSource();
-				ds.setDataSourceName("OracleDataSource");
-				ds.setImplicitCachingEnabled(false);
-				ds.setNetworkProtocol("tcp");
-				ds.setDatabaseName("XE");
-				ds.setLoginTimeout(0);
-				// ds.setPassword("development");
-				ds.setPassword("kooutofstock");
-				ds.setConnectionCachingEnabled(false);
-				// ds.setUser("development");
-				ds.setUser("kooutofstock");
-				ds.setPortNumber(1521);
-				ds.setServerName("localhost");
-				// ds.setURL("jdbc:oracle:thin:development/development@localhost:1521:XE");
-				ds.setURL("jdbc:oracle:thin:kooutofstock/kooutofstock@localhost:1521:XE");
-	
-				// PostgreSQL
-				/*
-				PGConnectionPoolDataSource ds = new PGConnectionPoolDataSource();
-				ds.setDatabaseName("artlogic");
-				ds.setServerName("localhost");
-				ds.setPortNumber(5432);
-				ds.setUser("postgres");
-				ds.setPassword("postgres");
-				ds.setDefaultAutoCommit(false);
-				*/
-				
-				connection = ds.getConnection();
-			}
-			else
-			{
-				Context ctx = (Context) new InitialContext();
-				DataSource dataSource = (DataSource) ctx.lookup(jndiName);
-	
-				if (dataSource == null)
-					throw new NullPointerException("Null data source when looking up: " + jndiName);
-				
-				connection = dataSource.getConnection();
-			}
+			connection = getConnectionProvider().getConnection();
 			connection.setAutoCommit(autocommit);
 		}
 		catch (Exception e)
 		{
 			MainLog.getLog().error("Unable to get database connection", e);
+			if (connection != null)
+				try { connection.close(); } catch (Exception ce) {}
 			return null; // force caller to encounter runtime exception instead of checked exception
 						 // This is so because usage of this method is ubiquitous
 		}
@@ -151,63 +197,39 @@ public class PersistenceManager
 		return connection;
 	}
 
+	public int getPrimaryKeyBlockSize()
+	{
+		return primaryKeyAllocator.getBlockSize();
+	}
+
+	/**
+	 * @param primaryKeyBlockSize the number of keys the database reserves per call to the
+	 * pkgenerator sequence, i.e. the sequence's increment. It must NOT be larger than that
+	 * increment, or the same keys would be handed out twice.
+	 */
+	public void setPrimaryKeyBlockSize(int primaryKeyBlockSize)
+	{
+		primaryKeyAllocator.setBlockSize(primaryKeyBlockSize);
+	}
+
 	/**
 	 * Generates a primary key for use anywhere in the database. Keys should be globally unique.
 	 * How it works: the database is responsible for generating a 'base' key that is reasonably
-	 * far from the next base key. Currently the period is set to 1000, but this may change to
-	 * be a run-time parameter potentially (low priority). When the database is used to generate
-	 * this base key, subsequent calls to this method (which is synchronized) will programmatically
-	 * increment the key, and return that new value. This is faster than going to the database
-	 * for another key always. Hence, only every 1000th request actually goes to the database.
+	 * far from the next base key (the primary key block size, 1000 by default). Subsequent calls
+	 * to this method programmatically increment the key, and return that new value. This is
+	 * faster than going to the database for another key always. The next base key is fetched
+	 * in the background before the current block runs out, so callers rarely wait on the
+	 * database (see {@link PrimaryKeyAllocator}).
 	 * 
-	 * @param connection
+	 * @param connection the connection to use if the database must be accessed right away
+	 * (if null, then create a connection automatically)
 	 * @return a new generated primary key
 	 * @throws SQLException
 	 */
-	synchronized public Integer generatePrimaryKey(Connection connection)
+	public Integer generatePrimaryKey(Connection connection)
 		throws SQLException
 	{
-		if (generatedKey == -1 // no generated key yet 
-			|| 
-			// we have exhausted the primary keys since last accessing the database
-			generatedKey >= databaseLastGeneratedKey + databaseKeyAutoIncrementValue - 1)
-		{
-			boolean useOwnConnection = (connection == null);
-			Statement statement = null;
-			ResultSet resultSet = null;
-			Integer newPrimaryKey = null;
-		
-			try
-			{
-				if (useOwnConnection)
-					connection = getConnection(true);
-				statement = connection.createStatement();
-				// Get a fresh base generated key from the database
-				resultSet = statement.executeQuery("SELECT pkgenerator.nextval FROM DUAL");
-				// PostgreSQL
-				// resultSet = statement.executeQuery("SELECT nextval('pkgenerator')");
-				
-				if (resultSet.next())
-					newPrimaryKey = new Integer(resultSet.getInt("nextval"));
-				if (newPrimaryKey == null || newPrimaryKey.intValue() < 0)
-					throw new SQLException("Unable to generate primary key");
-				databaseLastGeneratedKey = newPrimaryKey.intValue();
-				generatedKey = databaseLastGeneratedKey;
-				return new Integer(generatedKey);
-			}
-			finally
-			{
-				try { if (resultSet != null) resultSet.close(); } catch (Exception e) {} 
-				try { if (statement != null) statement.close(); } catch (Exception e) {}
-				if (useOwnConnection)
-					try { if (connection != null) connection.close(); } catch (Exception e) {}
-			}
-		}
-		
-		// we haven't exhausted the primary keys in the current interval, so just increment
-		// and return the new value without bothering the database.
-		generatedKey++;
-		return new Integer(generatedKey);
+		return primaryKeyAllocator.allocate(connection);
 	}
 
 	// ----- Finder methods -----
@@ -256,17 +278,54 @@ public class PersistenceManager
 	 */
 	public ListOrderedMap findBeans(Connection connection, String query, Class typeOfBean, String keyColumns[])
 		throws IllegalAccessException, InstantiationException, SQLException
+	{
+		return findBeans(connection, query, null, typeOfBean, keyColumns);
+	}
+
+	/**
+	 * Same as {@link #findBeans(Connection, String, Class, String[])}, except that the query
+	 * may contain '?' placeholders which are bound to the given parameters. Such queries are
+	 * executed as prepared statements, cached per connection when the connection supports it
+	 * (see {@link StatementCachingConnection}), so that the database does not have to parse
+	 * the same query over and over again.
+	 * 
+	 * @param connection the connection to use (if null, then create a connection automatically)
+	 * @param query the SQL query to use to find the beans
+	 * @param parameters the values of the placeholders in the query, in order (null means the
+	 * query has no placeholders)
+	 * @param typeOfBean the type of bean to use when converting the rows to objects
+	 * @param keyColumns the columns to use as keys when returning the set of beans in a map
+	 * @return a list ordered map of beans (representing the rows retrieved, with order maintained)
+	 * @throws IllegalAccessException
+	 * @throws InstantiationException
+	 * @throws SQLException
+	 */
+	public ListOrderedMap findBeans(Connection connection, String query, Object parameters[], Class typeOfBean, 
+		String keyColumns[])
+		throws IllegalAccessException, InstantiationException, SQLException
 	{
 		boolean useOwnConnection = (connection == null);
 		Statement statement = null;
+		PreparedStatement preparedStatement = null;
 		ResultSet resultSet = null;
 
 		try
 		{
 			if (useOwnConnection)
 				connection = getConnection(true);
-			statement = connection.createStatement();
-			resultSet = statement.executeQuery(query);
+			if (parameters == null)
+			{
+				statement = connection.createStatement();
+				Cancellation.register(statement);
+				resultSet = statement.executeQuery(query);
+			}
+			else
+			{
+				preparedStatement = prepareStatement(connection, query);
+				bindParameters(preparedStatement, parameters);
+				Cancellation.register(preparedStatement);
+				resultSet = preparedStatement.executeQuery();
+			}
 
 			if (!resultSet.next())
 				return null;
@@ -310,7 +369,10 @@ public class PersistenceManager
 		finally
 		{
 			try { if (resultSet != null) resultSet.close(); } catch (Exception e) {} 
+			Cancellation.unregister(statement);
+			Cancellation.unregister(preparedStatement);
 			try { if (statement != null) statement.close(); } catch (Exception e) {}
+			releaseStatement(connection, preparedStatement);
 			if (useOwnConnection)
 				try { if (connection != null) connection.close(); } catch (Exception e) {}
 		}
@@ -338,17 +400,52 @@ public class PersistenceManager
 	 */
 	public ListOrderedMap findRows(Connection connection, String query, String keyColumns[])
 		throws IllegalAccessException, InstantiationException, SQLException
+	{
+		return findRows(connection, query, null, keyColumns);
+	}
+
+	/**
+	 * Same as {@link #findRows(Connection, String, String[])}, except that the query may
+	 * contain '?' placeholders which are bound to the given parameters (see
+	 * {@link net.btlcpy.outofstock.utilities.SelectBuilder#getParameters()}). Such queries
+	 * are executed as prepared statements, cached per connection when the connection
+	 * supports it.
+	 * 
+	 * @param connection the connection to use (if null, then create a connection automatically)
+	 * @param query the SQL query to use to find the beans
+	 * @param parameters the values of the placeholders in the query, in order (null means the
+	 * query has no placeholders)
+	 * @param keyColumns the columns to use as keys when returning the set of beans in a map
+	 * @return ListOrderedMap< String, ListOrderedMap<String, Object> > (keys to rows(names to objects))
+	 * @throws IllegalAccessException
+	 * @throws InstantiationException
+	 * @throws SQLException
+	 */
+	public ListOrderedMap findRows(Connection connection, String query, Object parameters[], String keyColumns[])
+		throws IllegalAccessException, InstantiationException, SQLException
 	{
 		boolean useOwnConnection = (connection == null);
 		Statement statement = null;
+		PreparedStatement preparedStatement = null;
 		ResultSet resultSet = null;
 		
 		try
 		{
 			if (useOwnConnection)
 				connection = getConnection(true);
-			statement = connection.createStatement();
-			resultSet = statement.executeQuery(query);
+			if (parameters == null)
+			{
+				statement = connection.createStatement();
+				Cancellation.register(statement);
+				resultSet = statement.executeQuery(query);
+			}
+			else
+			{
+				preparedStatement = prepareStatement(connection, query);
+				bindParameters(preparedStatement, parameters);
+				Cancellation.register(preparedStatement);
+				resultSet = preparedStatement.executeQuery();
+			}
 	
 			if (!resultSet.next())
 				return null;
@@ -356,73 +453,16 @@ public class PersistenceManager
 			ListOrderedMap /*String, ListOrderedMap*/ results = new ListOrderedMap(); // LinkedHashMap requires Java 1.4
 			
 			ListOrderedMap /*String, Object*/ variousColumnsNotInOneBean = null;
-			ResultSetMetaData rsmd = resultSet.getMetaData();
-			int columnCount = rsmd.getColumnCount();
-			String columnName = null;
+			String columnNames[] = getColumnNames(resultSet);
 			int rowCounter = 0;
 			
 			// --BeginDriverKludgeRelated--
-			// The Oracle 9.2.0.4 JDBC driver has two bugs in it that are corrected in later versions.
-			// However to save time (regression testing all other portlets on NASO after upgrading),
-			// we workaround the two bugs here. The two bugs: when calling ResultSet.getObject():
-			// an SQL Date is returned as a Timestamp, (JDBC spec sez: should be a Date)
-			// and an SQL Timestamp is returned as a oracle.sql.DATE (should be a Timestamp)
-			// This is documented partially at:
-			// http://download.oracle.com/docs/cd/B10501_01/java.920/a96654/datacc.htm
-			boolean applyOracle9_2_0_4JDBCFix = false;
-			String driverVersion = connection.getMetaData().getDriverVersion();
-			if (driverVersion.indexOf("9.2.0.4") >= 0)
-				applyOracle9_2_0_4JDBCFix = true;
+			boolean applyOracle9_2_0_4JDBCFix = isOracle9_2_0_4JDBCFixNeeded(connection);
 			// --EndDriverKludgeRelated--
 			
 			do
 			{
-				variousColumnsNotInOneBean = new ListOrderedMap();
-				
-				for (int i=0; i<columnCount; i++)
-				{
-					columnName = rsmd.getColumnName(i+1);
-					if (resultSet.getObject(columnName) != null)
-					{
-						// --BeginDriverKludgeRelated--
-						if (applyOracle9_2_0_4JDBCFix && (resultSet.getObject(i+1) instanceof java.sql.Timestamp))
-						{
-							variousColumnsNotInOneBean.put(
-								columnName/*.toLowerCase()*/,
-								// PostgreSQL
-								// columnName.toUpperCase(),
-								new java.sql.Date( ((Timestamp) resultSet.getObject(i+1)).getTime() ) );
-						}
-						else if (applyOracle9_2_0_4JDBCFix && (resultSet.getObject(i+1) instanceof oracle.sql.DATE))
-						{
-							variousColumnsNotInOneBean.put(
-								columnName/*.toLowerCase()*/,
-								// PostgreSQL
-								// columnName.toUpperCase(),
-								((oracle.sql.DATE) resultSet.getObject(i+1)).timestampValue() );
-						}
-						// --EndDriverKludgeRelated--
-						// java.sql.Timestamp will be sent for getObject() according to the Oracle docs
-						// if the oracle.jdbc.J2EE13Compliant connection property is set to TRUE, 
-						// else the method returns oracle.sql.TIMESTAMP
-						else if (resultSet.getObject(i+1) instanceof oracle.sql.TIMESTAMP)
-						{
-							// Odd; the oracle.sql.TIMESTAMP class does not have an overridden toString()
-							// method for use later on, so we convert it now to something that does.
-							variousColumnsNotInOneBean.put(
-								columnName/*.toLowerCase()*/,
-								// PostgreSQL
-								// columnName.toUpperCase(),
-								((oracle.sql.TIMESTAMP) resultSet.getObject(i+1)).timestampValue());
-						}
-						else
-							variousColumnsNotInOneBean.put(
-								columnName/*.toLowerCase()*/,
-								// PostgreSQL
-								// columnName.toUpperCase(),
-								resultSet.getObject(i+1));
-					}
-				}
+				variousColumnsNotInOneBean = readRow(resultSet, columnNames, applyOracle9_2_0_4JDBCFix);
 				
 				String concatenatedKeyValues = "";
 				if (keyColumns == null)
@@ -460,12 +500,351 @@ public class PersistenceManager
 		finally
 		{
 			try { if (resultSet != null) resultSet.close(); } catch (Exception e) {} 
+			Cancellation.unregister(statement);
+			Cancellation.unregister(preparedStatement);
+			try { if (statement != null) statement.close(); } catch (Exception e) {}
+			releaseStatement(connection, preparedStatement);
+			if (useOwnConnection)
+				try { if (connection != null) connection.close(); } catch (Exception e) {}
+		}
+	}
+
+	/**
+	 * Same as {@link #findRows(Connection, String, Object[], String[])}, except that the rows
+	 * are returned in a compact {@link ResultTable} (shared column names, typed column arrays)
+	 * instead of one list ordered map per row. Use {@link ResultTable#toListOrderedMap()} where
+	 * the legacy format is needed.
+	 * 
+	 * @param connection the connection to use (if null, then create a connection automatically)
+	 * @param query the SQL query to execute
+	 * @param parameters the values of the placeholders in the query, in order (null means the
+	 * query has no placeholders)
+	 * @param keyColumns the columns to use as row keys (values joined with "|"), or null to key
+	 * the rows by row number
+	 * @return the rows (never null; empty if the query returned nothing)
+	 * @throws SQLException
+	 */
+	public ResultTable findTable(Connection connection, String query, Object parameters[], String keyColumns[])
+		throws SQLException
+	{
+		boolean useOwnConnection = (connection == null);
+		Statement statement = null;
+		PreparedStatement preparedStatement = null;
+		ResultSet resultSet = null;
+		
+		try
+		{
+			if (useOwnConnection)
+				connection = getConnection(true);
+			if (parameters == null)
+			{
+				statement = connection.createStatement();
+				Cancellation.register(statement);
+				resultSet = statement.executeQuery(query);
+			}
+			else
+			{
+				preparedStatement = prepareStatement(connection, query);
+				bindParameters(preparedStatement, parameters);
+				Cancellation.register(preparedStatement);
+				resultSet = preparedStatement.executeQuery();
+			}
+
+			String columnNames[] = getColumnNames(resultSet);
+			// --BeginDriverKludgeRelated--
+			boolean applyOracle9_2_0_4JDBCFix = isOracle9_2_0_4JDBCFixNeeded(connection);
+			// --EndDriverKludgeRelated--
+
+			int keyIndexes[] = null;
+			if (keyColumns != null)
+			{
+				keyIndexes = new int[keyColumns.length];
+				for (int i=0; i<keyColumns.length; i++)
+				{
+					if (keyColumns[i] == null || keyColumns[i].trim() == "")
+						throw new IllegalArgumentException("Keys must be nonempty strings");
+					keyIndexes[i] = -1;
+					for (int j=0; j<columnNames.length; j++)
+						if (columnNames[j].equals(keyColumns[i]))
+							keyIndexes[i] = j;
+				}
+			}
+
+			ResultTable table = new ResultTable(columnNames, keyColumns != null);
+			Object values[] = new Object[columnNames.length];
+			StringBuffer key = new StringBuffer();
+			
+			while (resultSet.next())
+			{
+				for (int i=0; i<columnNames.length; i++)
+					values[i] = readValue(resultSet, i+1, applyOracle9_2_0_4JDBCFix);
+				
+				String concatenatedKeyValues = null;
+				if (keyIndexes != null)
+				{
+					key.setLength(0);
+					for (int i=0; i<keyIndexes.length; i++)
+					{
+						Object keyValue = (keyIndexes[i] < 0 ? null : values[keyIndexes[i]]);
+						if (keyValue == null)
+							throw new IllegalArgumentException("Key value may not be null");
+						if (i > 0)
+							key.append("|");
+						key.append(keyValue.toString());
+					}
+					concatenatedKeyValues = key.toString();
+				}
+				table.addRow(values, concatenatedKeyValues);
+			}
+			
+			return table;
+		}
+		catch (SQLException e)
+		{
+			MainLog.getLog().error(query, e);
+			throw e;
+		}
+		finally
+		{
+			try { if (resultSet != null) resultSet.close(); } catch (Exception e) {} 
+			Cancellation.unregister(statement);
+			Cancellation.unregister(preparedStatement);
 			try { if (statement != null) statement.close(); } catch (Exception e) {}
+			releaseStatement(connection, preparedStatement);
 			if (useOwnConnection)
 				try { if (connection != null) connection.close(); } catch (Exception e) {}
 		}
 	}
 
+	/**
+	 * <p>
+	 * Streams the rows of a query to a visitor, one at a time, instead of collecting them all
+	 * in memory first as {@link #findRows(Connection, String, Object[], String[])} does. Memory
+	 * use therefore stays flat regardless of the size of the result set, as long as the
+	 * visitor does not hold on to the rows itself.
+	 * </p>
+	 * <p>
+	 * Every row is a new list ordered map of column names to values, in the same format as
+	 * the rows returned by <code>findRows</code> (null values are left out).
+	 * </p>
+	 * 
+	 * @param connection the connection to use (if null, then create a connection automatically)
+	 * @param query the SQL query to execute
+	 * @param parameters the values of the placeholders in the query, in order (null means the
+	 * query has no placeholders)
+	 * @param fetchSize the number of rows the JDBC driver should fetch from the database per
+	 * round trip; zero or less means use the driver's default (10 for Oracle)
+	 * @param visitor the visitor to pass each row to
+	 * @return the number of rows visited
+	 * @throws Exception any exception thrown by the visitor, or an SQLException
+	 */
+	public int visitRows(Connection connection, String query, Object parameters[], int fetchSize, RowVisitor visitor)
+		throws Exception
+	{
+		boolean useOwnConnection = (connection == null);
+		Statement statement = null;
+		PreparedStatement preparedStatement = null;
+		ResultSet resultSet = null;
+		int rowCounter = 0;
+		
+		try
+		{
+			if (useOwnConnection)
+				connection = getConnection(true);
+			if (parameters == null)
+			{
+				statement = connection.createStatement();
+				if (fetchSize > 0)
+					statement.setFetchSize(fetchSize);
+				Cancellation.register(statement);
+				resultSet = statement.executeQuery(query);
+			}
+			else
+			{
+				preparedStatement = prepareStatement(connection, query);
+				// always set, since cached statements keep the fetch size of their last use 
+				preparedStatement.setFetchSize(fetchSize > 0 ? fetchSize : 0);
+				bindParameters(preparedStatement, parameters);
+				Cancellation.register(preparedStatement);
+				resultSet = preparedStatement.executeQuery();
+			}
+
+			String columnNames[] = getColumnNames(resultSet);
+			// --BeginDriverKludgeRelated--
+			boolean applyOracle9_2_0_4JDBCFix = isOracle9_2_0_4JDBCFixNeeded(connection);
+			// --EndDriverKludgeRelated--
+
+			while (resultSet.next())
+			{
+				if (!visitor.visitRow(rowCounter++, readRow(resultSet, columnNames, applyOracle9_2_0_4JDBCFix)))
+					break;
+			}
+			
+			return rowCounter;
+		}
+		catch (SQLException e)
+		{
+			MainLog.getLog().error(query, e);
+			throw e;
+		}
+		finally
+		{
+			try { if (resultSet != null) resultSet.close(); } catch (Exception e) {} 
+			Cancellation.unregister(statement);
+			Cancellation.unregister(preparedStatement);
+			try { if (statement != null) statement.close(); } catch (Exception e) {}
+			releaseStatement(connection, preparedStatement);
+			if (useOwnConnection)
+				try { if (connection != null) connection.close(); } catch (Exception e) {}
+		}
+	}
+
+	/**
+	 * Reads the current row of a result set into a list ordered map of column names to
+	 * values. Null values are left out of the map.
+	 */
+	private ListOrderedMap readRow(ResultSet resultSet, String columnNames[], boolean applyOracle9_2_0_4JDBCFix)
+		throws SQLException
+	{
+		ListOrderedMap /*String, Object*/ variousColumnsNotInOneBean = new ListOrderedMap();
+		
+		for (int i=0; i<columnNames.length; i++)
+		{
+			Object value = readValue(resultSet, i+1, applyOracle9_2_0_4JDBCFix);
+			if (value != null)
+				variousColumnsNotInOneBean.put(
+					columnNames[i]/*.toLowerCase()*/,
+					// PostgreSQL
+					// columnNames[i].toUpperCase(),
+					value);
+		}
+		
+		return variousColumnsNotInOneBean;
+	}
+
+	/**
+	 * Reads one value of the current row of a result set, fetching it from the driver only
+	 * once, and converts driver specific types to standard ones.
+	 */
+	private Object readValue(ResultSet resultSet, int column, boolean applyOracle9_2_0_4JDBCFix)
+		throws SQLException
+	{
+		Object value = resultSet.getObject(column);
+		if (value == null)
+			return null;
+
+		// --BeginDriverKludgeRelated--
+		if (applyOracle9_2_0_4JDBCFix && (value instanceof java.sql.Timestamp))
+			return new java.sql.Date( ((Timestamp) value).getTime() );
+		else if (applyOracle9_2_0_4JDBCFix && (value instanceof oracle.sql.DATE))
+			return ((oracle.sql.DATE) value).timestampValue();
+		// --EndDriverKludgeRelated--
+		// java.sql.Timestamp will be sent for getObject() according to the Oracle docs
+		// if the oracle.jdbc.J2EE13Compliant connection property is set to TRUE, 
+		// else the method returns oracle.sql.TIMESTAMP
+		else if (value instanceof oracle.sql.TIMESTAMP)
+		{
+			// Odd; the oracle.sql.TIMESTAMP class does not have an overridden toString()
+			// method for use later on, so we convert it now to something that does.
+			return ((oracle.sql.TIMESTAMP) value).timestampValue();
+		}
+		return value;
+	}
+
+	/**
+	 * @return the column names of a result set, retrieved once so that all rows share the
+	 * same strings
+	 */
+	private String[] getColumnNames(ResultSet resultSet)
+		throws SQLException
+	{
+		ResultSetMetaData rsmd = resultSet.getMetaData();
+		String columnNames[] = new String[rsmd.getColumnCount()];
+		for (int i=0; i<columnNames.length; i++)
+			columnNames[i] = rsmd.getColumnName(i+1);
+		return columnNames;
+	}
+
+	/**
+	 * @return whether the result set workarounds for the Oracle 9.2.0.4 driver are needed
+	 */
+	private boolean isOracle9_2_0_4JDBCFixNeeded(Connection connection)
+		throws SQLException
+	{
+		// --BeginDriverKludgeRelated--
+		// The Oracle 9.2.0.4 JDBC driver has two bugs in it that are corrected in later versions.
+		// However to save time (regression testing all other portlets on NASO after upgrading),
+		// we workaround the two bugs here. The two bugs: when calling ResultSet.getObject():
+		// an SQL Date is returned as a Timestamp, (JDBC spec sez: should be a Date)
+		// and an SQL Timestamp is returned as a oracle.sql.DATE (should be a Timestamp)
+		// This is documented partially at:
+		// http://download.oracle.com/docs/cd/B10501_01/java.920/a96654/datacc.htm
+		String driverVersion = connection.getMetaData().getDriverVersion();
+		return (driverVersion.indexOf("9.2.0.4") >= 0);
+		// --EndDriverKludgeRelated--
+	}
+
+	// ----- Prepared statements -----
+
+	/**
+	 * Prepares a statement, borrowing it from the connection's statement cache if there is
+	 * one. The statement must be handed back with {@link #releaseStatement(Connection, PreparedStatement)}
+	 * rather than closed.
+	 */
+	private PreparedStatement prepareStatement(Connection connection, String query)
+		throws SQLException
+	{
+		StatementCache statementCache = null;
+		if (connection instanceof StatementCachingConnection)
+			statementCache = ((StatementCachingConnection) connection).getStatementCache();
+		
+		if (statementCache != null)
+			return statementCache.borrowStatement(query);
+		return connection.prepareStatement(query);
+	}
+
+	/**
+	 * Hands a statement obtained from {@link #prepareStatement(Connection, String)} back to
+	 * the connection's statement cache, or closes it if there is no cache. 
+	 */
+	private void releaseStatement(Connection connection, PreparedStatement preparedStatement)
+	{
+		if (preparedStatement == null)
+			return;
+		
+		try
+		{
+			StatementCache statementCache = null;
+			if (connection instanceof StatementCachingConnection)
+				statementCache = ((StatementCachingConnection) connection).getStatementCache();
+			
+			if (statementCache != null)
+				statementCache.returnStatement(preparedStatement);
+			else
+				preparedStatement.close();
+		}
+		catch (Exception e) 
+		{
+			try { preparedStatement.close(); } catch (Exception e2) {}
+		}
+	}
+
+	/**
+	 * Binds parameters to the placeholders of a prepared statement, in order. Nulls are bound
+	 * as VARCHAR nulls, which Oracle accepts for any column type.
+	 */
+	private void bindParameters(PreparedStatement preparedStatement, Object parameters[])
+		throws SQLException
+	{
+		for (int i=0; i<parameters.length; i++)
+		{
+			if (parameters[i] == null)
+				preparedStatement.setNull(i+1, Types.VARCHAR);
+			else
+				preparedStatement.setObject(i+1, parameters[i]);
+		}
+	}
+
 	// ----- Bulk Update -----
 	
 	/**
@@ -546,4 +925,44 @@ public class PersistenceManager
 				try { if (connection != null) connection.close(); } catch (Exception e) {}
 		}
 	}
+
+	/**
+	 * Simple method for doing bulk inserts of the results of a query.
+	 * @param connection the connection to use, if null then a connection is automatically created
+	 * @param table the table to insert rows into
+	 * @param columns the columns to insert, in the order the query selects them
+	 * @param query the query selecting the rows to insert
+	 * @return the number of inserts done
+	 */
+	public int bulkInsert(Connection connection, String table, String columns, String query)
+		throws SQLException
+	{
+		boolean useOwnConnection = (connection == null);
+		Statement statement = null;
+		String insert = "INSERT INTO " + table + " (" + columns + ") " + query;
+
+		MainLog.getLog().debug(insert);
+
+		try
+		{
+			if (useOwnConnection)
+				connection = getConnection(true);
+			statement = connection.createStatement();
+
+			int results = statement.executeUpdate(insert);
+
+			return results;
+		}
+		catch (SQLException e)
+		{
+			MainLog.getLog().error("Unable to perform bulkInsert with query: " + insert, e);
+			throw e;
+		}
+		finally
+		{
+			try { if (statement != null) statement.close(); } catch (Exception e) {}
+			if (useOwnConnection)
+				try { if (connection != null) connection.close(); } catch (Exception e) {}
+		}
+	}
 }
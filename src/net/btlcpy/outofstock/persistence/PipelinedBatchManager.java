@@ -0,0 +1,385 @@
+package net.btlcpy.outofstock.persistence;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Map;
+
+import net.btlcpy.outofstock.loggers.MainLog;
+import net.btlcpy.outofstock.persistence.beans.BasePersistentBean;
+
+/**
+ * <p>
+ * A BatchManager that places parameters in the batches of their queries, and executes those
+ * batches, on a thread of its own (the writer), so that the thread adding the parameters (e.g.
+ * a spreadsheet parser) can go on with its own work while the database is busy.
+ * </p>
+ *
+ * <p>
+ * Parameters are taken in fully - the values of a bean are recorded at the time of the call -
+ * and handed to the writer through a queue of bounded capacity; once the queue is full, adding
+ * parameters waits for the writer to catch up. If the writer fails, the queue is dropped and the
+ * next call on the manager throws the writer's exception. All the other methods (executing,
+ * clearing, adding queries, ...) first wait for the queue to be written out, then run on the
+ * calling thread as usual. The connection must not be used by other threads while parameters are
+ * being written; {@link #flush()} waits until it is free again.
+ * </p>
+ *
+ * <p>
+ * Primary keys of created beans are still generated on the calling thread, as callers usually
+ * need them right away (e.g. for mappings); that does not use the connection (see
+ * {@link PrimaryKeyAllocator}). Call {@link #close()} once done, or when giving up.
+ * </p>
+ *
+ * @author Ahmed A. Abd-Allah
+ */
+public class PipelinedBatchManager extends BatchManager
+{
+	// ----- Static members ---------------------------------------------------
+	/** The number of parameter sets that may wait in the queue by default */
+	public static final int DEFAULT_CAPACITY = 10000;
+
+	/** The largest number of parameter sets the writer takes off the queue at once */
+	private static final int CHUNK_SIZE = 500;
+
+	/**
+	 * One set of parameters for the batch of a query: either values (see
+	 * {@link BatchManager#addParameters(String, Object[], int[])}) or the recorded calls a bean
+	 * made on the query's prepared statement.
+	 */
+	private static class Parameters
+	{
+		String handle;
+		Object values[];
+		int types[];
+		/** Alternating Methods and their arguments (Object[]) */
+		ArrayList /* Method, Object[] */ calls;
+		boolean batched;
+	}
+
+	/**
+	 * Stands in for a prepared statement while a bean adds its values to it, recording the
+	 * parameters it is given. The statement has no connection, so beans being created generate
+	 * their primary keys without one.
+	 */
+	private static class ParameterRecorder implements InvocationHandler
+	{
+		ArrayList /* Method, Object[] */ calls = new ArrayList();
+		boolean batched = false;
+
+		public Object invoke(Object proxy, Method method, Object args[])
+			throws Throwable
+		{
+			String name = method.getName();
+			if (method.getDeclaringClass() == Object.class)
+				return method.invoke(this, args);
+			if (name.startsWith("set") || name.equals("clearParameters"))
+			{
+				calls.add(method);
+				calls.add(args);
+				return null;
+			}
+			if (name.equals("addBatch") && args == null)
+			{
+				batched = true;
+				return null;
+			}
+			if (name.equals("getConnection"))
+				return null;
+			throw new UnsupportedOperationException("PreparedStatement." + name + " cannot be recorded");
+		}
+	}
+
+	// ----- Instance members -------------------------------------------------
+	private int capacity;
+	private LinkedList /* Parameters */ queue = new LinkedList();
+	private Thread writer = null;
+	/** Whether the writer is placing parameters it has taken off the queue */
+	private boolean writing = false;
+	private boolean closed = false;
+	/** What made the writer fail, if it did */
+	private Throwable failure = null;
+
+	private ParameterRecorder recorder = null;
+	private PreparedStatement recordingStatement = null;
+
+	/** The number of times adding parameters had to wait for room in the queue */
+	private long fullQueueWaits = 0;
+	/** The number of times the writer had to wait for parameters */
+	private long emptyQueueWaits = 0;
+
+	public PipelinedBatchManager(Connection connection)
+	{
+		this(connection, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param connection the connection to use
+	 * @param capacity the number of parameter sets that may wait in the queue to be written
+	 */
+	public PipelinedBatchManager(Connection connection, int capacity)
+	{
+		super(connection);
+		this.capacity = (capacity > 0 ? capacity : 1);
+	}
+
+	public void addParameters(String handle, Object values[], int types[])
+		throws SQLException
+	{
+		Parameters parameters = new Parameters();
+		parameters.handle = handle;
+		parameters.values = (Object[]) values.clone();
+		parameters.types = (types != null ? (int[]) types.clone() : null);
+		enqueue(parameters);
+	}
+
+	public void addBeanParameters(String handle, BasePersistentBean bean, int batchType)
+		throws SQLException
+	{
+		synchronized (this)
+		{
+			checkFailure();
+		}
+
+		if (recorder == null)
+		{
+			recorder = new ParameterRecorder();
+			recordingStatement = (PreparedStatement) Proxy.newProxyInstance(
+				PreparedStatement.class.getClassLoader(), new Class[] { PreparedStatement.class }, recorder);
+		}
+		recorder.calls = new ArrayList();
+		recorder.batched = false;
+		bean.addToBatch(recordingStatement, batchType, true);
+
+		Parameters parameters = new Parameters();
+		parameters.handle = handle;
+		parameters.calls = recorder.calls;
+		parameters.batched = recorder.batched;
+		enqueue(parameters);
+	}
+
+	/**
+	 * Waits until all the parameters added so far have been placed in the batches of their
+	 * queries (and the batches that reached the threshold executed), so that the connection can
+	 * be used again.
+	 *
+	 * @throws SQLException if the writer failed
+	 */
+	public void flush()
+		throws SQLException
+	{
+		if (Thread.currentThread() == writer)
+			return;
+
+		synchronized (this)
+		{
+			while ((!queue.isEmpty() || writing) && failure == null)
+			{
+				try { wait(); } catch (InterruptedException e) {}
+			}
+			checkFailure();
+		}
+	}
+
+	/**
+	 * Stops the writer, dropping any parameters still waiting to be written, and waits for it to
+	 * finish the parameters it is placing. The manager cannot take parameters afterwards.
+	 */
+	public void close()
+	{
+		Thread stoppedWriter;
+		synchronized (this)
+		{
+			closed = true;
+			queue.clear();
+			notifyAll();
+			stoppedWriter = writer;
+		}
+
+		if (stoppedWriter != null && stoppedWriter != Thread.currentThread())
+		{
+			try { stoppedWriter.join(); } catch (InterruptedException e) {}
+			MainLog.getLog().debug("Batch writer stopped; waits for a full queue: " + fullQueueWaits +
+				", waits for an empty queue: " + emptyQueueWaits);
+		}
+	}
+
+	public void addQuery(String handle, String query, Integer priority)
+		throws SQLException
+	{
+		flush();
+		super.addQuery(handle, query, priority);
+	}
+
+	public void removeQuery(String handle)
+	{
+		try { flush(); } catch (SQLException e) {}
+		super.removeQuery(handle);
+	}
+
+	public int getBatchSize(String handle)
+	{
+		try { flush(); } catch (SQLException e) {}
+		return super.getBatchSize(handle);
+	}
+
+	public int[] execute(String handle, boolean force)
+		throws SQLException
+	{
+		flush();
+		return super.execute(handle, force);
+	}
+
+	public Map /*String, int[]*/ executeAll(boolean force)
+		throws SQLException
+	{
+		flush();
+		return super.executeAll(force);
+	}
+
+	public void clearAll()
+		throws SQLException
+	{
+		flush();
+		super.clearAll();
+	}
+
+	public void closeAll()
+		throws SQLException
+	{
+		close();
+		super.closeAll();
+	}
+
+	/**
+	 * Throws the exception the writer failed with, if it did. Must be called holding the monitor.
+	 */
+	private void checkFailure()
+		throws SQLException
+	{
+		if (failure == null)
+			return;
+		if (failure instanceof SQLException)
+			throw (SQLException) failure;
+		throw new SQLException("Unable to write batches: " + failure.getClass().getName() +
+			(failure.getMessage() != null ? ": " + failure.getMessage() : ""));
+	}
+
+	/**
+	 * Hands parameters to the writer, waiting for room in the queue if needed.
+	 */
+	synchronized private void enqueue(Parameters parameters)
+		throws SQLException
+	{
+		checkFailure();
+		if (closed)
+			throw new SQLException("Batch manager is closed");
+
+		if (writer == null)
+		{
+			writer = new Thread("Batch writer")
+				{
+					public void run()
+					{
+						writeLoop();
+					}
+				};
+			writer.setDaemon(true);
+			writer.start();
+		}
+
+		if (queue.size() >= capacity)
+			fullQueueWaits++;
+		while (queue.size() >= capacity && failure == null && !closed)
+		{
+			try { wait(); } catch (InterruptedException e) {}
+		}
+		checkFailure();
+		if (closed)
+			throw new SQLException("Batch manager is closed");
+
+		queue.addLast(parameters);
+		notifyAll();
+	}
+
+	private void writeLoop()
+	{
+		ArrayList /* Parameters */ chunk = new ArrayList();
+		while (true)
+		{
+			synchronized (this)
+			{
+				writing = false;
+				notifyAll();
+
+				if (queue.isEmpty() && !closed)
+					emptyQueueWaits++;
+				while (queue.isEmpty() && !closed)
+				{
+					try { wait(); } catch (InterruptedException e) {}
+				}
+				if (closed)
+					return;
+
+				while (!queue.isEmpty() && chunk.size() < CHUNK_SIZE)
+					chunk.add(queue.removeFirst());
+				writing = true;
+				notifyAll();
+			}
+
+			try
+			{
+				for (int i=0; i<chunk.size(); i++)
+					write((Parameters) chunk.get(i));
+				chunk.clear();
+			}
+			catch (Throwable t)
+			{
+				MainLog.getLog().error("Exception writing batches", t);
+				synchronized (this)
+				{
+					failure = t;
+					queue.clear();
+					writing = false;
+					notifyAll();
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Places one set of parameters in the batch of its query. Runs on the writer.
+	 */
+	private void write(Parameters parameters)
+		throws Exception
+	{
+		if (parameters.calls == null)
+		{
+			super.addParameters(parameters.handle, parameters.values, parameters.types);
+			return;
+		}
+
+		PreparedStatement preparedStatement = getPreparedStatement(parameters.handle);
+		try
+		{
+			for (int i=0; i<parameters.calls.size(); i+=2)
+				((Method) parameters.calls.get(i)).invoke(preparedStatement, (Object[]) parameters.calls.get(i + 1));
+		}
+		catch (InvocationTargetException e)
+		{
+			if (e.getTargetException() instanceof Exception)
+				throw (Exception) e.getTargetException();
+			throw e;
+		}
+		if (parameters.batched)
+			preparedStatement.addBatch();
+		batchAdded(parameters.handle);
+	}
+}
@@ -0,0 +1,308 @@
+package net.btlcpy.outofstock.persistence;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import net.btlcpy.outofstock.loggers.MainLog;
+
+/**
+ * <p>
+ * Hands out globally unique primary keys from blocks reserved in the database. Each call
+ * to the <code>pkgenerator</code> sequence reserves a block of <code>blockSize</code> keys
+ * (the sequence's increment), which are then given out one by one from memory.
+ * </p>
+ *
+ * <p>
+ * Giving out a key only holds this object's monitor for a couple of integer operations;
+ * the database is never accessed while holding it. When the current block runs low, the
+ * next block is fetched ahead of time by a background thread, so that callers (e.g. the
+ * rows of an upload being batched) normally never wait for the database. Only if the
+ * prefetched block is not there yet when the current one runs out (or on first use) does
+ * a caller fetch a block itself, still outside the monitor.
+ * </p>
+ *
+ * <p>
+ * Keys are not guaranteed to be consecutive: blocks fetched by competing callers that
+ * turn out not to be needed are dropped, leaving harmless gaps.
+ * </p>
+ *
+ * @author Ahmed A. Abd-Allah
+ */
+public class PrimaryKeyAllocator
+{
+	// ----- Static members ---------------------------------------------------
+	/** Prefetch the next block once only this fraction (1/n) of the current block remains. */
+	private static final int PREFETCH_FRACTION = 4;
+
+	// ----- Instance members -------------------------------------------------
+	private PersistenceManager manager;
+
+	/** Number of keys per block; must equal the increment of the sequence. */
+	private int blockSize;
+
+	/** Whether the block size has been checked against the sequence definition. */
+	private boolean blockSizeVerified = false;
+
+	/** The current block: keys nextKey (inclusive) up to limit (exclusive). */
+	private int nextKey = 0;
+	private int limit = 0;
+
+	/** The first key of the block fetched ahead of time, or -1 if there is none. */
+	private int prefetchedBase = -1;
+
+	/** Whether the prefetcher has been asked for (and is fetching) a block. */
+	private boolean prefetching = false;
+
+	private Thread prefetcher = null;
+	private boolean closed = false;
+
+	// Statistics
+	private long blockCount = 0;
+	private long foregroundBlockCount = 0;
+
+	public PrimaryKeyAllocator(PersistenceManager manager, int blockSize)
+	{
+		this.manager = manager;
+		setBlockSize(blockSize);
+	}
+
+	synchronized public int getBlockSize()
+	{
+		return blockSize;
+	}
+
+	/**
+	 * @param blockSize the number of keys per block; this MUST match the increment of the
+	 * <code>pkgenerator</code> sequence, otherwise keys would be handed out twice
+	 */
+	synchronized public void setBlockSize(int blockSize)
+	{
+		if (blockSize <= 0)
+			throw new IllegalArgumentException("Primary key block size must be positive");
+		this.blockSize = blockSize;
+		blockSizeVerified = false;
+	}
+
+	/** @return how many blocks have been fetched from the database */
+	synchronized public long getBlockCount() { return blockCount; }
+	/** @return how many blocks had to be fetched by a caller because no prefetched block was ready */
+	synchronized public long getForegroundBlockCount() { return foregroundBlockCount; }
+
+	/**
+	 * @param connection the connection to use if a block has to be fetched right away (if
+	 * null, a connection is created automatically)
+	 * @return a new primary key
+	 * @throws SQLException if a block could not be fetched
+	 */
+	public Integer allocate(Connection connection)
+		throws SQLException
+	{
+		while (true)
+		{
+			synchronized (this)
+			{
+				if (nextKey < limit)
+				{
+					int key = nextKey++;
+					if (!prefetching && prefetchedBase < 0 && limit - nextKey <= blockSize / PREFETCH_FRACTION)
+						requestPrefetch();
+					return new Integer(key);
+				}
+				if (prefetchedBase >= 0)
+				{
+					installBlock(prefetchedBase);
+					prefetchedBase = -1;
+					continue;
+				}
+			}
+
+			// No keys left at all: fetch a block ourselves, without holding the monitor
+			int base = fetchBlock(connection);
+			synchronized (this)
+			{
+				foregroundBlockCount++;
+				if (nextKey >= limit)
+					installBlock(base);
+				else if (prefetchedBase < 0)
+					prefetchedBase = base;
+				// else another caller already refilled both blocks; drop this one
+			}
+		}
+	}
+
+	/**
+	 * Stops the prefetcher thread.
+	 */
+	synchronized public void close()
+	{
+		closed = true;
+		notifyAll();
+	}
+
+	private void installBlock(int base)
+	{
+		nextKey = base;
+		limit = base + blockSize;
+	}
+
+	/**
+	 * Wakes up (or starts) the prefetcher. Must be called holding the monitor.
+	 */
+	private void requestPrefetch()
+	{
+		if (closed)
+			return;
+
+		prefetching = true;
+		if (prefetcher == null)
+		{
+			prefetcher = new Thread("Primary key prefetcher")
+				{
+					public void run()
+					{
+						prefetchLoop();
+					}
+				};
+			prefetcher.setDaemon(true);
+			prefetcher.start();
+		}
+		notifyAll();
+	}
+
+	private void prefetchLoop()
+	{
+		while (true)
+		{
+			synchronized (this)
+			{
+				while (!prefetching && !closed)
+				{
+					try { wait(); } catch (InterruptedException e) {}
+				}
+				if (closed)
+					return;
+			}
+
+			try
+			{
+				int base = fetchBlock(null);
+				synchronized (this)
+				{
+					if (nextKey >= limit)
+						installBlock(base);
+					else if (prefetchedBase < 0)
+						prefetchedBase = base;
+				}
+			}
+			catch (Exception e)
+			{
+				// Callers will fetch the block themselves when they run out
+				MainLog.getLog().error("Unable to prefetch a block of primary keys", e);
+			}
+			finally
+			{
+				synchronized (this)
+				{
+					prefetching = false;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reserves a new block of keys in the database.
+	 *
+	 * @return the first key of the block
+	 */
+	private int fetchBlock(Connection connection)
+		throws SQLException
+	{
+		boolean useOwnConnection = (connection == null);
+		Statement statement = null;
+		ResultSet resultSet = null;
+		int base = -1;
+
+		try
+		{
+			if (useOwnConnection)
+				connection = manager.getConnection(true);
+
+			verifyBlockSize(connection);
+
+			statement = connection.createStatement();
+			// Get a fresh base generated key from the database
+			resultSet = statement.executeQuery("SELECT pkgenerator.nextval FROM DUAL");
+			// PostgreSQL
+			// resultSet = statement.executeQuery("SELECT nextval('pkgenerator')");
+
+			if (resultSet.next())
+				base = resultSet.getInt("nextval");
+			if (base < 0)
+				throw new SQLException("Unable to generate primary key");
+
+			synchronized (this)
+			{
+				blockCount++;
+			}
+			return base;
+		}
+		finally
+		{
+			try { if (resultSet != null) resultSet.close(); } catch (Exception e) {}
+			try { if (statement != null) statement.close(); } catch (Exception e) {}
+			if (useOwnConnection)
+				try { if (connection != null) connection.close(); } catch (Exception e) {}
+		}
+	}
+
+	/**
+	 * Checks the configured block size against the increment of the sequence, the first
+	 * time a block is fetched. A block size larger than the increment would hand out the same
+	 * keys twice, so in that case the increment is used instead.
+	 */
+	private void verifyBlockSize(Connection connection)
+	{
+		synchronized (this)
+		{
+			if (blockSizeVerified)
+				return;
+			blockSizeVerified = true;
+		}
+
+		Statement statement = null;
+		ResultSet resultSet = null;
+
+		try
+		{
+			statement = connection.createStatement();
+			resultSet = statement.executeQuery(
+				"SELECT increment_by FROM user_sequences WHERE sequence_name = 'PKGENERATOR'");
+			if (resultSet.next())
+			{
+				int increment = resultSet.getInt(1);
+				synchronized (this)
+				{
+					if (increment > 0 && increment != blockSize)
+					{
+						MainLog.getLog().error("Configured primary key block size (" + blockSize +
+							") does not match the pkgenerator sequence increment (" + increment + "); using " +
+							Math.min(blockSize, increment));
+						blockSize = Math.min(blockSize, increment);
+					}
+				}
+			}
+		}
+		catch (SQLException e)
+		{
+			// Not Oracle, or no access to the data dictionary: trust the configuration
+			MainLog.getLog().debug("Unable to verify primary key block size: " + e.getMessage());
+		}
+		finally
+		{
+			try { if (resultSet != null) resultSet.close(); } catch (Exception e) {}
+			try { if (statement != null) statement.close(); } catch (Exception e) {}
+		}
+	}
+}
@@ -0,0 +1,583 @@
+package net.btlcpy.outofstock.persistence;
+
+import java.math.BigDecimal;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.apache.commons.collections.map.ListOrderedMap;
+
+/**
+ * <p>
+ * A compact, column oriented container for the rows of a query. The column names are
+ * stored once for the whole table (rather than once per row, as in the list ordered maps
+ * returned by {@link PersistenceManager#findRows(java.sql.Connection, String, Object[], String[])}),
+ * and the values of each column are kept in one typed array:
+ * </p>
+ *
+ * <ul>
+ * <li>whole numbers in an <code>int[]</code> or <code>long[]</code></li>
+ * <li>floating point numbers in a <code>double[]</code></li>
+ * <li>dates (<code>java.sql.Date</code>) as milliseconds in a <code>long[]</code></li>
+ * <li>strings in a <code>String[]</code></li>
+ * <li>anything else (e.g. fractional <code>BigDecimal</code>s, timestamps) in an
+ * <code>Object[]</code></li>
+ * </ul>
+ *
+ * <p>
+ * Nulls are tracked per column in a bitmap. The storage of a column is chosen from the
+ * first non-null value it receives, and widened (int to long, or anything to Object) if a
+ * later value does not fit. Values are always given back as objects of the same class and
+ * value as the ones that went in, so the legacy list ordered map view (see
+ * {@link #getRow(int)} and {@link #toListOrderedMap()}) is indistinguishable from what
+ * <code>findRows</code> returns, and can be handed to code (e.g. JSPs) that expects it.
+ * </p>
+ *
+ * <p>
+ * The rows of that view do not hold copies of their values: they read them from the table's
+ * columns as they are asked for, so a report holding the view holds little more than the
+ * table. A row only copies its values into a map of its own once it is changed.
+ * </p>
+ *
+ * @author Ahmed A. Abd-Allah
+ */
+public class ResultTable
+{
+	// ----- Static members ---------------------------------------------------
+	public static final int TYPE_UNKNOWN = 0; // no non-null value seen yet
+	public static final int TYPE_INT = 1;
+	public static final int TYPE_LONG = 2;
+	public static final int TYPE_DOUBLE = 3;
+	public static final int TYPE_DATE = 4;
+	public static final int TYPE_STRING = 5;
+	public static final int TYPE_OBJECT = 6;
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private static final BigDecimal MIN_INT = new BigDecimal(Integer.toString(Integer.MIN_VALUE));
+	private static final BigDecimal MAX_INT = new BigDecimal(Integer.toString(Integer.MAX_VALUE));
+	private static final BigDecimal MIN_LONG = new BigDecimal(Long.toString(Long.MIN_VALUE));
+	private static final BigDecimal MAX_LONG = new BigDecimal(Long.toString(Long.MAX_VALUE));
+
+	// ----- Instance members -------------------------------------------------
+	/** The shared column schema. */
+	private String columnNames[];
+
+	/** Storage type per column, one of the TYPE_ constants. */
+	private int columnTypes[];
+
+	/** The class of the values originally stored in a column (e.g. BigDecimal or Integer for
+	 * TYPE_INT), used to give back values of the same class. */
+	private Class valueClasses[];
+
+	/** Per column: an int[], long[], double[], String[] or Object[] depending on the type. */
+	private Object columns[];
+
+	/** Per column: bit i is set if the value in row i is null. */
+	private BitSet nulls[];
+
+	/** Row keys, or null if the rows are keyed by their row number. */
+	private String keys[];
+
+	/** Lazily built index of keys to row numbers. */
+	private HashMap /* String, Integer */ rowsByKey = null;
+
+	/** Lazily built index of column names to column numbers. */
+	private HashMap /* String, Integer */ columnsByName = null;
+
+	private int rowCount = 0;
+	private int capacity = INITIAL_CAPACITY;
+
+	/**
+	 * @param columnNames the names of the columns, in order
+	 * @param keyed true if every row will be added with a key, false if rows are keyed by
+	 * their (zero-based) row number
+	 */
+	public ResultTable(String columnNames[], boolean keyed)
+	{
+		this.columnNames = columnNames;
+		columnTypes = new int[columnNames.length];
+		valueClasses = new Class[columnNames.length];
+		columns = new Object[columnNames.length];
+		nulls = new BitSet[columnNames.length];
+		for (int i=0; i<columnNames.length; i++)
+			nulls[i] = new BitSet();
+		if (keyed)
+			keys = new String[capacity];
+	}
+
+	public int getColumnCount() { return columnNames.length; }
+	public String getColumnName(int column) { return columnNames[column]; }
+	/** @return one of the TYPE_ constants */
+	public int getColumnType(int column) { return columnTypes[column]; }
+	public int getRowCount() { return rowCount; }
+
+	/**
+	 * @return the index of a column, or -1 if there is no such column
+	 */
+	public int getColumnIndex(String columnName)
+	{
+		if (columnsByName == null)
+		{
+			HashMap index = new HashMap(columnNames.length * 4 / 3 + 1);
+			for (int i=columnNames.length-1; i>=0; i--)
+				index.put(columnNames[i], new Integer(i));
+			columnsByName = index;
+		}
+		Integer column = (Integer) columnsByName.get(columnName);
+		return (column == null ? -1 : column.intValue());
+	}
+
+	/**
+	 * Appends a row.
+	 *
+	 * @param values the values of the row, one per column (nulls allowed); the array is not
+	 * kept and may be reused by the caller
+	 * @param key the key of the row; ignored if the table is keyed by row number
+	 */
+	public void addRow(Object values[], String key)
+	{
+		if (rowCount == capacity)
+			grow();
+		for (int i=0; i<columnNames.length; i++)
+			setValue(i, rowCount, values[i]);
+		if (keys != null)
+			keys[rowCount] = key;
+		rowsByKey = null;
+		rowCount++;
+	}
+
+	public boolean isNull(int row, int column)
+	{
+		return nulls[column].get(row);
+	}
+
+	/**
+	 * @return the value in a TYPE_INT column (0 if null)
+	 */
+	public int getInt(int row, int column)
+	{
+		return ((int[]) columns[column])[row];
+	}
+
+	/**
+	 * @return the value in a TYPE_INT, TYPE_LONG or TYPE_DATE (milliseconds) column (0 if null)
+	 */
+	public long getLong(int row, int column)
+	{
+		if (columnTypes[column] == TYPE_INT)
+			return ((int[]) columns[column])[row];
+		return ((long[]) columns[column])[row];
+	}
+
+	/**
+	 * @return the value in a numeric column as a double (0 if null)
+	 */
+	public double getDouble(int row, int column)
+	{
+		switch (columnTypes[column])
+		{
+		case TYPE_INT: return ((int[]) columns[column])[row];
+		case TYPE_LONG: return ((long[]) columns[column])[row];
+		case TYPE_DOUBLE: return ((double[]) columns[column])[row];
+		}
+		Object value = getValue(row, column);
+		return (value == null ? 0 : ((Number) value).doubleValue());
+	}
+
+	/**
+	 * @return the value in a column as an object of the class it was added as (null if null)
+	 */
+	public Object getValue(int row, int column)
+	{
+		if (nulls[column].get(row))
+			return null;
+
+		switch (columnTypes[column])
+		{
+		case TYPE_INT:
+			return toNumber(((int[]) columns[column])[row], valueClasses[column]);
+		case TYPE_LONG:
+			return toNumber(((long[]) columns[column])[row], valueClasses[column]);
+		case TYPE_DOUBLE:
+			return new Double(((double[]) columns[column])[row]);
+		case TYPE_DATE:
+			return new java.sql.Date(((long[]) columns[column])[row]);
+		case TYPE_STRING:
+			return ((String[]) columns[column])[row];
+		case TYPE_OBJECT:
+			return ((Object[]) columns[column])[row];
+		}
+		return null;
+	}
+
+	/**
+	 * @return the value in a column (null if null)
+	 */
+	public Object getValue(int row, String columnName)
+	{
+		int column = getColumnIndex(columnName);
+		return (column < 0 ? null : getValue(row, column));
+	}
+
+	/**
+	 * @return the key of a row: either the key it was added with, or its row number
+	 */
+	public String getKey(int row)
+	{
+		if (keys == null)
+			return Integer.toString(row);
+		return keys[row];
+	}
+
+	/**
+	 * @return the number of the row with the given key, or -1 if there is no such row
+	 */
+	public int findRow(String key)
+	{
+		if (rowsByKey == null)
+		{
+			rowsByKey = new HashMap(rowCount * 4 / 3 + 1);
+			for (int i=0; i<rowCount; i++)
+				rowsByKey.put(getKey(i), new Integer(i));
+		}
+		Integer row = (Integer) rowsByKey.get(key);
+		return (row == null ? -1 : row.intValue());
+	}
+
+	/**
+	 * @return ListOrderedMap<String, Object>: a legacy view of one row, column names to
+	 * values, with null values left out (as in <code>findRows</code>); the values are read
+	 * from the table until the row is changed
+	 */
+	public ListOrderedMap getRow(int row)
+	{
+		return (ListOrderedMap) ListOrderedMap.decorate(new RowValues(this, row));
+	}
+
+	/**
+	 * @return ListOrderedMap< String, ListOrderedMap<String, Object> >: the legacy view of
+	 * the whole table, in the same format as <code>findRows</code> (null if there are no
+	 * rows)
+	 */
+	public ListOrderedMap toListOrderedMap()
+	{
+		if (rowCount == 0)
+			return null;
+
+		ListOrderedMap results = new ListOrderedMap(); // LinkedHashMap requires Java 1.4
+		for (int i=0; i<rowCount; i++)
+			results.put(getKey(i), getRow(i));
+		return results;
+	}
+
+	/**
+	 * The values of one row, as a map of column names to values without the nulls. The values
+	 * are read from the table's columns until the first change, which copies them into a map
+	 * of the row's own that is used from then on.
+	 */
+	private static class RowValues extends AbstractMap
+	{
+		private ResultTable table;
+		private int row;
+		/** The number of non-null values in the row */
+		private int size;
+		private HashMap /* String, Object */ copy = null;
+
+		public RowValues(ResultTable table, int row)
+		{
+			this.table = table;
+			this.row = row;
+			for (int i=0; i<table.columnNames.length; i++)
+				if (!table.nulls[i].get(row))
+					size++;
+		}
+
+		public int size()
+		{
+			return (copy != null ? copy.size() : size);
+		}
+
+		public Object get(Object key)
+		{
+			if (copy != null)
+				return copy.get(key);
+			int column = (key instanceof String ? table.getColumnIndex((String) key) : -1);
+			return (column < 0 ? null : table.getValue(row, column));
+		}
+
+		public boolean containsKey(Object key)
+		{
+			if (copy != null)
+				return copy.containsKey(key);
+			int column = (key instanceof String ? table.getColumnIndex((String) key) : -1);
+			return column >= 0 && !table.nulls[column].get(row);
+		}
+
+		public Object put(Object key, Object value)
+		{
+			return copy().put(key, value);
+		}
+
+		public Object remove(Object key)
+		{
+			return copy().remove(key);
+		}
+
+		public void clear()
+		{
+			copy().clear();
+		}
+
+		/** @return the non-null values of the row, in column order (until the row is changed) */
+		public Set entrySet()
+		{
+			if (copy != null)
+				return copy.entrySet();
+
+			return new AbstractSet()
+				{
+					public int size()
+					{
+						return size;
+					}
+
+					public Iterator iterator()
+					{
+						return new Iterator()
+							{
+								private int next = skipNulls(0);
+
+								public boolean hasNext()
+								{
+									return next < table.columnNames.length;
+								}
+
+								public Object next()
+								{
+									if (!hasNext())
+										throw new NoSuchElementException();
+									final int column = next;
+									next = skipNulls(next + 1);
+									return new Map.Entry()
+										{
+											public Object getKey() { return table.columnNames[column]; }
+											public Object getValue() { return table.getValue(row, column); }
+											public Object setValue(Object value) { return put(getKey(), value); }
+											public boolean equals(Object o)
+											{
+												if (!(o instanceof Map.Entry))
+													return false;
+												Map.Entry e = (Map.Entry) o;
+												return getKey().equals(e.getKey()) && getValue().equals(e.getValue());
+											}
+											public int hashCode() { return getKey().hashCode() ^ getValue().hashCode(); }
+										};
+								}
+
+								public void remove()
+								{
+									throw new UnsupportedOperationException();
+								}
+							};
+					}
+				};
+		}
+
+		private int skipNulls(int column)
+		{
+			while (column < table.columnNames.length && table.nulls[column].get(row))
+				column++;
+			return column;
+		}
+
+		/**
+		 * @return the map of the row's own, copying the values into it first if needed
+		 */
+		private HashMap copy()
+		{
+			if (copy == null)
+			{
+				HashMap values = new HashMap(size * 4 / 3 + 1);
+				for (int i=0; i<table.columnNames.length; i++)
+					if (!table.nulls[i].get(row))
+						values.put(table.columnNames[i], table.getValue(row, i));
+				copy = values;
+			}
+			return copy;
+		}
+	}
+
+	// ----- Storage -----
+
+	private void setValue(int column, int row, Object value)
+	{
+		if (value == null)
+		{
+			nulls[column].set(row);
+			return;
+		}
+
+		if (columnTypes[column] == TYPE_UNKNOWN)
+			initializeColumn(column, value);
+		else if (value.getClass() != valueClasses[column] && columnTypes[column] != TYPE_OBJECT)
+			widenColumn(column, TYPE_OBJECT);
+
+		switch (columnTypes[column])
+		{
+		case TYPE_INT:
+			if (fitsInt(value))
+			{
+				((int[]) columns[column])[row] = ((Number) value).intValue();
+				return;
+			}
+			widenColumn(column, fitsLong(value) ? TYPE_LONG : TYPE_OBJECT);
+			setValue(column, row, value);
+			return;
+		case TYPE_LONG:
+			if (fitsLong(value))
+			{
+				((long[]) columns[column])[row] = ((Number) value).longValue();
+				return;
+			}
+			widenColumn(column, TYPE_OBJECT);
+			setValue(column, row, value);
+			return;
+		case TYPE_DOUBLE:
+			((double[]) columns[column])[row] = ((Double) value).doubleValue();
+			return;
+		case TYPE_DATE:
+			((long[]) columns[column])[row] = ((java.sql.Date) value).getTime();
+			return;
+		case TYPE_STRING:
+			((String[]) columns[column])[row] = (String) value;
+			return;
+		case TYPE_OBJECT:
+			((Object[]) columns[column])[row] = value;
+			return;
+		}
+	}
+
+	/**
+	 * Picks the storage for a column from its first non-null value.
+	 */
+	private void initializeColumn(int column, Object value)
+	{
+		int type = TYPE_OBJECT;
+		Class valueClass = value.getClass();
+
+		if (valueClass == BigDecimal.class || valueClass == Integer.class || valueClass == Long.class)
+		{
+			if (fitsInt(value))
+				type = TYPE_INT;
+			else if (fitsLong(value))
+				type = TYPE_LONG;
+		}
+		else if (valueClass == Double.class)
+			type = TYPE_DOUBLE;
+		else if (valueClass == java.sql.Date.class)
+			type = TYPE_DATE;
+		else if (valueClass == String.class)
+			type = TYPE_STRING;
+
+		valueClasses[column] = valueClass;
+		columnTypes[column] = type;
+		columns[column] = newArray(type, capacity);
+	}
+
+	/**
+	 * Moves the rows added so far to a wider storage type.
+	 */
+	private void widenColumn(int column, int type)
+	{
+		Object array = newArray(type, capacity);
+		for (int i=0; i<rowCount; i++)
+		{
+			if (nulls[column].get(i))
+				continue;
+			if (type == TYPE_LONG)
+				((long[]) array)[i] = ((int[]) columns[column])[i];
+			else
+				((Object[]) array)[i] = getValue(i, column);
+		}
+		columns[column] = array;
+		columnTypes[column] = type;
+	}
+
+	private void grow()
+	{
+		int newCapacity = capacity * 2;
+		for (int i=0; i<columnNames.length; i++)
+		{
+			if (columnTypes[i] == TYPE_UNKNOWN)
+				continue;
+			Object array = newArray(columnTypes[i], newCapacity);
+			System.arraycopy(columns[i], 0, array, 0, rowCount);
+			columns[i] = array;
+		}
+		if (keys != null)
+		{
+			String newKeys[] = new String[newCapacity];
+			System.arraycopy(keys, 0, newKeys, 0, rowCount);
+			keys = newKeys;
+		}
+		capacity = newCapacity;
+	}
+
+	private static Object newArray(int type, int size)
+	{
+		switch (type)
+		{
+		case TYPE_INT: return new int[size];
+		case TYPE_LONG: return new long[size];
+		case TYPE_DATE: return new long[size];
+		case TYPE_DOUBLE: return new double[size];
+		case TYPE_STRING: return new String[size];
+		}
+		return new Object[size];
+	}
+
+	/**
+	 * Only whole numbers with scale zero are stored as ints/longs, so that the BigDecimals
+	 * given back are equal (including scale) to the ones that were added.
+	 */
+	private static boolean fitsInt(Object value)
+	{
+		if (value instanceof Integer)
+			return true;
+		if (value instanceof Long)
+			return ((Long) value).longValue() >= Integer.MIN_VALUE && ((Long) value).longValue() <= Integer.MAX_VALUE;
+		if (value instanceof BigDecimal)
+		{
+			BigDecimal decimal = (BigDecimal) value;
+			return decimal.scale() == 0 && decimal.compareTo(MIN_INT) >= 0 && decimal.compareTo(MAX_INT) <= 0;
+		}
+		return false;
+	}
+
+	private static boolean fitsLong(Object value)
+	{
+		if (value instanceof Integer || value instanceof Long)
+			return true;
+		if (value instanceof BigDecimal)
+		{
+			BigDecimal decimal = (BigDecimal) value;
+			return decimal.scale() == 0 && decimal.compareTo(MIN_LONG) >= 0 && decimal.compareTo(MAX_LONG) <= 0;
+		}
+		return false;
+	}
+
+	private static Number toNumber(long value, Class valueClass)
+	{
+		if (valueClass == Integer.class)
+			return new Integer((int) value);
+		if (valueClass == Long.class)
+			return new Long(value);
+		return BigDecimal.valueOf(value);
+	}
+}
@@ -0,0 +1,25 @@
+package net.btlcpy.outofstock.persistence;
+
+import org.apache.commons.collections.map.ListOrderedMap;
+
+/**
+ * Receives the rows of a query one at a time from 
+ * {@link PersistenceManager#visitRows(java.sql.Connection, String, Object[], int, RowVisitor)}.
+ * 
+ * @author Ahmed A. Abd-Allah
+ */
+public interface RowVisitor
+{
+	/**
+	 * Called once per row, in the order returned by the query. Any exception thrown aborts
+	 * the query and is passed on to the caller of <code>visitRows</code>.
+	 * 
+	 * @param rowNumber the zero-based number of the row
+	 * @param row ListOrderedMap<String, Object> of column names to values (null values are
+	 * left out); a new map is passed for every row, so it may be kept
+	 * @return true to continue with the next row, false to stop
+	 * @throws Exception
+	 */
+	public boolean visitRow(int rowNumber, ListOrderedMap row)
+		throws Exception;
+}
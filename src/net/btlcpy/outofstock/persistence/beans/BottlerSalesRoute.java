@@ -29,10 +29,15 @@ public class BottlerSalesRoute extends NamedUploadable
 	 * @param connection the connection to use (if null, will open a new connection automatically)
 	 * @return the cache
 	 */
-	public static BeanCache getCache(Connection connection)
+	synchronized public static BeanCache getCache(Connection connection)
 	{
 		if (cache == null)
+		{
 			cache = new BeanCache(connection, tableName, null, BottlerSalesRoute.class, null, "name");
+			cache.addIndex("primaryKey", "primaryKey", true);
+			cache.addIndex("name", "name", true);
+			cache.setRefreshInterval(BeanCache.DEFAULT_REFRESH_INTERVAL);
+		}
 		return cache;
 	}
 
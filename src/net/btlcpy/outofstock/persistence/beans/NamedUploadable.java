@@ -5,6 +5,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 
+import net.btlcpy.outofstock.persistence.BeanCache;
 import net.btlcpy.outofstock.persistence.PersistenceManager;
 
 import org.apache.commons.collections.map.ListOrderedMap;
@@ -22,7 +23,10 @@ public abstract class NamedUploadable extends Uploadable
 	// ----- Static members ---------------------------------------------------
 
 	/**
-	 * Finds namedUploadables by their property <code>'name'</code>.
+	 * Finds namedUploadables by their property <code>'name'</code>. If the whole table is cached
+	 * with an index by name (see {@link BeanCache#getCache(Class, String, String)}), the beans
+	 * are the cache's own, and must be treated as read-only; otherwise they are read from the
+	 * database.
 	 * @param connection the connection to use (null --> automatically created)
 	 * @param tableName database table name
 	 * @param typeOfBean type of bean to create
@@ -31,6 +35,9 @@ public abstract class NamedUploadable extends Uploadable
 	public static ListOrderedMap findByName(Connection connection, String tableName, Class typeOfBean, String name)
 		throws InstantiationException, IllegalAccessException, SQLException
 	{
+		BeanCache cache = BeanCache.getCache(typeOfBean, tableName, "name");
+		if (cache != null)
+			return cache.getSnapshot().findBeans("name", name);
 		return PersistenceManager.getPersistenceManager().
 			findBeans(connection, tableName, "name = " + BQ + dq(name) + EQ, typeOfBean, null, "name");
 	}
@@ -25,12 +25,34 @@ public class OutOfStockEvent extends Instrumented
 	// ----- Static members ---------------------------------------------------
 	/** Database table name */
 	public static final String tableName = "outofstockevents";
-	
+
+	/**
+	 * Daily rollup tables: the events that are not ignored, summed per store, day and reason
+	 * and per product, day and reason respectively. They have the same measure columns as the
+	 * events table (plus the number of events summed up), so that reports which only need
+	 * sums at one of these grains can read them instead of the events (see
+	 * {@link #refreshRollups(Connection, Date, Date)}).
+	 */
+	public static final String storeRollupTableName = "strdlyevts";
+	public static final String productRollupTableName = "prdctdlyevts";
+
 	/**
 	 * The earliest date for which there exists out of stock events.
 	 */
 	private static Date earliestEventDate = null;
 	public static Date getEarliestEventDate() { return earliestEventDate; }
+
+	/**
+	 * The event data generation: incremented whenever changes to the events (or to anything
+	 * else reported on together with them, like the store hierarchy) are committed. Results
+	 * computed from the events remain valid as long as the generation stays the same.
+	 */
+	private static long dataGeneration = 0;
+	synchronized public static long getDataGeneration() { return dataGeneration; }
+	/**
+	 * To be called after changes to the event data have been committed.
+	 */
+	synchronized public static void dataChanged() { dataGeneration++; }
 	/**
 	 * Updates the earliest event date from the database.
 	 * @param connection connection to use, if null --> create a new connection automatically
@@ -189,12 +211,18 @@ public class OutOfStockEvent extends Instrumented
 			if (useOwnConnection)
 				connection = PersistenceManager.getPersistenceManager().getConnection(false);
 
+			String interval =
+				"dateoccurred >= DATE " + BQ + startDate.toString() + EQ + " AND " +
+				"dateoccurred <= DATE " + BQ + endDate.toString() + EQ;
 			int deletions = PersistenceManager.getPersistenceManager().
-				bulkDelete(connection, tableName, 
-					"dateoccurred >= DATE " + BQ + startDate.toString() + EQ + " AND " +
-					"dateoccurred <= DATE " + BQ + endDate.toString() + EQ
-					);
-			
+				bulkDelete(connection, tableName, interval);
+
+			// whole days are deleted, so their rollups go as a whole as well
+			PersistenceManager.getPersistenceManager().
+				bulkDelete(connection, storeRollupTableName, interval);
+			PersistenceManager.getPersistenceManager().
+				bulkDelete(connection, productRollupTableName, interval);
+
 			if (deletions > 0)
 				updateEarliestEventDate(connection);
 
@@ -211,6 +239,7 @@ public class OutOfStockEvent extends Instrumented
 			{
 				connection.commit();
 				committed = true;
+				dataChanged();
 			}
 		}
 		catch (Exception e)
@@ -240,6 +269,83 @@ public class OutOfStockEvent extends Instrumented
 		}
 	}
 
+	/**
+	 * Recomputes the daily rollups of all days between (inclusive) the two dates given from
+	 * the events. Whoever changes events (or their ignored status) must call this for the
+	 * days affected, in the same transaction, so that the rollups never disagree with the
+	 * events they summarize. Only the days given are touched, so after an upload this costs
+	 * in proportion to the upload rather than to all the events.
+	 *
+	 * @param connection connection to use, if null --> create a new connection automatically
+	 * (and commit)
+	 * @param startDate start date of interval (inclusive); if null, all days up to endDate
+	 * @param endDate end date of interval (inclusive); if null, all days from startDate
+	 * @throws SQLException
+	 */
+	public static void refreshRollups(Connection connection, Date startDate, Date endDate)
+		throws SQLException
+	{
+		boolean useOwnConnection = (connection == null);
+		boolean committed = false;
+
+		String interval = null;
+		if (startDate != null)
+			interval = "dateoccurred >= DATE " + BQ + startDate.toString() + EQ;
+		if (endDate != null)
+			interval = (interval != null ? interval + " AND " : "") +
+				"dateoccurred <= DATE " + BQ + endDate.toString() + EQ;
+
+		String events = " FROM " + tableName + " WHERE bitand(metaflags, 1)+0 = 0" +
+			(interval != null ? " AND " + interval : "");
+
+		try
+		{
+			if (useOwnConnection)
+				connection = PersistenceManager.getPersistenceManager().getConnection(false);
+
+			PersistenceManager manager = PersistenceManager.getPersistenceManager();
+
+			manager.bulkDelete(connection, storeRollupTableName, interval);
+			manager.bulkInsert(connection, storeRollupTableName,
+				"store, dateoccurred, reason, count, lostsalesquantity, lostsalesamount, eventcount",
+				"SELECT store, dateoccurred, reason, sum(count), sum(lostsalesquantity), sum(lostsalesamount), count(*)" +
+				events + " GROUP BY store, dateoccurred, reason");
+
+			manager.bulkDelete(connection, productRollupTableName, interval);
+			manager.bulkInsert(connection, productRollupTableName,
+				"product, dateoccurred, reason, count, lostsalesquantity, lostsalesamount, eventcount",
+				"SELECT product, dateoccurred, reason, sum(count), sum(lostsalesquantity), sum(lostsalesamount), count(*)" +
+				events + " GROUP BY product, dateoccurred, reason");
+
+			if (useOwnConnection)
+			{
+				connection.commit();
+				committed = true;
+				dataChanged();
+			}
+		}
+		finally
+		{
+			if (useOwnConnection)
+				try
+				{
+					if (connection != null)
+					{
+						if (!committed)
+						{
+							try { connection.rollback(); }
+							catch (Exception rbe) { MainLog.getLog().error("Exception rolling back", rbe); }
+						}
+						connection.close();
+					}
+				}
+				catch (Exception e)
+				{
+					MainLog.getLog().error("Exception cleaning up connection", e);
+				}
+		}
+	}
+
 	// ----- Instance members -------------------------------------------------
 	private Integer store;
 	private Date dateOccurred;
@@ -25,10 +25,16 @@ public class DistributorDivision extends NamedWithIdUploadable
 	 * @param connection the connection to use (if null, will open a new connection automatically)
 	 * @return the cache
 	 */
-	public static BeanCache getCache(Connection connection)
+	synchronized public static BeanCache getCache(Connection connection)
 	{
 		if (cache == null)
+		{
 			cache = new BeanCache(connection, tableName, null, DistributorDivision.class, null, "name");
+			cache.addIndex("primaryKey", "primaryKey", true);
+			cache.addIndex("name", "name", true);
+			cache.addIndex("id", "id", true);
+			cache.setRefreshInterval(BeanCache.DEFAULT_REFRESH_INTERVAL);
+		}
 		return cache;
 	}
 
@@ -0,0 +1,30 @@
+package net.btlcpy.outofstock.persistence.connections;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * <p>
+ * Represents a source of database connections for the PersistenceManager. Implementations
+ * may hand out brand new physical connections, or connections borrowed from a pool. In
+ * either case the caller is responsible for calling <code>close()</code> on the connection
+ * when done with it, exactly as if it had come from a <code>DataSource</code>.
+ * </p>
+ * 
+ * @author Ahmed A. Abd-Allah
+ */
+public interface ConnectionProvider
+{
+	/**
+	 * @return a connection to the database (never null)
+	 * @throws SQLException if no connection could be obtained
+	 */
+	public Connection getConnection()
+		throws SQLException;
+	
+	/**
+	 * Releases any resources held by the provider (e.g. idle pooled connections). The
+	 * provider should not be used afterwards.
+	 */
+	public void close();
+}
@@ -0,0 +1,129 @@
+package net.btlcpy.outofstock.persistence.connections;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import javax.naming.Context;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+
+import oracle.jdbc.pool.OracleDataSource;
+
+/**
+ * <p>
+ * A connection provider that hands out connections straight from a data source. The data
+ * source is looked up (or, for development, created) only once and then cached, instead of
+ * doing a JNDI lookup per connection request.
+ * </p>
+ * 
+ * @author Ahmed A. Abd-Allah
+ */
+public class DataSourceConnectionProvider implements ConnectionProvider
+{
+	/** The JNDI name of the database to use; if null, a development data source is used. */
+	private String jndiName = null;
+	
+	/** The cached data source. Looked up lazily on first use. */
+	private DataSource dataSource = null;
+	
+	public DataSourceConnectionProvider(String jndiName)
+	{
+		this.jndiName = jndiName;
+	}
+
+	public String getJndiName()
+	{
+		return jndiName;
+	}
+
+	/**
+	 * @return the (cached) data source
+	 * @throws SQLException if the data source cannot be looked up or created
+	 */
+	synchronized public DataSource getDataSource()
+		throws SQLException
+	{
+		if (dataSource == null)
+		{
+			// TODO: REMOVE THIS IF FROM THE PRODUCTION CODE. LEAVE THE ELSE.
+			if (jndiName == null)
+			{
+				OracleDataSource ds = new OracleDataSource();
+				ds.setDataSourceName("OracleDataSource");
+				ds.setImplicitCachingEnabled(false);
+				ds.setNetworkProtocol("tcp");
+				ds.setDatabaseName("XE");
+				ds.setLoginTimeout(0);
+				// ds.setPassword("development");
+				ds.setPassword("kooutofstock");
+				ds.setConnectionCachingEnabled(false);
+				// ds.setUser("development");
+				ds.setUser("kooutofstock");
+				ds.setPortNumber(1521);
+				ds.setServerName("localhost");
+				// ds.setURL("jdbc:oracle:thin:development/development@localhost:1521:XE");
+				ds.setURL("jdbc:oracle:thin:kooutofstock/kooutofstock@localhost:1521:XE");
+	
+				// PostgreSQL
+				/*
+				PGConnectionPoolDataSource ds = new PGConnectionPoolDataSource();
+				ds.setDatabaseName("artlogic");
+				ds.setServerName("localhost");
+				ds.setPortNumber(5432);
+				ds.setUser("postgres");
+				ds.setPassword("postgres");
+				ds.setDefaultAutoCommit(false);
+				*/
+				
+				dataSource = ds;
+			}
+			else
+			{
+				try
+				{
+					Context ctx = (Context) new InitialContext();
+					dataSource = (DataSource) ctx.lookup(jndiName);
+				}
+				catch (NamingException e)
+				{
+					throw new SQLException("Unable to look up data source " + jndiName + ": " + e.getMessage());
+				}
+	
+				if (dataSource == null)
+					throw new SQLException("Null data source when looking up: " + jndiName);
+			}
+		}
+		return dataSource;
+	}
+
+	public Connection getConnection()
+		throws SQLException
+	{
+		Connection connection = null;
+		
+		try
+		{
+			connection = getDataSource().getConnection();
+		}
+		catch (SQLException e)
+		{
+			// The cached data source may have gone stale (e.g. after a redeploy of the
+			// JDBC resource); forget it so that the next request looks it up again.
+			synchronized (this)
+			{
+				dataSource = null;
+			}
+			throw e;
+		}
+		
+		if (connection == null)
+			throw new SQLException("Data source returned a null connection");
+		return connection;
+	}
+
+	synchronized public void close()
+	{
+		dataSource = null;
+	}
+}
@@ -0,0 +1,733 @@
+package net.btlcpy.outofstock.persistence.connections;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import net.btlcpy.outofstock.loggers.MainLog;
+
+/**
+ * <p>
+ * A bounded, in-process pool of database connections. Physical connections are obtained
+ * from another connection provider (typically a {@link DataSourceConnectionProvider}) and
+ * kept around after callers close them, so that the next request does not pay the cost of
+ * connecting again.
+ * </p>
+ *
+ * <p>
+ * Callers receive a wrapper around the physical connection; calling <code>close()</code>
+ * on the wrapper returns the physical connection to the pool (rolling back any uncommitted
+ * work first). The pool provides:
+ * </p>
+ *
+ * <ul>
+ * <li>a maximum number of active (borrowed) connections, with callers waiting up to a
+ * maximum time for a connection to be returned when the pool is exhausted</li>
+ * <li>validation of idle connections before they are handed out again, with a configurable
+ * query or, if there is none, by the driver itself where it supports it</li>
+ * <li>leak detection: a background timer logs (and optionally reclaims) connections that
+ * have been borrowed for longer than a threshold, along with the stack trace of the code
+ * that borrowed them</li>
+ * <li>statistics: active/idle counts and borrow latencies, to help size the pool</li>
+ * <li>a per physical connection cache of prepared statements (see {@link StatementCache}),
+ * exposed through the {@link StatementCachingConnection} interface of the wrapper</li>
+ * </ul>
+ *
+ * <p>
+ * Statements created through the wrapper are wrapped as well, so that their
+ * <code>getConnection()</code> returns the wrapper rather than the physical connection.
+ * </p>
+ *
+ * @author Ahmed A. Abd-Allah
+ */
+public class PooledConnectionProvider implements ConnectionProvider
+{
+	// ----- Static members ---------------------------------------------------
+	/** How often (in milliseconds) the leak detector runs. */
+	private static final long LEAK_DETECTION_PERIOD = 60000;
+
+	/** How long (in seconds) the driver may take to validate a connection. */
+	private static final int VALIDATION_TIMEOUT = 5;
+
+	/** Connection.isValid(int), if the runtime has it (JDBC 4); looked up reflectively as the
+	 * code is kept within the Java 1.3 APIs. */
+	private static Method isValidMethod = null;
+
+	static
+	{
+		try
+		{
+			isValidMethod = Connection.class.getMethod("isValid", new Class[] { Integer.TYPE });
+		}
+		catch (NoSuchMethodException e)
+		{
+		}
+	}
+
+	// ----- Instance members -------------------------------------------------
+	/** The source of physical connections. */
+	private ConnectionProvider physicalConnectionProvider = null;
+
+	/** Maximum number of connections borrowed at the same time. */
+	private int maxActive = 20;
+
+	/** Maximum number of idle connections kept in the pool; extras are closed on return. */
+	private int maxIdle = 10;
+
+	/** Maximum time (in milliseconds) to wait for a connection when the pool is exhausted. A
+	 * negative value means wait indefinitely. */
+	private long maxWait = 30000;
+
+	/** Query used to validate an idle connection before handing it out (e.g. "SELECT 1 FROM
+	 * DUAL" on Oracle, "SELECT 1" on PostgreSQL); if null, the driver validates the connection
+	 * itself if it supports it, else only <code>isClosed()</code> is checked. */
+	private String validationQuery = null;
+
+	/** Whether the driver has turned out not to implement Connection.isValid(int). */
+	private boolean driverValidationUnsupported = false;
+
+	/** Connections borrowed for longer than this (in milliseconds) are reported as leaked. */
+	private long leakThreshold = 600000;
+
+	/** Whether leaked connections are forcibly taken back (closed) or only reported. */
+	private boolean reclaimingLeakedConnections = false;
+
+	/** Maximum number of prepared statements cached per physical connection; 0 disables
+	 * statement caching. */
+	private int maxCachedStatements = 50;
+
+	/** Idle physical connections, most recently returned at the end. */
+	private LinkedList /* Connection */ idleConnections = new LinkedList();
+
+	/** The handlers of all currently borrowed connections. */
+	private HashSet /* PooledConnectionHandler */ borrowedConnections = new HashSet();
+
+	/** The statement caches of the physical connections, created on first use. */
+	private HashMap /* Connection, StatementCache */ statementCaches = new HashMap();
+
+	/** Number of connections that are borrowed or in the middle of being created. */
+	private int activeCount = 0;
+
+	/** Set once the pool is closed. */
+	private boolean closed = false;
+
+	/** Runs the leak detection task. */
+	private Timer leakDetector = null;
+
+	// Statistics
+	private long borrowCount = 0;
+	private long totalBorrowLatency = 0;
+	private long maxBorrowLatency = 0;
+	private long waitTimeoutCount = 0;
+	private long validationFailureCount = 0;
+	private long leakCount = 0;
+	private long physicalConnectionCount = 0;
+
+	public PooledConnectionProvider(ConnectionProvider physicalConnectionProvider)
+	{
+		this.physicalConnectionProvider = physicalConnectionProvider;
+
+		leakDetector = new Timer(true);
+		leakDetector.schedule(new TimerTask()
+			{
+				public void run()
+				{
+					detectLeaks();
+				}
+			},
+			LEAK_DETECTION_PERIOD, LEAK_DETECTION_PERIOD);
+	}
+
+	synchronized public int getMaxActive()
+	{
+		return maxActive;
+	}
+
+	synchronized public void setMaxActive(int maxActive)
+	{
+		this.maxActive = (maxActive <= 0 ? 1 : maxActive);
+		notifyAll();
+	}
+
+	synchronized public int getMaxIdle()
+	{
+		return maxIdle;
+	}
+
+	synchronized public void setMaxIdle(int maxIdle)
+	{
+		this.maxIdle = (maxIdle < 0 ? 0 : maxIdle);
+	}
+
+	synchronized public long getMaxWait()
+	{
+		return maxWait;
+	}
+
+	synchronized public void setMaxWait(long maxWait)
+	{
+		this.maxWait = maxWait;
+	}
+
+	synchronized public String getValidationQuery()
+	{
+		return validationQuery;
+	}
+
+	/**
+	 * @param validationQuery the query to validate idle connections with; if null or empty, the
+	 * driver validates them itself if it supports it
+	 */
+	synchronized public void setValidationQuery(String validationQuery)
+	{
+		this.validationQuery = (validationQuery != null && !validationQuery.trim().equals("") ?
+			validationQuery.trim() : null);
+	}
+
+	synchronized public long getLeakThreshold()
+	{
+		return leakThreshold;
+	}
+
+	synchronized public void setLeakThreshold(long leakThreshold)
+	{
+		this.leakThreshold = leakThreshold;
+	}
+
+	synchronized public boolean isReclaimingLeakedConnections()
+	{
+		return reclaimingLeakedConnections;
+	}
+
+	synchronized public void setReclaimingLeakedConnections(boolean reclaimingLeakedConnections)
+	{
+		this.reclaimingLeakedConnections = reclaimingLeakedConnections;
+	}
+
+	synchronized public int getMaxCachedStatements()
+	{
+		return maxCachedStatements;
+	}
+
+	/**
+	 * Only affects statement caches created afterwards, i.e. for new physical connections.
+	 */
+	synchronized public void setMaxCachedStatements(int maxCachedStatements)
+	{
+		this.maxCachedStatements = (maxCachedStatements < 0 ? 0 : maxCachedStatements);
+	}
+
+	// ----- Gauges -----
+
+	/** @return the number of connections currently borrowed (or being created) */
+	synchronized public int getActiveCount() { return activeCount; }
+	/** @return the number of idle connections in the pool */
+	synchronized public int getIdleCount() { return idleConnections.size(); }
+	/** @return the total number of successful borrows */
+	synchronized public long getBorrowCount() { return borrowCount; }
+	/** @return the average time (milliseconds) a borrow took, including waiting and connecting */
+	synchronized public double getAverageBorrowLatency()
+	{
+		return borrowCount == 0 ? 0 : ((double) totalBorrowLatency) / borrowCount;
+	}
+	/** @return the longest time (milliseconds) a single borrow took */
+	synchronized public long getMaxBorrowLatency() { return maxBorrowLatency; }
+	/** @return how many borrows gave up after waiting <code>maxWait</code> milliseconds */
+	synchronized public long getWaitTimeoutCount() { return waitTimeoutCount; }
+	/** @return how many idle connections failed validation and were discarded */
+	synchronized public long getValidationFailureCount() { return validationFailureCount; }
+	/** @return how many leaked connections have been detected */
+	synchronized public long getLeakCount() { return leakCount; }
+	/** @return how many physical connections have been opened over the pool's lifetime */
+	synchronized public long getPhysicalConnectionCount() { return physicalConnectionCount; }
+	/** @return the total number of statement cache hits over all open physical connections */
+	synchronized public long getStatementCacheHitCount()
+	{
+		long hits = 0;
+		Iterator iterator = statementCaches.values().iterator();
+		while (iterator.hasNext())
+			hits += ((StatementCache) iterator.next()).getHitCount();
+		return hits;
+	}
+	/** @return the total number of statement cache misses over all open physical connections */
+	synchronized public long getStatementCacheMissCount()
+	{
+		long misses = 0;
+		Iterator iterator = statementCaches.values().iterator();
+		while (iterator.hasNext())
+			misses += ((StatementCache) iterator.next()).getMissCount();
+		return misses;
+	}
+
+	/**
+	 * @return a one-line summary of the pool gauges, suitable for logging
+	 */
+	synchronized public String getStatistics()
+	{
+		return "active=" + activeCount + "/" + maxActive +
+			", idle=" + idleConnections.size() +
+			", borrows=" + borrowCount +
+			", avgBorrowMs=" + (long) getAverageBorrowLatency() +
+			", maxBorrowMs=" + maxBorrowLatency +
+			", waitTimeouts=" + waitTimeoutCount +
+			", validationFailures=" + validationFailureCount +
+			", leaks=" + leakCount +
+			", physicalConnections=" + physicalConnectionCount +
+			", statementCacheHits=" + getStatementCacheHitCount() +
+			", statementCacheMisses=" + getStatementCacheMissCount();
+	}
+
+	/**
+	 * Borrows a connection from the pool, waiting up to <code>maxWait</code> milliseconds if
+	 * the pool is exhausted. The returned connection must be closed by the caller.
+	 */
+	public Connection getConnection()
+		throws SQLException
+	{
+		long start = System.currentTimeMillis();
+		Connection physicalConnection = null;
+
+		synchronized (this)
+		{
+			while (true)
+			{
+				if (closed)
+					throw new SQLException("The connection pool has been closed");
+
+				if (idleConnections.size() > 0)
+				{
+					physicalConnection = (Connection) idleConnections.removeLast();
+					activeCount++;
+					break;
+				}
+
+				if (activeCount < maxActive)
+				{
+					// reserve the slot now; the physical connection is created below outside the lock
+					activeCount++;
+					break;
+				}
+
+				long waited = System.currentTimeMillis() - start;
+				if (maxWait >= 0 && waited >= maxWait)
+				{
+					waitTimeoutCount++;
+					throw new SQLException("Timed out after " + waited + " ms waiting for a database connection (" +
+						activeCount + " connections in use)");
+				}
+
+				try
+				{
+					wait(maxWait < 0 ? 0 : maxWait - waited);
+				}
+				catch (InterruptedException e)
+				{
+					throw new SQLException("Interrupted while waiting for a database connection");
+				}
+			}
+		}
+
+		boolean obtained = false;
+		try
+		{
+			if (physicalConnection != null && !isValid(physicalConnection))
+			{
+				synchronized (this) { validationFailureCount++; }
+				closePhysicalConnection(physicalConnection);
+				physicalConnection = null;
+			}
+
+			if (physicalConnection == null)
+			{
+				physicalConnection = physicalConnectionProvider.getConnection();
+				synchronized (this) { physicalConnectionCount++; }
+			}
+
+			PooledConnectionHandler handler = new PooledConnectionHandler(physicalConnection);
+			Connection connection = (Connection) Proxy.newProxyInstance(
+				PooledConnectionProvider.class.getClassLoader(), new Class[] { Connection.class, StatementCachingConnection.class },
+				handler);
+
+			long latency = System.currentTimeMillis() - start;
+			synchronized (this)
+			{
+				borrowedConnections.add(handler);
+				borrowCount++;
+				totalBorrowLatency += latency;
+				if (latency > maxBorrowLatency)
+					maxBorrowLatency = latency;
+			}
+
+			obtained = true;
+			return connection;
+		}
+		finally
+		{
+			if (!obtained)
+			{
+				// give the reserved slot back
+				synchronized (this)
+				{
+					activeCount--;
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes all idle connections and refuses further borrows. Borrowed connections are
+	 * closed as they are returned.
+	 */
+	public void close()
+	{
+		ArrayList toClose = null;
+
+		synchronized (this)
+		{
+			if (closed)
+				return;
+			closed = true;
+			leakDetector.cancel();
+			toClose = new ArrayList(idleConnections);
+			idleConnections.clear();
+			notifyAll();
+		}
+
+		for (int i=0; i<toClose.size(); i++)
+			closePhysicalConnection((Connection) toClose.get(i));
+		physicalConnectionProvider.close();
+	}
+
+	/**
+	 * Checks whether an idle connection is still usable.
+	 */
+	private boolean isValid(Connection physicalConnection)
+	{
+		Statement statement = null;
+		ResultSet resultSet = null;
+		String query = getValidationQuery();
+
+		try
+		{
+			if (physicalConnection.isClosed())
+				return false;
+			if (query != null)
+			{
+				statement = physicalConnection.createStatement();
+				resultSet = statement.executeQuery(query);
+			}
+			else if (isValidMethod != null && !isDriverValidationUnsupported())
+			{
+				try
+				{
+					if (!((Boolean) isValidMethod.invoke(physicalConnection,
+						new Object[] { new Integer(VALIDATION_TIMEOUT) })).booleanValue())
+					{
+						MainLog.getLog().warn("Discarding pooled connection that the driver reports as invalid");
+						return false;
+					}
+				}
+				catch (InvocationTargetException e)
+				{
+					if (e.getTargetException() instanceof SQLException)
+						throw (SQLException) e.getTargetException();
+					// e.g. AbstractMethodError from a driver older than JDBC 4
+					synchronized (this) { driverValidationUnsupported = true; }
+					MainLog.getLog().warn("The database driver cannot validate connections; " +
+						"configure a validation query to have idle connections checked");
+				}
+				catch (IllegalAccessException e)
+				{
+					synchronized (this) { driverValidationUnsupported = true; }
+				}
+			}
+			return true;
+		}
+		catch (SQLException e)
+		{
+			MainLog.getLog().warn("Discarding pooled connection that failed validation: " + e.getMessage());
+			return false;
+		}
+		finally
+		{
+			try { if (resultSet != null) resultSet.close(); } catch (Exception e) {}
+			try { if (statement != null) statement.close(); } catch (Exception e) {}
+		}
+	}
+
+	synchronized private boolean isDriverValidationUnsupported()
+	{
+		return driverValidationUnsupported;
+	}
+
+	private void closePhysicalConnection(Connection physicalConnection)
+	{
+		StatementCache statementCache = null;
+		synchronized (this)
+		{
+			statementCache = (StatementCache) statementCaches.remove(physicalConnection);
+		}
+		if (statementCache != null)
+			statementCache.close();
+		try { physicalConnection.close(); } catch (Exception e) {}
+	}
+
+	/**
+	 * @return the statement cache of a physical connection (created if necessary), or null
+	 * if statement caching is disabled
+	 */
+	synchronized private StatementCache getStatementCache(Connection physicalConnection)
+	{
+		if (maxCachedStatements == 0)
+			return null;
+
+		StatementCache statementCache = (StatementCache) statementCaches.get(physicalConnection);
+		if (statementCache == null)
+		{
+			statementCache = new StatementCache(physicalConnection, maxCachedStatements);
+			statementCaches.put(physicalConnection, statementCache);
+		}
+		return statementCache;
+	}
+
+	/**
+	 * Takes back a connection that was closed by its borrower.
+	 */
+	private void release(PooledConnectionHandler handler)
+	{
+		Connection physicalConnection = handler.getPhysicalConnection();
+		boolean reusable = true;
+
+		// Never hand uncommitted work on to the next borrower
+		try
+		{
+			if (!physicalConnection.getAutoCommit())
+			{
+				physicalConnection.rollback();
+				physicalConnection.setAutoCommit(true);
+			}
+		}
+		catch (SQLException e)
+		{
+			MainLog.getLog().warn("Discarding pooled connection that could not be reset: " + e.getMessage());
+			reusable = false;
+		}
+
+		synchronized (this)
+		{
+			if (!borrowedConnections.remove(handler))
+				reusable = false; // already reclaimed by the leak detector
+			else
+				activeCount--;
+
+			if (reusable && !closed && idleConnections.size() < maxIdle)
+			{
+				idleConnections.addLast(physicalConnection);
+				physicalConnection = null;
+			}
+			notifyAll();
+		}
+
+		if (physicalConnection != null)
+			closePhysicalConnection(physicalConnection);
+	}
+
+	/**
+	 * Logs (and, if so configured, reclaims) connections borrowed for longer than the leak
+	 * threshold.
+	 */
+	private void detectLeaks()
+	{
+		ArrayList leaked = new ArrayList();
+		boolean reclaim;
+
+		synchronized (this)
+		{
+			long now = System.currentTimeMillis();
+			reclaim = reclaimingLeakedConnections;
+			Iterator iterator = borrowedConnections.iterator();
+			while (iterator.hasNext())
+			{
+				PooledConnectionHandler handler = (PooledConnectionHandler) iterator.next();
+				if (now - handler.getBorrowTime() > leakThreshold && !handler.isReported())
+				{
+					handler.setReported(true);
+					leaked.add(handler);
+					leakCount++;
+					if (reclaim)
+					{
+						iterator.remove();
+						activeCount--;
+					}
+				}
+			}
+			if (reclaim && leaked.size() > 0)
+				notifyAll();
+		}
+
+		for (int i=0; i<leaked.size(); i++)
+		{
+			PooledConnectionHandler handler = (PooledConnectionHandler) leaked.get(i);
+			MainLog.getLog().warn("Database connection borrowed " +
+				(System.currentTimeMillis() - handler.getBorrowTime()) / 1000 + " seconds ago has not been closed" +
+				(reclaim ? "; reclaiming it" : "") + ". Borrowed at:", handler.getBorrower());
+			if (reclaim)
+			{
+				handler.invalidate();
+				closePhysicalConnection(handler.getPhysicalConnection());
+			}
+		}
+
+		MainLog.getLog().debug("Connection pool statistics: " + getStatistics());
+	}
+
+	/**
+	 * Intercepts calls on a borrowed connection: <code>close()</code> returns the connection
+	 * to the pool, <code>getStatementCache()</code> returns the statement cache of the
+	 * physical connection, statements created are wrapped (see {@link PooledStatementHandler}),
+	 * and any use after closing is refused.
+	 */
+	private class PooledConnectionHandler implements InvocationHandler
+	{
+		private Connection physicalConnection;
+		private long borrowTime;
+		private Throwable borrower;
+		private boolean returned = false;
+		private boolean reported = false;
+
+		public PooledConnectionHandler(Connection physicalConnection)
+		{
+			this.physicalConnection = physicalConnection;
+			this.borrowTime = System.currentTimeMillis();
+			// Only captured for leak reports; cheap compared to a database round trip
+			this.borrower = new Throwable("Connection borrower");
+		}
+
+		public Connection getPhysicalConnection() { return physicalConnection; }
+		public long getBorrowTime() { return borrowTime; }
+		public Throwable getBorrower() { return borrower; }
+		public boolean isReported() { return reported; }
+		public void setReported(boolean reported) { this.reported = reported; }
+
+		synchronized public void invalidate()
+		{
+			returned = true;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args)
+			throws Throwable
+		{
+			String name = method.getName();
+
+			if (name.equals("close"))
+			{
+				synchronized (this)
+				{
+					if (returned)
+						return null;
+					returned = true;
+				}
+				release(this);
+				return null;
+			}
+			else if (name.equals("isClosed"))
+			{
+				synchronized (this)
+				{
+					if (returned)
+						return Boolean.TRUE;
+				}
+			}
+			else if (name.equals("equals"))
+				return (proxy == args[0] ? Boolean.TRUE : Boolean.FALSE);
+			else if (name.equals("hashCode"))
+				return new Integer(System.identityHashCode(proxy));
+			else if (name.equals("toString"))
+				return "Pooled connection (" + physicalConnection + ")";
+
+			synchronized (this)
+			{
+				if (returned)
+					throw new SQLException("Connection has already been closed (returned to the pool)");
+			}
+
+			if (method.getDeclaringClass() == StatementCachingConnection.class)
+				return getStatementCache(physicalConnection);
+
+			Object result;
+			try
+			{
+				result = method.invoke(physicalConnection, args);
+			}
+			catch (InvocationTargetException e)
+			{
+				throw e.getTargetException();
+			}
+
+			if (result instanceof Statement)
+			{
+				Class statementInterface = (result instanceof CallableStatement ? CallableStatement.class :
+					result instanceof PreparedStatement ? PreparedStatement.class : Statement.class);
+				return Proxy.newProxyInstance(statementInterface.getClassLoader(), new Class[] { statementInterface },
+					new PooledStatementHandler((Statement) result, (Connection) proxy));
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Intercepts calls on a statement created through a borrowed connection, so that
+	 * <code>getConnection()</code> returns the borrowed connection rather than the physical one
+	 * (which callers could otherwise close behind the pool's back).
+	 */
+	private static class PooledStatementHandler implements InvocationHandler
+	{
+		private Statement statement;
+		private Connection connection;
+
+		public PooledStatementHandler(Statement statement, Connection connection)
+		{
+			this.statement = statement;
+			this.connection = connection;
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args)
+			throws Throwable
+		{
+			String name = method.getName();
+
+			if (name.equals("getConnection") && args == null)
+				return connection;
+			else if (name.equals("equals"))
+				return (proxy == args[0] ? Boolean.TRUE : Boolean.FALSE);
+			else if (name.equals("hashCode"))
+				return new Integer(System.identityHashCode(proxy));
+			else if (name.equals("toString"))
+				return "Pooled statement (" + statement + ")";
+
+			try
+			{
+				return method.invoke(statement, args);
+			}
+			catch (InvocationTargetException e)
+			{
+				throw e.getTargetException();
+			}
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package net.btlcpy.outofstock.persistence.connections;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Iterator;
+
+import org.apache.commons.collections.map.ListOrderedMap;
+
+/**
+ * <p>
+ * A least-recently-used cache of prepared statements for ONE physical connection, keyed by
+ * the SQL text. Reusing a prepared statement lets the database reuse the parsed cursor
+ * instead of hard parsing the query again, which matters for reports that are run over and
+ * over with the same shape but different bind values.
+ * </p>
+ *
+ * <p>
+ * Statements are borrowed with {@link #borrowStatement(String)} and MUST be handed back with
+ * {@link #returnStatement(PreparedStatement)} instead of being closed. A statement that is
+ * still borrowed is never handed out a second time (e.g. for a nested query with the same
+ * SQL text on the same connection) and is never evicted; in the first case a fresh,
+ * uncached statement is prepared instead, which is closed when it is returned.
+ * </p>
+ *
+ * @author Ahmed A. Abd-Allah
+ */
+public class StatementCache
+{
+	/** The physical connection the statements belong to. */
+	private Connection connection = null;
+
+	/** Maximum number of statements kept open. */
+	private int maximumSize;
+
+	/** The cached statements, keyed by SQL text; least recently used first. */
+	private ListOrderedMap /* String, PreparedStatement */ statements = new ListOrderedMap(); // LinkedHashMap requires Java 1.4
+
+	/** The cached statements currently borrowed. */
+	private HashSet /* PreparedStatement */ borrowedStatements = new HashSet();
+
+	// Statistics
+	private long hitCount = 0;
+	private long missCount = 0;
+	private long evictionCount = 0;
+
+	public StatementCache(Connection connection, int maximumSize)
+	{
+		this.connection = connection;
+		this.maximumSize = (maximumSize <= 0 ? 1 : maximumSize);
+	}
+
+	/**
+	 * @param sql the SQL text, possibly with '?' placeholders
+	 * @return a prepared statement for the SQL text; cached if possible
+	 * @throws SQLException
+	 */
+	synchronized public PreparedStatement borrowStatement(String sql)
+		throws SQLException
+	{
+		PreparedStatement statement = (PreparedStatement) statements.remove(sql);
+		if (statement != null)
+		{
+			// re-insert to mark it as the most recently used
+			statements.put(sql, statement);
+			if (!borrowedStatements.contains(statement))
+			{
+				hitCount++;
+				borrowedStatements.add(statement);
+				return statement;
+			}
+
+			// already in use further up the call stack: hand out a throw-away one
+			missCount++;
+			return connection.prepareStatement(sql);
+		}
+
+		missCount++;
+		statement = connection.prepareStatement(sql);
+		statements.put(sql, statement);
+		borrowedStatements.add(statement);
+		evict();
+		return statement;
+	}
+
+	/**
+	 * Hands a statement back to the cache. Statements that are not cached are closed.
+	 *
+	 * @param statement a statement obtained from {@link #borrowStatement(String)}
+	 */
+	synchronized public void returnStatement(PreparedStatement statement)
+	{
+		if (statement == null)
+			return;
+
+		if (!borrowedStatements.remove(statement))
+		{
+			try { statement.close(); } catch (Exception e) {}
+			return;
+		}
+
+		try
+		{
+			statement.clearParameters();
+		}
+		catch (SQLException e)
+		{
+			// no point keeping a statement around that cannot be reset
+			statements.values().remove(statement);
+			try { statement.close(); } catch (Exception e2) {}
+		}
+	}
+
+	/**
+	 * Closes all cached statements. Borrowed statements are closed too, so this should only
+	 * be called when the physical connection is about to be closed.
+	 */
+	synchronized public void close()
+	{
+		Iterator iterator = statements.values().iterator();
+		while (iterator.hasNext())
+			try { ((PreparedStatement) iterator.next()).close(); } catch (Exception e) {}
+		statements.clear();
+		borrowedStatements.clear();
+	}
+
+	/** @return the number of statements currently cached */
+	synchronized public int getSize() { return statements.size(); }
+	/** @return the maximum number of statements kept open */
+	synchronized public int getMaximumSize() { return maximumSize; }
+	/** @return how many borrows were served from the cache */
+	synchronized public long getHitCount() { return hitCount; }
+	/** @return how many borrows had to prepare a new statement */
+	synchronized public long getMissCount() { return missCount; }
+	/** @return how many statements were closed to make room for others */
+	synchronized public long getEvictionCount() { return evictionCount; }
+
+	/**
+	 * Closes least recently used statements (skipping borrowed ones) until the cache is
+	 * back within its maximum size.
+	 */
+	private void evict()
+	{
+		int i = 0;
+		while (statements.size() > maximumSize && i < statements.size())
+		{
+			PreparedStatement statement = (PreparedStatement) statements.getValue(i);
+			if (borrowedStatements.contains(statement))
+			{
+				i++;
+				continue;
+			}
+			statements.remove(i);
+			evictionCount++;
+			try { statement.close(); } catch (Exception e) {}
+		}
+	}
+}
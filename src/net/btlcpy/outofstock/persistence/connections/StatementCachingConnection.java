@@ -0,0 +1,25 @@
+package net.btlcpy.outofstock.persistence.connections;
+
+import java.sql.SQLException;
+
+/**
+ * <p>
+ * Implemented by connections that keep a cache of prepared statements for the lifetime of
+ * the underlying physical connection (e.g. connections handed out by a
+ * {@link PooledConnectionProvider}). Callers can test for this interface with
+ * <code>instanceof</code> and, if present, borrow statements from the cache instead of
+ * preparing (and hard parsing) the same SQL over and over again.
+ * </p>
+ *
+ * @author Ahmed A. Abd-Allah
+ */
+public interface StatementCachingConnection
+{
+	/**
+	 * @return the statement cache of the underlying physical connection, or null if
+	 * statement caching is disabled
+	 * @throws SQLException if the connection has already been closed
+	 */
+	public StatementCache getStatementCache()
+		throws SQLException;
+}
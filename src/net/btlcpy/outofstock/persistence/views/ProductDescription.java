@@ -1,10 +1,9 @@
 package net.btlcpy.outofstock.persistence.views;
 
 import java.sql.Connection;
-import java.util.ArrayList;
 
 import net.btlcpy.outofstock.loggers.MainLog;
-import net.btlcpy.outofstock.persistence.PersistenceManager;
+import net.btlcpy.outofstock.persistence.BeanCache;
 import net.btlcpy.outofstock.utilities.StringUtils;
 
 import org.apache.commons.collections.map.ListOrderedMap;
@@ -15,112 +14,90 @@ public class ProductDescription
 	public static final int PRODUCT = 2;
 	public static final int PRODUCTPACKAGE = 3;
 	
+	/** All rows of the productdescriptions view, indexed in memory. */
+	private static final ViewIndex index = new ViewIndex(
+		"SELECT product, productupcid, productdescription, " +
+		"productcategory, productcategoryid, productcategoryname, " +
+		"productpackage, productpackagename " +
+		"FROM productdescriptions",
+		new ViewIndex.Dimension[]
+		{
+			null,
+			new ViewIndex.Dimension("PRODUCTCATEGORY", "PRODUCTCATEGORYNAME", null),
+			new ViewIndex.Dimension("PRODUCT", "PRODUCTDESCRIPTION", "PRODUCTUPCID"),
+			new ViewIndex.Dimension("PRODUCTPACKAGE", "PRODUCTPACKAGENAME", null)
+		},
+		BeanCache.DEFAULT_REFRESH_INTERVAL);
+
+	/**
+	 * Marks the in-memory copy of the productdescriptions view as out of date, so that it is
+	 * reloaded on next use. To be called after changes to products, categories, packages or
+	 * their mappings have been committed (the view is refreshed on commit).
+	 */
+	public static void invalidateIndex()
+	{
+		index.invalidate();
+	}
+
 	public static String[] find(Connection connection, int target,
 		String[] productCategoryPKID, String[] productPKID, String[] productPackagePKID)
 	{
-		boolean useOwnConnection = (connection == null);
-		
 		String[] productCategoryPK = StringUtils.pk(productCategoryPKID);
 		String[] productPK = StringUtils.pk(productPKID);
 		String[] productPackagePK = StringUtils.pk(productPackagePKID);
 
 		try
 		{
-			ArrayList conditions = new ArrayList();
-			String condition = "";
-			String targetColumns = null;
+			if (target < PRODUCTCATEGORY || target > PRODUCTPACKAGE)
+				throw new IllegalArgumentException("Unrecognized target for product description retrieval");
 
-			switch (target)
+			int[] conditionDimensions = null;
+			String[][] conditionKeys = null;
+
+			if (target == PRODUCTCATEGORY)
 			{
-			case PRODUCTCATEGORY:
-				targetColumns = "productcategory AS key, productcategoryname AS id";
-				break;
-			case PRODUCT:
-				targetColumns = "product AS key, productdescription AS id, productupcid AS subid";
-				break;
-			case PRODUCTPACKAGE:
-				targetColumns = "productpackage AS key, productpackagename AS id";
-				break;
-			default:
-				throw new IllegalArgumentException("Unrecognized target for product description retrieval");
+				conditionDimensions = new int[] { PRODUCTPACKAGE };
+				conditionKeys = new String[][] { productPackagePK };
 			}
-
-			if (target == PRODUCTCATEGORY || target == PRODUCT)
+			else if (target == PRODUCT)
 			{
-				if (productPackagePK != null)
-					conditions.add(" productpackage IN (" + StringUtils.stringArrayToString(productPackagePK) + ") ");
-
-				if (target == PRODUCT && productCategoryPK != null)
-					conditions.add(" productcategory IN (" + StringUtils.stringArrayToString(productCategoryPK) + ") ");
+				conditionDimensions = new int[] { PRODUCTPACKAGE, PRODUCTCATEGORY };
+				conditionKeys = new String[][] { productPackagePK, productCategoryPK };
 			}
 			else if (target == PRODUCTPACKAGE)
 			{
 				if (productPK != null)
-					conditions.add(" product IN (" + StringUtils.stringArrayToString(productPK) + ") ");
-				else if (productCategoryPK != null)
-					conditions.add(" productcategory IN (" + StringUtils.stringArrayToString(productCategoryPK) + ") ");
-			}
-			
-			if (useOwnConnection)
-				connection = PersistenceManager.getPersistenceManager().getConnection(true);
-			
-			for (int i=0; i<conditions.size(); i++)
-			{
-				if (i == 0)
-					condition += (" WHERE " + conditions.get(i));
+				{
+					conditionDimensions = new int[] { PRODUCT };
+					conditionKeys = new String[][] { productPK };
+				}
 				else
-					condition += (" AND " + conditions.get(i));
-			}
-
-			String query = "\n\nSELECT DISTINCT " + targetColumns + " FROM productdescriptions " + condition +
-				" ORDER BY id";
-			MainLog.getLog().debug(query);
-			ListOrderedMap results = PersistenceManager.getPersistenceManager().
-				findRows(connection, query, null);
-
-			if (results != null && results.size() > 0)
-			{
-				String[] pkid = new String[results.size()];
-				
-				for (int i=0; i<results.size(); i++)
 				{
-					pkid[i] = ((ListOrderedMap) results.getValue(i)).get("KEY").toString() + "|" +
-						((ListOrderedMap) results.getValue(i)).get("ID").toString() +
-						(target == PRODUCT ? " [" + ((ListOrderedMap) results.getValue(i)).get("SUBID").toString() + "]": "");
+					conditionDimensions = new int[] { PRODUCTCATEGORY };
+					conditionKeys = new String[][] { productCategoryPK };
 				}
-				return pkid;
 			}
-			return null;
+
+			return index.find(connection, target, conditionDimensions, conditionKeys);
 		}
 		catch (Exception e)
 		{
 			MainLog.getLog().error("Unable to find product descriptions details", e);
 			return null;
 		}
-		finally
-		{
-			if (useOwnConnection)
-				try { if (connection != null) connection.close(); } catch (Exception e) {}
-		}
 	}
 	
+	/**
+	 * @param connection the connection to use if the product descriptions need to be
+	 * (re)loaded (if null, a connection is created automatically)
+	 * @return all rows of the productdescriptions view, or null if there are none. The map is
+	 * shared and must not be modified.
+	 */
 	public static ListOrderedMap findAll(Connection connection)
 	{
-		boolean useOwnConnection = (connection == null);
-
 		try
 		{
-			if (useOwnConnection)
-				connection = PersistenceManager.getPersistenceManager().getConnection(true);
-
-			String query = 
-				"SELECT product, productupcid, productdescription, " +
-				"productcategory, productcategoryid, productcategoryname, " +
-				"productpackage, productpackagename " +
-				"FROM productdescriptions";
-			MainLog.getLog().debug(query);
-			ListOrderedMap results = PersistenceManager.getPersistenceManager().
-				findRows(connection, query, null);
+			ListOrderedMap results = index.getRows(connection);
 			
 			if (results != null && results.size() > 0)
 				return results;
@@ -131,10 +108,5 @@ public class ProductDescription
 			MainLog.getLog().error("Unable to get all product descriptions", e);
 			return null;
 		}
-		finally
-		{
-			if (useOwnConnection)
-				try { if (connection != null) connection.close(); } catch (Exception e) {}
-		}
 	}
 }
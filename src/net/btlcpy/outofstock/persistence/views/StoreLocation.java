@@ -4,7 +4,7 @@ import java.sql.Connection;
 import java.util.ArrayList;
 
 import net.btlcpy.outofstock.loggers.MainLog;
-import net.btlcpy.outofstock.persistence.PersistenceManager;
+import net.btlcpy.outofstock.persistence.BeanCache;
 import net.btlcpy.outofstock.utilities.StringUtils;
 
 import org.apache.commons.collections.map.ListOrderedMap;
@@ -20,13 +20,51 @@ public class StoreLocation
 	public static final int BOTTLERBRANCH = 7;
 	public static final int BOTTLERSALESROUTE = 8;
 	
+	/** All rows of the storelocations view, indexed in memory. */
+	private static final ViewIndex index = new ViewIndex(
+		"SELECT store, storeid, distributordistrict, distributordistrictname, distributordivision, distributordivisionname, " +
+		"bottlerbranch, bottlerbranchname, bottlermarketunit, bottlermarketunitname, " +
+		"bottlerbusinessunit, bottlerbusinessunitname, bottler, bottlername, " +
+		"bottlersalesroute, bottlersalesroutename " +
+		"FROM storelocations",
+		new ViewIndex.Dimension[]
+		{
+			null,
+			new ViewIndex.Dimension("DISTRIBUTORDIVISION", "DISTRIBUTORDIVISIONNAME", null),
+			new ViewIndex.Dimension("DISTRIBUTORDISTRICT", "DISTRIBUTORDISTRICTNAME", null),
+			new ViewIndex.Dimension("STORE", "STOREID", null),
+			new ViewIndex.Dimension("BOTTLER", "BOTTLERNAME", null),
+			new ViewIndex.Dimension("BOTTLERBUSINESSUNIT", "BOTTLERBUSINESSUNITNAME", null),
+			new ViewIndex.Dimension("BOTTLERMARKETUNIT", "BOTTLERMARKETUNITNAME", null),
+			new ViewIndex.Dimension("BOTTLERBRANCH", "BOTTLERBRANCHNAME", null),
+			new ViewIndex.Dimension("BOTTLERSALESROUTE", "BOTTLERSALESROUTENAME", null)
+		},
+		BeanCache.DEFAULT_REFRESH_INTERVAL);
+
+	/**
+	 * Reloads the in-memory copy of the storelocations view. To be called after changes to the
+	 * store hierarchy have been committed (the view is refreshed on commit).
+	 * 
+	 * @param connection the connection to use (if null, a connection is created automatically)
+	 */
+	public static void reloadIndex(Connection connection)
+	{
+		try
+		{
+			index.reload(connection);
+		}
+		catch (Exception e)
+		{
+			MainLog.getLog().error("Unable to reload store locations", e);
+			index.invalidate();
+		}
+	}
+
 	public static String[] find(Connection connection, int target,
 		String[] distributorDivisionPKID, String[] distributorDistrictPKID, String[] storePKID,
 		String[] bottlerPKID, String[] bottlerBusinessUnitPKID, String[] bottlerMarketUnitPKID,
 		String[] bottlerBranchPKID, String[] bottlerSalesRoutePKID)
 	{
-		boolean useOwnConnection = (connection == null);
-		
 		String[] bottlerPK = StringUtils.pk(bottlerPKID);
 		String[] bottlerBusinessUnitPK = StringUtils.pk(bottlerBusinessUnitPKID);
 		String[] bottlerMarketUnitPK = StringUtils.pk(bottlerMarketUnitPKID);
@@ -40,157 +78,101 @@ public class StoreLocation
 
 		try
 		{
-			ArrayList conditions = new ArrayList();
-			String condition = "";
-			String targetColumns = null;
+			// pairs of (dimension, keys), all of which must be satisfied
+			ArrayList conditionDimensions = new ArrayList();
+			ArrayList conditionKeys = new ArrayList();
 
-			switch (target)
-			{
-			case STORE:
-				targetColumns = "store AS key, storeid AS id";
-				break;
-			case DISTRIBUTORDIVISION:
-				targetColumns = "distributordivision AS key, distributordivisionname AS id";
-				break;
-			case DISTRIBUTORDISTRICT:
-				targetColumns = "distributordistrict AS key, distributordistrictname AS id";
-				break;
-			case BOTTLER:
-				targetColumns = "bottler AS key, bottlername AS id";
-				break;
-			case BOTTLERBUSINESSUNIT:
-				targetColumns = "bottlerbusinessunit AS key, bottlerbusinessunitname AS id";
-				break;
-			case BOTTLERMARKETUNIT:
-				targetColumns = "bottlermarketunit AS key, bottlermarketunitname AS id";
-				break;
-			case BOTTLERBRANCH:
-				targetColumns = "bottlerbranch AS key, bottlerbranchname AS id";
-				break;
-			case BOTTLERSALESROUTE:
-				targetColumns = "bottlersalesroute AS key, bottlersalesroutename AS id";
-				break;
-			default:
+			if (target < DISTRIBUTORDIVISION || target > BOTTLERSALESROUTE)
 				throw new IllegalArgumentException("Unrecognized target for store location retrieval");
-			}
 
 			if (target == BOTTLER || target == BOTTLERBUSINESSUNIT || target == BOTTLERMARKETUNIT || target == BOTTLERBRANCH)
 			{
 				if (storePK != null)
-					conditions.add(" store IN (" + StringUtils.stringArrayToString(storePK) + ") ");
+					addCondition(conditionDimensions, conditionKeys, STORE, storePK);
 				else if (distributorDistrictPK != null)
-					conditions.add(" distributordistrict IN (" + StringUtils.stringArrayToString(distributorDistrictPK) + ") ");
+					addCondition(conditionDimensions, conditionKeys, DISTRIBUTORDISTRICT, distributorDistrictPK);
 				else if (distributorDivisionPK != null)
-					conditions.add(" distributordivision IN (" + StringUtils.stringArrayToString(distributorDivisionPK) + ") ");
+					addCondition(conditionDimensions, conditionKeys, DISTRIBUTORDIVISION, distributorDivisionPK);
 				
 				if (bottlerSalesRoutePK != null)
-					conditions.add(" bottlersalesroute IN (" + StringUtils.stringArrayToString(bottlerSalesRoutePK) + ") ");
+					addCondition(conditionDimensions, conditionKeys, BOTTLERSALESROUTE, bottlerSalesRoutePK);
 
 				if (target == BOTTLERBUSINESSUNIT && bottlerPK != null)
-					conditions.add(" bottler IN (" + StringUtils.stringArrayToString(bottlerPK) + ") ");
+					addCondition(conditionDimensions, conditionKeys, BOTTLER, bottlerPK);
 				else if (target == BOTTLERMARKETUNIT && bottlerBusinessUnitPK != null)
-					conditions.add(" bottlerbusinessunit IN (" + StringUtils.stringArrayToString(bottlerBusinessUnitPK) + ") ");
+					addCondition(conditionDimensions, conditionKeys, BOTTLERBUSINESSUNIT, bottlerBusinessUnitPK);
 				else if (target == BOTTLERBRANCH && bottlerMarketUnitPK != null)
-					conditions.add(" bottlermarketunit IN (" + StringUtils.stringArrayToString(bottlerMarketUnitPK) + ") ");
+					addCondition(conditionDimensions, conditionKeys, BOTTLERMARKETUNIT, bottlerMarketUnitPK);
 			}
 			else if (target == DISTRIBUTORDIVISION || target == DISTRIBUTORDISTRICT || target == STORE)
 			{
 				if (bottlerBranchPK != null)
-					conditions.add(" bottlerbranch IN (" + StringUtils.stringArrayToString(bottlerBranchPK) + ") ");
+					addCondition(conditionDimensions, conditionKeys, BOTTLERBRANCH, bottlerBranchPK);
 				else if (bottlerMarketUnitPK != null)
-					conditions.add(" bottlermarketunit IN (" + StringUtils.stringArrayToString(bottlerMarketUnitPK) + ") ");
+					addCondition(conditionDimensions, conditionKeys, BOTTLERMARKETUNIT, bottlerMarketUnitPK);
 				else if (bottlerBusinessUnitPK != null)
-					conditions.add(" bottlerbusinessunit IN (" + StringUtils.stringArrayToString(bottlerBusinessUnitPK) + ") ");
+					addCondition(conditionDimensions, conditionKeys, BOTTLERBUSINESSUNIT, bottlerBusinessUnitPK);
 				else if (bottlerPK != null)
-					conditions.add(" bottler IN (" + StringUtils.stringArrayToString(bottlerPK) + ")");
+					addCondition(conditionDimensions, conditionKeys, BOTTLER, bottlerPK);
 
 				if (bottlerSalesRoutePK != null)
-					conditions.add(" bottlersalesroute IN (" + StringUtils.stringArrayToString(bottlerSalesRoutePK) + ") ");
+					addCondition(conditionDimensions, conditionKeys, BOTTLERSALESROUTE, bottlerSalesRoutePK);
 
 				if (target == DISTRIBUTORDISTRICT && distributorDivisionPK != null)
-					conditions.add(" distributordivision IN (" + StringUtils.stringArrayToString(distributorDivisionPK) + ") ");
+					addCondition(conditionDimensions, conditionKeys, DISTRIBUTORDIVISION, distributorDivisionPK);
 				else if (target == STORE && distributorDistrictPK != null)
-					conditions.add(" distributordistrict IN (" + StringUtils.stringArrayToString(distributorDistrictPK) + ") ");
+					addCondition(conditionDimensions, conditionKeys, DISTRIBUTORDISTRICT, distributorDistrictPK);
 			}
 			else if (target == BOTTLERSALESROUTE)
 			{
 				if (storePK != null)
-					conditions.add(" store IN (" + StringUtils.stringArrayToString(storePK) + ") ");
+					addCondition(conditionDimensions, conditionKeys, STORE, storePK);
 				else if (distributorDistrictPK != null)
-					conditions.add(" distributordistrict IN (" + StringUtils.stringArrayToString(distributorDistrictPK) + ") ");
+					addCondition(conditionDimensions, conditionKeys, DISTRIBUTORDISTRICT, distributorDistrictPK);
 				else if (distributorDivisionPK != null)
-					conditions.add(" distributordivision IN (" + StringUtils.stringArrayToString(distributorDivisionPK) + ") ");
+					addCondition(conditionDimensions, conditionKeys, DISTRIBUTORDIVISION, distributorDivisionPK);
 
 				if (bottlerBranchPK != null)
-					conditions.add(" bottlerbranch IN (" + StringUtils.stringArrayToString(bottlerBranchPK) + ") ");
+					addCondition(conditionDimensions, conditionKeys, BOTTLERBRANCH, bottlerBranchPK);
 				else if (bottlerMarketUnitPK != null)
-					conditions.add(" bottlermarketunit IN (" + StringUtils.stringArrayToString(bottlerMarketUnitPK) + ") ");
+					addCondition(conditionDimensions, conditionKeys, BOTTLERMARKETUNIT, bottlerMarketUnitPK);
 				else if (bottlerBusinessUnitPK != null)
-					conditions.add(" bottlerbusinessunit IN (" + StringUtils.stringArrayToString(bottlerBusinessUnitPK) + ") ");
+					addCondition(conditionDimensions, conditionKeys, BOTTLERBUSINESSUNIT, bottlerBusinessUnitPK);
 				else if (bottlerPK != null)
-					conditions.add(" bottler IN (" + StringUtils.stringArrayToString(bottlerPK) + ")");
-			}
-			
-			if (useOwnConnection)
-				connection = PersistenceManager.getPersistenceManager().getConnection(true);
-			
-			for (int i=0; i<conditions.size(); i++)
-			{
-				if (i == 0)
-					condition += (" WHERE " + conditions.get(i));
-				else
-					condition += (" AND " + conditions.get(i));
+					addCondition(conditionDimensions, conditionKeys, BOTTLER, bottlerPK);
 			}
 
-			String query = "\n\nSELECT DISTINCT " + targetColumns + " FROM storelocations " + condition +
-				" ORDER BY id";
-			MainLog.getLog().debug(query);
-			ListOrderedMap results = PersistenceManager.getPersistenceManager().
-				findRows(connection, query, null);
+			int[] dimensions = new int[conditionDimensions.size()];
+			for (int i=0; i<dimensions.length; i++)
+				dimensions[i] = ((Integer) conditionDimensions.get(i)).intValue();
 
-			if (results != null && results.size() > 0)
-			{
-				String[] pkid = new String[results.size()];
-				
-				for (int i=0; i<results.size(); i++)
-				{
-					pkid[i] = ((ListOrderedMap) results.getValue(i)).get("KEY").toString() + "|" +
-						((ListOrderedMap) results.getValue(i)).get("ID").toString();
-				}
-				return pkid;
-			}
-			return null;
+			return index.find(connection, target, dimensions, 
+				(String[][]) conditionKeys.toArray(new String[conditionKeys.size()][]));
 		}
 		catch (Exception e)
 		{
 			MainLog.getLog().error("Unable to find store locations details", e);
 			return null;
 		}
-		finally
-		{
-			if (useOwnConnection)
-				try { if (connection != null) connection.close(); } catch (Exception e) {}
-		}
+	}
+
+	private static void addCondition(ArrayList conditionDimensions, ArrayList conditionKeys, int dimension, String[] keys)
+	{
+		conditionDimensions.add(new Integer(dimension));
+		conditionKeys.add(keys);
 	}
 	
+	/**
+	 * @param connection the connection to use if the store locations need to be (re)loaded (if
+	 * null, a connection is created automatically)
+	 * @return all rows of the storelocations view, or null if there are none. The map is shared
+	 * and must not be modified.
+	 */
 	public static ListOrderedMap findAll(Connection connection)
 	{
-		boolean useOwnConnection = (connection == null);
-
 		try
 		{
-			if (useOwnConnection)
-				connection = PersistenceManager.getPersistenceManager().getConnection(true);
-
-			String query = 
-				"SELECT store, storeid, distributordistrict, distributordistrictname, distributordivision, distributordivisionname, " +
-				"bottlerbranch, bottlerbranchname, bottlermarketunit, bottlermarketunitname, " +
-				"bottlerbusinessunit, bottlerbusinessunitname, bottler, bottlername, " +
-				"bottlersalesroute, bottlersalesroutename " +
-				"FROM storelocations";
-			MainLog.getLog().debug(query);
-			ListOrderedMap results = PersistenceManager.getPersistenceManager().
-				findRows(connection, query, null);
+			ListOrderedMap results = index.getRows(connection);
 			
 			if (results != null && results.size() > 0)
 				return results;
@@ -201,10 +183,5 @@ public class StoreLocation
 			MainLog.getLog().error("Unable to get all store locations", e);
 			return null;
 		}
-		finally
-		{
-			if (useOwnConnection)
-				try { if (connection != null) connection.close(); } catch (Exception e) {}
-		}
 	}
 }
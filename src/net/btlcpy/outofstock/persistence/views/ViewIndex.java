@@ -0,0 +1,406 @@
+package net.btlcpy.outofstock.persistence.views;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+
+import net.btlcpy.outofstock.loggers.MainLog;
+import net.btlcpy.outofstock.persistence.PersistenceManager;
+
+import org.apache.commons.collections.map.ListOrderedMap;
+
+/**
+ * <p>
+ * An in-memory index over one of the denormalized materialized views (e.g. storelocations),
+ * used to answer the cascading "which X's go with the selected Y's" questions of the report
+ * parameters page without going to the database.
+ * </p>
+ *
+ * <p>
+ * Every row of the view gets an ordinal. For each dimension of the view (a key column plus
+ * the name column shown to the user, e.g. bottler / bottlername), the index keeps the
+ * distinct keys sorted by name, and for each key the ordinals of the rows it appears in. A
+ * query sets the rows of the selected keys of each constraining dimension in a bit set, ANDs
+ * the bit sets of the constraints together, and then collects the distinct keys of the target
+ * dimension found in the remaining rows - already in name order.
+ * </p>
+ *
+ * <p>
+ * The contents are loaded on first use and replaced as a whole on reload, so readers never
+ * see a half-built index. Since the views are refreshed by the database on commit, whoever
+ * commits changes to the underlying tables should call {@link #reload(Connection)} or
+ * {@link #invalidate()} afterwards; as a safety net the contents are also reloaded once they
+ * are older than the refresh interval.
+ * </p>
+ *
+ * @author Ahmed A. Abd-Allah
+ */
+public class ViewIndex
+{
+	/**
+	 * One dimension of a view: the column holding the key and the column(s) making up the
+	 * label shown to the user.
+	 */
+	public static class Dimension
+	{
+		private String keyColumn;
+		private String nameColumn;
+		private String subNameColumn;
+
+		/**
+		 * @param keyColumn the (upper case) name of the key column
+		 * @param nameColumn the (upper case) name of the column to sort and label by
+		 * @param subNameColumn if not null, the (upper case) name of a column appended to the
+		 * label in square brackets
+		 */
+		public Dimension(String keyColumn, String nameColumn, String subNameColumn)
+		{
+			this.keyColumn = keyColumn;
+			this.nameColumn = nameColumn;
+			this.subNameColumn = subNameColumn;
+		}
+	}
+
+	/**
+	 * The loaded contents. Never modified once built.
+	 */
+	private static class Contents
+	{
+		private ListOrderedMap rows;
+		private int rowCount;
+		private long timeLoaded;
+
+		/** Per dimension: "key|name" labels of the distinct keys, sorted by name. */
+		private String[][] labels;
+		/** Per dimension: key (as a string) to its position in labels. */
+		private HashMap /* String, Integer */ [] ordinals;
+		/** Per dimension and position in labels: the (ascending) rows the key appears in. */
+		private int[][][] keyRows;
+		/** Per dimension and row: the position in labels of the row's key (-1 if null). */
+		private int[][] rowKeys;
+	}
+
+	/** Orders values the way Oracle's ORDER BY does: nulls last. */
+	private static final Comparator nameComparator = new Comparator()
+		{
+			public int compare(Object o1, Object o2)
+			{
+				Object name1 = ((Object[]) o1)[1];
+				Object name2 = ((Object[]) o2)[1];
+				if (name1 == null)
+					return (name2 == null ? 0 : 1);
+				if (name2 == null)
+					return -1;
+				if (name1 instanceof Comparable && name1.getClass().equals(name2.getClass()))
+					return ((Comparable) name1).compareTo(name2);
+				return name1.toString().compareTo(name2.toString());
+			}
+		};
+
+	private String query;
+	private Dimension[] dimensions;
+	private long refreshInterval;
+
+	private Contents contents = null;
+	/** Set when the view has (or may have) changed since the contents were loaded. */
+	private boolean stale = false;
+	/** Serializes loads; readers never take this lock. */
+	private Object reloadLock = new Object();
+
+	/**
+	 * @param query the query reading all rows of the view, selecting at least the key and
+	 * name columns of all dimensions
+	 * @param dimensions the dimensions, indexed by the number callers will refer to them by
+	 * (unused numbers may be null)
+	 * @param refreshInterval the age (in milliseconds) after which the contents are reloaded
+	 * on next use
+	 */
+	public ViewIndex(String query, Dimension[] dimensions, long refreshInterval)
+	{
+		this.query = query;
+		this.dimensions = dimensions;
+		this.refreshInterval = refreshInterval;
+	}
+
+	/**
+	 * @param connection the connection to use if the contents need to be (re)loaded (if null,
+	 * a connection is created automatically)
+	 * @return all rows of the view, as PersistenceManager.findRows would return them. This map
+	 * is shared and MUST NOT be modified.
+	 * @throws SQLException if the contents could not be loaded
+	 */
+	public ListOrderedMap getRows(Connection connection)
+		throws SQLException, IllegalAccessException, InstantiationException
+	{
+		return getContents(connection).rows;
+	}
+
+	/**
+	 * @param connection the connection to use if the contents need to be (re)loaded (if null,
+	 * a connection is created automatically)
+	 * @param target the dimension to list the keys of
+	 * @param constraintDimensions the dimensions to constrain the rows by
+	 * @param constraintKeys for each constraining dimension, the keys the rows must have one
+	 * of (null or empty entries are skipped)
+	 * @return the distinct "key|name" labels of the target dimension in the rows satisfying
+	 * all the constraints, sorted by name; null if there are none
+	 * @throws SQLException if the contents could not be loaded
+	 */
+	public String[] find(Connection connection, int target, int[] constraintDimensions, String[][] constraintKeys)
+		throws SQLException, IllegalAccessException, InstantiationException
+	{
+		Contents current = getContents(connection);
+
+		BitSet rows = null;
+		for (int i=0; i<constraintDimensions.length; i++)
+		{
+			String[] keys = constraintKeys[i];
+			if (keys == null || keys.length == 0)
+				continue;
+
+			int dimension = constraintDimensions[i];
+			BitSet matching = new BitSet(current.rowCount);
+			for (int j=0; j<keys.length; j++)
+			{
+				Integer ordinal = (keys[j] == null ? null : (Integer) current.ordinals[dimension].get(keys[j].trim()));
+				if (ordinal != null)
+				{
+					int[] keyRows = current.keyRows[dimension][ordinal.intValue()];
+					for (int k=0; k<keyRows.length; k++)
+						matching.set(keyRows[k]);
+				}
+			}
+
+			if (rows == null)
+				rows = matching;
+			else
+				rows.and(matching);
+		}
+
+		String[] labels = current.labels[target];
+		if (rows == null)
+			return (labels.length > 0 ? (String[]) labels.clone() : null);
+
+		int[] rowKeys = current.rowKeys[target];
+		BitSet found = new BitSet(labels.length);
+		int foundCount = 0;
+		for (int i=0; i<current.rowCount; i++)
+		{
+			if (rowKeys[i] >= 0 && rows.get(i) && !found.get(rowKeys[i]))
+			{
+				found.set(rowKeys[i]);
+				foundCount++;
+			}
+		}
+
+		if (foundCount == 0)
+			return null;
+
+		String[] results = new String[foundCount];
+		for (int i=0, j=0; j<foundCount; i++)
+			if (found.get(i))
+				results[j++] = labels[i];
+		return results;
+	}
+
+	/**
+	 * Marks the contents as out of date; they are reloaded on next use.
+	 */
+	synchronized public void invalidate()
+	{
+		stale = true;
+	}
+
+	/**
+	 * Reloads the contents right away.
+	 *
+	 * @param connection the connection to use (if null, a connection is created automatically)
+	 * @throws SQLException
+	 */
+	public void reload(Connection connection)
+		throws SQLException, IllegalAccessException, InstantiationException
+	{
+		synchronized (reloadLock)
+		{
+			load(connection);
+		}
+	}
+
+	private Contents getContents(Connection connection)
+		throws SQLException, IllegalAccessException, InstantiationException
+	{
+		synchronized (this)
+		{
+			if (isCurrent())
+				return contents;
+		}
+
+		synchronized (reloadLock)
+		{
+			synchronized (this)
+			{
+				// someone else may have reloaded while we were waiting
+				if (isCurrent())
+					return contents;
+			}
+
+			try
+			{
+				return load(connection);
+			}
+			catch (SQLException e)
+			{
+				synchronized (this)
+				{
+					if (contents == null)
+						throw e;
+					// keep answering from the old contents until the database is back
+					MainLog.getLog().error("Unable to reload view index; using old contents", e);
+					return contents;
+				}
+			}
+		}
+	}
+
+	/** Must be called holding the monitor. */
+	private boolean isCurrent()
+	{
+		return contents != null && !stale &&
+			System.currentTimeMillis() - contents.timeLoaded < refreshInterval;
+	}
+
+	/**
+	 * Reads the view and builds new contents. Must be called holding reloadLock.
+	 */
+	private Contents load(Connection connection)
+		throws SQLException, IllegalAccessException, InstantiationException
+	{
+		synchronized (this)
+		{
+			// changes committed from here on will be caught by the next load
+			stale = false;
+		}
+
+		boolean useOwnConnection = (connection == null);
+		ListOrderedMap rows = null;
+		boolean loaded = false;
+
+		try
+		{
+			if (useOwnConnection)
+				connection = PersistenceManager.getPersistenceManager().getConnection(true);
+
+			MainLog.getLog().debug(query);
+			rows = PersistenceManager.getPersistenceManager().findRows(connection, query, null);
+			loaded = true;
+		}
+		finally
+		{
+			if (!loaded)
+				invalidate();
+			if (useOwnConnection)
+				try { if (connection != null) connection.close(); } catch (Exception e) {}
+		}
+
+		Contents newContents = build(rows != null ? rows : new ListOrderedMap());
+		synchronized (this)
+		{
+			contents = newContents;
+		}
+		return newContents;
+	}
+
+	private Contents build(ListOrderedMap rows)
+	{
+		Contents built = new Contents();
+		built.rows = rows;
+		built.rowCount = rows.size();
+		built.timeLoaded = System.currentTimeMillis();
+		built.labels = new String[dimensions.length][];
+		built.ordinals = new HashMap[dimensions.length];
+		built.keyRows = new int[dimensions.length][][];
+		built.rowKeys = new int[dimensions.length][];
+
+		for (int d=0; d<dimensions.length; d++)
+		{
+			Dimension dimension = dimensions[d];
+			if (dimension == null)
+				continue;
+
+			// first pass: the distinct keys, in order of appearance
+			HashMap /* String, Integer */ firstOrdinals = new HashMap();
+			ArrayList /* Object[] { key, name, label } */ distinct = new ArrayList();
+			int[] rowKeys = new int[built.rowCount];
+			for (int i=0; i<built.rowCount; i++)
+			{
+				ListOrderedMap row = (ListOrderedMap) rows.getValue(i);
+				Object key = row.get(dimension.keyColumn);
+				if (key == null)
+				{
+					rowKeys[i] = -1;
+					continue;
+				}
+
+				String keyString = key.toString();
+				Integer ordinal = (Integer) firstOrdinals.get(keyString);
+				if (ordinal == null)
+				{
+					ordinal = new Integer(distinct.size());
+					firstOrdinals.put(keyString, ordinal);
+
+					Object name = row.get(dimension.nameColumn);
+					String label = keyString + "|" + name +
+						(dimension.subNameColumn != null ? " [" + row.get(dimension.subNameColumn) + "]" : "");
+					distinct.add(new Object[] { keyString, name, label, ordinal });
+				}
+				rowKeys[i] = ordinal.intValue();
+			}
+
+			// sort by name and renumber
+			Object[] sorted = distinct.toArray();
+			Arrays.sort(sorted, nameComparator);
+
+			int[] renumbering = new int[sorted.length];
+			String[] labels = new String[sorted.length];
+			HashMap ordinals = new HashMap();
+			for (int i=0; i<sorted.length; i++)
+			{
+				Object[] entry = (Object[]) sorted[i];
+				renumbering[((Integer) entry[3]).intValue()] = i;
+				labels[i] = (String) entry[2];
+				ordinals.put(entry[0], new Integer(i));
+			}
+
+			int[] rowsPerKey = new int[sorted.length];
+			for (int i=0; i<built.rowCount; i++)
+			{
+				if (rowKeys[i] >= 0)
+				{
+					rowKeys[i] = renumbering[rowKeys[i]];
+					rowsPerKey[rowKeys[i]]++;
+				}
+			}
+
+			int[][] keyRows = new int[sorted.length][];
+			for (int i=0; i<keyRows.length; i++)
+			{
+				keyRows[i] = new int[rowsPerKey[i]];
+				rowsPerKey[i] = 0;
+			}
+			for (int i=0; i<built.rowCount; i++)
+				if (rowKeys[i] >= 0)
+					keyRows[rowKeys[i]][rowsPerKey[rowKeys[i]]++] = i;
+
+			built.labels[d] = labels;
+			built.ordinals[d] = ordinals;
+			built.keyRows[d] = keyRows;
+			built.rowKeys[d] = rowKeys;
+		}
+
+		return built;
+	}
+}
@@ -59,7 +59,13 @@ public class CCEOutOfStockAdministrationPortlet extends GenericPortlet
 		MainLog.init( getPortletContext().getRealPath( getPortletConfig().getInitParameter("loggerConfiguration") ) );
 
 		// Ensure a persistence manager is loaded
-		PersistenceManager.initializePersistenceManager(getPortletConfig().getInitParameter("jndiDBName"));
+		PersistenceManager.initializePersistenceManager(getPortletConfig().getInitParameter("jndiDBName"),
+			getPortletConfig().getInitParameter("primaryKeyBlockSize"));
+		PersistenceManager.configureConnectionPool(getPortletConfig().getInitParameter("connectionPoolSize"),
+			getPortletConfig().getInitParameter("connectionPoolIdle"),
+			getPortletConfig().getInitParameter("connectionWait"),
+			getPortletConfig().getInitParameter("connectionLeakThreshold"),
+			getPortletConfig().getInitParameter("connectionValidationQuery"));
 
 		UserAction.updateEarliestActionTime();
 		Store.updateTotals(null);
@@ -20,8 +20,13 @@ import javax.portlet.RenderResponse;
 import net.btlcpy.outofstock.loggers.MainLog;
 import net.btlcpy.outofstock.persistence.PersistenceManager;
 import net.btlcpy.outofstock.persistence.beans.OutOfStockEvent;
+import net.btlcpy.outofstock.reports.EventStore;
+import net.btlcpy.outofstock.reports.QueryExecutor;
 import net.btlcpy.outofstock.reports.Report;
+import net.btlcpy.outofstock.reports.ReportJob;
+import net.btlcpy.outofstock.reports.ReportJobQueue;
 import net.btlcpy.outofstock.reports.ReportManager;
+import net.btlcpy.outofstock.reports.ReportRegistry;
 
 import org.apache.commons.codec.net.URLCodec;
 
@@ -30,6 +35,9 @@ import org.apache.commons.codec.net.URLCodec;
  */
 public class CCEOutOfStockReportPortlet extends GenericPortlet
 {
+	private static final String REPORT_PROGRESS_URL = "/reports/generate/reportProgress.jsp";
+	private static final String DISPLAY_REPORT_RESULTS_URL = "/reports/generate/displayReportResults.jsp";
+
 	public void init() throws PortletException
 	{
 		Locale.setDefault(Locale.ENGLISH);
@@ -38,10 +46,34 @@ public class CCEOutOfStockReportPortlet extends GenericPortlet
 		MainLog.init( getPortletContext().getRealPath( getPortletConfig().getInitParameter("loggerConfiguration") ) );
 
 		// Ensure a persistence manager is loaded
-		PersistenceManager.initializePersistenceManager(getPortletConfig().getInitParameter("jndiDBName"));
+		PersistenceManager.initializePersistenceManager(getPortletConfig().getInitParameter("jndiDBName"),
+			getPortletConfig().getInitParameter("primaryKeyBlockSize"));
+		PersistenceManager.configureConnectionPool(getPortletConfig().getInitParameter("connectionPoolSize"),
+			getPortletConfig().getInitParameter("connectionPoolIdle"),
+			getPortletConfig().getInitParameter("connectionWait"),
+			getPortletConfig().getInitParameter("connectionLeakThreshold"),
+			getPortletConfig().getInitParameter("connectionValidationQuery"));
 		
 		OutOfStockEvent.updateEarliestEventDate(null);
 
+		// Optionally answer reports from an in-memory copy of the events
+		EventStore.setEnabled("true".equalsIgnoreCase(getPortletConfig().getInitParameter("inMemoryEvents")));
+
+		// Optionally run the independent queries of a report at the same time
+		QueryExecutor.initialize(getPortletConfig().getInitParameter("reportQueryThreads"));
+
+		// Optionally generate reports in the background
+		ReportJobQueue.initialize(getPortletConfig().getInitParameter("reportJobThreads"),
+			getPortletConfig().getInitParameter("reportJobsPerUser"),
+			getPortletConfig().getInitParameter("reportJobTimeout"));
+
+		// Keep the sessions' reports within bounds, putting aside those that do not fit
+		String reportSpillLocation = getPortletConfig().getInitParameter("reportSpillLocation");
+		ReportRegistry.initialize(getPortletConfig().getInitParameter("reportRegistryWeight"),
+			getPortletConfig().getInitParameter("reportRegistryTimeToLive"),
+			reportSpillLocation != null && !reportSpillLocation.trim().equals("") ?
+				getPortletContext().getRealPath(reportSpillLocation.trim()) : null);
+
 		MainLog.getLog().debug( "\n\n\n\tCCE Out-of-Stock report portlet instantiated.\n\n\n\n" );
 	}
 
@@ -80,7 +112,11 @@ public class CCEOutOfStockReportPortlet extends GenericPortlet
 				renderRequest.getPortletSession().getAttribute("loggedIn") == null)
 				dispatcher = getPortletContext().getRequestDispatcher("/reports/index.jsp");
 			else
+			{
+				if (destinationURL.equals(REPORT_PROGRESS_URL))
+					destinationURL = checkReportJob(renderRequest);
 				dispatcher = getPortletContext().getRequestDispatcher(destinationURL);
+			}
 				
 			renderResponse.setContentType("text/html");
 			dispatcher.include(renderRequest, renderResponse);
@@ -131,9 +167,9 @@ public class CCEOutOfStockReportPortlet extends GenericPortlet
 				{
 					String generateReportSubmit = actionRequest.getParameter("generateReportSubmit");
 					
-					String reportType = actionRequest.getParameter("reportType");
+					final String reportType = actionRequest.getParameter("reportType");
 					session.removeAttribute("reportType");
-					String summaryTarget = actionRequest.getParameter("summaryTarget");
+					final String summaryTarget = actionRequest.getParameter("summaryTarget");
 					session.removeAttribute("summaryTarget");
 					String startingYear = actionRequest.getParameter("startingYear");
 					session.removeAttribute("startingYear");
@@ -145,35 +181,35 @@ public class CCEOutOfStockReportPortlet extends GenericPortlet
 					session.removeAttribute("numberOfWeeks");
 					String timePeriod = actionRequest.getParameter("timePeriod");
 					session.removeAttribute("timePeriod");
-					String breakOutByDay = actionRequest.getParameter("breakOutByDay");
+					final String breakOutByDay = actionRequest.getParameter("breakOutByDay");
 					session.removeAttribute("breakOutByDay");
-					String resultSize = actionRequest.getParameter("resultSize");
+					final String resultSize = actionRequest.getParameter("resultSize");
 					session.removeAttribute("resultSize");
-					String lostSalesMetric = actionRequest.getParameter("lostSalesMetric");
+					final String lostSalesMetric = actionRequest.getParameter("lostSalesMetric");
 					session.removeAttribute("lostSalesMetric");
 
 					String changeSource = actionRequest.getParameter("changeSource");
-					String[] productCategoryPKID = actionRequest.getParameterValues("productCategory");
+					final String[] productCategoryPKID = actionRequest.getParameterValues("productCategory");
 					session.removeAttribute("productCategory");
-					String[] productPKID = actionRequest.getParameterValues("product");
+					final String[] productPKID = actionRequest.getParameterValues("product");
 					session.removeAttribute("product");
-					String[] productPackagePKID = actionRequest.getParameterValues("productPackage");
+					final String[] productPackagePKID = actionRequest.getParameterValues("productPackage");
 					session.removeAttribute("productPackage");
-					String[] bottlerPKID = actionRequest.getParameterValues("bottler");
+					final String[] bottlerPKID = actionRequest.getParameterValues("bottler");
 					session.removeAttribute("bottler");
-					String[] bottlerBusinessUnitPKID = actionRequest.getParameterValues("bottlerBusinessUnit");
+					final String[] bottlerBusinessUnitPKID = actionRequest.getParameterValues("bottlerBusinessUnit");
 					session.removeAttribute("bottlerBusinessUnit");
-					String[] bottlerMarketUnitPKID = actionRequest.getParameterValues("bottlerMarketUnit");
+					final String[] bottlerMarketUnitPKID = actionRequest.getParameterValues("bottlerMarketUnit");
 					session.removeAttribute("bottlerMarketUnit");
-					String[] bottlerBranchPKID = actionRequest.getParameterValues("bottlerBranch");
+					final String[] bottlerBranchPKID = actionRequest.getParameterValues("bottlerBranch");
 					session.removeAttribute("bottlerBranch");
-					String[] bottlerSalesRoutePKID = actionRequest.getParameterValues("bottlerSalesRoute");
+					final String[] bottlerSalesRoutePKID = actionRequest.getParameterValues("bottlerSalesRoute");
 					session.removeAttribute("bottlerSalesRoute");
-					String[] distributorDivisionPKID = actionRequest.getParameterValues("distributorDivision");
+					final String[] distributorDivisionPKID = actionRequest.getParameterValues("distributorDivision");
 					session.removeAttribute("distributorDivision");
-					String[] distributorDistrictPKID = actionRequest.getParameterValues("distributorDistrict");
+					final String[] distributorDistrictPKID = actionRequest.getParameterValues("distributorDistrict");
 					session.removeAttribute("distributorDistrict");
-					String[] storePKID = actionRequest.getParameterValues("store");
+					final String[] storePKID = actionRequest.getParameterValues("store");
 					session.removeAttribute("store");
 
 					if (reportType != null)
@@ -325,34 +361,74 @@ public class CCEOutOfStockReportPortlet extends GenericPortlet
 							endDate = new Date(calendar.getTime().getTime());
 						}
 
-						ReportManager reportManager = new ReportManager();
-						Report report = null;
-						
-						if (reportType == null || reportType.equalsIgnoreCase("totals"))
-							report = reportManager.totalsReport(actionRequest.getRemoteUser(),
-								beginDate, endDate, summaryTarget, resultSize,
-								breakOutByDay, lostSalesMetric,
-								productCategoryPKID, productPKID, productPackagePKID, bottlerPKID, 
-								bottlerBusinessUnitPKID, bottlerMarketUnitPKID, bottlerBranchPKID, 
-								bottlerSalesRoutePKID, distributorDivisionPKID, distributorDistrictPKID, storePKID);
-						else if (reportType.equalsIgnoreCase("averages"))
-							report = reportManager.averagesReport(actionRequest.getRemoteUser(),
-								beginDate, endDate, summaryTarget, lostSalesMetric,
-								productCategoryPKID, productPKID, productPackagePKID, bottlerPKID, 
-								bottlerBusinessUnitPKID, bottlerMarketUnitPKID, bottlerBranchPKID, 
-								bottlerSalesRoutePKID, distributorDivisionPKID, distributorDistrictPKID, storePKID);
-						else if (reportType.equalsIgnoreCase("dailyevents"))
-							report = reportManager.averageDailyStoreEventsReport(actionRequest.getRemoteUser(),
-								beginDate, endDate, resultSize,
-								productCategoryPKID, productPKID, productPackagePKID, bottlerPKID, 
-								bottlerBusinessUnitPKID, bottlerMarketUnitPKID, bottlerBranchPKID, 
-								bottlerSalesRoutePKID, distributorDivisionPKID, distributorDistrictPKID, storePKID);
+						final String username = actionRequest.getRemoteUser();
+						final Date reportBeginDate = beginDate;
+						final Date reportEndDate = endDate;
+						ReportJob job = new ReportJob(username)
+							{
+								protected Report execute()
+									throws Exception
+								{
+									ReportManager reportManager = new ReportManager();
+									Report report = null;
+									
+									if (reportType == null || reportType.equalsIgnoreCase("totals"))
+										report = reportManager.totalsReport(username,
+											reportBeginDate, reportEndDate, summaryTarget, resultSize,
+											breakOutByDay, lostSalesMetric,
+											productCategoryPKID, productPKID, productPackagePKID, bottlerPKID, 
+											bottlerBusinessUnitPKID, bottlerMarketUnitPKID, bottlerBranchPKID, 
+											bottlerSalesRoutePKID, distributorDivisionPKID, distributorDistrictPKID, storePKID);
+									else if (reportType.equalsIgnoreCase("averages"))
+										report = reportManager.averagesReport(username,
+											reportBeginDate, reportEndDate, summaryTarget, lostSalesMetric,
+											productCategoryPKID, productPKID, productPackagePKID, bottlerPKID, 
+											bottlerBusinessUnitPKID, bottlerMarketUnitPKID, bottlerBranchPKID, 
+											bottlerSalesRoutePKID, distributorDivisionPKID, distributorDistrictPKID, storePKID);
+									else if (reportType.equalsIgnoreCase("dailyevents"))
+										report = reportManager.averageDailyStoreEventsReport(username,
+											reportBeginDate, reportEndDate, resultSize,
+											productCategoryPKID, productPKID, productPackagePKID, bottlerPKID, 
+											bottlerBusinessUnitPKID, bottlerMarketUnitPKID, bottlerBranchPKID, 
+											bottlerSalesRoutePKID, distributorDivisionPKID, distributorDistrictPKID, storePKID);
+									return report;
+								}
+							};
 						
-						session.setAttribute("reportResults", report); //, PortletSession.APPLICATION_SCOPE);						
-						actionResponse.
-							setRenderParameter("destinationURL", "/reports/generate/displayReportResults.jsp");
+						ReportJobQueue queue = ReportJobQueue.getQueue();
+						if (queue == null) // generate the report right away
+						{
+							job.run();
+							rethrow(job.getFailure());
+							ReportRegistry.getRegistry().put(session.getId(), job.getReport());
+							actionResponse.
+								setRenderParameter("destinationURL", DISPLAY_REPORT_RESULTS_URL);
+						}
+						else // generate the report in the background, showing its progress meanwhile
+						{
+							// The session only holds one report, so a report still being generated
+							// for it is of no use any more
+							String previousJobId = (String) session.getAttribute("reportJob");
+							if (previousJobId != null)
+								queue.cancel(previousJobId, username);
+							
+							ReportRegistry.getRegistry().remove(session.getId());
+							session.setAttribute("reportJob", queue.submit(job));
+							actionResponse.
+								setRenderParameter("destinationURL", REPORT_PROGRESS_URL);
+						}
 					}
 				}
+				else if (portletAction.equalsIgnoreCase("cancelReport"))
+				{
+					String jobId = (String) session.getAttribute("reportJob");
+					ReportJobQueue queue = ReportJobQueue.getQueue();
+					if (jobId != null && queue != null)
+						queue.cancel(jobId, actionRequest.getRemoteUser());
+					session.removeAttribute("reportJob");
+					actionResponse.
+						setRenderParameter("destinationURL", "/reports/generate/specifyReportParameters.jsp");
+				}
 			}
 		}
 		catch (Exception e)
@@ -375,4 +451,47 @@ public class CCEOutOfStockReportPortlet extends GenericPortlet
 			actionResponse.setRenderParameter("destinationURL", "/reports/error.jsp");
 		}
 	}
+
+	/**
+	 * Picks up the report of the session's report job once the job is done.
+	 * 
+	 * @param renderRequest the render request
+	 * @return the page to show: the progress page while the job is queued or running, or the
+	 * results page otherwise
+	 * @throws Exception what the job failed with, or a PortletException if it was cancelled
+	 */
+	private String checkReportJob(RenderRequest renderRequest)
+		throws Exception
+	{
+		PortletSession session = renderRequest.getPortletSession();
+		String jobId = (String) session.getAttribute("reportJob");
+		ReportJobQueue queue = ReportJobQueue.getQueue();
+		ReportJob job = (queue != null ? queue.getJob(jobId, renderRequest.getRemoteUser()) : null);
+		
+		if (job == null) // picked up already (e.g. the page was reloaded), or forgotten
+			return DISPLAY_REPORT_RESULTS_URL;
+		if (!job.isDone())
+			return REPORT_PROGRESS_URL;
+		
+		session.removeAttribute("reportJob");
+		queue.remove(jobId);
+		if (job.getStatus() == ReportJob.CANCELLED)
+			throw new PortletException("The report was cancelled: " + job.getCancelReason());
+		rethrow(job.getFailure());
+		ReportRegistry.getRegistry().put(session.getId(), job.getReport());
+		return DISPLAY_REPORT_RESULTS_URL;
+	}
+	
+	/**
+	 * @param failure what a report job failed with (if null, then nothing is thrown)
+	 * @throws Exception the failure
+	 */
+	private static void rethrow(Throwable failure)
+		throws Exception
+	{
+		if (failure instanceof Exception)
+			throw (Exception) failure;
+		if (failure instanceof Error)
+			throw (Error) failure;
+	}
 }
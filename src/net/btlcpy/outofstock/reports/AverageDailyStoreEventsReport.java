@@ -225,13 +225,13 @@ public class AverageDailyStoreEventsReport extends AveragesTotalsBaseReport
 	{
 		if (storePK != null)
 		{
-			selectBuilder.addWhere("outofstockevents.store IN (" + StringUtils.stringArrayToString(storePK) + ")", true);
+			selectBuilder.addWhere("outofstockevents.store IN (" + getKeyTable().keys(storePK) + ")", getKeyTable().parameters(storePK), true);
 		}
 		else if (distributorDistrictPK != null)
 		{
 			selectBuilder.addFrom("dstbdstrctstostores");
 			selectBuilder.addWhere("outofstockevents.store = dstbdstrctstostores.store AND " +
-				"dstbdstrctstostores.distributordistrict IN (" + StringUtils.stringArrayToString(distributorDistrictPK) + ")", true);
+				"dstbdstrctstostores.distributordistrict IN (" + getKeyTable().keys(distributorDistrictPK) + ")", getKeyTable().parameters(distributorDistrictPK), true);
 		}
 		else if (distributorDivisionPK != null)
 		{
@@ -260,7 +260,7 @@ public class AverageDailyStoreEventsReport extends AveragesTotalsBaseReport
 				selectBuilder.addFrom("dstbdstrctstostores, dstbdvsnstodstbdstrcts");
 				selectBuilder.addWhere("outofstockevents.store = dstbdstrctstostores.store AND " +
 					"dstbdstrctstostores.distributordistrict = dstbdvsnstodstbdstrcts.distributordistrict AND " + 
-					"dstbdvsnstodstbdstrcts.distributordivision IN (" + StringUtils.stringArrayToString(distributorDivisionPK) + ")", true);
+					"dstbdvsnstodstbdstrcts.distributordivision IN (" + getKeyTable().keys(distributorDivisionPK) + ")", getKeyTable().parameters(distributorDivisionPK), true);
 			}
 			else if (distributorcom && distributorDivisionPK.length == 1) // only distributor.com stores wanted
 			{
@@ -278,7 +278,7 @@ public class AverageDailyStoreEventsReport extends AveragesTotalsBaseReport
 						"(" +
 						"outofstockevents.store = dstbdstrctstostores.store AND " +
 						"dstbdstrctstostores.distributordistrict = dstbdvsnstodstbdstrcts.distributordistrict AND " + 
-						"dstbdvsnstodstbdstrcts.distributordivision IN (" + StringUtils.stringArrayToString(distributorDivisionPK) + ") AND " +
+						"dstbdvsnstodstbdstrcts.distributordivision IN (" + getKeyTable().keys(distributorDivisionPK) + ") AND " +
 						"stores.primarykey = outofstockevents.store AND " +
 						"(length(stores.distributorcom) = 0 OR (length(stores.distributorcom) > 0 AND " +
 						"stores.distributorcom = " + BasePersistentBean.BQ + "-" + BasePersistentBean.EQ + "))" +
@@ -294,8 +294,7 @@ public class AverageDailyStoreEventsReport extends AveragesTotalsBaseReport
 						"length(stores.distributorcom) > 0 AND " +
 						"stores.distributorcom != " + BasePersistentBean.BQ + "-" + BasePersistentBean.EQ + "" +
 						")" +
-					")",
-					true);
+					")", getKeyTable().parameters(distributorDivisionPK), true);
 			}
 		}
 		
@@ -303,14 +302,14 @@ public class AverageDailyStoreEventsReport extends AveragesTotalsBaseReport
 		{
 			selectBuilder.addFrom("bttlrbrchstostores");
 			selectBuilder.addWhere("outofstockevents.store = bttlrbrchstostores.store AND " +
-				"bttlrbrchstostores.bottlerbranch IN (" + StringUtils.stringArrayToString(bottlerBranchPK) + ")", true);
+				"bttlrbrchstostores.bottlerbranch IN (" + getKeyTable().keys(bottlerBranchPK) + ")", getKeyTable().parameters(bottlerBranchPK), true);
 		}
 		else if (bottlerMarketUnitPK != null)
 		{
 			selectBuilder.addFrom("bttlrbrchstostores, bttlrmktuntstobttlrbrchs");
 			selectBuilder.addWhere("outofstockevents.store = bttlrbrchstostores.store AND " +
 				"bttlrbrchstostores.bottlerbranch = bttlrmktuntstobttlrbrchs.bottlerbranch AND " +
-				"bttlrmktuntstobttlrbrchs.bottlermarketunit IN (" + StringUtils.stringArrayToString(bottlerMarketUnitPK) + ")", true);
+				"bttlrmktuntstobttlrbrchs.bottlermarketunit IN (" + getKeyTable().keys(bottlerMarketUnitPK) + ")", getKeyTable().parameters(bottlerMarketUnitPK), true);
 		}
 		else if (bottlerBusinessUnitPK != null)
 		{
@@ -318,7 +317,7 @@ public class AverageDailyStoreEventsReport extends AveragesTotalsBaseReport
 			selectBuilder.addWhere("outofstockevents.store = bttlrbrchstostores.store AND " +
 				"bttlrbrchstostores.bottlerbranch = bttlrmktuntstobttlrbrchs.bottlerbranch AND " +
 				"bttlrmktuntstobttlrbrchs.bottlermarketunit = bttlrbsnsuntstobttlrmktunts.bottlermarketunit AND " +
-				"bttlrbsnsuntstobttlrmktunts.bottlerbusinessunit IN (" + StringUtils.stringArrayToString(bottlerBusinessUnitPK) + ")", true);
+				"bttlrbsnsuntstobttlrmktunts.bottlerbusinessunit IN (" + getKeyTable().keys(bottlerBusinessUnitPK) + ")", getKeyTable().parameters(bottlerBusinessUnitPK), true);
 		}
 		else if (bottlerPK != null)
 		{
@@ -327,32 +326,32 @@ public class AverageDailyStoreEventsReport extends AveragesTotalsBaseReport
 				"bttlrbrchstostores.bottlerbranch = bttlrmktuntstobttlrbrchs.bottlerbranch AND " +
 				"bttlrmktuntstobttlrbrchs.bottlermarketunit = bttlrbsnsuntstobttlrmktunts.bottlermarketunit AND " +
 				"bttlrbsnsuntstobttlrmktunts.bottlerbusinessunit = bttlrstobttlrbsnsunts.bottlerbusinessunit AND " +
-				"bttlrstobttlrbsnsunts.bottler IN (" + StringUtils.stringArrayToString(bottlerPK) + ")", true);
+				"bttlrstobttlrbsnsunts.bottler IN (" + getKeyTable().keys(bottlerPK) + ")", getKeyTable().parameters(bottlerPK), true);
 		}
 
 		if (bottlerSalesRoutePK != null)
 		{
 			selectBuilder.addFrom("bttlrslsrtstostores");
 			selectBuilder.addWhere("outofstockevents.store = bttlrslsrtstostores.store AND " +
-				"bttlrslsrtstostores.bottlersalesroute IN (" + StringUtils.stringArrayToString(bottlerSalesRoutePK) +")", true);
+				"bttlrslsrtstostores.bottlersalesroute IN (" + getKeyTable().keys(bottlerSalesRoutePK) +")", getKeyTable().parameters(bottlerSalesRoutePK), true);
 		}
 		
 		if (productPackagePK != null)
 		{
 			selectBuilder.addFrom("prdctstoprdctpkgs");
 			selectBuilder.addWhere("outofstockevents.product = prdctstoprdctpkgs.product AND " +
-				"prdctstoprdctpkgs.productpackage IN (" + StringUtils.stringArrayToString(productPackagePK) + ")", true);
+				"prdctstoprdctpkgs.productpackage IN (" + getKeyTable().keys(productPackagePK) + ")", getKeyTable().parameters(productPackagePK), true);
 		}
 		
 		if (productPK != null)
 		{
-			selectBuilder.addWhere("outofstockevents.product IN (" + StringUtils.stringArrayToString(productPK) + ")", true);
+			selectBuilder.addWhere("outofstockevents.product IN (" + getKeyTable().keys(productPK) + ")", getKeyTable().parameters(productPK), true);
 		}
 		else if (productCategoryPK != null)
 		{
 			selectBuilder.addFrom("prdctctgrstoprdcts");
 			selectBuilder.addWhere("outofstockevents.product = prdctctgrstoprdcts.product AND " +
-				"prdctctgrstoprdcts.productcategory IN (" + StringUtils.stringArrayToString(productCategoryPK) + ")", true);
+				"prdctctgrstoprdcts.productcategory IN (" + getKeyTable().keys(productCategoryPK) + ")", getKeyTable().parameters(productCategoryPK), true);
 		}
 		
 		// This last constraint masks all out of stock events that are marked ignore (see the 
@@ -440,9 +439,9 @@ public class AverageDailyStoreEventsReport extends AveragesTotalsBaseReport
 		sbEventsPerStore.addOrder("\"Average Daily Events\" DESC");
 			
 		if (beginDate != null)
-			sbEventsPerStore.addWhere("dateoccurred >= DATE '" + beginDate.toString() + "'", true);
+			sbEventsPerStore.addWhere("dateoccurred >= ?", new Object[] { beginDate }, true);
 		if (endDate != null)
-			sbEventsPerStore.addWhere("dateoccurred <= DATE '" + endDate.toString() + "'", true);
+			sbEventsPerStore.addWhere("dateoccurred <= ?", new Object[] { endDate }, true);
 		
 		applyConstraints(sbEventsPerStore, productCategoryPK, productPK, productPackagePK,
 			bottlerPK, bottlerBusinessUnitPK, bottlerMarketUnitPK, bottlerBranchPK, bottlerSalesRoutePK,
@@ -476,6 +475,16 @@ public class AverageDailyStoreEventsReport extends AveragesTotalsBaseReport
 		return null;
 	}
 
+	public Object[] getQueryParameters(int queryNumber) 
+	{ 
+		switch (queryNumber)
+		{
+		case 0:
+			return sbEventsPerStore.getParameters();
+		}
+		return null;
+	}
+
 	public String[][] getQueryKeyColumns()
 	{
 		return keyColumns;
@@ -5,7 +5,9 @@ import java.sql.Connection;
 import java.sql.Date;
 import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Locale;
 
@@ -82,6 +84,12 @@ public class AveragesReport extends AveragesTotalsBaseReport
 	
 	/** The number of weeks in the report. */
 	private int numberOfWeeksInReport = 0;
+	
+	/** The number of active entities the losses are averaged over. */
+	private int averagedOver = 0;
+	
+	/** The query to compute the results in memory with, null if they must come from the database. */
+	private EventStore.Query inMemoryQuery = null;
 
 	public AveragesReport(Connection connection, String username, Date beginDate, Date endDate, 
 		String summaryTarget, String lostSalesMetric,
@@ -156,6 +164,10 @@ public class AveragesReport extends AveragesTotalsBaseReport
 			productCategoryPK, productPK, productPackagePK, 
 			bottlerPK, bottlerBusinessUnitPK, bottlerMarketUnitPK, bottlerBranchPK, bottlerSalesRoutePK, 
 			distributorDivisionPK, distributorDistrictPK, storePK);
+		inMemoryQuery = inMemoryQuery(summaryTarget, beginDate, endDate,
+			productCategoryPK, productPK, productPackagePK, 
+			bottlerPK, bottlerBusinessUnitPK, bottlerMarketUnitPK, bottlerBranchPK, bottlerSalesRoutePK, 
+			distributorDivisionPK, distributorDistrictPK, storePK);
 	}
 	
 	public Date getBeginDate()
@@ -361,13 +373,13 @@ public class AveragesReport extends AveragesTotalsBaseReport
 	{
 		if (storePK != null)
 		{
-			selectBuilder.addWhere("outofstockevents.store IN (" + StringUtils.stringArrayToString(storePK) + ")", true);
+			selectBuilder.addWhere("outofstockevents.store IN (" + getKeyTable().keys(storePK) + ")", getKeyTable().parameters(storePK), true);
 		}
 		else if (distributorDistrictPK != null)
 		{
 			selectBuilder.addFrom("dstbdstrctstostores");
 			selectBuilder.addWhere("outofstockevents.store = dstbdstrctstostores.store AND " +
-				"dstbdstrctstostores.distributordistrict IN (" + StringUtils.stringArrayToString(distributorDistrictPK) + ")", true);
+				"dstbdstrctstostores.distributordistrict IN (" + getKeyTable().keys(distributorDistrictPK) + ")", getKeyTable().parameters(distributorDistrictPK), true);
 		}
 		else if (distributorDivisionPK != null)
 		{
@@ -396,7 +408,7 @@ public class AveragesReport extends AveragesTotalsBaseReport
 				selectBuilder.addFrom("dstbdstrctstostores, dstbdvsnstodstbdstrcts");
 				selectBuilder.addWhere("outofstockevents.store = dstbdstrctstostores.store AND " +
 					"dstbdstrctstostores.distributordistrict = dstbdvsnstodstbdstrcts.distributordistrict AND " + 
-					"dstbdvsnstodstbdstrcts.distributordivision IN (" + StringUtils.stringArrayToString(distributorDivisionPK) + ")", true);
+					"dstbdvsnstodstbdstrcts.distributordivision IN (" + getKeyTable().keys(distributorDivisionPK) + ")", getKeyTable().parameters(distributorDivisionPK), true);
 			}
 			else if (distributorcom && distributorDivisionPK.length == 1) // only distributor.com stores wanted
 			{
@@ -414,7 +426,7 @@ public class AveragesReport extends AveragesTotalsBaseReport
 						"(" +
 						"outofstockevents.store = dstbdstrctstostores.store AND " +
 						"dstbdstrctstostores.distributordistrict = dstbdvsnstodstbdstrcts.distributordistrict AND " + 
-						"dstbdvsnstodstbdstrcts.distributordivision IN (" + StringUtils.stringArrayToString(distributorDivisionPK) + ") AND " +
+						"dstbdvsnstodstbdstrcts.distributordivision IN (" + getKeyTable().keys(distributorDivisionPK) + ") AND " +
 						"stores.primarykey = outofstockevents.store AND " +
 						"(length(stores.distributorcom) = 0 OR (length(stores.distributorcom) > 0 AND " +
 						"stores.distributorcom = " + BasePersistentBean.BQ + "-" + BasePersistentBean.EQ + "))" +
@@ -430,8 +442,7 @@ public class AveragesReport extends AveragesTotalsBaseReport
 						"length(stores.distributorcom) > 0 AND " +
 						"stores.distributorcom != " + BasePersistentBean.BQ + "-" + BasePersistentBean.EQ + "" +
 						")" +
-					")",
-					true);
+					")", getKeyTable().parameters(distributorDivisionPK), true);
 			}
 		}
 		
@@ -439,14 +450,14 @@ public class AveragesReport extends AveragesTotalsBaseReport
 		{
 			selectBuilder.addFrom("bttlrbrchstostores");
 			selectBuilder.addWhere("outofstockevents.store = bttlrbrchstostores.store AND " +
-				"bttlrbrchstostores.bottlerbranch IN (" + StringUtils.stringArrayToString(bottlerBranchPK) + ")", true);
+				"bttlrbrchstostores.bottlerbranch IN (" + getKeyTable().keys(bottlerBranchPK) + ")", getKeyTable().parameters(bottlerBranchPK), true);
 		}
 		else if (bottlerMarketUnitPK != null)
 		{
 			selectBuilder.addFrom("bttlrbrchstostores, bttlrmktuntstobttlrbrchs");
 			selectBuilder.addWhere("outofstockevents.store = bttlrbrchstostores.store AND " +
 				"bttlrbrchstostores.bottlerbranch = bttlrmktuntstobttlrbrchs.bottlerbranch AND " +
-				"bttlrmktuntstobttlrbrchs.bottlermarketunit IN (" + StringUtils.stringArrayToString(bottlerMarketUnitPK) + ")", true);
+				"bttlrmktuntstobttlrbrchs.bottlermarketunit IN (" + getKeyTable().keys(bottlerMarketUnitPK) + ")", getKeyTable().parameters(bottlerMarketUnitPK), true);
 		}
 		else if (bottlerBusinessUnitPK != null)
 		{
@@ -454,7 +465,7 @@ public class AveragesReport extends AveragesTotalsBaseReport
 			selectBuilder.addWhere("outofstockevents.store = bttlrbrchstostores.store AND " +
 				"bttlrbrchstostores.bottlerbranch = bttlrmktuntstobttlrbrchs.bottlerbranch AND " +
 				"bttlrmktuntstobttlrbrchs.bottlermarketunit = bttlrbsnsuntstobttlrmktunts.bottlermarketunit AND " +
-				"bttlrbsnsuntstobttlrmktunts.bottlerbusinessunit IN (" + StringUtils.stringArrayToString(bottlerBusinessUnitPK) + ")", true);
+				"bttlrbsnsuntstobttlrmktunts.bottlerbusinessunit IN (" + getKeyTable().keys(bottlerBusinessUnitPK) + ")", getKeyTable().parameters(bottlerBusinessUnitPK), true);
 		}
 		else if (bottlerPK != null)
 		{
@@ -463,32 +474,32 @@ public class AveragesReport extends AveragesTotalsBaseReport
 				"bttlrbrchstostores.bottlerbranch = bttlrmktuntstobttlrbrchs.bottlerbranch AND " +
 				"bttlrmktuntstobttlrbrchs.bottlermarketunit = bttlrbsnsuntstobttlrmktunts.bottlermarketunit AND " +
 				"bttlrbsnsuntstobttlrmktunts.bottlerbusinessunit = bttlrstobttlrbsnsunts.bottlerbusinessunit AND " +
-				"bttlrstobttlrbsnsunts.bottler IN (" + StringUtils.stringArrayToString(bottlerPK) + ")", true);
+				"bttlrstobttlrbsnsunts.bottler IN (" + getKeyTable().keys(bottlerPK) + ")", getKeyTable().parameters(bottlerPK), true);
 		}
 
 		if (bottlerSalesRoutePK != null)
 		{
 			selectBuilder.addFrom("bttlrslsrtstostores");
 			selectBuilder.addWhere("outofstockevents.store = bttlrslsrtstostores.store AND " +
-				"bttlrslsrtstostores.bottlersalesroute IN (" + StringUtils.stringArrayToString(bottlerSalesRoutePK) +")", true);
+				"bttlrslsrtstostores.bottlersalesroute IN (" + getKeyTable().keys(bottlerSalesRoutePK) +")", getKeyTable().parameters(bottlerSalesRoutePK), true);
 		}
 		
 		if (productPackagePK != null)
 		{
 			selectBuilder.addFrom("prdctstoprdctpkgs");
 			selectBuilder.addWhere("outofstockevents.product = prdctstoprdctpkgs.product AND " +
-				"prdctstoprdctpkgs.productpackage IN (" + StringUtils.stringArrayToString(productPackagePK) + ")", true);
+				"prdctstoprdctpkgs.productpackage IN (" + getKeyTable().keys(productPackagePK) + ")", getKeyTable().parameters(productPackagePK), true);
 		}
 		
 		if (productPK != null)
 		{
-			selectBuilder.addWhere("outofstockevents.product IN (" + StringUtils.stringArrayToString(productPK) + ")", true);
+			selectBuilder.addWhere("outofstockevents.product IN (" + getKeyTable().keys(productPK) + ")", getKeyTable().parameters(productPK), true);
 		}
 		else if (productCategoryPK != null)
 		{
 			selectBuilder.addFrom("prdctctgrstoprdcts");
 			selectBuilder.addWhere("outofstockevents.product = prdctctgrstoprdcts.product AND " +
-				"prdctctgrstoprdcts.productcategory IN (" + StringUtils.stringArrayToString(productCategoryPK) + ")", true);
+				"prdctctgrstoprdcts.productcategory IN (" + getKeyTable().keys(productCategoryPK) + ")", getKeyTable().parameters(productCategoryPK), true);
 		}
 		
 		// This last constraint masks all out of stock events that are marked ignore (see the 
@@ -627,6 +638,7 @@ public class AveragesReport extends AveragesTotalsBaseReport
 			sbAverages.addGroup("prdctpkgs.name");
 			totalActive = ProductPackage.getTotalActive();
 		}
+		averagedOver = totalActive;
 
 		if (lostSalesMetric.equals("all") || lostSalesMetric.equals("quantity"))
 		{
@@ -655,34 +667,46 @@ public class AveragesReport extends AveragesTotalsBaseReport
 			
 		if (beginDate != null)
 		{
-			sbAverages.addWhere("dateoccurred >= DATE '" + beginDate.toString() + "'", true);
+			sbAverages.addWhere("dateoccurred >= ?", new Object[] { beginDate }, true);
 			if (summaryTarget.equalsIgnoreCase("storetvss"))
 			{
-				sbAveragesForTraditionals.addWhere("dateoccurred >= DATE '" + beginDate.toString() + "'", true);
-				sbAveragesForDistributorComs.addWhere("dateoccurred >= DATE '" + beginDate.toString() + "'", true);
+				sbAveragesForTraditionals.addWhere("dateoccurred >= ?", new Object[] { beginDate }, true);
+				sbAveragesForDistributorComs.addWhere("dateoccurred >= ?", new Object[] { beginDate }, true);
 			}
 		}
 		if (endDate != null)
 		{
-			sbAverages.addWhere("dateoccurred <= DATE '" + endDate.toString() + "'", true);
+			sbAverages.addWhere("dateoccurred <= ?", new Object[] { endDate }, true);
 			if (summaryTarget.equalsIgnoreCase("storetvss"))
 			{
-				sbAveragesForTraditionals.addWhere("dateoccurred <= DATE '" + endDate.toString() + "'", true);
-				sbAveragesForDistributorComs.addWhere("dateoccurred <= DATE '" + endDate.toString() + "'", true);
+				sbAveragesForTraditionals.addWhere("dateoccurred <= ?", new Object[] { endDate }, true);
+				sbAveragesForDistributorComs.addWhere("dateoccurred <= ?", new Object[] { endDate }, true);
 			}
 		}
 		
 		applyConstraints(sbAverages, productCategoryPK, productPK, productPackagePK,
 			bottlerPK, bottlerBusinessUnitPK, bottlerMarketUnitPK, bottlerBranchPK, bottlerSalesRoutePK,
 			distributorDivisionPK, distributorDistrictPK, storePK);
+		useRollup(sbAverages, summaryTarget,
+			productCategoryPK, productPK, productPackagePK,
+			bottlerPK, bottlerBusinessUnitPK, bottlerMarketUnitPK, bottlerBranchPK, bottlerSalesRoutePK,
+			distributorDivisionPK, distributorDistrictPK, storePK);
 		if (summaryTarget.equalsIgnoreCase("storetvss"))
 		{
 			applyConstraints(sbAveragesForTraditionals, productCategoryPK, productPK, productPackagePK,
 				bottlerPK, bottlerBusinessUnitPK, bottlerMarketUnitPK, bottlerBranchPK, bottlerSalesRoutePK,
 				distributorDivisionPK, distributorDistrictPK, storePK);
+			useRollup(sbAveragesForTraditionals, summaryTarget,
+				productCategoryPK, productPK, productPackagePK,
+				bottlerPK, bottlerBusinessUnitPK, bottlerMarketUnitPK, bottlerBranchPK, bottlerSalesRoutePK,
+				distributorDivisionPK, distributorDistrictPK, storePK);
 			applyConstraints(sbAveragesForDistributorComs, productCategoryPK, productPK, productPackagePK,
 				bottlerPK, bottlerBusinessUnitPK, bottlerMarketUnitPK, bottlerBranchPK, bottlerSalesRoutePK,
-				distributorDivisionPK, distributorDistrictPK, storePK);	
+				distributorDivisionPK, distributorDistrictPK, storePK);
+			useRollup(sbAveragesForDistributorComs, summaryTarget,
+				productCategoryPK, productPK, productPackagePK,
+				bottlerPK, bottlerBusinessUnitPK, bottlerMarketUnitPK, bottlerBranchPK, bottlerSalesRoutePK,
+				distributorDivisionPK, distributorDistrictPK, storePK);
 		}
 		
 		if (summaryTarget.equalsIgnoreCase("storetvss"))
@@ -865,15 +889,19 @@ public class AveragesReport extends AveragesTotalsBaseReport
 				"sum(outofstockevents.lostsalesamount) AS \"Loss By Reason (Dollars)\"");
 
 		if (beginDate != null)
-			sbAveragesByReason.addWhere("dateoccurred >= DATE '" + beginDate.toString() + "'", true);
+			sbAveragesByReason.addWhere("dateoccurred >= ?", new Object[] { beginDate }, true);
 		if (endDate != null)
-			sbAveragesByReason.addWhere("dateoccurred <= DATE '" + endDate.toString() + "'", true);
+			sbAveragesByReason.addWhere("dateoccurred <= ?", new Object[] { endDate }, true);
 		sbAveragesByReason.addGroup(
 			"CASE WHEN reason IN ('NE', 'ND') THEN 'NE/ND' WHEN reason IN ('SA', 'SI') THEN 'SA/SI' ELSE reason END");
 
 		applyConstraints(sbAveragesByReason, productCategoryPK, productPK, productPackagePK,
 			bottlerPK, bottlerBusinessUnitPK, bottlerMarketUnitPK, bottlerBranchPK, bottlerSalesRoutePK,
 			distributorDivisionPK, distributorDistrictPK, storePK);
+		useRollup(sbAveragesByReason, summaryTarget,
+			productCategoryPK, productPK, productPackagePK,
+			bottlerPK, bottlerBusinessUnitPK, bottlerMarketUnitPK, bottlerBranchPK, bottlerSalesRoutePK,
+			distributorDivisionPK, distributorDistrictPK, storePK);
 
 		sbAveragesByReason = new SelectBuilder(
 			// INCORRECT "avg(\"Total Lost Sales (Units)\") AS \"Loss By Reason (Units)\", "
@@ -928,10 +956,87 @@ public class AveragesReport extends AveragesTotalsBaseReport
 		return null;
 	}
 
+	public Object[] getQueryParameters(int queryNumber) 
+	{ 
+		switch (queryNumber)
+		{
+		case 0:
+			// Must follow the same order as the subqueries of the union in getQuery()
+			if (reportSummaryTarget.equals("storetvss"))
+				return SelectBuilder.getParameters(new SelectBuilder[] { 
+					sbAverages, sbAveragesForTraditionals, sbAveragesForDistributorComs });
+			return sbAverages.getParameters();
+		case 1:
+			return sbAveragesByReason.getParameters();
+		}
+		return null;
+	}
+
 	public String[][] getQueryKeyColumns()
 	{
 		return keyColumns;
 	}
+
+	/**
+	 * The averages and the averages by reason do not depend on each other, so they can run
+	 * at the same time.
+	 */
+	public int[] getQueryDependencies(int queryNumber)
+	{
+		return new int[0];
+	}
+	
+	/**
+	 * Computes the results of a query from the in-memory event store, if it is enabled and the
+	 * summary target is one it can group by. The rows have the same columns, keys, values,
+	 * and order as those of the SQL query.
+	 */
+	protected ListOrderedMap findRowsInMemory(int queryNumber)
+	{
+		EventStore store = EventStore.getStore();
+		if (inMemoryQuery == null || store == null || averagedOver == 0)
+			return null;
+		
+		final EventStore.Groups groups = store.aggregate(inMemoryQuery, false, queryNumber == 1, EventStore.WEEK);
+		if (groups == null)
+			return null;
+		
+		boolean showQuantity = reportLostSalesMetric.equals("all") || reportLostSalesMetric.equals("quantity");
+		boolean showAmount = reportLostSalesMetric.equals("all") || reportLostSalesMetric.equals("amount");
+		String measure = (queryNumber == 0 ? "Average Lost Sales" : "Loss By Reason");
+		
+		Integer[] order = new Integer[groups.size()];
+		for (int i=0; i<order.length; i++)
+			order[i] = new Integer(i);
+		Arrays.sort(order, new Comparator()
+			{
+				public int compare(Object o1, Object o2)
+				{
+					int g1 = ((Integer) o1).intValue(), g2 = ((Integer) o2).intValue();
+					int result = groups.getPeriod(g1) - groups.getPeriod(g2);
+					if (result == 0)
+						result = groups.getReason(g1).compareTo(groups.getReason(g2));
+					return result;
+				}
+			});
+		
+		ListOrderedMap rows = new ListOrderedMap();
+		for (int i=0; i<order.length; i++)
+		{
+			int group = order[i].intValue();
+			ListOrderedMap row = new ListOrderedMap();
+			BigDecimal week = BigDecimal.valueOf(groups.getPeriod(group));
+			row.put("Week", week);
+			if (queryNumber == 1)
+				row.put("Reason", groups.getReason(group));
+			if (showQuantity)
+				row.put(measure + " (Units)", EventStore.toBigDecimal(groups.getQuantity(group) / averagedOver));
+			if (showAmount)
+				row.put(measure + " (Dollars)", EventStore.toBigDecimal(groups.getAmount(group) / averagedOver));
+			rows.put(queryNumber == 0 ? String.valueOf(rows.size()) : week + "|" + groups.getReason(group), row);
+		}
+		return rows;
+	}
 	
 	public boolean isFirstColumnContinuous()
 	{
@@ -968,6 +1073,7 @@ public class AveragesReport extends AveragesTotalsBaseReport
 		// Retrieve the original results first of all
 		ListOrderedMap results = super.getResults();
 		ListOrderedMap averages = null, averagesByReason = null;
+		SubtotalIndex subAverages = null;
 		boolean hasAveragesByReason = false;
 		String joinColumn = null;
 		int firstColumnContinuousCounter = 1; // currently this would be for the "Week" column - no other option presently
@@ -1062,6 +1168,8 @@ public class AveragesReport extends AveragesTotalsBaseReport
 			// as opposed to TotalsReport, the first column is always "Week", since
 			// the average losses are reported on a per week basis.
 			joinColumn = (String) firstRow.get(0); // "Week" so far always.
+			subAverages = new SubtotalIndex(0, 0);
+			subAverages.addByReason(averagesByReason, joinColumn);
 			columnFormats.put("Bottler<br/>Related", bottlerColumnFormat);
 			columnFormats.put("Distributor<br/>Related", distributorColumnFormat);
 
@@ -1214,15 +1322,16 @@ public class AveragesReport extends AveragesTotalsBaseReport
 						sumSubAverages = new ArrayList(),
 						traditionalSubAverages = new ArrayList(), distributorComSubAverages = new ArrayList(); 
 					
+					SubtotalIndex.Entry entry = subAverages.get(joinColumnValue);
 					ListOrderedMap value = null;
 					
-					value = ((ListOrderedMap) averagesByReason.get(joinColumnValue + "|NE/ND"));
+					value = (entry != null ? entry.getByReason(SubtotalIndex.BOTTLER) : null);
 					if (showQuantity)
 						bottlerSubAverages.add(value != null ? value.get("Loss By Reason (Units)") : new BigDecimal(0));
 					if (showAmount)
 						bottlerSubAverages.add(value != null ? value.get("Loss By Reason (Dollars)") : new BigDecimal(0));
 		
-					value = ((ListOrderedMap) averagesByReason.get(joinColumnValue + "|SA/SI"));
+					value = (entry != null ? entry.getByReason(SubtotalIndex.DISTRIBUTOR) : null);
 					if (showQuantity)
 						distributorSubAverages.add(value != null ? value.get("Loss By Reason (Units)") : new BigDecimal(0));
 					if (showAmount)
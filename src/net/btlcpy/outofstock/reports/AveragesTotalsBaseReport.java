@@ -4,6 +4,9 @@ import java.sql.Connection;
 import java.sql.Date;
 import java.util.HashMap;
 
+import net.btlcpy.outofstock.persistence.beans.OutOfStockEvent;
+import net.btlcpy.outofstock.utilities.SelectBuilder;
+
 import org.apache.commons.collections.map.ListOrderedMap;
 
 /**
@@ -40,4 +43,147 @@ public abstract class AveragesTotalsBaseReport extends Report
 	{
 		super(connection, username);
 	}
+
+	/**
+	 * Points a query summing losses over the out of stock events at one of the daily rollups
+	 * of the events instead (see {@link OutOfStockEvent#storeRollupTableName}), if the rollup
+	 * keeps everything the query needs: the rollup per store, day and reason if nothing about
+	 * products is reported on or constrained by, the rollup per product, day and reason if
+	 * nothing about stores is. A rollup holds a few rows per store (or product) and day where
+	 * the events hold one per store, product and day. It is read under the name
+	 * outofstockevents, so the rest of the query stays as it is.
+	 * 
+	 * <p>Must be called once all tables and constraints have been added to the query, and
+	 * only for queries whose measures are sums of the event measures.</p>
+	 * 
+	 * @param selectBuilder the SQL query to route
+	 * @param summaryTarget the report's target (store, bottler, etc.)
+	 * @param productCategoryPK array of product categories (a possible constraint)
+	 * @param productPK array of products (a possible constraint)
+	 * @param productPackagePK array of product packages (a possible constraint)
+	 * @param bottlerPK array of bottlers (a possible constraint)
+	 * @param bottlerBusinessUnitPK array of bottler business units (a possible constraint)
+	 * @param bottlerMarketUnitPK array of bottler market units (a possible constraint)
+	 * @param bottlerBranchPK array of bottler branches (a possible constraint)
+	 * @param bottlerSalesRoutePK array of bottler sales routes (a possible constraint)
+	 * @param distributorDivisionPK array of distributor divisions (a possible constraint)
+	 * @param distributorDistrictPK array of distributor districts (a possible constraint)
+	 * @param storePK array of store PK's (a possible constraint)
+	 */
+	protected static void useRollup(SelectBuilder selectBuilder, String summaryTarget,
+		String[] productCategoryPK, String[] productPK, String[] productPackagePK, 
+		String[] bottlerPK, String[] bottlerBusinessUnitPK, String[] bottlerMarketUnitPK, String[] bottlerBranchPK, String[] bottlerSalesRoutePK, 
+		String[] distributorDivisionPK, String[] distributorDistrictPK, String[] storePK)
+	{
+		boolean byDay = summaryTarget.equalsIgnoreCase("day") || summaryTarget.equalsIgnoreCase("week");
+		
+		boolean productsInvolved = 
+			productCategoryPK != null || productPK != null || productPackagePK != null ||
+			!(byDay || 
+				summaryTarget.equalsIgnoreCase("store") || summaryTarget.equalsIgnoreCase("storetvss") ||
+				summaryTarget.equalsIgnoreCase("bottler") || summaryTarget.equalsIgnoreCase("bottlerbranch") ||
+				summaryTarget.equalsIgnoreCase("bottlersalesroute") || summaryTarget.equalsIgnoreCase("distributordistrict"));
+		
+		boolean storesInvolved = 
+			bottlerPK != null || bottlerBusinessUnitPK != null || bottlerMarketUnitPK != null ||
+			bottlerBranchPK != null || bottlerSalesRoutePK != null ||
+			distributorDivisionPK != null || distributorDistrictPK != null || storePK != null ||
+			!(byDay || 
+				summaryTarget.equalsIgnoreCase("product") || summaryTarget.equalsIgnoreCase("package"));
+		
+		if (!productsInvolved)
+			selectBuilder.replaceFrom(OutOfStockEvent.tableName, 
+				OutOfStockEvent.storeRollupTableName + " " + OutOfStockEvent.tableName);
+		else if (!storesInvolved)
+			selectBuilder.replaceFrom(OutOfStockEvent.tableName, 
+				OutOfStockEvent.productRollupTableName + " " + OutOfStockEvent.tableName);
+	}
+
+	/**
+	 * Builds the query for answering a report from the in-memory event store (see
+	 * {@link EventStore}), with the same constraints as the SQL queries of the report: as in
+	 * applyConstraints(), only the most specific constraint of each hierarchy counts.
+	 * 
+	 * @param summaryTarget the report's target (store, bottler, etc.)
+	 * @param beginDate start date of the report
+	 * @param endDate end date of the report
+	 * @param productCategoryPK array of product categories (a possible constraint)
+	 * @param productPK array of products (a possible constraint)
+	 * @param productPackagePK array of product packages (a possible constraint)
+	 * @param bottlerPK array of bottlers (a possible constraint)
+	 * @param bottlerBusinessUnitPK array of bottler business units (a possible constraint)
+	 * @param bottlerMarketUnitPK array of bottler market units (a possible constraint)
+	 * @param bottlerBranchPK array of bottler branches (a possible constraint)
+	 * @param bottlerSalesRoutePK array of bottler sales routes (a possible constraint)
+	 * @param distributorDivisionPK array of distributor divisions (a possible constraint)
+	 * @param distributorDistrictPK array of distributor districts (a possible constraint)
+	 * @param storePK array of store PK's (a possible constraint)
+	 * @return the query, or null if the store is not enabled or cannot group by the summary
+	 * target (stores, days, and weeks are left to the database)
+	 */
+	protected static EventStore.Query inMemoryQuery(String summaryTarget, Date beginDate, Date endDate,
+		String[] productCategoryPK, String[] productPK, String[] productPackagePK, 
+		String[] bottlerPK, String[] bottlerBusinessUnitPK, String[] bottlerMarketUnitPK, String[] bottlerBranchPK, String[] bottlerSalesRoutePK, 
+		String[] distributorDivisionPK, String[] distributorDistrictPK, String[] storePK)
+	{
+		if (EventStore.getStore() == null)
+			return null;
+		
+		int target;
+		if (summaryTarget.equalsIgnoreCase("bottler"))
+			target = EventStore.BOTTLER;
+		else if (summaryTarget.equalsIgnoreCase("bottlerbranch"))
+			target = EventStore.BOTTLERBRANCH;
+		else if (summaryTarget.equalsIgnoreCase("bottlersalesroute"))
+			target = EventStore.BOTTLERSALESROUTE;
+		else if (summaryTarget.equalsIgnoreCase("distributordistrict"))
+			target = EventStore.DISTRIBUTORDISTRICT;
+		else if (summaryTarget.equalsIgnoreCase("product"))
+			target = EventStore.PRODUCT;
+		else if (summaryTarget.equalsIgnoreCase("package"))
+			target = EventStore.PACKAGE;
+		else
+			return null;
+		
+		EventStore.Query query = new EventStore.Query(target, beginDate, endDate);
+		
+		if (storePK != null)
+			query.constrain(EventStore.STORE, storePK);
+		else if (distributorDistrictPK != null)
+			query.constrain(EventStore.DISTRIBUTORDISTRICT, distributorDistrictPK);
+		else if (distributorDivisionPK != null)
+			query.constrain(EventStore.DISTRIBUTORDIVISION, distributorDivisionPK);
+		
+		if (bottlerBranchPK != null)
+			query.constrain(EventStore.BOTTLERBRANCH, bottlerBranchPK);
+		else if (bottlerMarketUnitPK != null)
+			query.constrain(EventStore.BOTTLERMARKETUNIT, bottlerMarketUnitPK);
+		else if (bottlerBusinessUnitPK != null)
+			query.constrain(EventStore.BOTTLERBUSINESSUNIT, bottlerBusinessUnitPK);
+		else if (bottlerPK != null)
+			query.constrain(EventStore.BOTTLER, bottlerPK);
+		
+		query.constrain(EventStore.BOTTLERSALESROUTE, bottlerSalesRoutePK);
+		query.constrain(EventStore.PACKAGE, productPackagePK);
+		
+		if (productPK != null)
+			query.constrain(EventStore.PRODUCT, productPK);
+		else if (productCategoryPK != null)
+			query.constrain(EventStore.PRODUCTCATEGORY, productCategoryPK);
+		
+		return query;
+	}
+	
+	/**
+	 * Orders the labels of groups computed in memory the way the database orders them
+	 * (names are strings, UPCs and weeks are numbers).
+	 */
+	protected static int compareLabels(Object label1, Object label2)
+	{
+		if (label1 == null)
+			return (label2 == null ? 0 : 1);
+		if (label2 == null)
+			return -1;
+		return ((Comparable) label1).compareTo(label2);
+	}
 }
@@ -0,0 +1,893 @@
+package net.btlcpy.outofstock.reports;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.Date;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+
+import net.btlcpy.outofstock.loggers.MainLog;
+import net.btlcpy.outofstock.persistence.PersistenceManager;
+import net.btlcpy.outofstock.persistence.RowVisitor;
+import net.btlcpy.outofstock.persistence.beans.OutOfStockEvent;
+import net.btlcpy.outofstock.utilities.DateUtils;
+
+import org.apache.commons.collections.map.ListOrderedMap;
+
+/**
+ * <p>
+ * An optional in-memory, column-oriented copy of the (not ignored) out of stock events, used
+ * to answer the totals and averages reports over the bottler, distributor, and product
+ * hierarchies without going to the database (see {@link #aggregate(Query, boolean, boolean, int)}).
+ * </p>
+ *
+ * <p>
+ * Every event is kept as one entry in each of a set of primitive arrays: the ordinal of its
+ * store, the ordinal of its product, its date as an epoch day (see {@link DateUtils}), its
+ * (grouped) reason, its count, and its lost sales quantity and amount. The events are sorted
+ * by date, so the events of a date range are a contiguous range of the arrays. Every store
+ * also has the ordinal of its branch, market unit, business unit, bottler, sales route,
+ * district, and division (all of which are functions of the store in the schema), and every
+ * product the ordinal of its category and the ordinals of its packages. A report query then
+ * becomes a scan over a range of the arrays, looking up the store and product of each event
+ * in small arrays resolved from the constraints once per query, and summing into groups.
+ * </p>
+ *
+ * <p>
+ * The store is off unless enabled (see {@link #setEnabled(boolean)}), since it holds all the
+ * events in memory. Its contents are loaded in the background and replaced as a whole; they
+ * are out of date as soon as the event data generation moves on (see
+ * {@link OutOfStockEvent#dataChanged()}), i.e. after every upload, deletion, or change of
+ * the ignored categories. Until the new contents are loaded, reports are answered by the
+ * database as usual.
+ * </p>
+ *
+ * @author Ahmed A. Abd-Allah
+ */
+public class EventStore
+{
+	// ----- Static members ---------------------------------------------------
+	/*
+	 * The levels of the hierarchies. The store levels come first: a store belongs to at most
+	 * one member of each of them.
+	 */
+	public static final int BOTTLER = 0;
+	public static final int BOTTLERBUSINESSUNIT = 1;
+	public static final int BOTTLERMARKETUNIT = 2;
+	public static final int BOTTLERBRANCH = 3;
+	public static final int BOTTLERSALESROUTE = 4;
+	public static final int DISTRIBUTORDIVISION = 5;
+	public static final int DISTRIBUTORDISTRICT = 6;
+	public static final int STORE = 7;
+	public static final int PRODUCTCATEGORY = 8;
+	public static final int PRODUCT = 9;
+	public static final int PACKAGE = 10;
+
+	private static final int STORELEVELS = 8;
+	private static final int LEVELS = 11;
+
+	/** The tables of the levels, and the columns labeling their members. */
+	private static final String[] tables = { "bttlrs", "bttlrbsnsunts", "bttlrmktunts", "bttlrbrchs",
+		"bttlrslsrts", "dstbdvsns", "dstbdstrcts", "stores", "prdctctgrs", "prdcts", "prdctpkgs" };
+	private static final String[] labelColumns = { "name", "name", "name", "name",
+		"name", "name", "name", "id", "name", "upcid", "name" };
+
+	/**
+	 * The mappings between levels: table, child level and column, parent level and column.
+	 * Children are mapped before their parents.
+	 */
+	private static final Object[][] mappings = {
+		{ "bttlrbrchstostores", new Integer(STORE), "store", new Integer(BOTTLERBRANCH), "bottlerbranch" },
+		{ "bttlrmktuntstobttlrbrchs", new Integer(BOTTLERBRANCH), "bottlerbranch", new Integer(BOTTLERMARKETUNIT), "bottlermarketunit" },
+		{ "bttlrbsnsuntstobttlrmktunts", new Integer(BOTTLERMARKETUNIT), "bottlermarketunit", new Integer(BOTTLERBUSINESSUNIT), "bottlerbusinessunit" },
+		{ "bttlrstobttlrbsnsunts", new Integer(BOTTLERBUSINESSUNIT), "bottlerbusinessunit", new Integer(BOTTLER), "bottler" },
+		{ "bttlrslsrtstostores", new Integer(STORE), "store", new Integer(BOTTLERSALESROUTE), "bottlersalesroute" },
+		{ "dstbdstrctstostores", new Integer(STORE), "store", new Integer(DISTRIBUTORDISTRICT), "distributordistrict" },
+		{ "dstbdvsnstodstbdstrcts", new Integer(DISTRIBUTORDISTRICT), "distributordistrict", new Integer(DISTRIBUTORDIVISION), "distributordivision" },
+		{ "prdctctgrstoprdcts", new Integer(PRODUCT), "product", new Integer(PRODUCTCATEGORY), "productcategory" }
+	};
+
+	/* What to group the events by, besides their member and reason. */
+	public static final int NO_PERIOD = 0;
+	public static final int DAY = 1;
+	/** Weeks are numbered from 1, counting from the begin date of the query. */
+	public static final int WEEK = 2;
+
+	/** How long to wait before trying again after a failed load. */
+	private static final long RETRY_INTERVAL = 10 * 60 * 1000;
+
+	/** The primary key the report parameters page uses for the "Distributor.com" division. */
+	private static final String DISTRIBUTORCOM = "-1";
+
+	private static EventStore store = null;
+
+	/**
+	 * Turns the store on or off. Turning it on starts loading the events in the background.
+	 *
+	 * @param enabled whether reports should be answered from memory where possible
+	 */
+	synchronized public static void setEnabled(boolean enabled)
+	{
+		if (enabled && store == null)
+		{
+			store = new EventStore();
+			store.getContents();
+		}
+		else if (!enabled)
+			store = null;
+	}
+
+	/**
+	 * @return the store, or null if it is not enabled
+	 */
+	synchronized public static EventStore getStore()
+	{
+		return store;
+	}
+
+	/**
+	 * Converts a sum to the kind of value the database returns for it.
+	 */
+	public static BigDecimal toBigDecimal(double value)
+	{
+		BigDecimal decimal = new BigDecimal(value).setScale(6, BigDecimal.ROUND_HALF_EVEN);
+		BigInteger ten = BigInteger.valueOf(10);
+		while (decimal.scale() > 0 && decimal.unscaledValue().mod(ten).signum() == 0)
+			decimal = decimal.setScale(decimal.scale() - 1);
+		return decimal;
+	}
+
+	/**
+	 * <p>
+	 * The events to aggregate: a date range, the level whose members the events are grouped
+	 * by, and the members of other levels the events must belong to. The constraints have the
+	 * same meaning as in the SQL queries of the reports; in particular the "Distributor.com"
+	 * division (primary key -1) stands for the Distributor.com stores, and a package
+	 * constraint counts an event once for every selected package of its product.
+	 * </p>
+	 */
+	public static class Query
+	{
+		private int target;
+		private int beginDay = Integer.MIN_VALUE;
+		private int endDay = Integer.MAX_VALUE;
+		private String[][] constraints = new String[LEVELS][];
+
+		/**
+		 * @param target the level to group by (any level but STORE and PRODUCTCATEGORY)
+		 * @param beginDate the first day of the events (null means no limit)
+		 * @param endDate the last day of the events (null means no limit)
+		 */
+		public Query(int target, Date beginDate, Date endDate)
+		{
+			this.target = target;
+			if (beginDate != null)
+				beginDay = DateUtils.toEpochDay(beginDate, null);
+			if (endDate != null)
+				endDay = DateUtils.toEpochDay(endDate, null);
+		}
+
+		/**
+		 * @param level the level to constrain
+		 * @param primaryKeys the members of the level the events must belong to (null means
+		 * no constraint)
+		 */
+		public void constrain(int level, String[] primaryKeys)
+		{
+			constraints[level] = primaryKeys;
+		}
+
+		public int getTarget() { return target; }
+	}
+
+	/**
+	 * The result of an aggregation: one entry per group, in no particular order.
+	 */
+	public static class Groups
+	{
+		private Contents contents;
+		private int size = 0;
+		private long[] keys = new long[64];
+		private long[] counts = new long[64];
+		private double[] quantities = new double[64];
+		private double[] amounts = new double[64];
+		/** Open addressing hash table of keys to group number + 1. */
+		private int[] slots = new int[128];
+
+		private Groups(Contents contents)
+		{
+			this.contents = contents;
+		}
+
+		private void add(int member, int reason, int period, long count, double quantity, double amount)
+		{
+			long key = ((long) member << 32) | ((long) reason << 24) | (period & 0xffffffL);
+			int mask = slots.length - 1;
+			int slot = hash(key) & mask;
+			while (slots[slot] != 0)
+			{
+				int group = slots[slot] - 1;
+				if (keys[group] == key)
+				{
+					counts[group] += count;
+					quantities[group] += quantity;
+					amounts[group] += amount;
+					return;
+				}
+				slot = (slot + 1) & mask;
+			}
+
+			if (size == keys.length)
+			{
+				long[] newKeys = new long[size * 2];
+				long[] newCounts = new long[size * 2];
+				double[] newQuantities = new double[size * 2];
+				double[] newAmounts = new double[size * 2];
+				System.arraycopy(keys, 0, newKeys, 0, size);
+				System.arraycopy(counts, 0, newCounts, 0, size);
+				System.arraycopy(quantities, 0, newQuantities, 0, size);
+				System.arraycopy(amounts, 0, newAmounts, 0, size);
+				keys = newKeys;
+				counts = newCounts;
+				quantities = newQuantities;
+				amounts = newAmounts;
+			}
+			keys[size] = key;
+			counts[size] = count;
+			quantities[size] = quantity;
+			amounts[size] = amount;
+			slots[slot] = ++size;
+
+			// keep the table at most half full
+			if (size * 2 > slots.length)
+			{
+				slots = new int[slots.length * 2];
+				mask = slots.length - 1;
+				for (int group=0; group<size; group++)
+				{
+					long k = keys[group];
+					slot = hash(k) & mask;
+					while (slots[slot] != 0)
+						slot = (slot + 1) & mask;
+					slots[slot] = group + 1;
+				}
+			}
+		}
+
+		private static int hash(long key)
+		{
+			int h = (int) (key ^ (key >>> 32));
+			h ^= (h >>> 20) ^ (h >>> 12);
+			return h ^ (h >>> 7) ^ (h >>> 4);
+		}
+
+		public int size() { return size; }
+
+		/** @return the ordinal of the member of the target level of the group */
+		public int getMember(int group) { return (int) (keys[group] >> 32); }
+
+		/**
+		 * @return the label of the member of the group, as the database would return it
+		 * (e.g. the bottler name, or the product UPC as a BigDecimal)
+		 */
+		public Object getLabel(int group, int level) { return contents.labels[level][getMember(group)]; }
+
+		/** @return the description of the product of the group (PRODUCT queries only) */
+		public String getDescription(int group) { return contents.descriptions[getMember(group)]; }
+
+		/** @return the grouped reason of the group, e.g. "NE/ND" */
+		public String getReason(int group) { return contents.reasonLabels[(int) (keys[group] >> 24) & 0xff]; }
+
+		/** @return the epoch day or week number of the group */
+		public int getPeriod(int group) { return (int) (keys[group] & 0xffffffL); }
+
+		/** @return the sum of the counts of the events of the group */
+		public long getCount(int group) { return counts[group]; }
+		public double getQuantity(int group) { return quantities[group]; }
+		public double getAmount(int group) { return amounts[group]; }
+	}
+
+	/**
+	 * The loaded contents. Never modified once built.
+	 */
+	private static class Contents
+	{
+		private long generation;
+
+		/** Per level: primary key (as a string) to ordinal. */
+		private HashMap /* String, Integer */ [] ordinals = new HashMap[LEVELS];
+		/** Per level and ordinal: the label of the member, as the database returns it. */
+		private Object[][] labels = new Object[LEVELS][];
+		/** Per product ordinal: its description. */
+		private String[] descriptions;
+
+		/** Per store level and store ordinal: the ordinal of the store's member (-1 if none). */
+		private int[][] storeMembers = new int[STORELEVELS][];
+		private boolean[] distributorComStores;
+		private boolean[] traditionalStores;
+		/** Per product ordinal: the ordinal of its category (-1 if none). */
+		private int[] productCategories;
+		/** Per product ordinal: the ordinals of its packages. */
+		private int[][] productPackages;
+
+		/** The grouped reasons, e.g. "NE/ND". */
+		private String[] reasonLabels;
+
+		// The events, sorted by day
+		private int eventCount;
+		private int[] stores;
+		private int[] products;
+		private int[] days;
+		private byte[] reasons;
+		private int[] counts;
+		private double[] quantities;
+		private double[] amounts;
+	}
+
+	// ----- Instance members -------------------------------------------------
+	private Contents contents = null;
+	private boolean loading = false;
+	private long timeFailed = 0;
+
+	private EventStore()
+	{
+	}
+
+	/**
+	 * Sums the counts and lost sales of the events of a query.
+	 *
+	 * @param query the events to aggregate, and the level to group them by
+	 * @param byMember if true, the events are grouped by their member of the query's target
+	 * level; if false, they are only required to have one
+	 * @param byReason if true, the events are grouped by (grouped) reason as well
+	 * @param period NO_PERIOD, DAY, or WEEK (the query must have a begin date)
+	 * @return the groups, or null if the store cannot answer right now (it is still loading,
+	 * or loading failed), in which case the database should be asked
+	 */
+	public Groups aggregate(Query query, boolean byMember, boolean byReason, int period)
+	{
+		Contents current = getContents();
+		if (current == null)
+			return null;
+
+		boolean[] selectedStores = selectStores(current, query);
+		int[] productWeights = weighProducts(current, query);
+		boolean[] selectedPackages = (query.target == PACKAGE ? select(current, PACKAGE, query.constraints[PACKAGE]) : null);
+		int[] targetMembers = (query.target < STORELEVELS ? current.storeMembers[query.target] : null);
+
+		int[] stores = current.stores;
+		int[] products = current.products;
+		int[] days = current.days;
+		byte[] reasons = current.reasons;
+		int[] counts = current.counts;
+		double[] quantities = current.quantities;
+		double[] amounts = current.amounts;
+		int[][] productPackages = current.productPackages;
+
+		Groups groups = new Groups(current);
+		int end = upperBound(days, current.eventCount, query.endDay);
+		for (int i=lowerBound(days, current.eventCount, query.beginDay); i<end; i++)
+		{
+			int store = stores[i];
+			if (!selectedStores[store])
+				continue;
+			int product = products[i];
+			int weight = productWeights[product];
+			if (weight == 0)
+				continue;
+
+			int reason = (byReason ? reasons[i] : 0);
+			int p = 0;
+			if (period == DAY)
+				p = days[i];
+			else if (period == WEEK)
+				p = (days[i] - query.beginDay) / 7 + 1;
+
+			if (targetMembers != null)
+			{
+				int member = targetMembers[store];
+				if (member >= 0)
+					groups.add(byMember ? member : 0, reason, p, weight * counts[i], weight * quantities[i], weight * amounts[i]);
+			}
+			else if (query.target == PRODUCT)
+				groups.add(byMember ? product : 0, reason, p, weight * counts[i], weight * quantities[i], weight * amounts[i]);
+			else if (query.target == PACKAGE)
+			{
+				int[] packages = productPackages[product];
+				for (int j=0; j<packages.length; j++)
+					if (selectedPackages == null || selectedPackages[packages[j]])
+						groups.add(byMember ? packages[j] : 0, reason, p, counts[i], quantities[i], amounts[i]);
+			}
+		}
+		return groups;
+	}
+
+	/**
+	 * @return for every member of the level, whether it is one of the given primary keys;
+	 * null if the primary keys are null
+	 */
+	private static boolean[] select(Contents current, int level, String[] primaryKeys)
+	{
+		if (primaryKeys == null)
+			return null;
+
+		boolean[] selected = new boolean[current.labels[level].length];
+		for (int i=0; i<primaryKeys.length; i++)
+		{
+			Integer ordinal = (primaryKeys[i] == null ? null : (Integer) current.ordinals[level].get(primaryKeys[i].trim()));
+			if (ordinal != null)
+				selected[ordinal.intValue()] = true;
+		}
+		return selected;
+	}
+
+	/**
+	 * @return for every store, whether its events satisfy the store level constraints of the
+	 * query
+	 */
+	private static boolean[] selectStores(Contents current, Query query)
+	{
+		int storeCount = current.labels[STORE].length;
+		boolean[] selectedStores = new boolean[storeCount];
+		for (int s=0; s<storeCount; s++)
+			selectedStores[s] = true;
+
+		for (int level=0; level<STORELEVELS; level++)
+		{
+			String[] primaryKeys = query.constraints[level];
+			if (primaryKeys == null)
+				continue;
+
+			boolean[] selected = select(current, level, primaryKeys);
+			int[] members = current.storeMembers[level];
+			if (level == DISTRIBUTORDIVISION)
+			{
+				boolean distributorcom = false;
+				for (int i=0; i<primaryKeys.length; i++)
+					if (DISTRIBUTORCOM.equals(primaryKeys[i]))
+						distributorcom = true;
+
+				for (int s=0; s<storeCount; s++)
+				{
+					boolean inDivision = members[s] >= 0 && selected[members[s]];
+					if (!distributorcom)
+						selectedStores[s] &= inDivision;
+					else if (primaryKeys.length == 1)
+						selectedStores[s] &= current.distributorComStores[s];
+					else
+						selectedStores[s] &= (inDivision && current.traditionalStores[s]) ||
+							(members[s] >= 0 && current.distributorComStores[s]);
+				}
+			}
+			else
+			{
+				for (int s=0; s<storeCount; s++)
+					selectedStores[s] &= members[s] >= 0 && selected[members[s]];
+			}
+		}
+		return selectedStores;
+	}
+
+	/**
+	 * @return for every product, how many times each of its events counts given the product
+	 * level constraints of the query (zero if not at all)
+	 */
+	private static int[] weighProducts(Contents current, Query query)
+	{
+		int productCount = current.labels[PRODUCT].length;
+		int[] weights = new int[productCount];
+		boolean[] categories = select(current, PRODUCTCATEGORY, query.constraints[PRODUCTCATEGORY]);
+		boolean[] products = select(current, PRODUCT, query.constraints[PRODUCT]);
+		// with packages as the target, the package constraint picks the groups instead
+		boolean[] packages = (query.target == PACKAGE ? null : select(current, PACKAGE, query.constraints[PACKAGE]));
+
+		for (int p=0; p<productCount; p++)
+		{
+			if (categories != null && (current.productCategories[p] < 0 || !categories[current.productCategories[p]]))
+				continue;
+			if (products != null && !products[p])
+				continue;
+			if (packages == null)
+				weights[p] = 1;
+			else
+			{
+				int[] productPackages = current.productPackages[p];
+				for (int j=0; j<productPackages.length; j++)
+					if (packages[productPackages[j]])
+						weights[p]++;
+			}
+		}
+		return weights;
+	}
+
+	/** @return the index of the first of the sorted values that is at least value */
+	private static int lowerBound(int[] sorted, int length, int value)
+	{
+		int low = 0, high = length;
+		while (low < high)
+		{
+			int middle = (low + high) >>> 1;
+			if (sorted[middle] < value)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	/** @return the index of the first of the sorted values that is greater than value */
+	private static int upperBound(int[] sorted, int length, int value)
+	{
+		int low = 0, high = length;
+		while (low < high)
+		{
+			int middle = (low + high) >>> 1;
+			if (sorted[middle] <= value)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	/**
+	 * @return the contents if they are up to date; otherwise null, after starting to load
+	 * them in the background if that is not already happening
+	 */
+	synchronized private Contents getContents()
+	{
+		long generation = OutOfStockEvent.getDataGeneration();
+		if (contents != null && contents.generation == generation)
+			return contents;
+
+		if (!loading && System.currentTimeMillis() - timeFailed >= RETRY_INTERVAL)
+		{
+			loading = true;
+			Thread loader = new Thread("Event store loader")
+				{
+					public void run()
+					{
+						loadContents();
+					}
+				};
+			loader.setDaemon(true);
+			loader.start();
+		}
+		return null;
+	}
+
+	private void loadContents()
+	{
+		Contents newContents = null;
+		try
+		{
+			long startTime = System.currentTimeMillis();
+			newContents = load();
+			MainLog.getLog().debug("Loaded " + newContents.eventCount + " events into the event store in " +
+				(System.currentTimeMillis() - startTime) + " ms");
+		}
+		catch (Throwable t)
+		{
+			MainLog.getLog().error("Unable to load the event store; reports use the database", t);
+		}
+
+		synchronized (this)
+		{
+			loading = false;
+			if (newContents != null)
+			{
+				contents = newContents;
+				timeFailed = 0;
+			}
+			else
+				timeFailed = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Reads the hierarchies and the events and builds new contents.
+	 */
+	private Contents load()
+		throws Exception
+	{
+		final Contents built = new Contents();
+		// changes committed from here on will be caught by the next load
+		built.generation = OutOfStockEvent.getDataGeneration();
+
+		PersistenceManager manager = PersistenceManager.getPersistenceManager();
+		Connection connection = null;
+
+		try
+		{
+			connection = manager.getConnection(true);
+
+			for (int level=0; level<LEVELS; level++)
+				loadLevel(connection, built, level);
+
+			int storeCount = built.labels[STORE].length;
+			int productCount = built.labels[PRODUCT].length;
+
+			// Map every store (product) to its members, walking up the hierarchies
+			int[][] parents = new int[LEVELS][];
+			for (int i=0; i<mappings.length; i++)
+			{
+				int childLevel = ((Integer) mappings[i][1]).intValue();
+				int parentLevel = ((Integer) mappings[i][3]).intValue();
+				parents[parentLevel] = loadMapping(connection, built, (String) mappings[i][0],
+					childLevel, (String) mappings[i][2], parentLevel, (String) mappings[i][4]);
+			}
+			for (int level=0; level<STORELEVELS; level++)
+			{
+				int[] members = new int[storeCount];
+				for (int s=0; s<storeCount; s++)
+					members[s] = memberOf(level, s, parents);
+				built.storeMembers[level] = members;
+			}
+			built.productCategories = parents[PRODUCTCATEGORY];
+			built.productPackages = loadPackages(connection, built, productCount);
+
+			loadEvents(connection, built);
+		}
+		finally
+		{
+			try { if (connection != null) connection.close(); } catch (Exception e) {}
+		}
+
+		return built;
+	}
+
+	/**
+	 * @return the ordinal of the member of a store level a store belongs to, -1 if none
+	 */
+	private static int memberOf(int level, int store, int[][] parents)
+	{
+		switch (level)
+		{
+		case STORE:
+			return store;
+		case BOTTLERBRANCH:
+		case BOTTLERSALESROUTE:
+		case DISTRIBUTORDISTRICT:
+			return parents[level][store];
+		case BOTTLERMARKETUNIT:
+			return parentOf(BOTTLERMARKETUNIT, memberOf(BOTTLERBRANCH, store, parents), parents);
+		case BOTTLERBUSINESSUNIT:
+			return parentOf(BOTTLERBUSINESSUNIT, memberOf(BOTTLERMARKETUNIT, store, parents), parents);
+		case BOTTLER:
+			return parentOf(BOTTLER, memberOf(BOTTLERBUSINESSUNIT, store, parents), parents);
+		case DISTRIBUTORDIVISION:
+			return parentOf(DISTRIBUTORDIVISION, memberOf(DISTRIBUTORDISTRICT, store, parents), parents);
+		}
+		return -1;
+	}
+
+	private static int parentOf(int parentLevel, int child, int[][] parents)
+	{
+		return (child < 0 ? -1 : parents[parentLevel][child]);
+	}
+
+	private void loadLevel(Connection connection, final Contents built, final int level)
+		throws Exception
+	{
+		final HashMap /* String, Integer */ ordinals = new HashMap();
+		final ArrayList /* Object */ labels = new ArrayList();
+		// descriptions of products, distributorcom flags of stores
+		final ArrayList /* String */ extras = new ArrayList();
+		String query = "SELECT primarykey, " + labelColumns[level] +
+			(level == PRODUCT ? ", description" : (level == STORE ? ", distributorcom" : "")) +
+			" FROM " + tables[level];
+
+		PersistenceManager.getPersistenceManager().visitRows(connection, query, null, 1000,
+			new RowVisitor()
+			{
+				public boolean visitRow(int rowNumber, ListOrderedMap row)
+				{
+					ordinals.put(row.getValue(0).toString(), new Integer(rowNumber));
+					labels.add(row.getValue(1));
+					extras.add(row.size() > 2 ? row.getValue(2) : null);
+					return true;
+				}
+			});
+
+		built.ordinals[level] = ordinals;
+		built.labels[level] = labels.toArray();
+		if (level == PRODUCT)
+			built.descriptions = (String[]) extras.toArray(new String[extras.size()]);
+		else if (level == STORE)
+		{
+			// as in the SQL queries of the reports: "-" marks a traditional store, anything
+			// else non-empty a Distributor.com store, and stores without a value are neither
+			built.distributorComStores = new boolean[extras.size()];
+			built.traditionalStores = new boolean[extras.size()];
+			for (int s=0; s<extras.size(); s++)
+			{
+				String distributorcom = (String) extras.get(s);
+				if (distributorcom != null)
+				{
+					built.traditionalStores[s] = distributorcom.length() == 0 || distributorcom.equals("-");
+					built.distributorComStores[s] = !built.traditionalStores[s];
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return per child ordinal, the ordinal of its parent (-1 if none)
+	 * @throws IllegalStateException if a child has several parents
+	 */
+	private int[] loadMapping(Connection connection, final Contents built, final String table,
+		final int childLevel, String childColumn, final int parentLevel, String parentColumn)
+		throws Exception
+	{
+		final int[] parents = new int[built.labels[childLevel].length];
+		for (int i=0; i<parents.length; i++)
+			parents[i] = -1;
+
+		PersistenceManager.getPersistenceManager().visitRows(connection,
+			"SELECT " + childColumn + ", " + parentColumn + " FROM " + table, null, 1000,
+			new RowVisitor()
+			{
+				public boolean visitRow(int rowNumber, ListOrderedMap row)
+				{
+					Integer child = (Integer) built.ordinals[childLevel].get(row.getValue(0).toString());
+					Integer parent = (Integer) built.ordinals[parentLevel].get(row.getValue(1).toString());
+					if (child == null || parent == null)
+						return true;
+					int c = child.intValue();
+					if (parents[c] >= 0 && parents[c] != parent.intValue())
+						throw new IllegalStateException(table + " maps " + row.getValue(0) + " to more than one member");
+					parents[c] = parent.intValue();
+					return true;
+				}
+			});
+
+		return parents;
+	}
+
+	/**
+	 * @return per product ordinal, the ordinals of its packages
+	 */
+	private int[][] loadPackages(Connection connection, final Contents built, int productCount)
+		throws Exception
+	{
+		final int[][] packages = new int[productCount][];
+		final int[] none = new int[0];
+		for (int p=0; p<productCount; p++)
+			packages[p] = none;
+
+		PersistenceManager.getPersistenceManager().visitRows(connection,
+			"SELECT product, productpackage FROM prdctstoprdctpkgs", null, 1000,
+			new RowVisitor()
+			{
+				public boolean visitRow(int rowNumber, ListOrderedMap row)
+				{
+					Integer product = (Integer) built.ordinals[PRODUCT].get(row.getValue(0).toString());
+					Integer productPackage = (Integer) built.ordinals[PACKAGE].get(row.getValue(1).toString());
+					if (product == null || productPackage == null)
+						return true;
+					int[] old = packages[product.intValue()];
+					int[] grown = new int[old.length + 1];
+					System.arraycopy(old, 0, grown, 0, old.length);
+					grown[old.length] = productPackage.intValue();
+					packages[product.intValue()] = grown;
+					return true;
+				}
+			});
+
+		return packages;
+	}
+
+	private void loadEvents(Connection connection, final Contents built)
+		throws Exception
+	{
+		PersistenceManager manager = PersistenceManager.getPersistenceManager();
+
+		// Size the columns up front (events added in the meantime make them grow)
+		ListOrderedMap results = manager.findRows(connection,
+			"SELECT count(*) AS TOTAL FROM " + OutOfStockEvent.tableName + " WHERE bitand(metaflags, 1)+0 = 0", null);
+		int capacity = 1024;
+		if (results != null && results.size() > 0)
+			capacity = Math.max(capacity, ((Number) ((ListOrderedMap) results.getValue(0)).get("TOTAL")).intValue());
+		built.stores = new int[capacity];
+		built.products = new int[capacity];
+		built.days = new int[capacity];
+		built.reasons = new byte[capacity];
+		built.counts = new int[capacity];
+		built.quantities = new double[capacity];
+		built.amounts = new double[capacity];
+
+		// raw reasons (e.g. "NE") and grouped reasons (e.g. "NE/ND") to grouped reason ordinals
+		final HashMap /* String, Integer */ reasonOrdinals = new HashMap();
+		final HashMap /* String, Integer */ reasonLabelOrdinals = new HashMap();
+		final ArrayList /* String */ reasonLabels = new ArrayList();
+		final Calendar calendar = Calendar.getInstance();
+
+		manager.visitRows(connection,
+			"SELECT store, product, dateoccurred, reason, count, lostsalesquantity, lostsalesamount FROM " +
+			OutOfStockEvent.tableName + " WHERE bitand(metaflags, 1)+0 = 0 ORDER BY dateoccurred", null, 1000,
+			new RowVisitor()
+			{
+				private java.util.Date lastDate = null;
+				private int lastDay = 0;
+
+				public boolean visitRow(int rowNumber, ListOrderedMap row)
+				{
+					Integer store = (Integer) built.ordinals[STORE].get(row.getValue(0).toString());
+					Integer product = (Integer) built.ordinals[PRODUCT].get(row.getValue(1).toString());
+					if (store == null || product == null)
+						return true; // inserted after the stores and products were read
+
+					java.util.Date date = (java.util.Date) row.getValue(2);
+					if (lastDate == null || date.getTime() != lastDate.getTime())
+					{
+						lastDate = date;
+						lastDay = DateUtils.toEpochDay(date, calendar);
+					}
+
+					String reason = (String) row.getValue(3);
+					Integer reasonOrdinal = (Integer) reasonOrdinals.get(reason);
+					if (reasonOrdinal == null)
+					{
+						String label = reason;
+						if (reason.equals("NE") || reason.equals("ND"))
+							label = "NE/ND";
+						else if (reason.equals("SA") || reason.equals("SI"))
+							label = "SA/SI";
+						reasonOrdinal = (Integer) reasonLabelOrdinals.get(label);
+						if (reasonOrdinal == null)
+						{
+							if (reasonLabels.size() > Byte.MAX_VALUE)
+								throw new IllegalStateException("Too many distinct reasons");
+							reasonOrdinal = new Integer(reasonLabels.size());
+							reasonLabelOrdinals.put(label, reasonOrdinal);
+							reasonLabels.add(label);
+						}
+						reasonOrdinals.put(reason, reasonOrdinal);
+					}
+
+					int i = built.eventCount;
+					if (i == built.stores.length)
+						grow(built);
+					built.stores[i] = store.intValue();
+					built.products[i] = product.intValue();
+					built.days[i] = lastDay;
+					built.reasons[i] = (byte) reasonOrdinal.intValue();
+					built.counts[i] = ((Number) row.getValue(4)).intValue();
+					built.quantities[i] = ((Number) row.getValue(5)).doubleValue();
+					built.amounts[i] = ((Number) row.getValue(6)).doubleValue();
+					built.eventCount++;
+					return true;
+				}
+			});
+
+		built.reasonLabels = (String[]) reasonLabels.toArray(new String[reasonLabels.size()]);
+	}
+
+	private static void grow(Contents built)
+	{
+		int capacity = built.stores.length * 2;
+		int[] stores = new int[capacity];
+		int[] products = new int[capacity];
+		int[] days = new int[capacity];
+		byte[] reasons = new byte[capacity];
+		int[] counts = new int[capacity];
+		double[] quantities = new double[capacity];
+		double[] amounts = new double[capacity];
+		System.arraycopy(built.stores, 0, stores, 0, built.eventCount);
+		System.arraycopy(built.products, 0, products, 0, built.eventCount);
+		System.arraycopy(built.days, 0, days, 0, built.eventCount);
+		System.arraycopy(built.reasons, 0, reasons, 0, built.eventCount);
+		System.arraycopy(built.counts, 0, counts, 0, built.eventCount);
+		System.arraycopy(built.quantities, 0, quantities, 0, built.eventCount);
+		System.arraycopy(built.amounts, 0, amounts, 0, built.eventCount);
+		built.stores = stores;
+		built.products = products;
+		built.days = days;
+		built.reasons = reasons;
+		built.counts = counts;
+		built.quantities = quantities;
+		built.amounts = amounts;
+	}
+}
@@ -0,0 +1,151 @@
+package net.btlcpy.outofstock.reports;
+
+import java.util.LinkedList;
+
+import net.btlcpy.outofstock.loggers.MainLog;
+
+/**
+ * <p>
+ * A fixed set of worker threads for running the queries of reports concurrently (see
+ * {@link Report#getQueryDependencies(int)}). Every query run by a worker takes a connection
+ * of its own from the pool for the duration of the query, so the number of workers bounds
+ * the number of connections reports hold on to beyond their own.
+ * </p>
+ *
+ * <p>
+ * Tasks wait in a queue for a free worker. The queue is bounded as well: once it is full,
+ * the thread submitting a task runs it itself, which slows down submitters instead of
+ * letting work pile up.
+ * </p>
+ *
+ * @author Ahmed A. Abd-Allah
+ */
+public class QueryExecutor
+{
+	// ----- Static members ---------------------------------------------------
+	/** The default maximum number of tasks waiting for a worker. */
+	public static final int DEFAULT_MAXIMUM_QUEUED = 20;
+
+	private static QueryExecutor executor = null;
+
+	/**
+	 * This method should be called once on application startup.
+	 *
+	 * @param threads the number of worker threads; if null, empty, not a number, or less than
+	 * 2, the queries of reports are run one by one on the report's own connection
+	 */
+	synchronized public static void initialize(String threads)
+	{
+		if (executor != null)
+		{
+			executor.close();
+			executor = null;
+		}
+		if (threads == null || threads.trim().equals(""))
+			return;
+
+		int numberOfThreads;
+		try
+		{
+			numberOfThreads = Integer.parseInt(threads.trim());
+		}
+		catch (NumberFormatException e)
+		{
+			MainLog.getLog().error("Invalid number of report query threads: " + threads + 
+				"; running the queries of reports one by one");
+			return;
+		}
+		if (numberOfThreads > 1)
+			executor = new QueryExecutor(numberOfThreads, DEFAULT_MAXIMUM_QUEUED);
+	}
+
+	/**
+	 * @return the executor, or null if queries are not to be run concurrently
+	 */
+	synchronized public static QueryExecutor getExecutor()
+	{
+		return executor;
+	}
+
+	// ----- Instance members -------------------------------------------------
+	private LinkedList /* Runnable */ queue = new LinkedList();
+	private int maximumQueued;
+	private boolean closed = false;
+
+	/**
+	 * @param threads the number of worker threads
+	 * @param maximumQueued the maximum number of tasks waiting for a worker
+	 */
+	public QueryExecutor(int threads, int maximumQueued)
+	{
+		this.maximumQueued = maximumQueued;
+		for (int i=0; i<threads; i++)
+		{
+			Thread worker = new Thread("Report query worker " + (i + 1))
+				{
+					public void run()
+					{
+						work();
+					}
+				};
+			worker.setDaemon(true);
+			worker.start();
+		}
+	}
+
+	/**
+	 * Runs a task on a worker thread, or on the calling thread if the queue is full (or the
+	 * executor is closed).
+	 *
+	 * @param task the task to run
+	 */
+	public void execute(Runnable task)
+	{
+		synchronized (this)
+		{
+			if (!closed && queue.size() < maximumQueued)
+			{
+				queue.addLast(task);
+				notify();
+				return;
+			}
+		}
+		task.run();
+	}
+
+	/**
+	 * Stops the workers once the queued tasks are done.
+	 */
+	synchronized public void close()
+	{
+		closed = true;
+		notifyAll();
+	}
+
+	private void work()
+	{
+		while (true)
+		{
+			Runnable task;
+			synchronized (this)
+			{
+				while (queue.isEmpty() && !closed)
+				{
+					try { wait(); } catch (InterruptedException e) {}
+				}
+				if (queue.isEmpty())
+					return;
+				task = (Runnable) queue.removeFirst();
+			}
+
+			try
+			{
+				task.run();
+			}
+			catch (Throwable t)
+			{
+				MainLog.getLog().error("Report query task failed", t);
+			}
+		}
+	}
+}
@@ -3,11 +3,12 @@ package net.btlcpy.outofstock.reports;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Timestamp;
-import java.util.ArrayList;
-import java.util.Collections;
 
 import net.btlcpy.outofstock.loggers.MainLog;
+import net.btlcpy.outofstock.persistence.Cancellation;
+import net.btlcpy.outofstock.persistence.KeyTable;
 import net.btlcpy.outofstock.persistence.PersistenceManager;
+import net.btlcpy.outofstock.persistence.ResultTable;
 import net.btlcpy.outofstock.persistence.beans.UserAction;
 import net.btlcpy.outofstock.reports.format.ReportCellFormat;
 import net.btlcpy.outofstock.reports.format.excel.ReportExcelFormat;
@@ -22,6 +23,15 @@ import org.apache.commons.collections.map.ListOrderedMap;
  * results of each query are saved in a list ordered map of rows, and all the results of the
  * individual queries are rolled up into an overall list ordered map, query-to-results.
  * </p>
+ * <p>
+ * Queries that do not depend on each other (see {@link #getQueryDependencies(int)}) may be
+ * executed concurrently, each on a pooled connection of its own, if a {@link QueryExecutor}
+ * is set up. Their results are still post-processed one by one, in query order.
+ * </p>
+ * <p>
+ * When a report is run as a {@link ReportJob}, the job is told as each query is done, and
+ * cancelling the job cancels the statement(s) the report is waiting on (see {@link Cancellation}).
+ * </p>
  * <p> 
  * A report is displayed as a tabular collection of data usually rendered as an HTML table 
  * within a Web browser. The table can be sorted by different columns in ascending or 
@@ -31,8 +41,11 @@ import org.apache.commons.collections.map.ListOrderedMap;
  * 
  * @author Ahmed A. Abd-Allah
  */
-abstract public class Report
+abstract public class Report implements Cloneable
 {
+	/** The number of rows to show per page by default (see {@link #getPage(int, int, int, int)}). */
+	public static final int DEFAULT_PAGE_SIZE = 100;
+	
 	/** 
 	 * <p>
 	 * A collection of query results, arranged in order of execution. The keys are
@@ -45,6 +58,11 @@ abstract public class Report
 	 * or a subset of the results based on key columns. What columns to use as keys
 	 * for a particular query should be set by subclasses.
 	 * </p>
+	 * <p>
+	 * The rows of executed queries are views of a compact {@link ResultTable} (see
+	 * {@link ResultTable#toListOrderedMap()}), which reads their values from typed column
+	 * arrays instead of keeping a map of boxed values per row.
+	 * </p>
 	 */
 	private ListOrderedMap /* <String, ListOrderedMap> */ results;
 	
@@ -99,6 +117,20 @@ abstract public class Report
 	 */
 	private ReportExcelFormat excelFormat[] = null;
 	
+	/**
+	 * Large sets of keys the queries are restricted to (see {@link #getKeyTable()}). They are
+	 * loaded on every connection the queries are executed on.
+	 */
+	private KeyTable keyTable = null;
+	
+	/**
+	 * The positions of the first rows of the pages last computed by {@link #getPage(int, int, int, int)},
+	 * along with the results and the paging parameters they were computed for.
+	 */
+	private int pageStarts[] = null;
+	private ListOrderedMap pagedResults = null;
+	private int pagedQueryNumber, pagedPageSize, pagedSubRows;
+	
 	public Report(Connection connection, String username)
 	{
 		if (connection == null)
@@ -112,6 +144,7 @@ abstract public class Report
 			useOwnConnection = false;
 		}
 		this.username = username; 
+		keyTable = new KeyTable(this.connection);
 	}
 
 	/** The number of queries in the report. */
@@ -123,6 +156,16 @@ abstract public class Report
 	 */
 	abstract public String getQuery(int queryNumber);
 	
+	/**
+	 * @param queryNumber the report query to retrieve the bind values for (zero-based)
+	 * @return the values to bind to the '?' placeholders of the query returned by 
+	 * {@link #getQuery(int)}, in order; null (the default) if the query has no placeholders
+	 */
+	public Object[] getQueryParameters(int queryNumber)
+	{
+		return null;
+	}
+	
 	/**
 	 * @return All the key columns used for individual queries
 	 */
@@ -158,6 +201,41 @@ abstract public class Report
 	 */
 	abstract public void doPostProcessing(Connection connection, int queryNumber);
 
+	/**
+	 * Gives a report the chance to compute the results of a query without the database (see
+	 * {@link EventStore}), in which case the query is not executed. The results must be in
+	 * the same format as PersistenceManager.findRows would return them for the query.
+	 * @param queryNumber the query number
+	 * @return the results of the query (empty if there are none), or null if the query must
+	 * be executed
+	 */
+	protected ListOrderedMap findRowsInMemory(int queryNumber) { return null; }
+
+	/**
+	 * A query may only be started once the queries it depends on have been executed and
+	 * post-processed; e.g. when post-processing them changes the query. Independent queries
+	 * may be executed concurrently, in which case a query may also be pre-processed before
+	 * the queries before it are post-processed.
+	 * @param queryNumber the query number
+	 * @return the numbers of the (lower numbered) queries the query depends on. By default
+	 * every query depends on the one before it, i.e. the queries are executed one by one.
+	 */
+	public int[] getQueryDependencies(int queryNumber)
+	{
+		return (queryNumber == 0 ? new int[0] : new int[] { queryNumber - 1 });
+	}
+
+	/**
+	 * Subclasses restrict their queries to sets of keys (e.g. the stores chosen) through the
+	 * key table, which keeps large sets out of the SQL text; the sets are loaded into the
+	 * database before the queries are executed.
+	 * @return the key table of the report
+	 */
+	protected KeyTable getKeyTable()
+	{
+		return keyTable;
+	}
+
 	/**
 	 * @return A string indicating the user action which should be logged. May return null, in
 	 * which case no user action will be logged.
@@ -256,9 +334,107 @@ abstract public class Report
 	 */
 	protected void setResults(ListOrderedMap overridingResults) { results = overridingResults; }
 
+	/**
+	 * @return the total number of rows in all query results
+	 */
+	public int getRowCount()
+	{
+		int rowCount = 0;
+		if (results != null)
+			for (int i=0; i<results.size(); i++)
+				if (results.getValue(i) != null)
+					rowCount += ((ListOrderedMap) results.getValue(i)).size();
+		return rowCount;
+	}
+
+	/**
+	 * Copies an executed report, e.g. to hand out the same results to several users. The
+	 * query results and their rows are copied, so that the copy can be sorted independently;
+	 * the cell values, merged regions and formats (which are not changed once the report has
+	 * been executed) are shared. The copy has no connection.
+	 * 
+	 * @param username the user the copy is for
+	 * @return the copy
+	 */
+	public Report copy(String username)
+	{
+		Report copy = null;
+		try
+		{
+			copy = (Report) clone();
+		}
+		catch (CloneNotSupportedException e)
+		{
+			throw new IllegalStateException(e.getMessage());
+		}
+
+		copy.connection = null;
+		copy.useOwnConnection = true;
+		copy.username = username;
+		if (sortedColumns != null)
+			copy.sortedColumns = (String[][]) sortedColumns.clone();
+		if (sortedColumnsAscending != null)
+			copy.sortedColumnsAscending = (boolean[]) sortedColumnsAscending.clone();
+
+		if (results != null)
+		{
+			copy.results = new ListOrderedMap();
+			for (int i=0; i<results.size(); i++)
+			{
+				ListOrderedMap queryResults = (ListOrderedMap) results.getValue(i);
+				ListOrderedMap copiedQueryResults = null;
+				if (queryResults != null)
+				{
+					copiedQueryResults = new ListOrderedMap();
+					for (int j=0; j<queryResults.size(); j++)
+					{
+						ListOrderedMap row = (ListOrderedMap) queryResults.getValue(j);
+						ListOrderedMap copiedRow = new ListOrderedMap();
+						copiedRow.putAll(row);
+						copiedQueryResults.put(queryResults.get(j), copiedRow);
+					}
+				}
+				copy.results.put(results.get(i), copiedQueryResults);
+			}
+		}
+		return copy;
+	}
+
+	/**
+	 * Copies a report without its results, e.g. to keep while the results are put aside (see
+	 * {@link ReportRegistry}) and set back later on with {@link #setResults(ListOrderedMap)}.
+	 * Everything else is shared as by {@link #copy(String)}.
+	 * 
+	 * @return the copy
+	 */
+	Report copyWithoutResults()
+	{
+		Report copy = null;
+		try
+		{
+			copy = (Report) clone();
+		}
+		catch (CloneNotSupportedException e)
+		{
+			throw new IllegalStateException(e.getMessage());
+		}
+
+		copy.connection = null;
+		copy.useOwnConnection = true;
+		if (sortedColumns != null)
+			copy.sortedColumns = (String[][]) sortedColumns.clone();
+		if (sortedColumnsAscending != null)
+			copy.sortedColumnsAscending = (boolean[]) sortedColumnsAscending.clone();
+		copy.results = null;
+		copy.pageStarts = null;
+		copy.pagedResults = null;
+		return copy;
+	}
+
 	/**
 	 * Executes all the queries for the report, one by one. Preprocessing and postprocessing calls are
-	 * made per query.
+	 * made per query. If the report is run as a job, the job's progress is updated as each query is
+	 * done, and the report stops with an SQLException once the job is cancelled.
 	 * 
 	 * @throws SQLException
 	 * @throws InstantiationException
@@ -286,19 +462,48 @@ abstract public class Report
 			resetMergedRegions(numberOfQueries().intValue());
 			resetExcelFormats(numberOfQueries().intValue());
 			
-			for (int i=0; i<numberOfQueries().intValue(); i++)
+			ReportJob job = ReportJob.getCurrentJob();
+			if (job != null)
+				job.setProgress(0, numberOfQueries().intValue());
+			
+			QueryExecutor executor = QueryExecutor.getExecutor();
+			if (executor != null && numberOfQueries().intValue() > 1)
+				executeConcurrently(executor, keyColumns, job);
+			else
 			{
-				doPreProcessing(connection, i);
-				String query = getQuery(i);
-				if (query != null)
+				keyTable.load(connection);
+				try
 				{
-					MainLog.getLog().debug("Executing query " + i);
-					MainLog.getLog().debug("\n\n" + query + "\n\n");
-					results.put("query" + i, manager.findRows(connection, query, keyColumns[i]));
+					for (int i=0; i<numberOfQueries().intValue(); i++)
+					{
+						checkCancelled();
+						doPreProcessing(connection, i);
+						String query = getQuery(i);
+						ListOrderedMap rowsInMemory = (query != null ? findRowsInMemory(i) : null);
+						if (rowsInMemory != null)
+						{
+							MainLog.getLog().debug("Computed query " + i + " in memory");
+							// an empty result stands for no rows, as findRows returns null then
+							results.put("query" + i, rowsInMemory.size() > 0 ? rowsInMemory : null);
+						}
+						else if (query != null)
+						{
+							MainLog.getLog().debug("Executing query " + i);
+							MainLog.getLog().debug("\n\n" + query + "\n\n");
+							results.put("query" + i,
+								manager.findTable(connection, query, getQueryParameters(i), keyColumns[i]).toListOrderedMap());
+						}
+						sortedColumns[i] = getInitialSortedColumns(i);
+						sortedColumnsAscending[i] = isSortedAscendingInitially(i);
+						doPostProcessing(connection, i);
+						if (job != null)
+							job.setProgress(i + 1, numberOfQueries().intValue());
+					}
+				}
+				finally
+				{
+					keyTable.unload(connection);
 				}
-				sortedColumns[i] = getInitialSortedColumns(i);
-				sortedColumnsAscending[i] = isSortedAscendingInitially(i);
-				doPostProcessing(connection, i);
 			}
 
 			// Log the report as a user action if there is a description
@@ -355,6 +560,198 @@ abstract public class Report
 		}
 	}
 	
+	/**
+	 * Executes the queries of the report as concurrently as their dependencies allow. Every
+	 * query is pre-processed (and its SQL built) on the calling thread when it is started,
+	 * and post-processed on the calling thread, in query order, once its results are in.
+	 * If anything fails, the queries still running are cancelled, so that they give back
+	 * their connections right away.
+	 * 
+	 * @param executor the executor to execute the queries with
+	 * @param keyColumns the key columns of the queries
+	 * @param job the job the report is run as (null if none)
+	 * @throws SQLException
+	 * @throws InstantiationException
+	 * @throws IllegalAccessException
+	 */
+	private void executeConcurrently(QueryExecutor executor, String keyColumns[][], ReportJob job)
+		throws SQLException, InstantiationException, IllegalAccessException
+	{
+		int count = numberOfQueries().intValue();
+		QueryTask[] tasks = new QueryTask[count];
+		// cancelled with the job, or by this method on failure
+		Cancellation queries = new Cancellation(Cancellation.getCurrent());
+		boolean finished = false;
+		
+		try
+		{
+			for (int next=0; next<count; next++)
+			{
+				// Start every query whose dependencies have all been post-processed
+				for (int i=next; i<count; i++)
+				{
+					if (tasks[i] != null)
+						continue;
+					int[] dependencies = getQueryDependencies(i);
+					boolean ready = true;
+					for (int j=0; j<dependencies.length; j++)
+						if (dependencies[j] >= next)
+							ready = false;
+					if (!ready)
+						continue;
+				
+					checkCancelled();
+					doPreProcessing(connection, i);
+					String query = getQuery(i);
+					tasks[i] = new QueryTask(i, query, getQueryParameters(i), keyColumns[i], keyTable, queries);
+					ListOrderedMap rowsInMemory = (query != null ? findRowsInMemory(i) : null);
+					if (rowsInMemory != null)
+					{
+						MainLog.getLog().debug("Computed query " + i + " in memory");
+						// an empty result stands for no rows, as findRows returns null then
+						tasks[i].setRows(rowsInMemory.size() > 0 ? rowsInMemory : null);
+					}
+					else if (query != null)
+						executor.execute(tasks[i]);
+					else
+						tasks[i].setRows(null);
+				}
+			
+				ListOrderedMap rows = tasks[next].getRows();
+				if (tasks[next].query != null)
+					results.put("query" + next, rows);
+				sortedColumns[next] = getInitialSortedColumns(next);
+				sortedColumnsAscending[next] = isSortedAscendingInitially(next);
+				doPostProcessing(connection, next);
+				if (job != null)
+					job.setProgress(next + 1, count);
+			}
+			finished = true;
+		}
+		finally
+		{
+			if (!finished)
+				queries.cancel();
+		}
+	}
+	
+	/**
+	 * @throws SQLException if the report is being run as a job that has been cancelled
+	 */
+	private void checkCancelled()
+		throws SQLException
+	{
+		Cancellation cancellation = Cancellation.getCurrent();
+		if (cancellation != null)
+			cancellation.check();
+	}
+	
+	/**
+	 * A query executed by a {@link QueryExecutor} worker, on a pooled connection of its own.
+	 * The cancellation given is made current on the worker while the query runs, so that
+	 * cancelling it cancels the query; a task cancelled before it starts does not run at all.
+	 */
+	private static class QueryTask implements Runnable
+	{
+		private int queryNumber;
+		private String query;
+		private Object[] parameters;
+		private String[] keyColumns;
+		private KeyTable keyTable;
+		private Cancellation cancellation;
+		
+		private boolean done = false;
+		private ListOrderedMap rows = null;
+		private Throwable failure = null;
+		
+		private QueryTask(int queryNumber, String query, Object[] parameters, String[] keyColumns,
+			KeyTable keyTable, Cancellation cancellation)
+		{
+			this.queryNumber = queryNumber;
+			this.query = query;
+			this.parameters = parameters;
+			this.keyColumns = keyColumns;
+			this.keyTable = keyTable;
+			this.cancellation = cancellation;
+		}
+		
+		public void run()
+		{
+			PersistenceManager manager = PersistenceManager.getPersistenceManager();
+			Connection connection = null;
+			ListOrderedMap found = null;
+			Throwable thrown = null;
+			// the task may also be run by the thread that created it (see QueryExecutor)
+			Cancellation previousCancellation = Cancellation.getCurrent();
+			Cancellation.setCurrent(cancellation);
+			
+			try
+			{
+				cancellation.check();
+				MainLog.getLog().debug("Executing query " + queryNumber);
+				MainLog.getLog().debug("\n\n" + query + "\n\n");
+				connection = manager.getConnection(true);
+				keyTable.load(connection);
+				try
+				{
+					found = manager.findTable(connection, query, parameters, keyColumns).toListOrderedMap();
+				}
+				finally
+				{
+					keyTable.unload(connection);
+				}
+			}
+			catch (Throwable t)
+			{
+				thrown = t;
+			}
+			finally
+			{
+				try { if (connection != null) connection.close(); } catch (Exception e) {}
+				Cancellation.setCurrent(previousCancellation);
+			}
+			
+			synchronized (this)
+			{
+				rows = found;
+				failure = thrown;
+				done = true;
+				notifyAll();
+			}
+		}
+		
+		synchronized private void setRows(ListOrderedMap rows)
+		{
+			this.rows = rows;
+			done = true;
+		}
+		
+		/**
+		 * Waits for the query to finish.
+		 * @return the rows found (null if none)
+		 */
+		synchronized private ListOrderedMap getRows()
+			throws SQLException, InstantiationException, IllegalAccessException
+		{
+			while (!done)
+			{
+				try { wait(); } catch (InterruptedException e) {}
+			}
+			
+			if (failure instanceof SQLException)
+				throw (SQLException) failure;
+			if (failure instanceof InstantiationException)
+				throw (InstantiationException) failure;
+			if (failure instanceof IllegalAccessException)
+				throw (IllegalAccessException) failure;
+			if (failure instanceof RuntimeException)
+				throw (RuntimeException) failure;
+			if (failure instanceof Error)
+				throw (Error) failure;
+			return rows;
+		}
+	}
+	
 	/**
 	 * Sort a particular set of query results based on the columns to use, and whether
 	 * to use ascending or descending order.
@@ -374,19 +771,6 @@ abstract public class Report
 		if (queryResults == null || queryResults.size() == 0 || sortingColumns == null)
 			return;
 
-		// store the original key into the results temporarily. We will take the key back
-		// out after we sort the results.
-		for (int i=0; i<queryResults.size(); i++)
-			((ListOrderedMap) queryResults.getValue(i)).put("__key__", queryResults.get(i));
-		
-		// Retrieve all the rows without the keys (leaving out the subrows)
-		// List rows = queryResults.valueList();
-		ArrayList rows = new ArrayList();
-		for (int i=0; i<queryResults.size(); i = i + subRows + 1)
-		{
-			rows.add(queryResults.getValue(i));
-		}
-		
 		// Get the sorting information for each sortable column
 		String[] sortInfo = new String[sortingColumns.length];
 		for (int i=0; i<sortingColumns.length; i++)
@@ -396,37 +780,8 @@ abstract public class Report
 			// MainLog.getLog().debug("Using sort info: >>>" + sortInfo[i] + "<<<");
 		}
 		
-		// Sort
-		Collections.sort(rows, new ReportRowComparator(sortInfo, ascending));
-		
-		// stuff back the subrows (if any)
-		if (subRows > 0)
-		{
-			ArrayList fixedRows = new ArrayList();
-			for (int i=0; i<rows.size(); i++)
-			{
-				// add the master row first
-				fixedRows.add(rows.get(i));
-				
-				// look for its position in the original result set in order to get its immediately following subrows
-				int originalPosition = queryResults.indexOf( ((ListOrderedMap) rows.get(i)).get("__key__") );
-				
-				// retrieve those subrows and add them to the new set of results
-				for (int j=0; j<subRows; j++)
-					fixedRows.add( queryResults.getValue(originalPosition + 1 + j) );
-			}
-			rows = fixedRows;
-		}
-
-		// Stuff the new sorted results back into a map using the original keys.
-		// Since we are using a list ordered map, the sort order is maintained via the
-		// order of insertion.
-		ListOrderedMap sortedQueryResults = new ListOrderedMap();
-		for (int i=0; i<rows.size(); i++)
-		{
-			Object key = ((ListOrderedMap) rows.get(i)).remove("__key__");
-			sortedQueryResults.put(key, rows.get(i));
-		}
+		// Sort (the subrows, if any, follow their master rows); the rows keep their original keys
+		ListOrderedMap sortedQueryResults = ReportSorter.sort(queryResults, sortInfo, ascending, subRows);
 
 		// Put the sorted query results back into the overall collection of results
 		results.put("query" + queryNumber, sortedQueryResults);
@@ -434,6 +789,75 @@ abstract public class Report
 		sortedColumnsAscending[queryNumber] = ascending;
 	}
 	
+	/**
+	 * <p>
+	 * Splits the results of a query into pages of about <code>pageSize</code> rows, so that only
+	 * one page needs to be rendered at a time. Pages never separate a "master row" from its
+	 * sub-rows (see {@link #sort(int, String[], boolean, int)}), nor split a region merged in the
+	 * first column (e.g. the rows of one store); a page may therefore hold a few rows more than
+	 * <code>pageSize</code>, or fewer.
+	 * </p>
+	 * <p>
+	 * The pages are computed once per order of the results, and only the bounds of the page
+	 * asked for are returned; the rows themselves are left in place.
+	 * </p>
+	 * 
+	 * @param queryNumber zero-based
+	 * @param page the number of the page (zero-based); numbers past the last page are taken
+	 * as the last page
+	 * @param pageSize the number of rows per page
+	 * @param subRows the number of sub-rows per "master row", as passed to <code>sort</code>
+	 * @return the page
+	 */
+	synchronized public ReportPage getPage(int queryNumber, int page, int pageSize, int subRows)
+	{
+		ListOrderedMap queryResults = (results != null ? (ListOrderedMap) results.get("query" + queryNumber) : null);
+		if (queryResults == null || queryResults.size() == 0)
+			return new ReportPage(0, 1, 0, 0, 0);
+		
+		if (pageStarts == null || pagedResults != queryResults || pagedQueryNumber != queryNumber ||
+			pagedPageSize != pageSize || pagedSubRows != subRows)
+		{
+			pageStarts = computePageStarts(queryNumber, queryResults.size(), Math.max(pageSize, 1), subRows);
+			pagedResults = queryResults;
+			pagedQueryNumber = queryNumber;
+			pagedPageSize = pageSize;
+			pagedSubRows = subRows;
+		}
+		
+		page = Math.max(0, Math.min(page, pageStarts.length - 1));
+		return new ReportPage(page, pageStarts.length, pageStarts[page],
+			page + 1 < pageStarts.length ? pageStarts[page + 1] : queryResults.size(), queryResults.size());
+	}
+	
+	private int[] computePageStarts(int queryNumber, int numberOfRows, int pageSize, int subRows)
+	{
+		// Rows inside a region merged in the first column may not start a page
+		boolean continued[] = new boolean[numberOfRows];
+		ListOrderedMap regions = getMergedRegions(queryNumber);
+		for (int i=0; regions != null && i<regions.size(); i++)
+		{
+			String start = (String) regions.get(i);
+			if (getXCoordinateFromMergedRegionCoordinate(start) != 0)
+				continue;
+			int end = getYCoordinateFromMergedRegionCoordinate((String) regions.getValue(i));
+			for (int y = getYCoordinateFromMergedRegionCoordinate(start) + 1; y <= end && y < numberOfRows; y++)
+				continued[y] = true;
+		}
+		
+		int starts[] = new int[numberOfRows];
+		int numberOfPages = 1; // the first page starts at row 0
+		for (int row = subRows + 1; row < numberOfRows; row += subRows + 1)
+		{
+			if (!continued[row] && row - starts[numberOfPages - 1] >= pageSize)
+				starts[numberOfPages++] = row;
+		}
+		
+		int trimmed[] = new int[numberOfPages];
+		System.arraycopy(starts, 0, trimmed, 0, numberOfPages);
+		return trimmed;
+	}
+	
 	/**
 	 * @param queryNumber the query number to examine
 	 * @return the columns which are sorted/sortable at the moment for a particular query
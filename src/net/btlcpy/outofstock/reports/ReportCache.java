@@ -0,0 +1,214 @@
+package net.btlcpy.outofstock.reports;
+
+import java.util.Arrays;
+
+import net.btlcpy.outofstock.loggers.MainLog;
+import net.btlcpy.outofstock.persistence.beans.OutOfStockEvent;
+
+import org.apache.commons.collections.map.ListOrderedMap;
+
+/**
+ * <p>
+ * A least-recently-used cache of executed reports, keyed by a canonical form of the report
+ * parameters (see {@link #makeKey(String, Object[])}). Analysts tend to rerun the same
+ * parameter combinations over and over, and every run of an events report is several heavy
+ * joins over the out of stock events.
+ * </p>
+ *
+ * <p>
+ * The cache is bounded both by the number of reports and by their total weight (the number
+ * of result rows), evicting the least recently used reports first. Reports are handed out as
+ * copies (see {@link Report#copy(String)}), since users sort their reports in place.
+ * </p>
+ *
+ * <p>
+ * Cached reports are only valid as long as the event data they were computed from has not
+ * changed. Whoever commits changes to events (uploads, deletions, ignored categories) or to
+ * the dimensions reported on bumps the event data generation (see
+ * {@link OutOfStockEvent#dataChanged()}); the cache is emptied as soon as it notices a new
+ * generation, and reports that were computed under an older generation are not cached.
+ * </p>
+ *
+ * @author Ahmed A. Abd-Allah
+ */
+public class ReportCache
+{
+	// ----- Static members ---------------------------------------------------
+	/** The default maximum number of reports kept. */
+	public static final int DEFAULT_MAXIMUM_SIZE = 50;
+	/** The default maximum total number of result rows kept. */
+	public static final int DEFAULT_MAXIMUM_WEIGHT = 200000;
+
+	private static ReportCache cache = new ReportCache(DEFAULT_MAXIMUM_SIZE, DEFAULT_MAXIMUM_WEIGHT);
+
+	public static ReportCache getCache()
+	{
+		return cache;
+	}
+
+	/**
+	 * Builds a canonical key from the parameters of a report. Arrays (e.g. the selected
+	 * primary keys) are sorted, so that the order in which the user selected them does not
+	 * matter; null and empty arrays are treated alike.
+	 *
+	 * @param reportType the type of report
+	 * @param parameters the report parameters, in a fixed order per report type (Strings,
+	 * Dates, String arrays, ...)
+	 * @return the key
+	 */
+	public static String makeKey(String reportType, Object[] parameters)
+	{
+		StringBuffer key = new StringBuffer(reportType);
+		for (int i=0; i<parameters.length; i++)
+		{
+			key.append('\u0001');
+			if (parameters[i] instanceof Object[])
+			{
+				Object[] values = (Object[]) ((Object[]) parameters[i]).clone();
+				Arrays.sort(values);
+				for (int j=0; j<values.length; j++)
+				{
+					if (j > 0)
+						key.append('\u0002');
+					key.append(values[j]);
+				}
+			}
+			else if (parameters[i] != null)
+				key.append(parameters[i]);
+		}
+		return key.toString();
+	}
+
+	/**
+	 * A cached report and its weight.
+	 */
+	private static class Entry
+	{
+		private Report report;
+		private int weight;
+	}
+
+	// ----- Instance members -------------------------------------------------
+	private int maximumSize;
+	private int maximumWeight;
+
+	/** The cached entries, keyed by report key; least recently used first. */
+	private ListOrderedMap /* String, Entry */ entries = new ListOrderedMap(); // LinkedHashMap requires Java 1.4
+	private int totalWeight = 0;
+
+	/** The event data generation the cached reports were computed under. */
+	private long generation = 0;
+
+	// Statistics
+	private long hitCount = 0;
+	private long missCount = 0;
+	private long evictionCount = 0;
+
+	public ReportCache(int maximumSize, int maximumWeight)
+	{
+		this.maximumSize = maximumSize;
+		this.maximumWeight = maximumWeight;
+	}
+
+	/**
+	 * @param key the key of the report, see {@link #makeKey(String, Object[])}
+	 * @param username the user the report is for
+	 * @return a copy of the cached report, or null if it is not cached (or out of date)
+	 */
+	synchronized public Report get(String key, String username)
+	{
+		checkGeneration();
+
+		Entry entry = (Entry) entries.remove(key);
+		if (entry == null)
+		{
+			missCount++;
+			return null;
+		}
+
+		// re-insert to mark it as the most recently used
+		entries.put(key, entry);
+		hitCount++;
+		return entry.report.copy(username);
+	}
+
+	/**
+	 * Caches a report.
+	 *
+	 * @param key the key of the report, see {@link #makeKey(String, Object[])}
+	 * @param generation the event data generation (see {@link OutOfStockEvent#getDataGeneration()})
+	 * read BEFORE the report was executed
+	 * @param report the executed report; it is copied, so the caller may go on using it
+	 */
+	public void put(String key, long generation, Report report)
+	{
+		Entry entry = new Entry();
+		entry.report = report.copy(null);
+		entry.weight = entry.report.getRowCount();
+		if (entry.weight > maximumWeight)
+			return;
+
+		synchronized (this)
+		{
+			checkGeneration();
+			if (generation != this.generation)
+				return; // the data changed while the report was running
+
+			Entry previous = (Entry) entries.remove(key);
+			if (previous != null)
+				totalWeight -= previous.weight;
+			entries.put(key, entry);
+			totalWeight += entry.weight;
+			evict();
+		}
+	}
+
+	/**
+	 * Removes all cached reports.
+	 */
+	synchronized public void clear()
+	{
+		entries.clear();
+		totalWeight = 0;
+	}
+
+	/** @return the number of reports currently cached */
+	synchronized public int getSize() { return entries.size(); }
+	/** @return the total number of result rows currently cached */
+	synchronized public int getWeight() { return totalWeight; }
+	/** @return how many requests were served from the cache */
+	synchronized public long getHitCount() { return hitCount; }
+	/** @return how many requests had to execute the report */
+	synchronized public long getMissCount() { return missCount; }
+	/** @return how many reports were dropped to make room for others */
+	synchronized public long getEvictionCount() { return evictionCount; }
+
+	/**
+	 * Empties the cache if the event data has changed since the cached reports were computed.
+	 * Must be called holding the monitor.
+	 */
+	private void checkGeneration()
+	{
+		long currentGeneration = OutOfStockEvent.getDataGeneration();
+		if (currentGeneration != generation)
+		{
+			clear();
+			generation = currentGeneration;
+		}
+	}
+
+	/**
+	 * Drops least recently used reports until the cache is back within its bounds. Must be
+	 * called holding the monitor.
+	 */
+	private void evict()
+	{
+		while (entries.size() > 0 && (entries.size() > maximumSize || totalWeight > maximumWeight))
+		{
+			Entry entry = (Entry) entries.remove(0);
+			totalWeight -= entry.weight;
+			evictionCount++;
+		}
+		MainLog.getLog().debug("Report cache: " + entries.size() + " reports, " + totalWeight + " rows");
+	}
+}
@@ -0,0 +1,265 @@
+package net.btlcpy.outofstock.reports;
+
+import net.btlcpy.outofstock.loggers.MainLog;
+import net.btlcpy.outofstock.persistence.Cancellation;
+
+/**
+ * <p>
+ * A report to be generated in the background by a {@link ReportJobQueue}, instead of on the
+ * thread of the request asking for it. Subclasses implement {@link #execute()} to create and
+ * execute the report (typically through {@link ReportManager}); the job keeps track of the
+ * status of the report, the number of its queries done so far, and its results or failure,
+ * so they can be looked up later by the job's ID.
+ * </p>
+ *
+ * <p>
+ * A job can be cancelled at any time: a queued job is simply never run, and a running job has
+ * the statements it is waiting on cancelled (see {@link Cancellation}).
+ * </p>
+ *
+ * @author Ahmed A. Abd-Allah
+ */
+abstract public class ReportJob
+{
+	// ----- Static members ---------------------------------------------------
+	/** Waiting for a worker */
+	public static final int QUEUED = 0;
+	/** Being generated */
+	public static final int RUNNING = 1;
+	/** Generated; the report is available */
+	public static final int FINISHED = 2;
+	/** Failed; the failure is available */
+	public static final int FAILED = 3;
+	/** Cancelled by the user, or because it took too long */
+	public static final int CANCELLED = 4;
+
+	private static ThreadLocal currentJob = new ThreadLocal();
+
+	private static int sequence = 0;
+
+	/**
+	 * @return a new job ID, unique within the application
+	 */
+	synchronized private static String nextId()
+	{
+		return Long.toString(System.currentTimeMillis(), 36) + "-" + (++sequence);
+	}
+
+	/**
+	 * @return the job being run by the current thread, or null if there is none
+	 */
+	public static ReportJob getCurrentJob()
+	{
+		return (ReportJob) currentJob.get();
+	}
+
+	// ----- Instance members -------------------------------------------------
+	private String id = nextId();
+	private String username;
+	private int status = QUEUED;
+	private int queriesDone = 0;
+	private int numberOfQueries = 0;
+	private Report report = null;
+	private Throwable failure = null;
+	private String cancelReason = null;
+	private long timeSubmitted;
+	private long timeStarted = 0;
+	private long timeEnded = 0;
+	private Cancellation cancellation = new Cancellation();
+
+	/**
+	 * @param username the user running the report
+	 */
+	public ReportJob(String username)
+	{
+		this.username = username;
+		timeSubmitted = System.currentTimeMillis();
+	}
+
+	/**
+	 * Creates and executes the report.
+	 *
+	 * @return the executed report
+	 * @throws Exception
+	 */
+	abstract protected Report execute()
+		throws Exception;
+
+	/**
+	 * Runs the job on the current thread, unless it has been cancelled already. Failures are
+	 * kept (see {@link #getFailure()}), not thrown.
+	 */
+	public void run()
+	{
+		synchronized (this)
+		{
+			if (status != QUEUED)
+				return;
+			status = RUNNING;
+			timeStarted = System.currentTimeMillis();
+		}
+
+		Report executed = null;
+		Throwable thrown = null;
+		currentJob.set(this);
+		Cancellation.setCurrent(cancellation);
+		try
+		{
+			executed = execute();
+		}
+		catch (Throwable t)
+		{
+			thrown = t;
+		}
+		finally
+		{
+			Cancellation.setCurrent(null);
+			currentJob.set(null);
+		}
+
+		synchronized (this)
+		{
+			timeEnded = System.currentTimeMillis();
+			if (cancellation.isCancelled())
+				status = CANCELLED;
+			else if (thrown != null)
+			{
+				MainLog.getLog().error("Report job " + id + " failed", thrown);
+				status = FAILED;
+				failure = thrown;
+			}
+			else
+			{
+				status = FINISHED;
+				report = executed;
+			}
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Cancels the job: a queued job will not be run, and the statements of a running job are
+	 * cancelled.
+	 *
+	 * @param reason why the job is cancelled, e.g. "Cancelled by user"
+	 */
+	public void cancel(String reason)
+	{
+		synchronized (this)
+		{
+			if (status != QUEUED && status != RUNNING)
+				return;
+			cancelReason = reason;
+			if (status == QUEUED)
+			{
+				status = CANCELLED;
+				timeEnded = System.currentTimeMillis();
+				notifyAll();
+			}
+		}
+		// outside the lock, as cancelling statements may take a while
+		cancellation.cancel();
+	}
+
+	/**
+	 * Called by the report being generated as its queries are done.
+	 *
+	 * @param queriesDone the number of queries done
+	 * @param numberOfQueries the number of queries of the report
+	 */
+	synchronized public void setProgress(int queriesDone, int numberOfQueries)
+	{
+		this.queriesDone = queriesDone;
+		this.numberOfQueries = numberOfQueries;
+	}
+
+	/**
+	 * @return true if the job is finished, failed, or cancelled
+	 */
+	synchronized public boolean isDone()
+	{
+		return status != QUEUED && status != RUNNING;
+	}
+
+	/**
+	 * @return the ID of the job, given when it is created
+	 */
+	public String getId()
+	{
+		return id;
+	}
+
+	public String getUsername()
+	{
+		return username;
+	}
+
+	/**
+	 * @return {@link #QUEUED}, {@link #RUNNING}, {@link #FINISHED}, {@link #FAILED}, or {@link #CANCELLED}
+	 */
+	synchronized public int getStatus()
+	{
+		return status;
+	}
+
+	/**
+	 * @return the number of queries done so far
+	 */
+	synchronized public int getQueriesDone()
+	{
+		return queriesDone;
+	}
+
+	/**
+	 * @return the number of queries of the report (zero until the report has started executing)
+	 */
+	synchronized public int getNumberOfQueries()
+	{
+		return numberOfQueries;
+	}
+
+	/**
+	 * @return the report if the job is finished, null otherwise
+	 */
+	synchronized public Report getReport()
+	{
+		return report;
+	}
+
+	/**
+	 * @return what the job failed with if it failed, null otherwise
+	 */
+	synchronized public Throwable getFailure()
+	{
+		return failure;
+	}
+
+	/**
+	 * @return why the job was cancelled if it was cancelled, null otherwise
+	 */
+	synchronized public String getCancelReason()
+	{
+		return cancelReason;
+	}
+
+	public long getTimeSubmitted()
+	{
+		return timeSubmitted;
+	}
+
+	/**
+	 * @return when the job started running (zero if it has not)
+	 */
+	synchronized public long getTimeStarted()
+	{
+		return timeStarted;
+	}
+
+	/**
+	 * @return when the job was done (zero if it is not)
+	 */
+	synchronized public long getTimeEnded()
+	{
+		return timeEnded;
+	}
+}
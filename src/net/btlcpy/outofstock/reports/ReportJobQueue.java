@@ -0,0 +1,331 @@
+package net.btlcpy.outofstock.reports;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import net.btlcpy.outofstock.loggers.MainLog;
+
+/**
+ * <p>
+ * Generates reports in the background on a fixed set of worker threads, so that long reports
+ * do not hold on to the threads of the portal (or run into its timeouts). A {@link ReportJob}
+ * is submitted under its ID; the portlet looks the job up by its ID on later requests to
+ * show its progress, and picks up the report once it is finished.
+ * </p>
+ *
+ * <p>
+ * Limits:
+ * <ul>
+ * <li>The number of workers bounds the number of reports generated at once.</li>
+ * <li>Each user may only have so many reports generated at once; further jobs of the user
+ * wait in the queue (behind which jobs of other users may go ahead), so that one user
+ * cannot keep the database busy for everyone else.</li>
+ * <li>The queue is bounded; submitting to a full queue fails.</li>
+ * <li>Jobs running for longer than the timeout are cancelled.</li>
+ * <li>Done jobs are forgotten after {@link #RETENTION} milliseconds if nobody picks them up.</li>
+ * </ul>
+ * </p>
+ *
+ * @author Ahmed A. Abd-Allah
+ */
+public class ReportJobQueue
+{
+	// ----- Static members ---------------------------------------------------
+	/** The default number of jobs a user may have running at once. */
+	public static final int DEFAULT_JOBS_PER_USER = 1;
+	/** The default maximum number of jobs waiting for a worker. */
+	public static final int DEFAULT_MAXIMUM_QUEUED = 50;
+	/** How long done jobs are kept, in milliseconds. */
+	public static final long RETENTION = 30 * 60 * 1000L;
+	/** How often running jobs are checked for timeouts, in milliseconds. */
+	public static final long WATCH_INTERVAL = 5 * 1000L;
+
+	private static ReportJobQueue queue = null;
+
+	/**
+	 * This method should be called once on application startup.
+	 *
+	 * @param threads the number of worker threads; if null, empty, not a number, or less than
+	 * 1, reports are generated on the thread of the request asking for them
+	 * @param jobsPerUser the number of jobs a user may have running at once (if null, empty,
+	 * or not a number, then {@link #DEFAULT_JOBS_PER_USER})
+	 * @param timeout the number of seconds a job may run before it is cancelled (if null,
+	 * empty, not a number, or less than 1, then jobs are never cancelled for running too long)
+	 */
+	synchronized public static void initialize(String threads, String jobsPerUser, String timeout)
+	{
+		if (queue != null)
+		{
+			queue.close();
+			queue = null;
+		}
+
+		int numberOfThreads = parse("number of report job threads", threads, 0);
+		if (numberOfThreads > 0)
+		{
+			queue = new ReportJobQueue(numberOfThreads,
+				parse("number of report jobs per user", jobsPerUser, DEFAULT_JOBS_PER_USER),
+				DEFAULT_MAXIMUM_QUEUED,
+				parse("report job timeout", timeout, 0) * 1000L);
+		}
+	}
+
+	/**
+	 * @return a setting as a number; the default if it is null, empty, or (with a warning) not
+	 * a number
+	 */
+	private static int parse(String name, String value, int defaultValue)
+	{
+		if (value == null || value.trim().equals(""))
+			return defaultValue;
+		try
+		{
+			return Integer.parseInt(value.trim());
+		}
+		catch (NumberFormatException e)
+		{
+			MainLog.getLog().warn("Invalid " + name + ": " + value + "; using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * @return the queue, or null if reports are not to be generated in the background
+	 */
+	synchronized public static ReportJobQueue getQueue()
+	{
+		return queue;
+	}
+
+	// ----- Instance members -------------------------------------------------
+	private LinkedList /* ReportJob */ queued = new LinkedList();
+	private HashMap /* String, ReportJob */ jobs = new HashMap();
+	private HashMap /* String, Integer */ runningPerUser = new HashMap();
+	private int jobsPerUser;
+	private int maximumQueued;
+	private long timeout;
+	private boolean closed = false;
+
+	/**
+	 * @param threads the number of worker threads
+	 * @param jobsPerUser the number of jobs a user may have running at once
+	 * @param maximumQueued the maximum number of jobs waiting for a worker
+	 * @param timeout the number of milliseconds a job may run before it is cancelled (zero
+	 * or less means no limit)
+	 */
+	public ReportJobQueue(int threads, int jobsPerUser, int maximumQueued, long timeout)
+	{
+		this.jobsPerUser = Math.max(jobsPerUser, 1);
+		this.maximumQueued = maximumQueued;
+		this.timeout = timeout;
+
+		for (int i=0; i<threads; i++)
+		{
+			Thread worker = new Thread("Report job worker " + (i + 1))
+				{
+					public void run()
+					{
+						work();
+					}
+				};
+			worker.setDaemon(true);
+			worker.start();
+		}
+
+		Thread watchdog = new Thread("Report job watchdog")
+			{
+				public void run()
+				{
+					watch();
+				}
+			};
+		watchdog.setDaemon(true);
+		watchdog.start();
+	}
+
+	/**
+	 * Queues a job.
+	 *
+	 * @param job the job
+	 * @return the ID of the job
+	 * @throws IllegalStateException if the queue is full or closed
+	 */
+	synchronized public String submit(ReportJob job)
+	{
+		if (closed)
+			throw new IllegalStateException("The report queue is closed");
+		if (queued.size() >= maximumQueued)
+			throw new IllegalStateException("Too many reports are waiting to be generated; please try again later");
+
+		String id = job.getId();
+		jobs.put(id, job);
+		queued.addLast(job);
+		notifyAll();
+		return id;
+	}
+
+	/**
+	 * @param id the ID of the job
+	 * @param username the user asking; users may only see their own jobs
+	 * @return the job, or null if there is no such job of the user (any more)
+	 */
+	synchronized public ReportJob getJob(String id, String username)
+	{
+		if (id == null)
+			return null;
+		ReportJob job = (ReportJob) jobs.get(id);
+		if (job == null || !key(username).equals(key(job.getUsername())))
+			return null;
+		return job;
+	}
+
+	/**
+	 * Forgets a done job, e.g. once its report has been picked up.
+	 *
+	 * @param id the ID of the job
+	 */
+	synchronized public void remove(String id)
+	{
+		ReportJob job = (ReportJob) jobs.get(id);
+		if (job != null && job.isDone())
+			jobs.remove(id);
+	}
+
+	/**
+	 * Cancels a job of a user.
+	 *
+	 * @param id the ID of the job
+	 * @param username the user asking; users may only cancel their own jobs
+	 */
+	public void cancel(String id, String username)
+	{
+		ReportJob job = getJob(id, username);
+		if (job == null)
+			return;
+		synchronized (this)
+		{
+			queued.remove(job);
+		}
+		job.cancel("Cancelled by user");
+	}
+
+	/**
+	 * Stops the workers once the queued jobs are done.
+	 */
+	synchronized public void close()
+	{
+		closed = true;
+		notifyAll();
+	}
+
+	/**
+	 * @return the next queued job of a user below the limit of running jobs, waiting for one if
+	 * need be; null once the queue is closed and empty
+	 */
+	synchronized private ReportJob next()
+	{
+		while (true)
+		{
+			for (Iterator iterator = queued.iterator(); iterator.hasNext(); )
+			{
+				ReportJob job = (ReportJob) iterator.next();
+				if (running(job.getUsername()) < jobsPerUser)
+				{
+					iterator.remove();
+					runningPerUser.put(key(job.getUsername()), new Integer(running(job.getUsername()) + 1));
+					return job;
+				}
+			}
+			if (closed && queued.isEmpty())
+				return null;
+			try { wait(); } catch (InterruptedException e) {}
+		}
+	}
+
+	synchronized private void finished(ReportJob job)
+	{
+		int running = running(job.getUsername()) - 1;
+		if (running > 0)
+			runningPerUser.put(key(job.getUsername()), new Integer(running));
+		else
+			runningPerUser.remove(key(job.getUsername()));
+		notifyAll();
+	}
+
+	private int running(String username)
+	{
+		Integer running = (Integer) runningPerUser.get(key(username));
+		return (running == null ? 0 : running.intValue());
+	}
+
+	private static String key(String username)
+	{
+		return (username == null ? "" : username);
+	}
+
+	private void work()
+	{
+		while (true)
+		{
+			ReportJob job = next();
+			if (job == null)
+				return;
+
+			try
+			{
+				job.run();
+			}
+			catch (Throwable t)
+			{
+				MainLog.getLog().error("Report job failed", t);
+			}
+			finally
+			{
+				finished(job);
+			}
+		}
+	}
+
+	/**
+	 * Cancels jobs that have been running for too long, and forgets done jobs that nobody
+	 * picked up.
+	 */
+	private void watch()
+	{
+		while (true)
+		{
+			ArrayList /* ReportJob */ overdue = new ArrayList();
+			synchronized (this)
+			{
+				try { wait(WATCH_INTERVAL); } catch (InterruptedException e) {}
+				if (closed && queued.isEmpty())
+					return;
+
+				long now = System.currentTimeMillis();
+				for (Iterator iterator = jobs.values().iterator(); iterator.hasNext(); )
+				{
+					ReportJob job = (ReportJob) iterator.next();
+					if (job.isDone())
+					{
+						if (now - job.getTimeEnded() > RETENTION)
+							iterator.remove();
+					}
+					else if (timeout > 0 && job.getStatus() == ReportJob.RUNNING &&
+						job.getCancelReason() == null && now - job.getTimeStarted() > timeout)
+						overdue.add(job);
+				}
+			}
+
+			// cancel outside the lock, as cancelling statements may take a while
+			for (int i=0; i<overdue.size(); i++)
+			{
+				ReportJob job = (ReportJob) overdue.get(i);
+				MainLog.getLog().info("Cancelling report job " + job.getId() + " of " + job.getUsername() +
+					" after " + (timeout / 1000) + " seconds");
+				job.cancel("Took longer than " + (timeout / 1000) + " seconds");
+			}
+		}
+	}
+}
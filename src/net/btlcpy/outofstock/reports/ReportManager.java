@@ -3,14 +3,23 @@ package net.btlcpy.outofstock.reports;
 import java.sql.Connection;
 import java.sql.Date;
 import java.sql.SQLException;
+import java.sql.Timestamp;
 
 import net.btlcpy.outofstock.loggers.MainLog;
 import net.btlcpy.outofstock.persistence.PersistenceManager;
+import net.btlcpy.outofstock.persistence.beans.OutOfStockEvent;
+import net.btlcpy.outofstock.persistence.beans.UserAction;
 
 /**
+ * <p>
  * A class which manages the processing of reports. It is responsible for any pre-processing and 
  * post-processing, including opening and closing database connections (with the associated
  * commit or rollback as the case may be).
+ * </p>
+ * <p>
+ * The events reports are cached (see {@link ReportCache}), so rerunning a report with the same
+ * parameters does not hit the database again as long as the event data has not changed.
+ * </p>
  * 
  * @author Ahmed A. Abd-Allah
  */
@@ -26,11 +35,26 @@ public class ReportManager
 	{
 		Connection connection = null;
 		boolean committed = false;
+		String cacheKey = ReportCache.makeKey("totals", new Object[] {
+			beginDate, endDate, summaryTarget, resultSize, breakOutByDay, lostSalesMetric,
+			productCategoryPKID, productPKID, productPackagePKID, bottlerPKID, 
+			bottlerBusinessUnitPKID, bottlerMarketUnitPKID, bottlerBranchPKID, 
+			bottlerSalesRoutePKID, distributorDivisionPKID, distributorDistrictPKID, storePKID });
 
 		try
 		{
 			connection = PersistenceManager.getPersistenceManager().getConnection(false);
 			
+			Report cachedReport = ReportCache.getCache().get(cacheKey, username);
+			if (cachedReport != null)
+			{
+				logCachedReport(connection, cachedReport, username);
+				connection.commit();
+				committed = true;
+				return cachedReport;
+			}
+			long generation = OutOfStockEvent.getDataGeneration();
+
 			TotalsReport totalsReport = new TotalsReport(connection, username,
 				beginDate, endDate, summaryTarget, resultSize, breakOutByDay, lostSalesMetric,
 				productCategoryPKID, productPKID, productPackagePKID, bottlerPKID, 
@@ -41,6 +65,7 @@ public class ReportManager
 
 			connection.commit();
 			committed = true;
+			ReportCache.getCache().put(cacheKey, generation, totalsReport);
 			return totalsReport;
 		}
 		finally
@@ -73,11 +98,26 @@ public class ReportManager
 	{
 		Connection connection = null;
 		boolean committed = false;
+		String cacheKey = ReportCache.makeKey("averages", new Object[] {
+			beginDate, endDate, summaryTarget, lostSalesMetric,
+			productCategoryPKID, productPKID, productPackagePKID, bottlerPKID, 
+			bottlerBusinessUnitPKID, bottlerMarketUnitPKID, bottlerBranchPKID, 
+			bottlerSalesRoutePKID, distributorDivisionPKID, distributorDistrictPKID, storePKID });
 
 		try
 		{
 			connection = PersistenceManager.getPersistenceManager().getConnection(false);
 			
+			Report cachedReport = ReportCache.getCache().get(cacheKey, username);
+			if (cachedReport != null)
+			{
+				logCachedReport(connection, cachedReport, username);
+				connection.commit();
+				committed = true;
+				return cachedReport;
+			}
+			long generation = OutOfStockEvent.getDataGeneration();
+
 			AveragesReport averagesReport = new AveragesReport(connection, username,
 				beginDate, endDate, summaryTarget, lostSalesMetric,
 				productCategoryPKID, productPKID, productPackagePKID, bottlerPKID, 
@@ -88,6 +128,7 @@ public class ReportManager
 
 			connection.commit();
 			committed = true;
+			ReportCache.getCache().put(cacheKey, generation, averagesReport);
 			return averagesReport;
 		}
 		finally
@@ -161,11 +202,26 @@ public class ReportManager
 	{
 		Connection connection = null;
 		boolean committed = false;
+		String cacheKey = ReportCache.makeKey("dailyevents", new Object[] {
+			beginDate, endDate, resultSize,
+			productCategoryPKID, productPKID, productPackagePKID, bottlerPKID, 
+			bottlerBusinessUnitPKID, bottlerMarketUnitPKID, bottlerBranchPKID, 
+			bottlerSalesRoutePKID, distributorDivisionPKID, distributorDistrictPKID, storePKID });
 
 		try
 		{
 			connection = PersistenceManager.getPersistenceManager().getConnection(false);
 			
+			Report cachedReport = ReportCache.getCache().get(cacheKey, username);
+			if (cachedReport != null)
+			{
+				logCachedReport(connection, cachedReport, username);
+				connection.commit();
+				committed = true;
+				return cachedReport;
+			}
+			long generation = OutOfStockEvent.getDataGeneration();
+
 			AverageDailyStoreEventsReport averageDailyStoreEventsReport = 
 				new AverageDailyStoreEventsReport(connection, username,
 				beginDate, endDate, resultSize, 
@@ -177,6 +233,7 @@ public class ReportManager
 
 			connection.commit();
 			committed = true;
+			ReportCache.getCache().put(cacheKey, generation, averageDailyStoreEventsReport);
 			return averageDailyStoreEventsReport;
 		}
 		finally
@@ -199,4 +256,21 @@ public class ReportManager
 			}		
 		}
 	}
+
+	/**
+	 * Logs a report served from the cache as a user action, just like executing it would have.
+	 */
+	private void logCachedReport(Connection connection, Report report, String username)
+		throws SQLException
+	{
+		if (report.getUserActionDescription() != null)
+		{
+			UserAction userAction = new UserAction();
+			userAction.setCategory(UserAction.REPORT);
+			userAction.setTimeLastUploaded(new Timestamp(System.currentTimeMillis()));
+			userAction.setDescription(report.getUserActionDescription());
+			userAction.setName(username);
+			userAction.create(connection);
+		}
+	}
 }
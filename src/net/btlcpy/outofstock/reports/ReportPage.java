@@ -0,0 +1,77 @@
+package net.btlcpy.outofstock.reports;
+
+/**
+ * A window onto the rows of one query of a report, as returned by
+ * {@link Report#getPage(int, int, int, int)}: the rows from {@link #getFirstRow()} up to (but
+ * not including) {@link #getEndRow()}. Row numbers are positions in the query's results, so
+ * they can be used as is with the merged regions of the report.
+ *
+ * @author Ahmed A. Abd-Allah
+ */
+public class ReportPage
+{
+	private int page;
+	private int numberOfPages;
+	private int firstRow;
+	private int endRow;
+	private int numberOfRows;
+
+	public ReportPage(int page, int numberOfPages, int firstRow, int endRow, int numberOfRows)
+	{
+		this.page = page;
+		this.numberOfPages = numberOfPages;
+		this.firstRow = firstRow;
+		this.endRow = endRow;
+		this.numberOfRows = numberOfRows;
+	}
+
+	/**
+	 * @return the number of the page (zero-based)
+	 */
+	public int getPage()
+	{
+		return page;
+	}
+
+	/**
+	 * @return the number of pages of the query's results (at least one)
+	 */
+	public int getNumberOfPages()
+	{
+		return numberOfPages;
+	}
+
+	/**
+	 * @return the position of the first row of the page (zero-based)
+	 */
+	public int getFirstRow()
+	{
+		return firstRow;
+	}
+
+	/**
+	 * @return the position of the row after the last row of the page
+	 */
+	public int getEndRow()
+	{
+		return endRow;
+	}
+
+	/**
+	 * @return the number of rows of the query's results (on all pages)
+	 */
+	public int getNumberOfRows()
+	{
+		return numberOfRows;
+	}
+
+	public boolean hasPrevious()
+	{
+		return page > 0;
+	}
+
+	public boolean hasNext()
+	{
+		return page < numberOfPages - 1;
+	}
+}
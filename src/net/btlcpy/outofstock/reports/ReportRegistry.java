@@ -0,0 +1,680 @@
+package net.btlcpy.outofstock.reports;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import net.btlcpy.outofstock.loggers.MainLog;
+
+import org.apache.commons.collections.map.ListOrderedMap;
+
+/**
+ * <p>
+ * Holds the report each session is currently looking at, so that the report results page can
+ * be redisplayed (e.g. sorted or paged) and the report downloaded (see the Downloader servlet)
+ * without running it again. Reports are registered by session ID.
+ * </p>
+ *
+ * <p>
+ * The registry is bounded by the total weight (the number of result rows) of the reports it
+ * keeps in memory. When it grows beyond that, the least recently used reports are either
+ * dropped or, if a spill directory is configured, have their results written out to a file
+ * there, to be read back in the next time they are asked for. Only the results are spilled;
+ * the report itself (its formats, merged regions, etc.) stays in memory. The most recently
+ * used report always stays in memory, however heavy it is.
+ * </p>
+ *
+ * <p>
+ * Reports not asked for within the time to live are dropped, as are the reports of sessions
+ * that are destroyed (see {@link #remove(String)}).
+ * </p>
+ *
+ * @author Ahmed A. Abd-Allah
+ */
+public class ReportRegistry
+{
+	// ----- Static members ---------------------------------------------------
+	/** The default maximum total number of result rows kept in memory. */
+	public static final int DEFAULT_MAXIMUM_WEIGHT = 500000;
+	/** The default time a report is kept without being asked for, in milliseconds. */
+	public static final long DEFAULT_TIME_TO_LIVE = 60 * 60 * 1000L;
+
+	/** The prefix and suffix of the names of spill files. */
+	private static final String SPILL_PREFIX = "report-";
+	private static final String SPILL_SUFFIX = ".spill";
+
+	private static ReportRegistry registry = new ReportRegistry(DEFAULT_MAXIMUM_WEIGHT, DEFAULT_TIME_TO_LIVE, null);
+
+	/**
+	 * This method should be called once on application startup.
+	 *
+	 * @param maximumWeight the maximum total number of result rows kept in memory (if null,
+	 * empty, or not a number, then {@link #DEFAULT_MAXIMUM_WEIGHT})
+	 * @param timeToLive the number of minutes a report is kept without being asked for (if null,
+	 * empty, or not a number, then {@link #DEFAULT_TIME_TO_LIVE})
+	 * @param spillDirectory the directory to spill reports to (if null or empty, then reports
+	 * are dropped instead); spill files left over in it are deleted
+	 */
+	synchronized public static void initialize(String maximumWeight, String timeToLive, String spillDirectory)
+	{
+		registry.clear();
+		registry = new ReportRegistry(
+			(int) parse("report registry weight", maximumWeight, DEFAULT_MAXIMUM_WEIGHT),
+			parse("report time to live", timeToLive, DEFAULT_TIME_TO_LIVE / (60 * 1000L)) * 60 * 1000L,
+			spillDirectory != null && !spillDirectory.trim().equals("") ?
+				new File(spillDirectory.trim()) : null);
+	}
+
+	/**
+	 * @return a setting as a number; the default if it is null, empty, or (with a warning) not
+	 * a number
+	 */
+	private static long parse(String name, String value, long defaultValue)
+	{
+		if (value == null || value.trim().equals(""))
+			return defaultValue;
+		try
+		{
+			return Integer.parseInt(value.trim());
+		}
+		catch (NumberFormatException e)
+		{
+			MainLog.getLog().warn("Invalid " + name + ": " + value + "; using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	synchronized public static ReportRegistry getRegistry()
+	{
+		return registry;
+	}
+
+	/**
+	 * A registered report. While its results are spilled, the report is a copy of the original
+	 * without results (requests still working with the original go on undisturbed), and the
+	 * results are in the spill file. The entry's own monitor guards the report and spill file;
+	 * the registry's monitor guards the rest.
+	 */
+	private static class Entry
+	{
+		private String sessionId;
+		private Report report;
+		private int weight;
+		private long lastAccess;
+		/** Whether the weight of the report counts towards the registry's weight. */
+		private boolean resident = true;
+		private File spillFile = null;
+		private boolean discarded = false;
+	}
+
+	// ----- Instance members -------------------------------------------------
+	private int maximumWeight;
+	private long timeToLive;
+	private File spillDirectory;
+
+	/** The registered entries, keyed by session ID; least recently used first. */
+	private ListOrderedMap /* String, Entry */ entries = new ListOrderedMap(); // LinkedHashMap requires Java 1.4
+	private int totalWeight = 0;
+
+	// Statistics
+	private long hitCount = 0;
+	private long missCount = 0;
+	private long spillCount = 0;
+	private long evictionCount = 0;
+	private long expirationCount = 0;
+
+	/**
+	 * @param maximumWeight the maximum total number of result rows kept in memory
+	 * @param timeToLive the number of milliseconds a report is kept without being asked for
+	 * @param spillDirectory the directory to spill reports to, or null to drop them instead
+	 */
+	public ReportRegistry(int maximumWeight, long timeToLive, File spillDirectory)
+	{
+		this.maximumWeight = maximumWeight;
+		this.timeToLive = timeToLive;
+		this.spillDirectory = spillDirectory;
+
+		if (spillDirectory != null)
+		{
+			spillDirectory.mkdirs();
+			File[] files = spillDirectory.listFiles();
+			for (int i=0; files != null && i<files.length; i++)
+				if (files[i].getName().startsWith(SPILL_PREFIX) && files[i].getName().endsWith(SPILL_SUFFIX))
+					files[i].delete();
+		}
+	}
+
+	/**
+	 * Registers the report of a session, replacing the one registered before.
+	 *
+	 * @param sessionId the ID of the session
+	 * @param report the report (if null, then the session's report is removed)
+	 */
+	public void put(String sessionId, Report report)
+	{
+		if (report == null)
+		{
+			remove(sessionId);
+			return;
+		}
+
+		Entry entry = new Entry();
+		entry.sessionId = sessionId;
+		entry.report = report;
+		entry.weight = report.getRowCount();
+		entry.lastAccess = System.currentTimeMillis();
+
+		ArrayList /* Entry */ dropped = new ArrayList();
+		ArrayList /* Entry */ spilled = new ArrayList();
+		synchronized (this)
+		{
+			Entry previous = (Entry) entries.remove(sessionId);
+			if (previous != null)
+				dropped.add(detach(previous));
+			entries.put(sessionId, entry);
+			totalWeight += entry.weight;
+			expire(dropped);
+			evict(dropped, spilled);
+		}
+		finish(dropped, spilled);
+	}
+
+	/**
+	 * @param sessionId the ID of the session
+	 * @return the report of the session, or null if there is none (any more)
+	 */
+	public Report get(String sessionId)
+	{
+		if (sessionId == null)
+			return null;
+
+		Entry entry = null;
+		ArrayList /* Entry */ dropped = new ArrayList();
+		ArrayList /* Entry */ spilled = new ArrayList();
+		synchronized (this)
+		{
+			expire(dropped);
+			entry = (Entry) entries.remove(sessionId);
+			if (entry != null)
+			{
+				// re-insert to mark it as the most recently used
+				entries.put(sessionId, entry);
+				entry.lastAccess = System.currentTimeMillis();
+				if (!entry.resident)
+				{
+					entry.resident = true;
+					totalWeight += entry.weight;
+					evict(dropped, spilled);
+				}
+				hitCount++;
+			}
+			else
+				missCount++;
+		}
+		finish(dropped, spilled);
+
+		if (entry == null)
+			return null;
+
+		Report report = load(entry);
+		if (report == null) // the spill file could not be read
+		{
+			synchronized (this)
+			{
+				if (entries.get(sessionId) == entry)
+					detach((Entry) entries.remove(sessionId));
+			}
+			discard(entry);
+		}
+		return report;
+	}
+
+	/**
+	 * Removes the report of a session, e.g. when the session is destroyed.
+	 *
+	 * @param sessionId the ID of the session
+	 */
+	public void remove(String sessionId)
+	{
+		Entry entry = null;
+		synchronized (this)
+		{
+			entry = (Entry) entries.remove(sessionId);
+			if (entry != null)
+				detach(entry);
+		}
+		if (entry != null)
+			discard(entry);
+	}
+
+	/**
+	 * Removes all reports.
+	 */
+	public void clear()
+	{
+		ArrayList /* Entry */ dropped = new ArrayList();
+		synchronized (this)
+		{
+			for (int i=0; i<entries.size(); i++)
+				dropped.add(entries.getValue(i));
+			entries.clear();
+			totalWeight = 0;
+		}
+		finish(dropped, new ArrayList());
+	}
+
+	/** @return the number of reports currently registered (in memory or spilled) */
+	synchronized public int getSize() { return entries.size(); }
+	/** @return the total number of result rows currently in memory */
+	synchronized public int getWeight() { return totalWeight; }
+	/** @return how many requests found their report */
+	synchronized public long getHitCount() { return hitCount; }
+	/** @return how many requests did not find a report */
+	synchronized public long getMissCount() { return missCount; }
+	/** @return how many times reports were spilled to make room for others */
+	synchronized public long getSpillCount() { return spillCount; }
+	/** @return how many reports were dropped to make room for others */
+	synchronized public long getEvictionCount() { return evictionCount; }
+	/** @return how many reports were dropped for not being asked for within the time to live */
+	synchronized public long getExpirationCount() { return expirationCount; }
+
+	/**
+	 * Takes an entry out of the registry's weight. Must be called holding the monitor, on an
+	 * entry that was just removed from the entries.
+	 *
+	 * @return the entry
+	 */
+	private Entry detach(Entry entry)
+	{
+		if (entry.resident)
+		{
+			entry.resident = false;
+			totalWeight -= entry.weight;
+		}
+		return entry;
+	}
+
+	/**
+	 * Removes the reports that were not asked for within the time to live. Must be called
+	 * holding the monitor.
+	 *
+	 * @param dropped where to add the removed entries
+	 */
+	private void expire(List /* Entry */ dropped)
+	{
+		long oldest = System.currentTimeMillis() - timeToLive;
+		while (entries.size() > 0 && ((Entry) entries.getValue(0)).lastAccess < oldest)
+		{
+			dropped.add(detach((Entry) entries.remove(0)));
+			expirationCount++;
+		}
+	}
+
+	/**
+	 * Takes least recently used reports out of memory until the registry is back within its
+	 * weight, sparing the most recently used one. Must be called holding the monitor.
+	 *
+	 * @param dropped where to add the entries removed
+	 * @param spilled where to add the entries to spill
+	 */
+	private void evict(List /* Entry */ dropped, List /* Entry */ spilled)
+	{
+		for (int i=0; totalWeight > maximumWeight && i<entries.size() - 1; )
+		{
+			Entry entry = (Entry) entries.getValue(i);
+			if (!entry.resident)
+			{
+				i++;
+				continue;
+			}
+
+			detach(entry);
+			if (spillDirectory != null)
+			{
+				spilled.add(entry);
+				spillCount++;
+				i++;
+			}
+			else
+			{
+				entries.remove(i);
+				dropped.add(entry);
+				evictionCount++;
+			}
+		}
+		MainLog.getLog().debug("Report registry: " + entries.size() + " reports, " + totalWeight + " rows in memory");
+	}
+
+	/**
+	 * Spills and discards entries, outside the registry's monitor as it involves files.
+	 */
+	private void finish(List /* Entry */ dropped, List /* Entry */ spilled)
+	{
+		for (int i=0; i<spilled.size(); i++)
+			spill((Entry) spilled.get(i));
+		for (int i=0; i<dropped.size(); i++)
+			discard((Entry) dropped.get(i));
+	}
+
+	/**
+	 * Writes the results of an entry's report to a spill file, unless it was asked for again
+	 * (or removed) in the meantime. The report may still be in use by its session (e.g. being
+	 * sorted) while it is written; if writing fails for any reason, the entry is dropped.
+	 */
+	private void spill(Entry entry)
+	{
+		synchronized (entry)
+		{
+			synchronized (this)
+			{
+				if (entry.resident || entry.discarded)
+					return;
+			}
+			if (entry.spillFile != null)
+				return;
+
+			File file = null;
+			ObjectOutputStream out = null;
+			try
+			{
+				file = File.createTempFile(SPILL_PREFIX, SPILL_SUFFIX, spillDirectory);
+				out = new ObjectOutputStream(new GZIPOutputStream(
+					new BufferedOutputStream(new FileOutputStream(file), 32 * 1024)));
+				writeResults(entry.report.getResults(), out);
+				out.close();
+				out = null;
+
+				Report spilledReport = entry.report.copyWithoutResults();
+				entry.report = spilledReport;
+				entry.spillFile = file;
+			}
+			catch (Exception e)
+			{
+				MainLog.getLog().error("Unable to spill report to " + file, e);
+				if (out != null)
+					try { out.close(); } catch (IOException ee) {}
+				if (file != null)
+					file.delete();
+				entry.discarded = true;
+				entry.report = null;
+				synchronized (this)
+				{
+					if (entries.get(entry.sessionId) == entry)
+						entries.remove(entry.sessionId);
+					evictionCount++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the report of an entry, with its results read back in if they were spilled; null
+	 * if the entry was discarded or its spill file could not be read
+	 */
+	private Report load(Entry entry)
+	{
+		synchronized (entry)
+		{
+			if (entry.discarded)
+				return null;
+			if (entry.spillFile == null)
+				return entry.report;
+
+			ObjectInputStream in = null;
+			try
+			{
+				in = new ObjectInputStream(new GZIPInputStream(
+					new BufferedInputStream(new FileInputStream(entry.spillFile), 32 * 1024)));
+				entry.report.setResults(readResults(in));
+			}
+			catch (Exception e)
+			{
+				MainLog.getLog().error("Unable to read spilled report from " + entry.spillFile, e);
+				return null;
+			}
+			finally
+			{
+				if (in != null)
+					try { in.close(); } catch (IOException e) {}
+			}
+
+			entry.spillFile.delete();
+			entry.spillFile = null;
+			return entry.report;
+		}
+	}
+
+	/**
+	 * Drops an entry that has been removed from the registry, deleting its spill file.
+	 */
+	private void discard(Entry entry)
+	{
+		synchronized (entry)
+		{
+			entry.discarded = true;
+			entry.report = null;
+			if (entry.spillFile != null)
+			{
+				entry.spillFile.delete();
+				entry.spillFile = null;
+			}
+		}
+	}
+
+	// ----- Spill file format ------------------------------------------------
+	//
+	// For every query: its key, its number of rows, and then for every row its key and its
+	// cells. Column names are written once, the first time they appear, and referred to by
+	// their position after that. Values are written as a tag followed by the value in binary;
+	// values of other types than those below are serialized.
+
+	private static final byte NULL = 0;
+	private static final byte STRING = 1;
+	private static final byte INTEGER = 2;
+	private static final byte LONG = 3;
+	private static final byte DOUBLE = 4;
+	private static final byte BIG_DECIMAL = 5;
+	private static final byte TIMESTAMP = 6;
+	private static final byte SQL_DATE = 7;
+	private static final byte DATE = 8;
+	private static final byte LIST = 9;
+	private static final byte OBJECT = 10;
+
+	/** Longer strings may not fit writeUTF's limit of 65,535 bytes. */
+	private static final int MAXIMUM_UTF_LENGTH = 65535 / 3;
+
+	private static void writeResults(ListOrderedMap results, ObjectOutputStream out)
+		throws IOException
+	{
+		HashMap /* String, Integer */ columns = new HashMap();
+
+		out.writeInt(results != null ? results.size() : -1);
+		for (int q=0; results != null && q<results.size(); q++)
+		{
+			writeValue(results.get(q), out);
+			ListOrderedMap rows = (ListOrderedMap) results.getValue(q);
+			out.writeInt(rows != null ? rows.size() : -1);
+			for (int r=0; rows != null && r<rows.size(); r++)
+			{
+				writeValue(rows.get(r), out);
+				ListOrderedMap row = (ListOrderedMap) rows.getValue(r);
+				out.writeInt(row.size());
+				for (int c=0; c<row.size(); c++)
+				{
+					String column = (String) row.get(c);
+					Integer position = (Integer) columns.get(column);
+					if (position == null)
+					{
+						out.writeInt(-1);
+						out.writeUTF(column);
+						columns.put(column, new Integer(columns.size()));
+					}
+					else
+						out.writeInt(position.intValue());
+					writeValue(row.getValue(c), out);
+				}
+			}
+		}
+		out.flush();
+	}
+
+	private static ListOrderedMap readResults(ObjectInputStream in)
+		throws IOException, ClassNotFoundException
+	{
+		ArrayList /* String */ columns = new ArrayList();
+
+		int numberOfQueries = in.readInt();
+		if (numberOfQueries < 0)
+			return null;
+		ListOrderedMap results = new ListOrderedMap();
+		for (int q=0; q<numberOfQueries; q++)
+		{
+			Object queryKey = readValue(in);
+			int numberOfRows = in.readInt();
+			ListOrderedMap rows = null;
+			if (numberOfRows >= 0)
+			{
+				rows = new ListOrderedMap();
+				for (int r=0; r<numberOfRows; r++)
+				{
+					Object rowKey = readValue(in);
+					int numberOfCells = in.readInt();
+					ListOrderedMap row = new ListOrderedMap();
+					for (int c=0; c<numberOfCells; c++)
+					{
+						int position = in.readInt();
+						String column = null;
+						if (position < 0)
+						{
+							column = in.readUTF();
+							columns.add(column);
+						}
+						else
+							column = (String) columns.get(position);
+						row.put(column, readValue(in));
+					}
+					rows.put(rowKey, row);
+				}
+			}
+			results.put(queryKey, rows);
+		}
+		return results;
+	}
+
+	private static void writeValue(Object value, ObjectOutputStream out)
+		throws IOException
+	{
+		if (value == null)
+			out.writeByte(NULL);
+		else if (value instanceof String && ((String) value).length() <= MAXIMUM_UTF_LENGTH)
+		{
+			out.writeByte(STRING);
+			out.writeUTF((String) value);
+		}
+		else if (value instanceof Integer)
+		{
+			out.writeByte(INTEGER);
+			out.writeInt(((Integer) value).intValue());
+		}
+		else if (value instanceof Long)
+		{
+			out.writeByte(LONG);
+			out.writeLong(((Long) value).longValue());
+		}
+		else if (value instanceof Double)
+		{
+			out.writeByte(DOUBLE);
+			out.writeDouble(((Double) value).doubleValue());
+		}
+		else if (value.getClass() == BigDecimal.class)
+		{
+			out.writeByte(BIG_DECIMAL);
+			out.writeUTF(value.toString());
+		}
+		else if (value.getClass() == Timestamp.class)
+		{
+			out.writeByte(TIMESTAMP);
+			out.writeLong(((Timestamp) value).getTime());
+			out.writeInt(((Timestamp) value).getNanos());
+		}
+		else if (value.getClass() == java.sql.Date.class)
+		{
+			out.writeByte(SQL_DATE);
+			out.writeLong(((Date) value).getTime());
+		}
+		else if (value.getClass() == Date.class)
+		{
+			out.writeByte(DATE);
+			out.writeLong(((Date) value).getTime());
+		}
+		else if (value.getClass() == ArrayList.class)
+		{
+			List values = (List) value;
+			out.writeByte(LIST);
+			out.writeInt(values.size());
+			for (int i=0; i<values.size(); i++)
+				writeValue(values.get(i), out);
+		}
+		else
+		{
+			out.writeByte(OBJECT);
+			out.writeObject(value);
+		}
+	}
+
+	private static Object readValue(ObjectInputStream in)
+		throws IOException, ClassNotFoundException
+	{
+		byte tag = in.readByte();
+		switch (tag)
+		{
+			case NULL:
+				return null;
+			case STRING:
+				return in.readUTF();
+			case INTEGER:
+				return new Integer(in.readInt());
+			case LONG:
+				return new Long(in.readLong());
+			case DOUBLE:
+				return new Double(in.readDouble());
+			case BIG_DECIMAL:
+				return new BigDecimal(in.readUTF());
+			case TIMESTAMP:
+			{
+				Timestamp timestamp = new Timestamp(in.readLong());
+				timestamp.setNanos(in.readInt());
+				return timestamp;
+			}
+			case SQL_DATE:
+				return new java.sql.Date(in.readLong());
+			case DATE:
+				return new Date(in.readLong());
+			case LIST:
+			{
+				int size = in.readInt();
+				ArrayList values = new ArrayList(size);
+				for (int i=0; i<size; i++)
+					values.add(readValue(in));
+				return values;
+			}
+			case OBJECT:
+				return in.readObject();
+			default:
+				throw new IOException("Unknown value tag " + tag + " in spilled report");
+		}
+	}
+}
@@ -0,0 +1,264 @@
+package net.btlcpy.outofstock.reports;
+
+import java.util.Date;
+import java.util.List;
+
+import org.apache.commons.collections.map.ListOrderedMap;
+
+/**
+ * <p>
+ * Sorts the rows of a query's results (see {@link Report#sort(int, String[], boolean, int)}).
+ * The values to sort on are extracted from the rows once, into one typed array per column
+ * (doubles for numbers, longs for dates, strings, or other comparables), and an array of row
+ * positions is then sorted with a stable merge sort comparing those arrays. The rows
+ * themselves are neither looked up again nor modified while sorting.
+ * </p>
+ * <p>
+ * Columns are either plain column names, meaning the value of the data for that column is a
+ * single value, or column names followed by a colon and a number, as in "names:2" or "amount:0",
+ * meaning the value is a list of values and the sort is done on the element at that (zero-based)
+ * position. So "names:2" sorts on the third element of the list found in each row under the
+ * column "names", which is assumed to be at least 3 elements long. Null (and missing) values
+ * sort before all others.
+ * </p>
+ * <p>
+ * Rows may come in groups of a "master row" followed by a fixed number of sub-rows; only the
+ * master rows are compared, and the sub-rows stay with their master row.
+ * </p>
+ *
+ * @author Ahmed A. Abd-Allah
+ */
+public class ReportSorter
+{
+	// ----- Static members ---------------------------------------------------
+	private static final int NUMBER = 0;
+	private static final int DATE = 1;
+	private static final int STRING = 2;
+	private static final int OTHER = 3;
+
+	/**
+	 * Sorts rows.
+	 *
+	 * @param rows the rows (keys to rows(names to values))
+	 * @param columns the columns to sort on, most significant first (null entries are skipped)
+	 * @param ascending true means ascending, false descending
+	 * @param subRows the number of sub-rows following every master row
+	 * @return the rows in sorted order, under their original keys
+	 */
+	public static ListOrderedMap sort(ListOrderedMap rows, String[] columns, boolean ascending, int subRows)
+	{
+		int groupSize = subRows + 1;
+		int numberOfGroups = (rows.size() + groupSize - 1) / groupSize;
+
+		int order[] = new ReportSorter(rows, columns, groupSize, numberOfGroups, ascending).sort();
+
+		ListOrderedMap sorted = new ListOrderedMap();
+		for (int i=0; i<order.length; i++)
+		{
+			int first = order[i] * groupSize;
+			for (int j=first; j<first + groupSize && j<rows.size(); j++)
+				sorted.put(rows.get(j), rows.getValue(j));
+		}
+		return sorted;
+	}
+
+	// ----- Instance members -------------------------------------------------
+	private int numberOfGroups;
+	private boolean ascending;
+	/** Per column: the kind of the values ({@link #NUMBER}, {@link #DATE}, etc.) */
+	private int kinds[];
+	/** Per column: the values of the master rows, in the array type matching the kind */
+	private Object keys[];
+	/** Per column: whether the value of each master row is null */
+	private boolean nulls[][];
+
+	private ReportSorter(ListOrderedMap rows, String[] columns, int groupSize, int numberOfGroups,
+		boolean ascending)
+	{
+		this.numberOfGroups = numberOfGroups;
+		this.ascending = ascending;
+
+		int numberOfColumns = 0;
+		for (int i=0; columns != null && i<columns.length; i++)
+			if (columns[i] != null)
+				numberOfColumns++;
+
+		kinds = new int[numberOfColumns];
+		keys = new Object[numberOfColumns];
+		nulls = new boolean[numberOfColumns][];
+
+		int c = 0;
+		for (int i=0; columns != null && i<columns.length; i++)
+		{
+			if (columns[i] == null)
+				continue;
+			extract(c++, rows, columns[i], groupSize);
+		}
+	}
+
+	/**
+	 * Extracts the values of a column from the master rows, into an array typed according to
+	 * the values found.
+	 */
+	private void extract(int c, ListOrderedMap rows, String column, int groupSize)
+	{
+		String name = column;
+		int position = -1;
+		int positionOfColon = column.indexOf(":");
+		if (positionOfColon >= 0)
+		{
+			name = column.substring(0, positionOfColon);
+			position = Integer.parseInt(column.substring(positionOfColon + 1));
+		}
+
+		Object values[] = new Object[numberOfGroups];
+		boolean numbers = true, dates = true, strings = true;
+		for (int g=0; g<numberOfGroups; g++)
+		{
+			Object value = ((ListOrderedMap) rows.getValue(g * groupSize)).get(name);
+			if (value instanceof List)
+			{
+				List list = (List) value;
+				value = (position >= 0 && position < list.size() ? list.get(position) : null);
+			}
+			values[g] = value;
+			if (value != null)
+			{
+				numbers &= (value instanceof Number);
+				dates &= (value instanceof Date);
+				strings &= (value instanceof String);
+			}
+		}
+
+		nulls[c] = new boolean[numberOfGroups];
+		for (int g=0; g<numberOfGroups; g++)
+			nulls[c][g] = (values[g] == null);
+
+		if (numbers)
+		{
+			double typed[] = new double[numberOfGroups];
+			for (int g=0; g<numberOfGroups; g++)
+				if (values[g] != null)
+					typed[g] = ((Number) values[g]).doubleValue();
+			kinds[c] = NUMBER;
+			keys[c] = typed;
+		}
+		else if (dates)
+		{
+			long typed[] = new long[numberOfGroups];
+			for (int g=0; g<numberOfGroups; g++)
+				if (values[g] != null)
+					typed[g] = ((Date) values[g]).getTime();
+			kinds[c] = DATE;
+			keys[c] = typed;
+		}
+		else if (strings)
+		{
+			String typed[] = new String[numberOfGroups];
+			System.arraycopy(values, 0, typed, 0, numberOfGroups);
+			kinds[c] = STRING;
+			keys[c] = typed;
+		}
+		else
+		{
+			kinds[c] = OTHER;
+			keys[c] = values;
+		}
+	}
+
+	/**
+	 * @return the positions of the master rows (counted in groups), in sorted order
+	 */
+	private int[] sort()
+	{
+		int order[] = new int[numberOfGroups];
+		for (int g=0; g<numberOfGroups; g++)
+			order[g] = g;
+		if (kinds.length > 0)
+			mergeSort(order, new int[numberOfGroups], 0, numberOfGroups);
+		return order;
+	}
+
+	/**
+	 * Sorts order[from..to) stably, using work as scratch space.
+	 */
+	private void mergeSort(int order[], int work[], int from, int to)
+	{
+		if (to - from < 2)
+			return;
+
+		// insertion sort for short runs
+		if (to - from <= 7)
+		{
+			for (int i=from + 1; i<to; i++)
+			{
+				int current = order[i];
+				int j = i - 1;
+				while (j >= from && compare(order[j], current) > 0)
+				{
+					order[j + 1] = order[j];
+					j--;
+				}
+				order[j + 1] = current;
+			}
+			return;
+		}
+
+		int middle = (from + to) >>> 1;
+		mergeSort(order, work, from, middle);
+		mergeSort(order, work, middle, to);
+		if (compare(order[middle - 1], order[middle]) <= 0)
+			return; // already in order
+
+		System.arraycopy(order, from, work, from, to - from);
+		int left = from, right = middle, k = from;
+		while (left < middle && right < to)
+			order[k++] = (compare(work[right], work[left]) < 0 ? work[right++] : work[left++]);
+		while (left < middle)
+			order[k++] = work[left++];
+		while (right < to)
+			order[k++] = work[right++];
+	}
+
+	private int compare(int g1, int g2)
+	{
+		for (int c=0; c<kinds.length; c++)
+		{
+			int result = compare(c, g1, g2);
+			if (result != 0)
+				return ascending ? result : -result;
+		}
+		return 0;
+	}
+
+	private int compare(int c, int g1, int g2)
+	{
+		boolean null1 = nulls[c][g1], null2 = nulls[c][g2];
+		if (null1 || null2)
+			return (null1 == null2 ? 0 : (null1 ? -1 : 1));
+
+		switch (kinds[c])
+		{
+			case NUMBER:
+			{
+				double value1 = ((double[]) keys[c])[g1], value2 = ((double[]) keys[c])[g2];
+				return (value1 < value2 ? -1 : (value1 > value2 ? 1 : 0));
+			}
+			case DATE:
+			{
+				long value1 = ((long[]) keys[c])[g1], value2 = ((long[]) keys[c])[g2];
+				return (value1 < value2 ? -1 : (value1 > value2 ? 1 : 0));
+			}
+			case STRING:
+				return ((String[]) keys[c])[g1].compareTo(((String[]) keys[c])[g2]);
+			default:
+			{
+				Object value1 = ((Object[]) keys[c])[g1], value2 = ((Object[]) keys[c])[g2];
+				if (value1 instanceof Comparable && value1.getClass() == value2.getClass())
+					return ((Comparable) value1).compareTo(value2);
+				// mixed types: fall back on their text
+				return value1.toString().compareTo(value2.toString());
+			}
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package net.btlcpy.outofstock.reports;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import net.btlcpy.outofstock.utilities.DateUtils;
+
+import org.apache.commons.collections.map.ListOrderedMap;
+
+/**
+ * <p>
+ * Indexes the rows of the queries by reason (and by daily reason) of the totals and averages
+ * reports, so that they can be merged into the rows of the first query with one hash lookup
+ * per row of the first query. The rows are indexed by entity, i.e. the value of the column the
+ * queries are joined on (a bottler name, a store ID, a week, etc.); the rows of an entity are
+ * held in arrays indexed by reason and by day, instead of being looked up per cell through
+ * keys such as <code>joinColumnValue + "|NE/ND|" + date</code>.
+ * </p>
+ *
+ * <p>
+ * Entities are compared by their string values, as the keys of the rows are (see
+ * {@link net.btlcpy.outofstock.persistence.PersistenceManager#findRows(java.sql.Connection, String, Object[], String[])}).
+ * Days are compared as epoch days (see {@link DateUtils}).
+ * </p>
+ *
+ * @author Ahmed A. Abd-Allah
+ */
+public class SubtotalIndex
+{
+	// ----- Static members ---------------------------------------------------
+	/** Bottler related reasons (NE/ND) */
+	public static final int BOTTLER = 0;
+	/** Distributor related reasons (SA/SI) */
+	public static final int DISTRIBUTOR = 1;
+	/** The number of reasons */
+	private static final int REASONS = 2;
+
+	/**
+	 * @param reason the value of a "Reason" column
+	 * @return {@link #BOTTLER}, {@link #DISTRIBUTOR}, or -1 for any other value
+	 */
+	public static int reason(Object reason)
+	{
+		if ("NE/ND".equals(reason))
+			return BOTTLER;
+		if ("SA/SI".equals(reason))
+			return DISTRIBUTOR;
+		return -1;
+	}
+
+	/**
+	 * The rows of one entity.
+	 */
+	public static class Entry
+	{
+		private ArrayList /* ListOrderedMap */ rows = new ArrayList();
+		private ListOrderedMap byReason[] = new ListOrderedMap[REASONS];
+		private ListOrderedMap byDailyReason[] = null;
+
+		/**
+		 * @return the rows by reason of the entity, in their original order
+		 */
+		public ArrayList getRows()
+		{
+			return rows;
+		}
+
+		/**
+		 * @param reason {@link SubtotalIndex#BOTTLER} or {@link SubtotalIndex#DISTRIBUTOR}
+		 * @return the row by reason, or null if there is none
+		 */
+		public ListOrderedMap getByReason(int reason)
+		{
+			return byReason[reason];
+		}
+
+		/**
+		 * @param reason {@link SubtotalIndex#BOTTLER} or {@link SubtotalIndex#DISTRIBUTOR}
+		 * @param day the day, counting from the first day indexed (zero-based)
+		 * @return the row by daily reason, or null if there is none
+		 */
+		public ListOrderedMap getByDailyReason(int reason, int day)
+		{
+			if (byDailyReason == null)
+				return null;
+			return byDailyReason[reason * (byDailyReason.length / REASONS) + day];
+		}
+	}
+
+	// ----- Instance members -------------------------------------------------
+	private HashMap /* String, Entry */ entries = new HashMap();
+	/** The epoch day of the first day indexed by daily reason */
+	private int firstDay;
+	/** The times of the days indexed by daily reason at midnight, ascending */
+	private long dayTimes[];
+	/** The days indexed by daily reason as strings, e.g. "2008-04-25" */
+	private String dayStrings[];
+
+	/**
+	 * @param firstDay the epoch day of the first day to index the rows by daily reason of
+	 * @param days the number of days to index the rows by daily reason of (zero if there
+	 * are none)
+	 */
+	public SubtotalIndex(int firstDay, int days)
+	{
+		this.firstDay = firstDay;
+		dayTimes = new long[days];
+		dayStrings = new String[days];
+		for (int i=0; i<days; i++)
+		{
+			java.sql.Date date = DateUtils.toDate(firstDay + i);
+			dayTimes[i] = date.getTime();
+			dayStrings[i] = date.toString();
+		}
+	}
+
+	/**
+	 * @return the epoch day of the first day indexed by daily reason
+	 */
+	public int getFirstDay()
+	{
+		return firstDay;
+	}
+
+	/**
+	 * @param rows the rows by reason; rows with reasons other than NE/ND and SA/SI are only
+	 * kept in the entity's list of rows
+	 * @param entityColumn the column to join on
+	 */
+	public void addByReason(ListOrderedMap rows, String entityColumn)
+	{
+		if (rows == null)
+			return;
+
+		for (int i=0; i<rows.size(); i++)
+		{
+			ListOrderedMap row = (ListOrderedMap) rows.getValue(i);
+			Entry entry = entry(row.get(entityColumn));
+			entry.rows.add(row);
+			int reason = reason(row.get("Reason"));
+			if (reason >= 0)
+				entry.byReason[reason] = row;
+		}
+	}
+
+	/**
+	 * @param rows the rows by daily reason; rows of days that are not indexed are skipped
+	 * @param entityColumn the column to join on
+	 * @param dayColumn the column holding the day of a row
+	 */
+	public void addByDailyReason(ListOrderedMap rows, String entityColumn, String dayColumn)
+	{
+		if (rows == null || dayTimes.length == 0)
+			return;
+
+		for (int i=0; i<rows.size(); i++)
+		{
+			ListOrderedMap row = (ListOrderedMap) rows.getValue(i);
+			int reason = reason(row.get("Reason"));
+			int day = day(row.get(dayColumn));
+			if (reason < 0 || day < 0)
+				continue;
+
+			Entry entry = entry(row.get(entityColumn));
+			if (entry.byDailyReason == null)
+				entry.byDailyReason = new ListOrderedMap[REASONS * dayTimes.length];
+			entry.byDailyReason[reason * dayTimes.length + day] = row;
+		}
+	}
+
+	/**
+	 * @param entity the value of the column to join on
+	 * @return the rows of the entity, or null if there are none
+	 */
+	public Entry get(Object entity)
+	{
+		if (entity == null)
+			return null;
+		return (Entry) entries.get(entity.toString());
+	}
+
+	private Entry entry(Object entity)
+	{
+		String key = String.valueOf(entity);
+		Entry entry = (Entry) entries.get(key);
+		if (entry == null)
+		{
+			entry = new Entry();
+			entries.put(key, entry);
+		}
+		return entry;
+	}
+
+	/**
+	 * @param value the value of a day column; a date at midnight, or a string such as "2008-04-25"
+	 * @return the day counting from the first day indexed, or -1 if the day is not indexed
+	 */
+	private int day(Object value)
+	{
+		if (value instanceof java.util.Date)
+		{
+			int day = Arrays.binarySearch(dayTimes, ((java.util.Date) value).getTime());
+			return (day >= 0 ? day : -1);
+		}
+		if (value != null)
+		{
+			String string = value.toString();
+			for (int i=0; i<dayStrings.length; i++)
+				if (dayStrings[i].equals(string))
+					return i;
+		}
+		return -1;
+	}
+}
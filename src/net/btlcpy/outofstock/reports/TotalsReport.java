@@ -4,8 +4,11 @@ import java.math.BigDecimal;
 import java.sql.Connection;
 import java.sql.Date;
 import java.text.NumberFormat;
-import java.util.Calendar;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Locale;
 import java.util.Vector;
 
@@ -15,6 +18,7 @@ import net.btlcpy.outofstock.reports.format.ReportColumnFormat;
 import net.btlcpy.outofstock.reports.format.excel.ReportExcelCellStyle;
 import net.btlcpy.outofstock.reports.format.excel.ReportExcelFont;
 import net.btlcpy.outofstock.reports.format.excel.ReportExcelFormat;
+import net.btlcpy.outofstock.utilities.DateUtils;
 import net.btlcpy.outofstock.utilities.SelectBuilder;
 import net.btlcpy.outofstock.utilities.StringUtils;
 
@@ -39,6 +43,9 @@ public class TotalsReport extends AveragesTotalsBaseReport
 	 * and total losses per day.
 	 */
 	private SelectBuilder sbTotals, sbTotalsByReason, sbTotalsByDailyReason;
+	
+	/** The total losses ranked, before being limited to the top results. */
+	private SelectBuilder sbRankedTotals = null;
 
 	/** The key columns to use for the three queries */
 	private String[][] keyColumns = { null, null, null };
@@ -48,6 +55,12 @@ public class TotalsReport extends AveragesTotalsBaseReport
 	/** Indicates whether to break out reports by day (either "yes" or "no"). */
 	private String reportBreakOutByDay = null;
 	
+	/** How many results desired (e.g. "top25"). */
+	private String reportResultSize = null;
+	
+	/** The query to compute the results in memory with, null if they must come from the database. */
+	private EventStore.Query inMemoryQuery = null;
+	
 	public TotalsReport(Connection connection, String username, Date beginDate, Date endDate, 
 		String summaryTarget, String resultSize, String breakOutByDay, String lostSalesMetric,
 		String[] productCategoryPKID, String[] productPKID, String[] productPackagePKID, 
@@ -60,6 +73,7 @@ public class TotalsReport extends AveragesTotalsBaseReport
 		if (reportBreakOutByDay == null)
 			reportBreakOutByDay = "no";
 		reportBeginDate = beginDate;
+		reportResultSize = resultSize;
 		
 		reportLostSalesMetric = lostSalesMetric;
 		
@@ -100,6 +114,11 @@ public class TotalsReport extends AveragesTotalsBaseReport
 				productCategoryPK, productPK, productPackagePK, 
 				bottlerPK, bottlerBusinessUnitPK, bottlerMarketUnitPK, bottlerBranchPK, bottlerSalesRoutePK, 
 				distributorDivisionPK, distributorDistrictPK, storePK);
+		restrictToTotals(summaryTarget, resultSize);
+		inMemoryQuery = inMemoryQuery(summaryTarget, beginDate, endDate,
+			productCategoryPK, productPK, productPackagePK, 
+			bottlerPK, bottlerBusinessUnitPK, bottlerMarketUnitPK, bottlerBranchPK, bottlerSalesRoutePK, 
+			distributorDivisionPK, distributorDistrictPK, storePK);
 	}
 	
 	/**
@@ -325,13 +344,13 @@ public class TotalsReport extends AveragesTotalsBaseReport
 	{
 		if (storePK != null)
 		{
-			selectBuilder.addWhere("outofstockevents.store IN (" + StringUtils.stringArrayToString(storePK) + ")", true);
+			selectBuilder.addWhere("outofstockevents.store IN (" + getKeyTable().keys(storePK) + ")", getKeyTable().parameters(storePK), true);
 		}
 		else if (distributorDistrictPK != null)
 		{
 			selectBuilder.addFrom("dstbdstrctstostores");
 			selectBuilder.addWhere("outofstockevents.store = dstbdstrctstostores.store AND " +
-				"dstbdstrctstostores.distributordistrict IN (" + StringUtils.stringArrayToString(distributorDistrictPK) + ")", true);
+				"dstbdstrctstostores.distributordistrict IN (" + getKeyTable().keys(distributorDistrictPK) + ")", getKeyTable().parameters(distributorDistrictPK), true);
 		}
 		else if (distributorDivisionPK != null)
 		{
@@ -360,7 +379,7 @@ public class TotalsReport extends AveragesTotalsBaseReport
 				selectBuilder.addFrom("dstbdstrctstostores, dstbdvsnstodstbdstrcts");
 				selectBuilder.addWhere("outofstockevents.store = dstbdstrctstostores.store AND " +
 					"dstbdstrctstostores.distributordistrict = dstbdvsnstodstbdstrcts.distributordistrict AND " + 
-					"dstbdvsnstodstbdstrcts.distributordivision IN (" + StringUtils.stringArrayToString(distributorDivisionPK) + ")", true);
+					"dstbdvsnstodstbdstrcts.distributordivision IN (" + getKeyTable().keys(distributorDivisionPK) + ")", getKeyTable().parameters(distributorDivisionPK), true);
 			}
 			else if (distributorcom && distributorDivisionPK.length == 1) // only distributor.com stores wanted
 			{
@@ -378,7 +397,7 @@ public class TotalsReport extends AveragesTotalsBaseReport
 						"(" +
 						"outofstockevents.store = dstbdstrctstostores.store AND " +
 						"dstbdstrctstostores.distributordistrict = dstbdvsnstodstbdstrcts.distributordistrict AND " + 
-						"dstbdvsnstodstbdstrcts.distributordivision IN (" + StringUtils.stringArrayToString(distributorDivisionPK) + ") AND " +
+						"dstbdvsnstodstbdstrcts.distributordivision IN (" + getKeyTable().keys(distributorDivisionPK) + ") AND " +
 						"stores.primarykey = outofstockevents.store AND " +
 						"(length(stores.distributorcom) = 0 OR (length(stores.distributorcom) > 0 AND " +
 						"stores.distributorcom = " + BasePersistentBean.BQ + "-" + BasePersistentBean.EQ + "))" +
@@ -394,8 +413,7 @@ public class TotalsReport extends AveragesTotalsBaseReport
 						"length(stores.distributorcom) > 0 AND " +
 						"stores.distributorcom != " + BasePersistentBean.BQ + "-" + BasePersistentBean.EQ + "" +
 						")" +
-					")",
-					true);
+					")", getKeyTable().parameters(distributorDivisionPK), true);
 			}
 		}
 		
@@ -403,14 +421,14 @@ public class TotalsReport extends AveragesTotalsBaseReport
 		{
 			selectBuilder.addFrom("bttlrbrchstostores");
 			selectBuilder.addWhere("outofstockevents.store = bttlrbrchstostores.store AND " +
-				"bttlrbrchstostores.bottlerbranch IN (" + StringUtils.stringArrayToString(bottlerBranchPK) + ")", true);
+				"bttlrbrchstostores.bottlerbranch IN (" + getKeyTable().keys(bottlerBranchPK) + ")", getKeyTable().parameters(bottlerBranchPK), true);
 		}
 		else if (bottlerMarketUnitPK != null)
 		{
 			selectBuilder.addFrom("bttlrbrchstostores, bttlrmktuntstobttlrbrchs");
 			selectBuilder.addWhere("outofstockevents.store = bttlrbrchstostores.store AND " +
 				"bttlrbrchstostores.bottlerbranch = bttlrmktuntstobttlrbrchs.bottlerbranch AND " +
-				"bttlrmktuntstobttlrbrchs.bottlermarketunit IN (" + StringUtils.stringArrayToString(bottlerMarketUnitPK) + ")", true);
+				"bttlrmktuntstobttlrbrchs.bottlermarketunit IN (" + getKeyTable().keys(bottlerMarketUnitPK) + ")", getKeyTable().parameters(bottlerMarketUnitPK), true);
 		}
 		else if (bottlerBusinessUnitPK != null)
 		{
@@ -418,7 +436,7 @@ public class TotalsReport extends AveragesTotalsBaseReport
 			selectBuilder.addWhere("outofstockevents.store = bttlrbrchstostores.store AND " +
 				"bttlrbrchstostores.bottlerbranch = bttlrmktuntstobttlrbrchs.bottlerbranch AND " +
 				"bttlrmktuntstobttlrbrchs.bottlermarketunit = bttlrbsnsuntstobttlrmktunts.bottlermarketunit AND " +
-				"bttlrbsnsuntstobttlrmktunts.bottlerbusinessunit IN (" + StringUtils.stringArrayToString(bottlerBusinessUnitPK) + ")", true);
+				"bttlrbsnsuntstobttlrmktunts.bottlerbusinessunit IN (" + getKeyTable().keys(bottlerBusinessUnitPK) + ")", getKeyTable().parameters(bottlerBusinessUnitPK), true);
 		}
 		else if (bottlerPK != null)
 		{
@@ -427,32 +445,32 @@ public class TotalsReport extends AveragesTotalsBaseReport
 				"bttlrbrchstostores.bottlerbranch = bttlrmktuntstobttlrbrchs.bottlerbranch AND " +
 				"bttlrmktuntstobttlrbrchs.bottlermarketunit = bttlrbsnsuntstobttlrmktunts.bottlermarketunit AND " +
 				"bttlrbsnsuntstobttlrmktunts.bottlerbusinessunit = bttlrstobttlrbsnsunts.bottlerbusinessunit AND " +
-				"bttlrstobttlrbsnsunts.bottler IN (" + StringUtils.stringArrayToString(bottlerPK) + ")", true);
+				"bttlrstobttlrbsnsunts.bottler IN (" + getKeyTable().keys(bottlerPK) + ")", getKeyTable().parameters(bottlerPK), true);
 		}
 
 		if (bottlerSalesRoutePK != null)
 		{
 			selectBuilder.addFrom("bttlrslsrtstostores");
 			selectBuilder.addWhere("outofstockevents.store = bttlrslsrtstostores.store AND " +
-				"bttlrslsrtstostores.bottlersalesroute IN (" + StringUtils.stringArrayToString(bottlerSalesRoutePK) +")", true);
+				"bttlrslsrtstostores.bottlersalesroute IN (" + getKeyTable().keys(bottlerSalesRoutePK) +")", getKeyTable().parameters(bottlerSalesRoutePK), true);
 		}
 		
 		if (productPackagePK != null)
 		{
 			selectBuilder.addFrom("prdctstoprdctpkgs");
 			selectBuilder.addWhere("outofstockevents.product = prdctstoprdctpkgs.product AND " +
-				"prdctstoprdctpkgs.productpackage IN (" + StringUtils.stringArrayToString(productPackagePK) + ")", true);
+				"prdctstoprdctpkgs.productpackage IN (" + getKeyTable().keys(productPackagePK) + ")", getKeyTable().parameters(productPackagePK), true);
 		}
 		
 		if (productPK != null)
 		{
-			selectBuilder.addWhere("outofstockevents.product IN (" + StringUtils.stringArrayToString(productPK) + ")", true);
+			selectBuilder.addWhere("outofstockevents.product IN (" + getKeyTable().keys(productPK) + ")", getKeyTable().parameters(productPK), true);
 		}
 		else if (productCategoryPK != null)
 		{
 			selectBuilder.addFrom("prdctctgrstoprdcts");
 			selectBuilder.addWhere("outofstockevents.product = prdctctgrstoprdcts.product AND " +
-				"prdctctgrstoprdcts.productcategory IN (" + StringUtils.stringArrayToString(productCategoryPK) + ")", true);
+				"prdctctgrstoprdcts.productcategory IN (" + getKeyTable().keys(productCategoryPK) + ")", getKeyTable().parameters(productCategoryPK), true);
 		}
 		
 		// This last constraint masks all out of stock events that are marked ignore (see the 
@@ -593,16 +611,21 @@ public class TotalsReport extends AveragesTotalsBaseReport
 				"sum(outofstockevents.lostsalesamount) AS \"Total Lost Sales (Dollars)\"");
 			
 		if (beginDate != null)
-			sbTotals.addWhere("dateoccurred >= DATE '" + beginDate.toString() + "'", true);
+			sbTotals.addWhere("dateoccurred >= ?", new Object[] { beginDate }, true);
 		if (endDate != null)
-			sbTotals.addWhere("dateoccurred <= DATE '" + endDate.toString() + "'", true);
+			sbTotals.addWhere("dateoccurred <= ?", new Object[] { endDate }, true);
 		
 		applyConstraints(sbTotals, productCategoryPK, productPK, productPackagePK,
 			bottlerPK, bottlerBusinessUnitPK, bottlerMarketUnitPK, bottlerBranchPK, bottlerSalesRoutePK,
 			distributorDivisionPK, distributorDistrictPK, storePK);
+		useRollup(sbTotals, summaryTarget,
+			productCategoryPK, productPK, productPackagePK,
+			bottlerPK, bottlerBusinessUnitPK, bottlerMarketUnitPK, bottlerBranchPK, bottlerSalesRoutePK,
+			distributorDivisionPK, distributorDistrictPK, storePK);
 		
 		if (!summaryTarget.equals("day") && !summaryTarget.equals("week"))
 		{
+			sbRankedTotals = sbTotals;
 			if (resultSize.equals("top25"))
 				sbTotals = new SelectBuilder("*", sbTotals, "\"Rank\" <= 25", null, null, "\"Rank\"");
 			else if (resultSize.equals("top50"))
@@ -612,6 +635,76 @@ public class TotalsReport extends AveragesTotalsBaseReport
 		}
 	}
 	
+	/**
+	 * Restricts the queries by reason (and by daily reason) to the entities of the totals,
+	 * i.e. the top 25/50 when the result size is limited, by nesting the totals query in 
+	 * them. The database then runs the restriction as part of the same statement; there is 
+	 * no need to wait for the totals before building (or running) the queries by reason, 
+	 * and no long lists of literals that have to be split up for Oracle's 1000-item limit 
+	 * on "IN" lists. No restriction is needed for days and weeks since the original date 
+	 * range does the job.
+	 * 
+	 * @param summaryTarget the report's target (store, bottler, etc.)
+	 * @param resultSize how many results desired
+	 */
+	private void restrictToTotals(String summaryTarget, String resultSize)
+	{
+		if (sbRankedTotals == null)
+			return;
+		
+		String searchColumn = null, alias = null;
+		if (summaryTarget.equalsIgnoreCase("store") || summaryTarget.equalsIgnoreCase("storewithproduct"))
+		{
+			searchColumn = "stores.id";
+			alias = "Store ID";
+		}
+		else if (summaryTarget.equalsIgnoreCase("bottler"))
+		{
+			searchColumn = "bttlrs.name";
+			alias = "Bottler";
+		}
+		else if (summaryTarget.equalsIgnoreCase("bottlerbranch"))
+		{
+			searchColumn = "bttlrbrchs.name";
+			alias = "Bottler Branch";
+		}
+		else if (summaryTarget.equalsIgnoreCase("bottlersalesroute"))
+		{
+			searchColumn = "bttlrslsrts.name";
+			alias = "Bottler Sales Route";
+		}
+		else if (summaryTarget.equalsIgnoreCase("distributordistrict"))
+		{
+			searchColumn = "dstbdstrcts.name";
+			alias = "Distributor District";
+		}
+		else if (summaryTarget.equalsIgnoreCase("product"))
+		{
+			searchColumn = "prdcts.upcid";
+			alias = "Product UPC";
+		}
+		else if (summaryTarget.equalsIgnoreCase("package"))
+		{
+			searchColumn = "prdctpkgs.name";
+			alias = "Package";
+		}
+		else
+			return;
+		
+		String rankLimit = null;
+		if (resultSize.equals("top25"))
+			rankLimit = "\"Rank\" <= 25";
+		else if (resultSize.equals("top50"))
+			rankLimit = "\"Rank\" <= 50";
+		SelectBuilder entities = new SelectBuilder("\"" + alias + "\"", sbRankedTotals, rankLimit, null, null, null);
+		
+		sbTotalsByReason.addWhere(searchColumn + " IN (" + entities.toString() + ")", 
+			entities.getParameters(), true);
+		if (sbTotalsByDailyReason != null)
+			sbTotalsByDailyReason.addWhere(searchColumn + " IN (" + entities.toString() + ")", 
+				entities.getParameters(), true);
+	}
+	
 	/**
 	 * Constructs the SQL query for calculating the total losses for the desired
 	 * summary target (stores, bottlers, etc.) split by reason (bottler versus
@@ -788,15 +881,19 @@ public class TotalsReport extends AveragesTotalsBaseReport
 				"sum(outofstockevents.lostsalesamount) AS \"Loss By Reason (Dollars)\"");
 
 		if (beginDate != null)
-			sbTotalsByReason.addWhere("dateoccurred >= DATE '" + beginDate.toString() + "'", true);
+			sbTotalsByReason.addWhere("dateoccurred >= ?", new Object[] { beginDate }, true);
 		if (endDate != null)
-			sbTotalsByReason.addWhere("dateoccurred <= DATE '" + endDate.toString() + "'", true);
+			sbTotalsByReason.addWhere("dateoccurred <= ?", new Object[] { endDate }, true);
 		sbTotalsByReason.addGroup(
 			"CASE WHEN reason IN ('NE', 'ND') THEN 'NE/ND' WHEN reason IN ('SA', 'SI') THEN 'SA/SI' ELSE reason END");
 
 		applyConstraints(sbTotalsByReason, productCategoryPK, productPK, productPackagePK,
 			bottlerPK, bottlerBusinessUnitPK, bottlerMarketUnitPK, bottlerBranchPK, bottlerSalesRoutePK,
 			distributorDivisionPK, distributorDistrictPK, storePK);
+		useRollup(sbTotalsByReason, summaryTarget,
+			productCategoryPK, productPK, productPackagePK,
+			bottlerPK, bottlerBusinessUnitPK, bottlerMarketUnitPK, bottlerBranchPK, bottlerSalesRoutePK,
+			distributorDivisionPK, distributorDistrictPK, storePK);
 	}
 
 	/**
@@ -991,15 +1088,19 @@ public class TotalsReport extends AveragesTotalsBaseReport
 				"sum(outofstockevents.lostsalesamount) AS \"Daily Loss (Dollars)\"");
 		
 		if (beginDate != null)
-			sbTotalsByDailyReason.addWhere("dateoccurred >= DATE '" + beginDate.toString() + "'", true);
+			sbTotalsByDailyReason.addWhere("dateoccurred >= ?", new Object[] { beginDate }, true);
 		if (endDate != null)
-			sbTotalsByDailyReason.addWhere("dateoccurred <= DATE '" + endDate.toString() + "'", true);
+			sbTotalsByDailyReason.addWhere("dateoccurred <= ?", new Object[] { endDate }, true);
 		sbTotalsByDailyReason.addGroup(
 			"CASE WHEN reason IN ('NE', 'ND') THEN 'NE/ND' WHEN reason IN ('SA', 'SI') THEN 'SA/SI' ELSE reason END");
 
 		applyConstraints(sbTotalsByDailyReason, productCategoryPK, productPK, productPackagePK,
 			bottlerPK, bottlerBusinessUnitPK, bottlerMarketUnitPK, bottlerBranchPK, bottlerSalesRoutePK,
 			distributorDivisionPK, distributorDistrictPK, storePK);
+		useRollup(sbTotalsByDailyReason, summaryTarget,
+			productCategoryPK, productPK, productPackagePK,
+			bottlerPK, bottlerBusinessUnitPK, bottlerMarketUnitPK, bottlerBranchPK, bottlerSalesRoutePK,
+			distributorDivisionPK, distributorDistrictPK, storePK);
 	}
 
 	/**
@@ -1030,143 +1131,170 @@ public class TotalsReport extends AveragesTotalsBaseReport
 		return null;
 	}
 
+	public Object[] getQueryParameters(int queryNumber) 
+	{ 
+		switch (queryNumber)
+		{
+		case 0:
+			return sbTotals.getParameters();
+		case 1:
+			return sbTotalsByReason.getParameters();
+		case 2:
+			return sbTotalsByDailyReason.getParameters();
+		}
+		return null;
+	}
+
 	public String[][] getQueryKeyColumns()
 	{
 		return keyColumns;
 	}
+
+	/**
+	 * The queries by reason (and by daily reason) restrict themselves to the entities of
+	 * the totals in SQL, so all of the queries can run at the same time. When computed from
+	 * the in-memory event store, they take the entities from the totals instead, and so have
+	 * to wait for them.
+	 */
+	public int[] getQueryDependencies(int queryNumber)
+	{
+		if (queryNumber > 0 && inMemoryQuery != null)
+			return new int[] { 0 };
+		return new int[0];
+	}
 	
-	public void doPreProcessing(Connection connection, int queryNumber) {}
-	public void doPostProcessing(Connection connection, int queryNumber) 
+	/**
+	 * Computes the results of a query from the in-memory event store, if it is enabled and the
+	 * summary target is one it can group by. The rows have the same columns, keys, values,
+	 * and order as those of the SQL query; the rows by reason (and day) are restricted to the
+	 * entities of the totals, as the subqueries added by restrictToTotals() do.
+	 */
+	protected ListOrderedMap findRowsInMemory(int queryNumber)
 	{
-		// After query 0, use the list of returned results to restrict
-		// the subsequent queries (by reason, and by daily reason).
+		EventStore store = EventStore.getStore();
+		if (inMemoryQuery == null || store == null)
+			return null;
+		
+		final boolean daily = (queryNumber == 2);
+		final EventStore.Groups groups = store.aggregate(inMemoryQuery, true, queryNumber > 0, 
+			daily ? EventStore.DAY : EventStore.NO_PERIOD);
+		if (groups == null)
+			return null;
+		
+		final int target = inMemoryQuery.getTarget();
+		String labelColumn = keyColumns[1][0];
+		boolean showQuantity = reportLostSalesMetric.equals("all") || reportLostSalesMetric.equals("quantity");
+		boolean showAmount = reportLostSalesMetric.equals("all") || reportLostSalesMetric.equals("amount");
+		ListOrderedMap rows = new ListOrderedMap();
+		
 		if (queryNumber == 0)
 		{
-			// No need to add a list of dates to search in since the original 
-			// date range will do the job.
-			if (reportSummaryTarget.equalsIgnoreCase("day"))
-				return;
+			final boolean rankByQuantity = reportLostSalesMetric.equals("quantity");
+			Integer[] order = new Integer[groups.size()];
+			for (int i=0; i<order.length; i++)
+				order[i] = new Integer(i);
+			Arrays.sort(order, new Comparator()
+				{
+					public int compare(Object o1, Object o2)
+					{
+						int g1 = ((Integer) o1).intValue(), g2 = ((Integer) o2).intValue();
+						double v1 = (rankByQuantity ? groups.getQuantity(g1) : groups.getAmount(g1));
+						double v2 = (rankByQuantity ? groups.getQuantity(g2) : groups.getAmount(g2));
+						if (v1 != v2)
+							return (v1 > v2 ? -1 : 1);
+						return compareLabels(groups.getLabel(g1, target), groups.getLabel(g2, target));
+					}
+				});
 			
-			ListOrderedMap rows = (ListOrderedMap) super.getResults().getValue(0);
-			String searchColumn = null, alias = null, bq = "", eq = "";
-			boolean doublequote = false;
-			if (reportSummaryTarget.equalsIgnoreCase("store"))
-			{
-				searchColumn = "stores.id";
-				alias = "Store ID";
-			}
-			else if (reportSummaryTarget.equalsIgnoreCase("storewithproduct"))
-			{
-				searchColumn = "stores.id";
-				alias = "Store ID";
-			}
-			else if (reportSummaryTarget.equalsIgnoreCase("bottler"))
-			{
-				searchColumn = "bttlrs.name";
-				alias = "Bottler";
-				bq = BasePersistentBean.BQ;
-				eq = BasePersistentBean.EQ;
-				doublequote = true;
-			}
-			else if (reportSummaryTarget.equalsIgnoreCase("bottlerbranch"))
-			{
-				searchColumn = "bttlrbrchs.name";
-				alias = "Bottler Branch";
-				bq = BasePersistentBean.BQ;
-				eq = BasePersistentBean.EQ;
-				doublequote = true;
-			}
-			else if (reportSummaryTarget.equalsIgnoreCase("bottlersalesroute"))
-			{
-				searchColumn = "bttlrslsrts.name";
-				alias = "Bottler Sales Route";
-				bq = BasePersistentBean.BQ;
-				eq = BasePersistentBean.EQ;
-				doublequote = true;
-			}
-			else if (reportSummaryTarget.equalsIgnoreCase("distributordistrict"))
-			{
-				searchColumn = "dstbdstrcts.name";
-				alias = "Distributor District";
-				bq = BasePersistentBean.BQ;
-				eq = BasePersistentBean.EQ;
-				doublequote = true;
-			}
-			/*else if (reportSummaryTarget.equalsIgnoreCase("day"))
-			{
-				searchColumn = "dateoccurred";
-				alias = "Day";
-				bq = "DATE " + BasePersistentBean.BQ;
-				eq = BasePersistentBean.EQ;
-			}*/
-			else if (reportSummaryTarget.equalsIgnoreCase("week"))
-			{
-				searchColumn = "floor((dateoccurred - DATE '" + reportBeginDate.toString() + "')/7)+1"; // Not "\"Week\"" - it's an SQL syntax thing...
-				alias = "Week";
-			}
-			else if (reportSummaryTarget.equalsIgnoreCase("product"))
-			{
-				searchColumn = "prdcts.upcid";
-				alias = "Product UPC";
-			}
-			else if (reportSummaryTarget.equalsIgnoreCase("package"))
+			int limit = Integer.MAX_VALUE;
+			if (reportResultSize.equals("top25"))
+				limit = 25;
+			else if (reportResultSize.equals("top50"))
+				limit = 50;
+			
+			int rank = 0;
+			double previous = 0;
+			for (int i=0; i<order.length; i++)
 			{
-				searchColumn = "prdctpkgs.name";
-				alias = "Package";
-				bq = BasePersistentBean.BQ;
-				eq = BasePersistentBean.EQ;
-				doublequote = true;
+				int group = order[i].intValue();
+				double value = (rankByQuantity ? groups.getQuantity(group) : groups.getAmount(group));
+				// as rank() does: ties share a rank, and the next rank skips accordingly
+				if (i == 0 || value != previous)
+					rank = i + 1;
+				previous = value;
+				if (rank > limit)
+					break;
+				
+				ListOrderedMap row = new ListOrderedMap();
+				row.put("Rank", BigDecimal.valueOf(rank));
+				row.put(labelColumn, groups.getLabel(group, target));
+				if (target == EventStore.PRODUCT && groups.getDescription(group) != null)
+					row.put("Description", groups.getDescription(group));
+				if (showQuantity)
+					row.put("Total Lost Sales (Units)", EventStore.toBigDecimal(groups.getQuantity(group)));
+				if (showAmount)
+					row.put("Total Lost Sales (Dollars)", EventStore.toBigDecimal(groups.getAmount(group)));
+				rows.put(String.valueOf(rows.size()), row);
 			}
-
-			if (rows != null && rows.size() > 0)
+			return rows;
+		}
+		
+		// The entities of the totals (all of them if there were none)
+		HashSet /* String */ totalsLabels = null;
+		ListOrderedMap totals = (ListOrderedMap) super.getResults().getValue(0);
+		if (totals != null && totals.size() > 0)
+		{
+			totalsLabels = new HashSet();
+			for (int i=0; i<totals.size(); i++)
+				totalsLabels.add(((ListOrderedMap) totals.getValue(i)).get(labelColumn).toString());
+		}
+		
+		ArrayList /* Integer */ selected = new ArrayList();
+		for (int i=0; i<groups.size(); i++)
+			if (totalsLabels == null || totalsLabels.contains(groups.getLabel(i, target).toString()))
+				selected.add(new Integer(i));
+		Integer[] order = (Integer[]) selected.toArray(new Integer[selected.size()]);
+		Arrays.sort(order, new Comparator()
 			{
-				/* Oracle only allows up to 1000 items in an "IN" list, so we
-				 * have to split up the list in case there is more.
-				 * x in (a, b, c, d) ===> (x in (a,b) OR x in (c,d)).
-				 * We split into 200-item lists just to be on the safe side.
-				 */
-				int inListCounter = 0;
-				StringBuffer allInLists = new StringBuffer("(");
-				boolean firstList = true;
-				do
+				public int compare(Object o1, Object o2)
 				{
-					StringBuffer inList = new StringBuffer(searchColumn + " IN (");
-					boolean firstItem = true;
-					for (int i=inListCounter; i<rows.size(); i++)
-					{
-						ListOrderedMap row = (ListOrderedMap) rows.getValue(i);
-						if (firstItem)
-							firstItem = false;
-						else
-							inList.append(',');
-						inList.append(bq);
-						inList.append(doublequote ? BasePersistentBean.dq(row.get(alias).toString()) : row.get(alias));
-						inList.append(eq);
-						inListCounter++;
-						if ((i+1) % 200 == 0)
-							break;
-					}
-					inList.append(")");
-					if (firstList)
-					{
-						allInLists.append(inList);
-						firstList = false;
-					}
-					else
-					{
-						allInLists.append(" OR " + inList);
-					}
-				} while (inListCounter < rows.size());
-
-				allInLists.append(")");
-
-				sbTotalsByReason.addWhere(allInLists.toString(), true);
-				if (reportBreakOutByDay.equalsIgnoreCase("yes") &&
-					!reportSummaryTarget.equalsIgnoreCase("day"))
-					sbTotalsByDailyReason.addWhere(allInLists.toString(), true);
+					int g1 = ((Integer) o1).intValue(), g2 = ((Integer) o2).intValue();
+					int result = compareLabels(groups.getLabel(g1, target), groups.getLabel(g2, target));
+					if (result == 0 && daily)
+						result = groups.getPeriod(g1) - groups.getPeriod(g2);
+					if (result == 0)
+						result = groups.getReason(g1).compareTo(groups.getReason(g2));
+					return result;
+				}
+			});
+		
+		String measure = (daily ? "Daily Loss" : "Loss By Reason");
+		for (int i=0; i<order.length; i++)
+		{
+			int group = order[i].intValue();
+			ListOrderedMap row = new ListOrderedMap();
+			Object label = groups.getLabel(group, target);
+			row.put(labelColumn, label);
+			Date day = null;
+			if (daily)
+			{
+				day = DateUtils.toDate(groups.getPeriod(group));
+				row.put("Day", day);
 			}
+			row.put("Reason", groups.getReason(group));
+			if (showQuantity)
+				row.put(measure + " (Units)", EventStore.toBigDecimal(groups.getQuantity(group)));
+			if (showAmount)
+				row.put(measure + " (Dollars)", EventStore.toBigDecimal(groups.getAmount(group)));
+			rows.put(label + "|" + groups.getReason(group) + (daily ? "|" + day : ""), row);
 		}
-		else if (queryNumber == 1 && numberOfQueries().intValue() == 2)
+		return rows;
+	}
+	
+	public void doPreProcessing(Connection connection, int queryNumber) {}
+	public void doPostProcessing(Connection connection, int queryNumber) 
+	{
+		if (queryNumber == 1 && numberOfQueries().intValue() == 2)
 			mergeResults();
 		else if (queryNumber == 2 && numberOfQueries().intValue() == 3)
 			mergeResults();
@@ -1191,11 +1319,12 @@ public class TotalsReport extends AveragesTotalsBaseReport
 		// Retrieve the original results first of all
 		ListOrderedMap results = super.getResults();
 		ListOrderedMap totals = null, totalsByReason = null, totalsByDailyReason = null;
-		ListOrderedMap totalsByReasonGroupedByStoreId = null;
+		SubtotalIndex subtotals = null;
 		// ListOrderedMap totalsByDailyReasonGroupedByStoreId = null;
 		boolean hasTotalsByReason = false, hasTotalsByDailyReason = false;
 		String joinColumn = null;
 		String days[] = { "Su", "Mo", "Tu", "We", "Th", "Fr", "Sa" };
+		BigDecimal zero = new BigDecimal(0);
 		boolean showQuantity = reportLostSalesMetric.equals("all") || reportLostSalesMetric.equals("quantity");
 		boolean showAmount = reportLostSalesMetric.equals("all") || reportLostSalesMetric.equals("amount");
 		ReportCellFormat bottlerQuantityDataCellFormat, distributorQuantityDataCellFormat, grandTotalQuantityDataCellFormat,
@@ -1289,32 +1418,18 @@ public class TotalsReport extends AveragesTotalsBaseReport
 			// line of code.
 			joinColumn = (String) firstRow.get(0);
 			
-			// first effect of the "Stores (with products)" special case: construct maps that
-			// are easier to search based on "Store ID" and "Product UPC". This takes advantage
-			// of the fact that the results are *sorted* by "Store ID", "Product UPC", then
-			// "Reason"
+			// Index the subtotals by the common column (and reason, and day) once, rather
+			// than looking them up through concatenated keys for every cell. For the
+			// "Stores (with products)" special case, the index also keeps the rows of each
+			// "Store ID" in order, i.e. sorted by "Product UPC", then "Reason"
+			subtotals = new SubtotalIndex(DateUtils.toEpochDay(reportBeginDate, null), 
+				hasTotalsByDailyReason ? 7 : 0);
+			subtotals.addByReason(totalsByReason, joinColumn);
+			if (hasTotalsByDailyReason)
+				subtotals.addByDailyReason(totalsByDailyReason, joinColumn, "Day");
+			
 			if (reportSummaryTarget.equalsIgnoreCase("storewithproduct"))
 			{
-				totalsByReasonGroupedByStoreId = new ListOrderedMap();
-				
-				Object storeId = null;
-				ListOrderedMap rowsWithSameStoreId = null;
-				for (int i=0; i<totalsByReason.size(); i++)
-				{
-					ListOrderedMap oneRow = (ListOrderedMap) totalsByReason.getValue(i);
-					// if the store id is different, start another submap
-					if (storeId == null || !storeId.equals(oneRow.get("Store ID")))
-					{
-						if (storeId != null)
-							totalsByReasonGroupedByStoreId.put(storeId, rowsWithSameStoreId);
-						rowsWithSameStoreId = new ListOrderedMap();
-						storeId = oneRow.get("Store ID");
-					}
-					rowsWithSameStoreId.put(oneRow.get("Product UPC") + "|" + oneRow.get("Reason"), oneRow);
-					if (i == totalsByReason.size() - 1)
-						totalsByReasonGroupedByStoreId.put(storeId, rowsWithSameStoreId);
-				}
-				
 				ReportCellFormat simpleCellFormat = new ReportCellFormat("reportDataCellA whiteBackground topAligned");
 
 				ReportColumnFormat simpleColumnFormat = new ReportColumnFormat(null, simpleCellFormat, null);
@@ -1372,6 +1487,36 @@ public class TotalsReport extends AveragesTotalsBaseReport
 		
 		resetMergedRegions(1);
 
+		// The daily columns are the same for every row: one per reason, day, and metric
+		String bottlerDailyUnits[] = null, bottlerDailyDollars[] = null,
+			distributorDailyUnits[] = null, distributorDailyDollars[] = null;
+		if (hasTotalsByReason && hasTotalsByDailyReason)
+		{
+			bottlerDailyUnits = new String[7];
+			bottlerDailyDollars = new String[7];
+			distributorDailyUnits = new String[7];
+			distributorDailyDollars = new String[7];
+			for (int j=0; j<7; j++)
+			{
+				int day = subtotals.getFirstDay() + j;
+				String dateWithDay = DateUtils.toDate(day).toString() + ", " + days[ DateUtils.dayOfWeek(day) - 1 ];
+				bottlerDailyUnits[j] = "Bottler<br/>" + dateWithDay + "<br/>(units)";
+				bottlerDailyDollars[j] = "Bottler<br/>" + dateWithDay + "<br/>(dollars)";
+				distributorDailyUnits[j] = "Distributor<br/>" + dateWithDay + "<br/>(units)";
+				distributorDailyDollars[j] = "Distributor<br/>" + dateWithDay + "<br/>(dollars)";
+				if (showQuantity)
+				{
+					columnFormats.put(bottlerDailyUnits[j], bottlerQuantityColumnFormat);
+					columnFormats.put(distributorDailyUnits[j], distributorQuantityColumnFormat);
+				}
+				if (showAmount)
+				{
+					columnFormats.put(bottlerDailyDollars[j], bottlerAmountColumnFormat);
+					columnFormats.put(distributorDailyDollars[j], distributorAmountColumnFormat);
+				}
+			}
+		}
+
 		int rowCounter = 0;
 		ListOrderedMap newTotals = new ListOrderedMap();
 		if (totals != null && totals.size() > 0)
@@ -1382,62 +1527,41 @@ public class TotalsReport extends AveragesTotalsBaseReport
 				
 				if (hasTotalsByReason)
 				{
-					// Using the common column, get its value for this row
-					String joinColumnValue = totalsRow.get(joinColumn).toString();
+					// Using the common column, get the subtotals for this row
+					SubtotalIndex.Entry entry = subtotals.get(totalsRow.get(joinColumn));
 					ListOrderedMap subtotalsRow = null;
 						
 					if (hasTotalsByDailyReason)
 					{
-						Calendar calendar = Calendar.getInstance(Locale.US);
-						calendar.setTime(reportBeginDate);
-
 						for (int j=0; j<7; j++)
 						{
-							//ArrayList bottlerDailyTotals = new ArrayList(), distributorDailyTotals = new ArrayList();
-							String date = new Date(calendar.getTime().getTime()).toString();
-							String dateWithDay = date + ", " + days[ calendar.get(Calendar.DAY_OF_WEEK) - 1 ]; 
-							
-							subtotalsRow = ((ListOrderedMap) totalsByDailyReason.get(joinColumnValue + "|NE/ND|" + date));
+							subtotalsRow = (entry != null ? entry.getByDailyReason(SubtotalIndex.BOTTLER, j) : null);
 							if (showQuantity)
-							{
-								totalsRow.put("Bottler<br/>" + dateWithDay + "<br/>(units)", subtotalsRow != null ? subtotalsRow.get("Daily Loss (Units)") : new BigDecimal(0));
-								columnFormats.put("Bottler<br/>" + dateWithDay + "<br/>(units)", bottlerQuantityColumnFormat);
-							}
+								totalsRow.put(bottlerDailyUnits[j], subtotalsRow != null ? subtotalsRow.get("Daily Loss (Units)") : zero);
 							if (showAmount)
-							{
-								totalsRow.put("Bottler<br/>" + dateWithDay + "<br/>(dollars)", subtotalsRow != null ? subtotalsRow.get("Daily Loss (Dollars)") : new BigDecimal(0));
-								columnFormats.put("Bottler<br/>" + dateWithDay + "<br/>(dollars)", bottlerAmountColumnFormat);
-							}
+								totalsRow.put(bottlerDailyDollars[j], subtotalsRow != null ? subtotalsRow.get("Daily Loss (Dollars)") : zero);
 	
-							subtotalsRow = ((ListOrderedMap) totalsByDailyReason.get(joinColumnValue + "|SA/SI|" + date));
+							subtotalsRow = (entry != null ? entry.getByDailyReason(SubtotalIndex.DISTRIBUTOR, j) : null);
 							if (showQuantity)
-							{
-								totalsRow.put("Distributor<br/>" + dateWithDay + "<br/>(units)", subtotalsRow != null ? subtotalsRow.get("Daily Loss (Units)") : new BigDecimal(0));
-								columnFormats.put("Distributor<br/>" + dateWithDay + "<br/>(units)", distributorQuantityColumnFormat);
-							}
+								totalsRow.put(distributorDailyUnits[j], subtotalsRow != null ? subtotalsRow.get("Daily Loss (Units)") : zero);
 							if (showAmount)
-							{
-								totalsRow.put("Distributor<br/>" + dateWithDay + "<br/>(dollars)", subtotalsRow != null ? subtotalsRow.get("Daily Loss (Dollars)") : new BigDecimal(0));
-								columnFormats.put("Distributor<br/>" + dateWithDay + "<br/>(dollars)", distributorAmountColumnFormat);
-							}
-
-							calendar.add(Calendar.DATE, 1);
+								totalsRow.put(distributorDailyDollars[j], subtotalsRow != null ? subtotalsRow.get("Daily Loss (Dollars)") : zero);
 						}
 					}
 					
 					if (!reportSummaryTarget.equalsIgnoreCase("storewithproduct"))
 					{
-						subtotalsRow = ((ListOrderedMap) totalsByReason.get(joinColumnValue + "|NE/ND"));
+						subtotalsRow = (entry != null ? entry.getByReason(SubtotalIndex.BOTTLER) : null);
 						if (showQuantity)
-							totalsRow.put("Bottler<br/>(units)", subtotalsRow != null ? subtotalsRow.get("Loss By Reason (Units)") : new BigDecimal(0));
+							totalsRow.put("Bottler<br/>(units)", subtotalsRow != null ? subtotalsRow.get("Loss By Reason (Units)") : zero);
 						if (showAmount)
-							totalsRow.put("Bottler<br/>(dollars)", subtotalsRow != null ? subtotalsRow.get("Loss By Reason (Dollars)") : new BigDecimal(0));
+							totalsRow.put("Bottler<br/>(dollars)", subtotalsRow != null ? subtotalsRow.get("Loss By Reason (Dollars)") : zero);
 			
-						subtotalsRow = ((ListOrderedMap) totalsByReason.get(joinColumnValue + "|SA/SI"));
+						subtotalsRow = (entry != null ? entry.getByReason(SubtotalIndex.DISTRIBUTOR) : null);
 						if (showQuantity)
-							totalsRow.put("Distributor<br/>(units)", subtotalsRow != null ? subtotalsRow.get("Loss By Reason (Units)") : new BigDecimal(0));
+							totalsRow.put("Distributor<br/>(units)", subtotalsRow != null ? subtotalsRow.get("Loss By Reason (Units)") : zero);
 						if (showAmount)
-							totalsRow.put("Distributor<br/>(dollars)", subtotalsRow != null ? subtotalsRow.get("Loss By Reason (Dollars)") : new BigDecimal(0));
+							totalsRow.put("Distributor<br/>(dollars)", subtotalsRow != null ? subtotalsRow.get("Loss By Reason (Dollars)") : zero);
 	
 						if (showQuantity)
 							totalsRow.put("Grand Total<br/>(units)", totalsRow.get("Total Lost Sales (Units)"));						
@@ -1453,7 +1577,7 @@ public class TotalsReport extends AveragesTotalsBaseReport
 					else
 					{
 						Object storeID = totalsRow.get("Store ID");
-						ListOrderedMap rowsWithSameStoreId = (ListOrderedMap) totalsByReasonGroupedByStoreId.get(storeID);
+						ArrayList rowsWithSameStoreId = (entry != null ? entry.getRows() : new ArrayList());
 						
 						Object upc = null;
 						ListOrderedMap newRow = null;
@@ -1464,7 +1588,7 @@ public class TotalsReport extends AveragesTotalsBaseReport
 						int rowCounterForThisStore = 0;
 						for (int k=0; k<rowsWithSameStoreId.size(); k++)
 						{
-							subtotalsRow = (ListOrderedMap) rowsWithSameStoreId.getValue(k);
+							subtotalsRow = (ListOrderedMap) rowsWithSameStoreId.get(k);
 
 							if (upc == null || !upc.equals(subtotalsRow.get("Product UPC")))
 							{
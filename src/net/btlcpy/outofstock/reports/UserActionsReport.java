@@ -72,9 +72,9 @@ public class UserActionsReport extends Report
 
 		if (beginDate != null)
 		{
-			sbQuery.addWhere("timelastuploaded >= DATE '" + beginDate.toString() + "'", true);
+			sbQuery.addWhere("timelastuploaded >= ?", new Object[] { beginDate }, true);
 			if (endDate != null)
-				sbQuery.addWhere("timelastuploaded < DATE '" + endDate.toString() + "'", true);
+				sbQuery.addWhere("timelastuploaded < ?", new Object[] { endDate }, true);
 		}
 	}
 	
@@ -90,6 +90,13 @@ public class UserActionsReport extends Report
 		return null;
 	}
 
+	public Object[] getQueryParameters(int queryNumber) 
+	{
+		if (queryNumber == 0)
+			return sbQuery.getParameters();
+		return null;
+	}
+
 	public String[][] getQueryKeyColumns()
 	{
 		String keyColumns[][] = { null, null };
@@ -21,7 +21,6 @@ public class ReportExcelCellStyle
 	private short fillPattern = HSSFCellStyle.NO_FILL;
 	private short fillForegroundColor = HSSFColor.AUTOMATIC.index;
 	private short fillBackgroundColor = HSSFColor.AUTOMATIC.index;
-	private HSSFCellStyle hssfCellStyle = null;
 	
 	public ReportExcelCellStyle(boolean wrapText, short alignment, short verticalAlignment, short dataFormat, ReportExcelFont font,
 		short fillPattern, short fillForegroundColor, short fillBackgroundColor)
@@ -88,14 +87,6 @@ public class ReportExcelCellStyle
 	{
 		this.font = font;
 	}
-	public HSSFCellStyle getHssfCellStyle()
-	{
-		return hssfCellStyle;
-	}
-	public void setHssfCellStyle(HSSFCellStyle hssfCellStyle)
-	{
-		this.hssfCellStyle = hssfCellStyle;
-	}
 	public short getFillPattern()
 	{
 		return fillPattern;
@@ -120,4 +111,32 @@ public class ReportExcelCellStyle
 	{
 		this.fillBackgroundColor = fillBackgroundColor;
 	}
+
+	/**
+	 * Cell styles are equal if they look the same,
+	 * so that equal styles can share one HSSF cell style in a workbook.
+	 */
+	public boolean equals(Object o)
+	{
+		if (!(o instanceof ReportExcelCellStyle))
+			return false;
+		ReportExcelCellStyle cellStyle = (ReportExcelCellStyle) o;
+		return wrapText == cellStyle.wrapText && alignment == cellStyle.alignment &&
+			verticalAlignment == cellStyle.verticalAlignment && dataFormat == cellStyle.dataFormat &&
+			(font == null ? cellStyle.font == null : font.equals(cellStyle.font)) &&
+			fillPattern == cellStyle.fillPattern && fillForegroundColor == cellStyle.fillForegroundColor &&
+			fillBackgroundColor == cellStyle.fillBackgroundColor;
+	}
+	
+	public int hashCode()
+	{
+		int hashCode = (wrapText ? 1 : 0);
+		hashCode = hashCode * 31 + alignment;
+		hashCode = hashCode * 31 + verticalAlignment;
+		hashCode = hashCode * 31 + dataFormat;
+		hashCode = hashCode * 31 + (font == null ? 0 : font.hashCode());
+		hashCode = hashCode * 31 + fillPattern;
+		hashCode = hashCode * 31 + fillForegroundColor;
+		return hashCode * 31 + fillBackgroundColor;
+	}
 }
@@ -13,7 +13,6 @@ public class ReportExcelFont
 	private short heightInPoints = 0;
 	private short color = 0;
 	private short boldWeight = HSSFFont.BOLDWEIGHT_NORMAL;
-	private HSSFFont hssfFont = null;
 
 	public ReportExcelFont(String name, short heightInPoints, short color, short boldWeight)
 	{
@@ -47,14 +46,6 @@ public class ReportExcelFont
 	{
 		this.color = color;
 	}
-	public HSSFFont getHssfFont()
-	{
-		return hssfFont;
-	}
-	public void setHssfFont(HSSFFont hssfFont)
-	{
-		this.hssfFont = hssfFont;
-	}
 	public short getBoldWeight()
 	{
 		return boldWeight;
@@ -63,4 +54,21 @@ public class ReportExcelFont
 	{
 		this.boldWeight = boldWeight;
 	}
+
+	/**
+	 * Fonts are equal if they look the same.
+	 */
+	public boolean equals(Object o)
+	{
+		if (!(o instanceof ReportExcelFont))
+			return false;
+		ReportExcelFont font = (ReportExcelFont) o;
+		return (name == null ? font.name == null : name.equals(font.name)) &&
+			heightInPoints == font.heightInPoints && color == font.color && boldWeight == font.boldWeight;
+	}
+	
+	public int hashCode()
+	{
+		return ((name == null ? 0 : name.hashCode()) * 31 + heightInPoints) * 31 * 31 + color * 31 + boldWeight;
+	}
 }
@@ -1,20 +1,43 @@
 package net.btlcpy.outofstock.reports.format.excel;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 
-import org.apache.commons.collections.map.ListOrderedMap;
 import org.apache.poi.hssf.usermodel.HSSFCellStyle;
 import org.apache.poi.hssf.util.HSSFColor;
 
 /**
+ * <p>
  * Represents formatting options for a report that is exported to Microsoft Excel.
+ * </p>
+ * <p>
+ * Cell styles are given to rectangular regions of cells; where regions overlap, the region
+ * added last takes precedence. To look up the style of a cell without going through all the
+ * regions, the rows are split into bands of consecutive rows covered by the same regions
+ * (every region starts or ends a band), and the styles of the cells of a band are resolved
+ * once, into an array indexed by column, the first time a cell of the band is asked for.
+ * </p>
  * 
  * @author Ahmed A. Abd-Allah
  */
 public class ReportExcelFormat
 {
-	private ListOrderedMap /* <String, ReportExcelCellStyle> */ regionCellStyles = null;
+	/** Columns beyond this many (the most an Excel 97 worksheet has) are resolved region by region */
+	private static final int MAXIMUM_RESOLVED_COLUMNS = 256;
+	
+	/** The regions, in order of precedence (lowest first): x1, y1, x2, y2 */
+	private ArrayList /* int[] */ regions = null;
+	/** The cell style of each region */
+	private ArrayList /* ReportExcelCellStyle */ regionCellStyles = null;
 	private ReportExcelCellStyle defaultCellStyle = null;
 	
+	/** The first row of each band, ascending (null until computed) */
+	private int bandStarts[] = null;
+	/** The resolved cell styles of each band, by column (null until resolved) */
+	private ReportExcelCellStyle bandCellStyles[][] = null;
+	/** The number of columns resolved per band */
+	private int resolvedColumns = 0;
+	
 	public ReportExcelFormat()
 	{
 		defaultCellStyle = 
@@ -22,58 +45,123 @@ public class ReportExcelFormat
 				HSSFCellStyle.NO_FILL, (short) HSSFColor.AUTOMATIC.index, (short) HSSFColor.AUTOMATIC.index);
 	}
 	
-	public void addCellStyle(int x1, int y1, int x2, int y2, ReportExcelCellStyle cellStyle)
+	synchronized public void addCellStyle(int x1, int y1, int x2, int y2, ReportExcelCellStyle cellStyle)
 	{
-		if (regionCellStyles == null)
-			regionCellStyles = new ListOrderedMap();
-		regionCellStyles.put(x1 + " " + y1 + " " + x2 + " " + y2, cellStyle);
-	}
-	
-	private void toCoordinates(String regionString, int coordinates[])
-	{
-		int start = 0;
-		int spacePosition = -1; 
+		if (regions == null)
+		{
+			regions = new ArrayList();
+			regionCellStyles = new ArrayList();
+		}
 		
-		for (int i=0; i<4; i++)
+		// A region added again keeps its place in the order of precedence, but takes the new style
+		for (int i=0; i<regions.size(); i++)
 		{
-			if (i==3)
+			int region[] = (int[]) regions.get(i);
+			if (region[0] == x1 && region[1] == y1 && region[2] == x2 && region[3] == y2)
 			{
-				coordinates[i] = Integer.parseInt(regionString.substring(start));
-				break;
+				regionCellStyles.set(i, cellStyle);
+				bandStarts = null;
+				return;
 			}
-			spacePosition = regionString.indexOf(' ', start);
-			
-			coordinates[i] = Integer.parseInt(regionString.substring(start, spacePosition));
-			start = spacePosition + 1;
 		}
+		
+		regions.add(new int[] { x1, y1, x2, y2 });
+		regionCellStyles.add(cellStyle);
+		bandStarts = null;
 	}
 
 	public ReportExcelCellStyle getDefaultCellStyle()
 	{
 		return defaultCellStyle;
 	}
-	public void setDefaultCellStyle(ReportExcelCellStyle defaultCellStyle)
+	synchronized public void setDefaultCellStyle(ReportExcelCellStyle defaultCellStyle)
 	{
 		this.defaultCellStyle = defaultCellStyle;
+		bandStarts = null;
 	}
 	
-	public ReportExcelCellStyle getCellStyle(int x, int y)
+	synchronized public ReportExcelCellStyle getCellStyle(int x, int y)
 	{
-		ReportExcelCellStyle cellStyle = defaultCellStyle;
-		
 		// zero based
-		if (regionCellStyles != null)
+		if (regions == null)
+			return defaultCellStyle;
+		if (bandStarts == null)
+			computeBands();
+		
+		if (x < 0 || x >= resolvedColumns)
+			return findCellStyle(x, y);
+		
+		int band = Arrays.binarySearch(bandStarts, y);
+		if (band < 0)
+			band = -band - 2; // the band starting before y
+		if (band < 0)
+			return defaultCellStyle; // above all regions
+		
+		if (bandCellStyles[band] == null)
+			bandCellStyles[band] = resolveBand(bandStarts[band]);
+		return bandCellStyles[band][x];
+	}
+	
+	/**
+	 * Splits the rows into bands: every region starts a band at its first row, and another one
+	 * after its last row.
+	 */
+	private void computeBands()
+	{
+		int starts[] = new int[regions.size() * 2];
+		int maximumX = -1;
+		for (int i=0; i<regions.size(); i++)
 		{
-			int coordinates[] = new int[4];
-			for (int i=0; i<regionCellStyles.size(); i++)
-			{	// Note: later regions take precedence.
-				String regionString = (String) regionCellStyles.get(i);
-				toCoordinates(regionString, coordinates);
-				if (coordinates[0] <= x && x <= coordinates[2] &&
-					coordinates[1] <= y && y <= coordinates[3])
-					cellStyle = (ReportExcelCellStyle) regionCellStyles.getValue(i);
+			int region[] = (int[]) regions.get(i);
+			starts[2 * i] = region[1];
+			starts[2 * i + 1] = (region[3] == Integer.MAX_VALUE ? region[3] : region[3] + 1);
+			maximumX = Math.max(maximumX, region[2]);
+		}
+		Arrays.sort(starts);
+		
+		int unique = 0;
+		for (int i=0; i<starts.length; i++)
+			if (unique == 0 || starts[unique - 1] != starts[i])
+				starts[unique++] = starts[i];
+		
+		bandStarts = new int[unique];
+		System.arraycopy(starts, 0, bandStarts, 0, unique);
+		bandCellStyles = new ReportExcelCellStyle[unique][];
+		resolvedColumns = Math.min(maximumX + 1, MAXIMUM_RESOLVED_COLUMNS);
+	}
+	
+	/**
+	 * @param y a row of the band (all rows of a band are covered by the same regions)
+	 * @return the cell styles of the band's cells, by column
+	 */
+	private ReportExcelCellStyle[] resolveBand(int y)
+	{
+		ReportExcelCellStyle cellStyles[] = new ReportExcelCellStyle[resolvedColumns];
+		Arrays.fill(cellStyles, defaultCellStyle);
+		for (int i=0; i<regions.size(); i++)
+		{	// Note: later regions take precedence.
+			int region[] = (int[]) regions.get(i);
+			if (region[1] <= y && y <= region[3])
+			{
+				for (int x = Math.max(region[0], 0); x <= region[2] && x < resolvedColumns; x++)
+					cellStyles[x] = (ReportExcelCellStyle) regionCellStyles.get(i);
 			}
 		}
+		return cellStyles;
+	}
+	
+	/**
+	 * Finds the cell style of a cell region by region, for the cells outside the resolved columns.
+	 */
+	private ReportExcelCellStyle findCellStyle(int x, int y)
+	{
+		ReportExcelCellStyle cellStyle = defaultCellStyle;
+		for (int i=0; i<regions.size(); i++)
+		{	// Note: later regions take precedence.
+			int region[] = (int[]) regions.get(i);
+			if (region[0] <= x && x <= region[2] && region[1] <= y && y <= region[3])
+				cellStyle = (ReportExcelCellStyle) regionCellStyles.get(i);
+		}
 		return cellStyle;
 	}
 }
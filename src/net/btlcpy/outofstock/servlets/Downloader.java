@@ -1,5 +1,6 @@
 package net.btlcpy.outofstock.servlets;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -7,6 +8,7 @@ import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -18,9 +20,10 @@ import javax.servlet.http.HttpSessionListener;
 import net.btlcpy.outofstock.loggers.MainLog;
 import net.btlcpy.outofstock.reports.AveragesReport;
 import net.btlcpy.outofstock.reports.Report;
+import net.btlcpy.outofstock.reports.ReportRegistry;
+import net.btlcpy.outofstock.spreadsheetwriters.CsvExporter;
 import net.btlcpy.outofstock.spreadsheetwriters.ReportExporter;
 import net.btlcpy.outofstock.spreadsheetwriters.TrendChart;
-import net.btlcpy.outofstock.utilities.PortletServletSharedContext;
 import net.btlcpy.outofstock.utilities.StringUtils;
 
 /**
@@ -43,6 +46,9 @@ public class Downloader extends HttpServlet implements HttpSessionListener
 	/** Recommended for Serializable purposes */
 	public static final long serialVersionUID = 1;
 	
+	/** The size of the buffers used when sending files */
+	private static final int BUFFER_SIZE = 64 * 1024;
+	
 	/** The location to place temporary files. Configurable in web.xml. */
 	private String temporaryFilesLocation = null;
 	
@@ -59,9 +65,7 @@ public class Downloader extends HttpServlet implements HttpSessionListener
 	/**
 	 * "Exporting a report" in this context means generating a Microsoft Excel format file
 	 * which has the report's data in it, along with a description of the report. This method
-	 * generates the file, sends it to the user, then deletes the file. To avoid conflicts
-	 * with other users generating files, the filename is constructed to include the current
-	 * session number in it.
+	 * generates the file straight into the response, without going through a temporary file.
 	 * 
 	 * @param request HTTP request
 	 * @param response HTTP response
@@ -69,7 +73,6 @@ public class Downloader extends HttpServlet implements HttpSessionListener
 	private void sendReportForExport(HttpServletRequest request, HttpServletResponse response)
 	{
 		String sessionId = null;
-		File temporaryFile = null;
 		
 		try
 		{
@@ -78,40 +81,23 @@ public class Downloader extends HttpServlet implements HttpSessionListener
 
 			MainLog.getLog().debug("Sending report export for session: " + sessionId);
 			
-			Report report = (Report) PortletServletSharedContext.getInstance().get("report" + sessionId);
+			Report report = ReportRegistry.getRegistry().get(sessionId);
 			
 			if (report != null)
 			{
-				// Export the file into a temporary location
-				String temporaryReportLocation = 
-					getServletContext().getRealPath(temporaryFilesLocation + "/report" + sessionId + ".xls"); 
-				ReportExporter.export(report, temporaryReportLocation);
-
-				temporaryFile = new File(temporaryReportLocation);
-				long lengthOfFile = temporaryFile.length();
-				MainLog.getLog().debug( "Length of report: " + lengthOfFile );
-				
-				if (lengthOfFile <= 0)
-					return;
-			
 				SimpleDateFormat formatter = new SimpleDateFormat ("_yyyy-MM-dd_HH-mm");
 				String fileName = StringUtils.replaceSubstrings(report.getReportType(), " ", "") + 
 					formatter.format(new Date()) + ".xls";
 				
-				// set content type header before accessing the Writer
+				// set content type header before accessing the output stream
 				response.setContentType("application/octet-stream");
 				response.setHeader("Content-disposition", "attachment; filename=" + fileName); // report.xls
-				FileInputStream is = new FileInputStream( temporaryReportLocation );
+				response.setBufferSize(BUFFER_SIZE);
 	
 				// write the file out to the downloading user
-				int read = 0;
-				byte[] bytes = new byte[1024];
-				OutputStream os = response.getOutputStream();
-				while( (read = is.read(bytes)) != -1 )
-					os.write(bytes, 0, read);
-				os.flush();
+				OutputStream os = new BufferedOutputStream(response.getOutputStream(), BUFFER_SIZE);
+				ReportExporter.export(report, os);
 				os.close();
-				is.close();
 			}
 			else
 			{
@@ -119,7 +105,7 @@ public class Downloader extends HttpServlet implements HttpSessionListener
 				response.setHeader("Content-disposition", "attachment; filename=sessionExpired.txt");
 				
 				PrintWriter pw = response.getWriter();
-				pw.write("No report found. Usually this means your session expired. Please run the report query again.");
+				pw.write("No report found. Usually this means your session expired or the report was not looked at for a while. Please run the report query again.");
 				pw.flush();
 				pw.close();
 			}			
@@ -128,20 +114,65 @@ public class Downloader extends HttpServlet implements HttpSessionListener
 		{
 			MainLog.getLog().error("Unable to send report export to client", e);
 		}
-		finally
+	}
+	
+	/**
+	 * Sends a report as comma separated values (see {@link CsvExporter}), for bulk downloads.
+	 * The rows are written straight into the response; if the client accepts gzip encoding
+	 * (e.g. <code>curl --compressed</code>), the response is compressed on the fly.
+	 * 
+	 * @param request HTTP request
+	 * @param response HTTP response
+	 */
+	private void sendReportAsCsv(HttpServletRequest request, HttpServletResponse response)
+	{
+		String sessionId = null;
+		
+		try
 		{
-			if (sessionId != null && temporaryFile != null)
+			sessionId = request.getParameter("sid");
+
+			MainLog.getLog().debug("Sending CSV report export for session: " + sessionId);
+			
+			Report report = ReportRegistry.getRegistry().get(sessionId);
+			
+			if (report != null)
 			{
-				try
-				{
-					if (!temporaryFile.delete())
-						throw new IOException("Unable to delete report export temporary file");
-				}
-				catch (Exception e)
-				{
-					MainLog.getLog().error("Unable to delete report export temporary file", e);
-				}
+				SimpleDateFormat formatter = new SimpleDateFormat ("_yyyy-MM-dd_HH-mm");
+				String fileName = StringUtils.replaceSubstrings(report.getReportType(), " ", "") + 
+					formatter.format(new Date()) + ".csv";
+				String acceptEncoding = request.getHeader("Accept-Encoding");
+				boolean gzip = (acceptEncoding != null && acceptEncoding.toLowerCase().indexOf("gzip") >= 0);
+				
+				// set content type header before accessing the output stream
+				response.setContentType("text/csv; charset=UTF-8");
+				response.setHeader("Content-disposition", "attachment; filename=" + fileName); // report.csv
+				if (gzip)
+					response.setHeader("Content-Encoding", "gzip");
+				response.setBufferSize(BUFFER_SIZE);
+				
+				OutputStream os = response.getOutputStream();
+				if (gzip)
+					os = new GZIPOutputStream(os, BUFFER_SIZE);
+				else
+					os = new BufferedOutputStream(os, BUFFER_SIZE);
+				CsvExporter.export(report, os);
+				os.close();
 			}
+			else
+			{
+				response.setContentType("application/octet-stream");
+				response.setHeader("Content-disposition", "attachment; filename=sessionExpired.txt");
+				
+				PrintWriter pw = response.getWriter();
+				pw.write("No report found. Usually this means your session expired or the report was not looked at for a while. Please run the report query again.");
+				pw.flush();
+				pw.close();
+			}			
+		}
+		catch (Exception e)
+		{
+			MainLog.getLog().error("Unable to send CSV report export to client", e);
 		}
 	}
 	
@@ -166,7 +197,7 @@ public class Downloader extends HttpServlet implements HttpSessionListener
 
 			MainLog.getLog().debug("Sending trend chart for session: " + sessionId);
 			
-			AveragesReport report = (AveragesReport) PortletServletSharedContext.getInstance().get("report" + sessionId);
+			AveragesReport report = (AveragesReport) ReportRegistry.getRegistry().get(sessionId);
 			
 			if (report != null)
 			{
@@ -197,7 +228,7 @@ public class Downloader extends HttpServlet implements HttpSessionListener
 	
 				// write the file out to the downloading user
 				int read = 0;
-				byte[] bytes = new byte[1024];
+				byte[] bytes = new byte[BUFFER_SIZE];
 				OutputStream os = response.getOutputStream();
 				while( (read = is.read(bytes)) != -1 )
 					os.write(bytes, 0, read);
@@ -211,7 +242,7 @@ public class Downloader extends HttpServlet implements HttpSessionListener
 				response.setHeader("Content-disposition", "attachment; filename=sessionExpired.txt");
 				
 				PrintWriter pw = response.getWriter();
-				pw.write("No report found. Usually this means your session expired. Please run the report query again.");
+				pw.write("No report found. Usually this means your session expired or the report was not looked at for a while. Please run the report query again.");
 				pw.flush();
 				pw.close();
 			}			
@@ -247,6 +278,8 @@ public class Downloader extends HttpServlet implements HttpSessionListener
 		
 		if (action.equals("exportreport"))
 			sendReportForExport(request, response);
+		else if (action.equals("exportreportcsv"))
+			sendReportAsCsv(request, response);
 		else if (action.equals("createtrendchart"))
 			sendTrendChart(request, response);
 	}
@@ -270,14 +303,11 @@ public class Downloader extends HttpServlet implements HttpSessionListener
 	public void sessionDestroyed(HttpSessionEvent se)
 	{
 		// MainLog.getLog().trace("\n\n\n\tSESSION DESTRUCTION IMMINENT: " + se.getSession().getId() + "\n\n\n\n");
-		// MainLog.getLog().trace("\n\n\n\t(PSSC size) " + PortletServletSharedContext.getInstance().size() +"\n\n\n\n");
 
 		/*
-		 * Removes the report from the shared memory space since the session is expired, otherwise
-		 * all reports will slowly accumulate in memory, unable to be garbage collected.
+		 * Removes the report from the registry since the session is expired, rather than leaving
+		 * it to take up memory (or disk space) until it expires there as well.
 		 */
-		PortletServletSharedContext.getInstance().remove("report" + se.getSession().getId());
-		
-		// MainLog.getLog().trace("\n\n\n\t(PSSC size) " + PortletServletSharedContext.getInstance().size() +"\n\n\n\n");
+		ReportRegistry.getRegistry().remove(se.getSession().getId());
 	}
 }
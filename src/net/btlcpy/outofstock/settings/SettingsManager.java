@@ -1,6 +1,7 @@
 package net.btlcpy.outofstock.settings;
 
 import java.sql.Connection;
+import java.sql.Date;
 import java.sql.SQLException;
 
 import net.btlcpy.outofstock.loggers.MainLog;
@@ -9,6 +10,7 @@ import net.btlcpy.outofstock.persistence.beans.BasePersistentBean;
 import net.btlcpy.outofstock.persistence.beans.OutOfStockEvent;
 import net.btlcpy.outofstock.persistence.beans.ProductCategory;
 import net.btlcpy.outofstock.persistence.beans.Setting;
+import net.btlcpy.outofstock.persistence.views.ProductDescription;
 
 import org.apache.commons.collections.map.ListOrderedMap;
 
@@ -118,21 +120,39 @@ public class SettingsManager
 
 			beverageCategory = beverageCategory.trim();
 			
+			String categoryEvents =
+					"from outofstockevents, prdcts, prdctctgrstoprdcts, prdctctgrs " +
+					"where outofstockevents.product = prdcts.primarykey and " +
+					"prdctctgrstoprdcts.product = prdcts.primarykey and " +
+					"prdctctgrstoprdcts.productcategory = prdctctgrs.primarykey and " +
+					"prdctctgrs.name = " + BasePersistentBean.BQ + BasePersistentBean.dq(beverageCategory) + BasePersistentBean.EQ;
+
+			// the days of the events about to become ignored, whose rollups must be recomputed
+			ListOrderedMap newlyIgnored = PersistenceManager.getPersistenceManager().findRows(connection,
+				"select min(outofstockevents.dateoccurred) AS earliest, max(outofstockevents.dateoccurred) AS latest " +
+				categoryEvents + " and bitand(outofstockevents.metaflags, 1)+0 = 0", null);
+
 			PersistenceManager.getPersistenceManager().bulkUpdate(
 				connection, OutOfStockEvent.tableName, "metaflags = bitor(metaflags, 1)+0", 
 				"primarykey IN " +
 				"( " +
 					"select outofstockevents.primarykey " +
-					"from outofstockevents, prdcts, prdctctgrstoprdcts, prdctctgrs " +
-					"where outofstockevents.product = prdcts.primarykey and " +
-					"prdctctgrstoprdcts.product = prdcts.primarykey and " +
-					"prdctctgrstoprdcts.productcategory = prdctctgrs.primarykey and " +
-					"prdctctgrs.name = " + BasePersistentBean.BQ + BasePersistentBean.dq(beverageCategory) + BasePersistentBean.EQ +
+					categoryEvents +
 				")");
+
+			if (newlyIgnored != null && newlyIgnored.size() > 0)
+			{
+				ListOrderedMap range = (ListOrderedMap) newlyIgnored.getValue(0);
+				if (range.get("EARLIEST") != null)
+					OutOfStockEvent.refreshRollups(connection, 
+						(Date) range.get("EARLIEST"), (Date) range.get("LATEST"));
+			}
+
 			if (useOwnConnection)
 			{
 				connection.commit();
 				committed = true;
+				OutOfStockEvent.dataChanged();
 			}
 		}
 		catch (Exception e)
@@ -190,6 +210,9 @@ public class SettingsManager
 			{
 				connection.commit();
 				committed = true;
+				// the productdescriptions view has just been refreshed (otherwise the caller does this)
+				ProductDescription.invalidateIndex();
+				OutOfStockEvent.dataChanged();
 			}
 		}
 		catch (Exception e)
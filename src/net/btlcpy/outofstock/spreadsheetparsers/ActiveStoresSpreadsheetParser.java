@@ -7,7 +7,7 @@ import java.util.Calendar;
 import java.util.Map;
 
 import net.btlcpy.outofstock.loggers.MainLog;
-import net.btlcpy.outofstock.persistence.BatchManager;
+import net.btlcpy.outofstock.persistence.PipelinedBatchManager;
 import net.btlcpy.outofstock.persistence.PersistenceManager;
 import net.btlcpy.outofstock.persistence.beans.BasePersistentBean;
 import net.btlcpy.outofstock.persistence.beans.Bottler;
@@ -26,16 +26,10 @@ import net.btlcpy.outofstock.persistence.beans.DistributorDistrict;
 import net.btlcpy.outofstock.persistence.beans.DistributorDistrictToStoreMapping;
 import net.btlcpy.outofstock.persistence.beans.DistributorDivision;
 import net.btlcpy.outofstock.persistence.beans.DistributorDivisionToDistributorDistrictMapping;
+import net.btlcpy.outofstock.persistence.beans.OutOfStockEvent;
 import net.btlcpy.outofstock.persistence.beans.Store;
+import net.btlcpy.outofstock.persistence.views.StoreLocation;
 
-import org.apache.poi.hssf.eventusermodel.HSSFUserException;
-import org.apache.poi.hssf.record.BOFRecord;
-import org.apache.poi.hssf.record.BoundSheetRecord;
-import org.apache.poi.hssf.record.EOFRecord;
-import org.apache.poi.hssf.record.LabelSSTRecord;
-import org.apache.poi.hssf.record.NumberRecord;
-import org.apache.poi.hssf.record.Record;
-import org.apache.poi.hssf.record.SSTRecord;
 import org.apache.poi.hssf.usermodel.HSSFDateUtil;
 
 /**
@@ -153,7 +147,7 @@ public class ActiveStoresSpreadsheetParser extends SpreadsheetParser
 		String sdt2strKey[] = { "distributordistrict", "store" };
 
 		PersistenceManager manager = PersistenceManager.getPersistenceManager();
-		batchManager = new BatchManager(connection);
+		batchManager = new PipelinedBatchManager(connection);
 
 		// For the different objects in the next section of code (bottlers, bottler business units, etc.)
 		// we create a new object that will be reused per line in the spreadsheet, then create a
@@ -407,230 +401,177 @@ public class ActiveStoresSpreadsheetParser extends SpreadsheetParser
 		if (allDistributorDistrictToStoreMappings != null) regressMissingPersistentObjects(allDistributorDistrictToStoreMappings.values());
 	}
 
-	/**
-	 * The POI design requires that there be a method with this signature that is called by POI while a spreadsheet is
-	 * being parsed.
-	 * @param record the Excel record being read currently
-	 */
-	public short abortableProcessRecord(Record record)
-		throws HSSFUserException
+	protected void startProcessing()
+		throws Exception
 	{
-		try
+		initializePersistentObjects();
+	}
+
+	protected void finishProcessing()
+		throws Exception
+	{
+		// MainLog.getLog().debug("Reached end of rows");
+		
+		// the rows are written in the background; wait for them before using the connection here
+		batchManager.flush();
+		regressMissingPersistentObjects();
+
+		batchManager.executeAll(true);
+		
+		// these three only because they always appear on the specify report parameters page
+		DistributorDivision.getCache(connection).reload(connection);
+		Bottler.getCache(connection).reload(connection);
+		BottlerSalesRoute.getCache(connection).reload(connection);
+		
+		Store.updateTotals(connection);
+		Bottler.updateTotalActive(connection);
+		BottlerBranch.updateTotalActive(connection);
+		BottlerSalesRoute.updateTotalActive(connection);
+		DistributorDistrict.updateTotalActive(connection);
+		Product.updateTotalActive(connection);
+		ProductPackage.updateTotalActive(connection);
+	}
+
+	protected void processNumber(int row, int column, double value)
+		throws Exception
+	{
+		switch (column)
 		{
-			if (debugging)
-				abortableProcessRecordForDebugging(record);
-
-			switch (record.getSid())
-			{
-			case SSTRecord.sid:
-				staticStringRecords = (SSTRecord) record;
-				break;
-			case BOFRecord.sid:
-				if (((BOFRecord) record).getType() == BOFRecord.TYPE_WORKSHEET)
-				{
-					if (relevantSheetPosition >= 1)
-					{
-						relevantSheetPosition--;
-						if (relevantSheetPosition > 0)
-							break;
-
-						// else we have reached the beginning of the relevant sheet
-						processing = true;
-						initializePersistentObjects();
-					}
-				}
-				break;
-			case BoundSheetRecord.sid:
-				if (relevantSheetPosition <= 0) // still haven't identified relevant sheet
-					relevantSheetPosition--;
-				if (((BoundSheetRecord) record).getSheetname().equalsIgnoreCase(relevantSheetName))
-				{
-					relevantSheetPosition = (short) -relevantSheetPosition;
-				}
-				break;
-			case EOFRecord.sid:
-				// have we reached the end of the relevant sheet's data?
-				if (processing)
-				{
-					// MainLog.getLog().debug("Reached end of rows");
-					
-					regressMissingPersistentObjects();
-
-					batchManager.executeAll(true);
-					
-					// these three only because they always appear on the specify report parameters page
-					DistributorDivision.getCache(connection).reload(connection);
-					Bottler.getCache(connection).reload(connection);
-					BottlerSalesRoute.getCache(connection).reload(connection);
-					
-					Store.updateTotals(connection);
-					Bottler.updateTotalActive(connection);
-					BottlerBranch.updateTotalActive(connection);
-					BottlerSalesRoute.updateTotalActive(connection);
-					DistributorDistrict.updateTotalActive(connection);
-					Product.updateTotalActive(connection);
-					ProductPackage.updateTotalActive(connection);
-
-					processing = false;
-					return 1; // STOP PROCESSING
-				}
-				break;
-			case NumberRecord.sid:
-				if (processing)
-				{
-					NumberRecord numberRecord = (NumberRecord) record;
-					if (numberRecord.getRow() == 0)
-						break;
-
-					// process the number
-					switch (numberRecord.getColumn())
-					{
-					case 0: // count
-						// MainLog.getLog().debug("Row: " + numberRecord.getRow());
-						resetPersistentObjects();
-						storeCount++;
-						break;
-					case 1: // store_id
-						store.setId(new Integer((int) numberRecord.getValue()));
-						break;
-					case 3: // district_id
-						distributorDistrict.setId(new Integer((int) numberRecord.getValue()));
-						break;
-					case 4: // district_cd
-						distributorDistrict.setCd(new Integer((int) numberRecord.getValue()).toString());
-						break;
-					case 6: // division_id
-						distributorDivision.setId(new Integer((int) numberRecord.getValue()));
-						break;
-					case 10: // store_zip5_id
-						store.setZip(new Long((long) numberRecord.getValue()).toString());
-						break;
-					case 12: // store_voice_phone_nbr
-						store.setPhoneNumber(new Long((long) numberRecord.getValue()).toString());
-						break;
-					case 13: // last_remodel_dt
-						store.setDateLastRemodeled(new Date(HSSFDateUtil.getJavaDate(numberRecord.getValue()).getTime()));
-						break;
-					case 14: // opened_dt
-						store.setDateOpened(new Date(HSSFDateUtil.getJavaDate(numberRecord.getValue()).getTime()));
-						break;
-					case 15: // closed_dt
-						store.setDateClosed(new Date(HSSFDateUtil.getJavaDate(numberRecord.getValue()).getTime()));
-						break;
-					case 18: // total_selling_area_amt
-						store.setTotalSellingArea(new Integer((int) numberRecord.getValue()));
-						break;
-					case 19: //  total_FLM count
-						store.setTotalFlmCount(new Integer((int) numberRecord.getValue()));
-						break;
-					default:
-						break;
-					}
-				}
-				break;
-			case LabelSSTRecord.sid:
-				if (processing)
-				{
-					LabelSSTRecord labelRecord = (LabelSSTRecord) record;
-					if (labelRecord.getRow() == 0)
-						break;
-
-					// process the string
-					switch (labelRecord.getColumn())
-					{
-					case 0: // count
-						// MainLog.getLog().debug("Row: " + labelRecord.getRow());
-						resetPersistentObjects();
-						storeCount++;
-						break;
-					case 2: // store_nm
-						store.setName(staticStringRecords.getString(labelRecord.getSSTIndex()).toString().trim());
-						break;
-					case 4: // district_cd
-						distributorDistrict.setCd(staticStringRecords.getString(labelRecord.getSSTIndex()).toString().trim());
-						break;
-					case 5: // district_nm
-						distributorDistrict.setName(staticStringRecords.getString(labelRecord.getSSTIndex()).toString().trim());
-						break;
-					case 7: // division_nm
-						distributorDivision.setName(staticStringRecords.getString(labelRecord.getSSTIndex()).toString().trim());
-						break;
-					case 8: // store_addr_line2_txt
-						store.setAddress(staticStringRecords.getString(labelRecord.getSSTIndex()).toString().trim());
-						break;
-					case 9: // store_city_nm
-						store.setCity(staticStringRecords.getString(labelRecord.getSSTIndex()).toString().trim());
-						break;
-					case 10: // store_zip5_id
-						store.setZip(staticStringRecords.getString(labelRecord.getSSTIndex()).toString().trim());
-						break;
-					case 11: // store_state_id
-						store.setState(staticStringRecords.getString(labelRecord.getSSTIndex()).toString().trim());
-						break;
-					case 12: // store_voice_phone_nbr
-						store.setPhoneNumber(staticStringRecords.getString(labelRecord.getSSTIndex()).toString().trim());
-						break;
-					case 13: // last_remodel_dt
-						// Excel stores dates as numbers, so strings mean no useful data here
-						store.setDateLastRemodeled(noDateIndicator);
-						break;
-					case 14: // opened_dt
-						// Excel stores dates as numbers, so strings mean no useful data here
-						store.setDateOpened(noDateIndicator);
-						break;
-					case 15: // closed_dt
-						// Excel stores dates as numbers, so strings mean no useful data here
-						store.setDateClosed(noDateIndicator);
-						break;
-					case 16: // Lifestyle (1/26/07)
-						store.setLifeStyle(staticStringRecords.getString(labelRecord.getSSTIndex()).toString().trim());
-						break;
-					case 17: // DISTRIBUTOR.COM
-						store.setDistributorCom(staticStringRecords.getString(labelRecord.getSSTIndex()).toString().trim());
-						break;
-					case 18: // total_selling_area_amt
-						store.setTotalSellingArea(new Integer(0));
-						break;
-					case 19: // total_FLM count
-						store.setTotalFlmCount(new Integer(0));
-						break;
-					case 20: // Bottling Company Bottler
-						bottler.setName(staticStringRecords.getString(labelRecord.getSSTIndex()).toString().trim());
-						break;
-					case 21: // KO Bottler Region
-						bottlerBusinessUnit.setName(staticStringRecords.getString(labelRecord.getSSTIndex()).toString().trim());
-						break;
-					case 22: // Bottler Market Unit 
-						bottlerMarketUnit.setName(staticStringRecords.getString(labelRecord.getSSTIndex()).toString().trim());
-						break;
-					case 23: // KO Bottler Branch 
-						bottlerBranch.setName(staticStringRecords.getString(labelRecord.getSSTIndex()).toString().trim());
-						break;
-					case 24: // KO Sales Route
-						bottlerSalesRoute.setName(staticStringRecords.getString(labelRecord.getSSTIndex()).toString().trim());
-
-						persistPersistentObjects();
-
-						break;
-					default:
-						break;
-					}
-				}
-				break;
-			}
-
-			return 0;
+		case 0: // count
+			// MainLog.getLog().debug("Row: " + row);
+			resetPersistentObjects();
+			storeCount++;
+			break;
+		case 1: // store_id
+			store.setId(new Integer((int) value));
+			break;
+		case 3: // district_id
+			distributorDistrict.setId(new Integer((int) value));
+			break;
+		case 4: // district_cd
+			distributorDistrict.setCd(new Integer((int) value).toString());
+			break;
+		case 6: // division_id
+			distributorDivision.setId(new Integer((int) value));
+			break;
+		case 10: // store_zip5_id
+			store.setZip(new Long((long) value).toString());
+			break;
+		case 12: // store_voice_phone_nbr
+			store.setPhoneNumber(new Long((long) value).toString());
+			break;
+		case 13: // last_remodel_dt
+			store.setDateLastRemodeled(new Date(HSSFDateUtil.getJavaDate(value).getTime()));
+			break;
+		case 14: // opened_dt
+			store.setDateOpened(new Date(HSSFDateUtil.getJavaDate(value).getTime()));
+			break;
+		case 15: // closed_dt
+			store.setDateClosed(new Date(HSSFDateUtil.getJavaDate(value).getTime()));
+			break;
+		case 18: // total_selling_area_amt
+			store.setTotalSellingArea(new Integer((int) value));
+			break;
+		case 19: //  total_FLM count
+			store.setTotalFlmCount(new Integer((int) value));
+			break;
+		default:
+			break;
 		}
-		catch (Exception e)
+	}
+
+	protected void processString(int row, int column, String value)
+		throws Exception
+	{
+		switch (column)
 		{
-			MainLog.getLog().error("Parsing error", e);
-			errorIndicator = "Underlying exception: " + e.getClass().getName() + 
-				(e.getMessage() != null ? ": " + e.getMessage() : "") + "\n" +
-				"Record:\n" + record.toString();
-			return 1;
+		case 0: // count
+			// MainLog.getLog().debug("Row: " + row);
+			resetPersistentObjects();
+			storeCount++;
+			break;
+		case 2: // store_nm
+			store.setName(value.trim());
+			break;
+		case 4: // district_cd
+			distributorDistrict.setCd(value.trim());
+			break;
+		case 5: // district_nm
+			distributorDistrict.setName(value.trim());
+			break;
+		case 7: // division_nm
+			distributorDivision.setName(value.trim());
+			break;
+		case 8: // store_addr_line2_txt
+			store.setAddress(value.trim());
+			break;
+		case 9: // store_city_nm
+			store.setCity(value.trim());
+			break;
+		case 10: // store_zip5_id
+			store.setZip(value.trim());
+			break;
+		case 11: // store_state_id
+			store.setState(value.trim());
+			break;
+		case 12: // store_voice_phone_nbr
+			store.setPhoneNumber(value.trim());
+			break;
+		case 13: // last_remodel_dt
+			// Excel stores dates as numbers, so strings mean no useful data here
+			store.setDateLastRemodeled(noDateIndicator);
+			break;
+		case 14: // opened_dt
+			// Excel stores dates as numbers, so strings mean no useful data here
+			store.setDateOpened(noDateIndicator);
+			break;
+		case 15: // closed_dt
+			// Excel stores dates as numbers, so strings mean no useful data here
+			store.setDateClosed(noDateIndicator);
+			break;
+		case 16: // Lifestyle (1/26/07)
+			store.setLifeStyle(value.trim());
+			break;
+		case 17: // DISTRIBUTOR.COM
+			store.setDistributorCom(value.trim());
+			break;
+		case 18: // total_selling_area_amt
+			store.setTotalSellingArea(new Integer(0));
+			break;
+		case 19: // total_FLM count
+			store.setTotalFlmCount(new Integer(0));
+			break;
+		case 20: // Bottling Company Bottler
+			bottler.setName(value.trim());
+			break;
+		case 21: // KO Bottler Region
+			bottlerBusinessUnit.setName(value.trim());
+			break;
+		case 22: // Bottler Market Unit 
+			bottlerMarketUnit.setName(value.trim());
+			break;
+		case 23: // KO Bottler Branch 
+			bottlerBranch.setName(value.trim());
+			break;
+		case 24: // KO Sales Route
+			bottlerSalesRoute.setName(value.trim());
+
+			persistPersistentObjects();
+
+			break;
+		default:
+			break;
 		}
 	}
 
+	protected void afterCommit()
+	{
+		// the storelocations view has just been refreshed
+		StoreLocation.reloadIndex(connection);
+		// reports group events by the store hierarchy
+		OutOfStockEvent.dataChanged();
+	}
+
 	public String getUserActionDescription()
 	{
 		return "Active stores spreadsheet: " + (spreadsheetFileName != null ? spreadsheetFileName :
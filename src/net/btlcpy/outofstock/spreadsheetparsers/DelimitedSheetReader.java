@@ -0,0 +1,375 @@
+package net.btlcpy.outofstock.spreadsheetparsers;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import net.btlcpy.outofstock.loggers.MainLog;
+
+/**
+ * <p>
+ * Reads a file of comma (.csv) or tab (.tsv) separated values and passes its fields on to a
+ * {@link SpreadsheetParser}, the same way the parser's own POI listener passes on the cells of
+ * an Excel file: {@link SpreadsheetParser#startProcessing()}, then every non-empty field below
+ * the header line, with {@link SpreadsheetParser#endRow(int)} after each line that had any, then
+ * {@link SpreadsheetParser#finishProcessing()}. Fields may be quoted
+ * (RFC 4180), in which case they may hold delimiters, line breaks and doubled quotes.
+ * </p>
+ * <p>
+ * Such files carry no cell types, so the parser says which columns hold numbers (see
+ * {@link SpreadsheetParser#getNumberColumns()}). Fields of those columns, quoted or not, are
+ * converted to numbers straight from the bytes read, without going through Strings; a field of
+ * such a column that is not a number fails the parsing, as a bad cell of an Excel file would.
+ * Fields of number columns holding only spaces are skipped like empty ones. Fields of other
+ * columns are passed on as (UTF-8) text.
+ * </p>
+ * <p>
+ * The file is read through a buffer of its own, a field at a time, so memory use does not grow
+ * with the size of the file.
+ * </p>
+ *
+ * @author Ahmed A. Abd-Allah
+ */
+public class DelimitedSheetReader
+{
+	// ----- Static members ---------------------------------------------------
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/** Powers of ten that doubles hold exactly */
+	private static final double POWERS_OF_TEN[] = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	/** The largest mantissa that doubles hold exactly (2^53) */
+	private static final long MAXIMUM_EXACT_MANTISSA = 1L << 53;
+
+	// ----- Instance members -------------------------------------------------
+	private SpreadsheetParser parser;
+	private byte delimiter;
+	private boolean numberColumns[];
+
+	private InputStream in;
+	private byte buffer[] = new byte[BUFFER_SIZE];
+	private int position = 0;
+	private int limit = 0;
+
+	/** The bytes of the field being read */
+	private byte field[] = new byte[256];
+	private int fieldLength = 0;
+
+	/** The result of the last {@link #parseNumber()} */
+	private double number;
+
+	private int row = 0;
+	private int column = 0;
+
+	/** Whether any field of the current line has been passed on */
+	private boolean rowProcessed = false;
+
+	/**
+	 * @param parser the parser to pass the fields on to
+	 * @param delimiter the field delimiter, ',' or '\t'
+	 */
+	public DelimitedSheetReader(SpreadsheetParser parser, char delimiter)
+	{
+		this.parser = parser;
+		this.delimiter = (byte) delimiter;
+
+		int columns[] = parser.getNumberColumns();
+		int numberOfColumns = 0;
+		for (int i=0; columns != null && i<columns.length; i++)
+			numberOfColumns = Math.max(numberOfColumns, columns[i] + 1);
+		numberColumns = new boolean[numberOfColumns];
+		for (int i=0; columns != null && i<columns.length; i++)
+			numberColumns[columns[i]] = true;
+	}
+
+	/**
+	 * Reads a file, passing its fields on to the parser. Stops early if the parser fails (see
+	 * {@link SpreadsheetParser#errorIndicator}).
+	 *
+	 * @param in the file; it is not closed
+	 * @throws Exception if the file cannot be read, or the parser fails to start or finish
+	 */
+	public void read(InputStream in)
+		throws Exception
+	{
+		this.in = in;
+
+		parser.processing = true;
+		try
+		{
+			parser.startProcessing();
+
+			skipByteOrderMark();
+			int end;
+			do
+			{
+				end = readField();
+				if (row > 0 && fieldLength > 0)
+				{
+					if (!processField())
+						return;
+					rowProcessed = true;
+				}
+
+				if (end == '\n' || end == -1)
+				{
+					if (rowProcessed && !endRow())
+						return;
+					rowProcessed = false;
+					row++;
+					column = 0;
+				}
+				else
+					column++;
+			}
+			while (end != -1);
+
+			parser.finishProcessing();
+		}
+		finally
+		{
+			parser.processing = false;
+		}
+	}
+
+	/**
+	 * Passes the field just read on to the parser.
+	 *
+	 * @return false if the parser failed, or the field should have been a number but is not
+	 */
+	private boolean processField()
+	{
+		try
+		{
+			if (column < numberColumns.length && numberColumns[column])
+			{
+				if (parseNumber())
+					parser.processNumber(row, column, number);
+				else if (!isBlank())
+				{
+					parser.errorIndicator = "Not a number: " + new String(field, 0, fieldLength, "UTF-8") + "\n" +
+						"Field: line " + (row + 1) + ", column " + (column + 1);
+					return false;
+				}
+			}
+			else
+				parser.processString(row, column, new String(field, 0, fieldLength, "UTF-8"));
+			return true;
+		}
+		catch (Exception e)
+		{
+			MainLog.getLog().error("Parsing error", e);
+			parser.errorIndicator = "Underlying exception: " + e.getClass().getName() +
+				(e.getMessage() != null ? ": " + e.getMessage() : "") + "\n" +
+				"Field: line " + (row + 1) + ", column " + (column + 1);
+			return false;
+		}
+	}
+
+	/**
+	 * Tells the parser the line just read has ended.
+	 *
+	 * @return false if the parser failed
+	 */
+	private boolean endRow()
+	{
+		try
+		{
+			parser.endRow(row);
+			return true;
+		}
+		catch (Exception e)
+		{
+			MainLog.getLog().error("Parsing error", e);
+			parser.errorIndicator = "Underlying exception: " + e.getClass().getName() +
+				(e.getMessage() != null ? ": " + e.getMessage() : "") + "\n" +
+				"Line " + (row + 1);
+			return false;
+		}
+	}
+
+	private int read()
+		throws IOException
+	{
+		if (position == limit)
+		{
+			limit = in.read(buffer, 0, buffer.length);
+			position = 0;
+			if (limit <= 0)
+			{
+				limit = 0;
+				return -1;
+			}
+		}
+		return buffer[position++] & 0xff;
+	}
+
+	private void unread()
+	{
+		position--;
+	}
+
+	private void skipByteOrderMark()
+		throws IOException
+	{
+		int b = read();
+		if (b == 0xef)
+		{
+			// assume the rest of the UTF-8 byte order mark
+			read();
+			read();
+		}
+		else if (b != -1)
+			unread();
+	}
+
+	private void append(int b)
+	{
+		if (fieldLength == field.length)
+		{
+			byte grown[] = new byte[field.length * 2];
+			System.arraycopy(field, 0, grown, 0, fieldLength);
+			field = grown;
+		}
+		field[fieldLength++] = (byte) b;
+	}
+
+	/**
+	 * Reads the next field into {@link #field}.
+	 *
+	 * @return what ended the field: the delimiter, '\n' (for any line break), or -1 at the end
+	 * of the file
+	 */
+	private int readField()
+		throws IOException
+	{
+		fieldLength = 0;
+
+		int b = read();
+		if (b == '"')
+		{
+			while (true)
+			{
+				b = read();
+				if (b == -1)
+					return -1;
+				if (b == '"')
+				{
+					b = read();
+					if (b != '"') // the closing quote; anything up to the delimiter is taken as is
+						break;
+				}
+				append(b);
+			}
+		}
+
+		while (b != -1 && b != delimiter && b != '\n' && b != '\r')
+		{
+			append(b);
+			b = read();
+		}
+
+		if (b == '\r')
+		{
+			b = read();
+			if (b != '\n' && b != -1)
+				unread();
+			return '\n';
+		}
+		return b;
+	}
+
+	/**
+	 * @return true if the field just read holds nothing but spaces
+	 */
+	private boolean isBlank()
+	{
+		for (int i=0; i<fieldLength; i++)
+			if (field[i] != ' ')
+				return false;
+		return true;
+	}
+
+	/**
+	 * Converts the field just read to a number, if it is one (optionally surrounded by spaces):
+	 * an optional sign, digits with an optional decimal point, and an optional exponent.
+	 *
+	 * @return false if the field is not a number
+	 */
+	private boolean parseNumber()
+	{
+		int i = 0, end = fieldLength;
+		while (i < end && field[i] == ' ')
+			i++;
+		while (end > i && field[end - 1] == ' ')
+			end--;
+
+		boolean negative = false;
+		if (i < end && (field[i] == '-' || field[i] == '+'))
+			negative = (field[i++] == '-');
+
+		long mantissa = 0;
+		int exponent = 0;
+		int digits = 0;
+		boolean exact = true;
+		boolean point = false;
+		for (; i<end; i++)
+		{
+			byte b = field[i];
+			if (b >= '0' && b <= '9')
+			{
+				digits++;
+				if (mantissa < MAXIMUM_EXACT_MANTISSA / 10)
+				{
+					mantissa = mantissa * 10 + (b - '0');
+					if (point)
+						exponent--;
+				}
+				else
+				{
+					exact = false; // digits beyond what a double holds
+					if (!point)
+						exponent++;
+				}
+			}
+			else if (b == '.' && !point)
+				point = true;
+			else
+				break;
+		}
+		if (digits == 0)
+			return false;
+
+		if (i < end && (field[i] == 'e' || field[i] == 'E'))
+		{
+			i++;
+			boolean negativeExponent = false;
+			if (i < end && (field[i] == '-' || field[i] == '+'))
+				negativeExponent = (field[i++] == '-');
+			int exponentDigits = 0, explicitExponent = 0;
+			for (; i<end && field[i] >= '0' && field[i] <= '9'; i++)
+			{
+				exponentDigits++;
+				if (explicitExponent < 10000)
+					explicitExponent = explicitExponent * 10 + (field[i] - '0');
+			}
+			if (exponentDigits == 0)
+				return false;
+			exponent += (negativeExponent ? -explicitExponent : explicitExponent);
+		}
+		if (i != end)
+			return false;
+
+		if (exact && exponent >= -22 && exponent <= 22)
+		{
+			// a single correctly rounded operation on exact operands
+			number = (exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent]);
+			if (negative)
+				number = -number;
+		}
+		else
+			number = Double.parseDouble(new String(field, 0, fieldLength).trim());
+		return true;
+	}
+}
@@ -3,6 +3,8 @@ package net.btlcpy.outofstock.spreadsheetparsers;
 import java.io.InputStream;
 import java.sql.Date;
 import java.sql.SQLException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -12,7 +14,7 @@ import java.util.List;
 import java.util.Map;
 
 import net.btlcpy.outofstock.loggers.MainLog;
-import net.btlcpy.outofstock.persistence.BatchManager;
+import net.btlcpy.outofstock.persistence.PipelinedBatchManager;
 import net.btlcpy.outofstock.persistence.PersistenceManager;
 import net.btlcpy.outofstock.persistence.beans.BasePersistentBean;
 import net.btlcpy.outofstock.persistence.beans.OutOfStockEvent;
@@ -25,18 +27,11 @@ import net.btlcpy.outofstock.persistence.beans.ProductPackage;
 import net.btlcpy.outofstock.persistence.beans.ProductToProductPackageMapping;
 import net.btlcpy.outofstock.persistence.beans.Setting;
 import net.btlcpy.outofstock.persistence.beans.Store;
+import net.btlcpy.outofstock.persistence.views.ProductDescription;
 import net.btlcpy.outofstock.settings.SettingsManager;
 import net.btlcpy.outofstock.spreadsheetparsers.exceptions.SpreadsheetParsingException;
 
 import org.apache.commons.collections.map.ListOrderedMap;
-import org.apache.poi.hssf.eventusermodel.HSSFUserException;
-import org.apache.poi.hssf.record.BOFRecord;
-import org.apache.poi.hssf.record.BoundSheetRecord;
-import org.apache.poi.hssf.record.EOFRecord;
-import org.apache.poi.hssf.record.LabelSSTRecord;
-import org.apache.poi.hssf.record.NumberRecord;
-import org.apache.poi.hssf.record.Record;
-import org.apache.poi.hssf.record.SSTRecord;
 import org.apache.poi.hssf.usermodel.HSSFDateUtil;
 
 /**
@@ -52,6 +47,10 @@ import org.apache.poi.hssf.usermodel.HSSFDateUtil;
  * spreadsheet detailing all possible products; we are required to infer them from this
  * spreadsheet.
  * </p>
+ * <p>
+ * The events may also be uploaded as comma or tab separated values, with the same columns as
+ * the spreadsheet; scan dates are then given as yyyy-mm-dd or mm/dd/yyyy.
+ * </p>
  * 
  * @author Ahmed A. Abd-Allah
  */
@@ -127,6 +126,26 @@ public class OutOfStockEventsSpreadsheetParser extends SpreadsheetParser
 	 */
 	private int eventCount = 0;
 
+	/**
+	 * The earliest and latest days of the events read, i.e. the days whose rollups must be
+	 * recomputed.
+	 */
+	private Date earliestEventRead = null, latestEventRead = null;
+
+	/**
+	 * Whether any product category, product, package or mapping between them was created,
+	 * i.e. whether the productdescriptions view will change on commit.
+	 */
+	private boolean productDescriptionsChanged = false;
+
+	/**
+	 * The formats of scan dates given as text, and the last such date read (most events of a
+	 * file share a handful of dates).
+	 */
+	private SimpleDateFormat scanDateFormats[] = null;
+	private String lastScanDateText = null;
+	private Date lastScanDate = null;
+
 	public OutOfStockEventsSpreadsheetParser(String spreadsheetFileName, String relevantSheetName,
 		boolean debugging)
 	{
@@ -166,7 +185,7 @@ public class OutOfStockEventsSpreadsheetParser extends SpreadsheetParser
 		String p2ppKey[] = { "product", "productpackage" };
 		
 		PersistenceManager manager = PersistenceManager.getPersistenceManager();
-		batchManager = new BatchManager(connection);
+		batchManager = new PipelinedBatchManager(connection);
 
 		// For the different objects in the next section of code (product categories, products, etc.)
 		// we create a new object that will be reused per line in the spreadsheet, then create a
@@ -353,6 +372,15 @@ public class OutOfStockEventsSpreadsheetParser extends SpreadsheetParser
 			outOfStockEvent, BasePersistentBean.BT_CREATE);
 		//outOfStockEvent.create(connection);
 
+		Date dateOccurred = outOfStockEvent.getDateOccurred();
+		if (dateOccurred != null)
+		{
+			if (earliestEventRead == null || dateOccurred.before(earliestEventRead))
+				earliestEventRead = dateOccurred;
+			if (latestEventRead == null || dateOccurred.after(latestEventRead))
+				latestEventRead = dateOccurred;
+		}
+
 		persistUploadableToUploadableMapping(
 			productGroup, productCategory,  
 			productGroupToProductCategoryMapping,
@@ -365,6 +393,13 @@ public class OutOfStockEventsSpreadsheetParser extends SpreadsheetParser
 			product, productPackage,
 			productToProductPackageMapping,
 			allProductToProductPackageMappings);
+
+		if (newPersistentObjects.containsKey(ProductCategory.class.getName()) ||
+			newPersistentObjects.containsKey(Product.class.getName()) ||
+			newPersistentObjects.containsKey(ProductPackage.class.getName()) ||
+			newPersistentObjects.containsKey(ProductCategoryToProductMapping.class.getName()) ||
+			newPersistentObjects.containsKey(ProductToProductPackageMapping.class.getName()))
+			productDescriptionsChanged = true;
 	}
 	
 	/**
@@ -413,212 +448,215 @@ public class OutOfStockEventsSpreadsheetParser extends SpreadsheetParser
 		foldedProductPackageNames.put("20 OZ", "20 FZ");
 	}
 
-	/**
-	 * The POI design requires that there be a method with this signature that is called by POI while a spreadsheet is
-	 * being parsed.
-	 * @param record the Excel record being read currently
-	 */
-	public short abortableProcessRecord(Record record)
-		throws HSSFUserException
+	protected void startProcessing()
+		throws Exception
 	{
-		try
-		{
-			if (debugging)
-				abortableProcessRecordForDebugging(record);
+		initializePersistentObjects();
+		prepareFoldedProductPackageNames();
+	}
 
-			switch (record.getSid())
+	protected void finishProcessing()
+		throws Exception
+	{
+		// the rows are written in the background; wait for them before using the connection here
+		batchManager.flush();
+		regressMissingPersistentObjects();
+		
+		batchManager.executeAll(true);
+
+		// these two only because they always appear on the specify report parameters page
+		ProductCategory.getCache(connection).reload(connection);
+		ProductPackage.getCache(connection).reload(connection);
+		
+		OutOfStockEvent.updateEarliestEventDate(connection);
+		
+		ListOrderedMap ignoredBeverageCategories = 
+			Setting.findByCategoryNameValue(null, "IgnoredEvent", "ProductCategory", null);
+		if (ignoredBeverageCategories != null && ignoredBeverageCategories.size() > 0)
+		{
+			for (int j=0; j<ignoredBeverageCategories.size(); j++)
 			{
-			case SSTRecord.sid:
-				staticStringRecords = (SSTRecord) record;
-				break;
-			case BOFRecord.sid:
-				if (((BOFRecord) record).getType() == BOFRecord.TYPE_WORKSHEET)
-				{
-					if (relevantSheetPosition >= 1)
-					{
-						relevantSheetPosition--;
-						if (relevantSheetPosition > 0)
-							break;
-
-						// else we have reached the beginning of the relevant sheet
-						processing = true;
-						initializePersistentObjects();
-						prepareFoldedProductPackageNames();
-					}
-				}
-				break;
-			case BoundSheetRecord.sid:
-				if (relevantSheetPosition <= 0) // still haven't identified relevant sheet
-					relevantSheetPosition--;
-				if (((BoundSheetRecord) record).getSheetname().equalsIgnoreCase(relevantSheetName))
-				{
-					relevantSheetPosition = (short) -relevantSheetPosition;
-				}
-				break;
-			case EOFRecord.sid:
-				// have we reached the end of the relevant sheet's data?
-				if (processing)
-				{
-					regressMissingPersistentObjects();
-					
-					batchManager.executeAll(true);
-
-					// these two only because they always appear on the specify report parameters page
-					ProductCategory.getCache(connection).reload(connection);
-					ProductPackage.getCache(connection).reload(connection);
-					
-					OutOfStockEvent.updateEarliestEventDate(connection);
-					
-					ListOrderedMap ignoredBeverageCategories = 
-						Setting.findByCategoryNameValue(null, "IgnoredEvent", "ProductCategory", null);
-					if (ignoredBeverageCategories != null && ignoredBeverageCategories.size() > 0)
-					{
-						for (int j=0; j<ignoredBeverageCategories.size(); j++)
-						{
-							String beverageCategory = ((Setting) ignoredBeverageCategories.getValue(j)).getValue();
-							SettingsManager.applyIgnoredBeverageCategoryToEvents(connection, beverageCategory);
-							SettingsManager.applyIgnoredBeverageCategoryToProductCategories(connection, beverageCategory);
-						}
-					}
-
-					processing = false;
-					return 1; // STOP PROCESSING
-				}
-				break;
-			case NumberRecord.sid:
-				if (processing)
-				{
-					NumberRecord numberRecord = (NumberRecord) record;
-					if (numberRecord.getRow() == 0)
-						break;
-
-					// process the number
-					switch (numberRecord.getColumn())
-					{
-					case 0: // division_id
-						//MainLog.getLog().debug("Row: " + numberRecord.getRow());
-						resetPersistentObjects();
-						distributorDivisionId = new Integer((int) numberRecord.getValue());
-						eventCount++;
-						break;
-					case 1: // store_id
-						storeId = new Integer((int) numberRecord.getValue());
-						if (allStores.get(storeId.toString()) != null)
-						{
-							outOfStockEvent.setStore( ((Store) allStores.get(storeId.toString())).getPrimaryKey() );
-							if (allDistributorDivisionsToStores != null &&
-								!allDistributorDivisionsToStores.contains(distributorDivisionId.toString() + " " + storeId.toString()))
-								throw new SpreadsheetParsingException("Invalid division to store mapping: " +
-									"Division = " + distributorDivisionId.toString() + ", Store = " + storeId.toString());
-						}
-						else
-						{
-							if (unrecognizedStoreIds == null)
-								unrecognizedStoreIds = new ArrayList();
-							if (!unrecognizedStoreIds.contains(storeId))
-								unrecognizedStoreIds.add(storeId);
-						}
-						break;
-					case 2: // group_id
-						productGroup.setId(new Integer((int) numberRecord.getValue()));
-						break;
-					case 4: // category_id
-						productCategory.setId(new Integer((int) numberRecord.getValue()));
-						break;
-					case 6: // UPC_ID
-						product.setUpcId(new Long((long) numberRecord.getValue()));
-						break;
-					case 10: // scan_dt
-						outOfStockEvent.setDateOccurred(new Date(HSSFDateUtil.getJavaDate(numberRecord.getValue()).getTime()));
-						break;
-					case 11: // OOS_COUNT
-						outOfStockEvent.setCount(new Integer((int) numberRecord.getValue()));
-						break;
-					case 12: // LOST_SALES_QTY
-						outOfStockEvent.setLostSalesQuantity(new Float((float) numberRecord.getValue()));
-						break;
-					case 13: // LOST_SALES_AMT
-						outOfStockEvent.setLostSalesAmount(new Float((float) numberRecord.getValue()));
-						break;
-					case 14: // VEND_NBR
-						outOfStockEvent.setVendorNumber(new Integer((int) numberRecord.getValue()));
-						break;
-					case 15: // VEND_SUB_NBR
-						outOfStockEvent.setVendorSubnumber(new Integer((int) numberRecord.getValue()));
-						break;
-					default:
-						break;
-					}
-				}
-				break;
-			case LabelSSTRecord.sid:
-				if (processing)
-				{
-					LabelSSTRecord labelRecord = (LabelSSTRecord) record;
-					if (labelRecord.getRow() == 0)
-						break;
-
-					// process the string
-					switch (labelRecord.getColumn())
-					{
-					case 0: // division_id
-						//MainLog.getLog().debug("Row: " + labelRecord.getRow());
-						resetPersistentObjects();
-						eventCount++;
-						break;
-					case 3: // group_nm
-						productGroup.setName(staticStringRecords.getString(labelRecord.getSSTIndex()).toString().trim());
-						break;
-					case 5: // category_nm
-						productCategory.setName(staticStringRecords.getString(labelRecord.getSSTIndex()).toString().trim());
-						break;
-					case 7: // upc_dsc
-						product.setDescription(staticStringRecords.getString(labelRecord.getSSTIndex()).toString().trim());
-						break;
-					case 8: // SIZE_DSC
-						String size = staticStringRecords.getString(labelRecord.getSSTIndex()).toString().trim();
-						if (foldedProductPackageNames.containsKey(size))
-							size = (String) foldedProductPackageNames.get(size);
-						productPackage.setName(size);
-						break;
-					case 9:
-						outOfStockEvent.setReason(staticStringRecords.getString(labelRecord.getSSTIndex()).toString().trim());
-						break;
-					case 14: // VEND_NBR
-						outOfStockEvent.setVendorNumber(Integer.valueOf((staticStringRecords.getString(labelRecord.getSSTIndex()).toString().trim())));
-						break;
-					case 15: // VEND_SUB_NBR
-						outOfStockEvent.setVendorSubnumber(Integer.valueOf((staticStringRecords.getString(labelRecord.getSSTIndex()).toString().trim())));
-						break;
-					case 16: // DSD_WHS_FLAG
-						outOfStockEvent.setDsdwhsFlag(staticStringRecords.getString(labelRecord.getSSTIndex()).toString().trim());
-						break;
-					case 17: // VEND_NAME
-						outOfStockEvent.setVendorName(staticStringRecords.getString(labelRecord.getSSTIndex()).toString().trim());
-
-						if (unrecognizedStoreIds == null || !unrecognizedStoreIds.contains(storeId))
-							persistPersistentObjects();
-
-						break;
-					default:
-						break;
-					}
-				}
-				break;
+				String beverageCategory = ((Setting) ignoredBeverageCategories.getValue(j)).getValue();
+				SettingsManager.applyIgnoredBeverageCategoryToEvents(connection, beverageCategory);
+				SettingsManager.applyIgnoredBeverageCategoryToProductCategories(connection, beverageCategory);
 			}
+		}
+
+		// now that the ignored events are marked, bring the days uploaded into the rollups
+		if (earliestEventRead != null)
+			OutOfStockEvent.refreshRollups(connection, earliestEventRead, latestEventRead);
+	}
 
-			return 0;
+	protected void processNumber(int row, int column, double value)
+		throws Exception
+	{
+		switch (column)
+		{
+		case 0: // division_id
+			//MainLog.getLog().debug("Row: " + row);
+			resetPersistentObjects();
+			distributorDivisionId = new Integer((int) value);
+			eventCount++;
+			break;
+		case 1: // store_id
+			storeId = new Integer((int) value);
+			if (allStores.get(storeId.toString()) != null)
+			{
+				outOfStockEvent.setStore( ((Store) allStores.get(storeId.toString())).getPrimaryKey() );
+				if (allDistributorDivisionsToStores != null &&
+					!allDistributorDivisionsToStores.contains(distributorDivisionId.toString() + " " + storeId.toString()))
+					throw new SpreadsheetParsingException("Invalid division to store mapping: " +
+						"Division = " + distributorDivisionId.toString() + ", Store = " + storeId.toString());
+			}
+			else
+			{
+				if (unrecognizedStoreIds == null)
+					unrecognizedStoreIds = new ArrayList();
+				if (!unrecognizedStoreIds.contains(storeId))
+					unrecognizedStoreIds.add(storeId);
+			}
+			break;
+		case 2: // group_id
+			productGroup.setId(new Integer((int) value));
+			break;
+		case 4: // category_id
+			productCategory.setId(new Integer((int) value));
+			break;
+		case 6: // UPC_ID
+			product.setUpcId(new Long((long) value));
+			break;
+		case 10: // scan_dt
+			outOfStockEvent.setDateOccurred(new Date(HSSFDateUtil.getJavaDate(value).getTime()));
+			break;
+		case 11: // OOS_COUNT
+			outOfStockEvent.setCount(new Integer((int) value));
+			break;
+		case 12: // LOST_SALES_QTY
+			outOfStockEvent.setLostSalesQuantity(new Float((float) value));
+			break;
+		case 13: // LOST_SALES_AMT
+			outOfStockEvent.setLostSalesAmount(new Float((float) value));
+			break;
+		case 14: // VEND_NBR
+			outOfStockEvent.setVendorNumber(new Integer((int) value));
+			break;
+		case 15: // VEND_SUB_NBR
+			outOfStockEvent.setVendorSubnumber(new Integer((int) value));
+			break;
+		default:
+			break;
 		}
-		catch (Exception e)
+	}
+
+	protected void processString(int row, int column, String value)
+		throws Exception
+	{
+		switch (column)
 		{
-			MainLog.getLog().error("Parsing error", e);
-			errorIndicator = "Underlying exception: " + e.getClass().getName() + 
-				(e.getMessage() != null ? ": " + e.getMessage() : "") + "\n" +
-				"Record:\n" + record.toString();
-			return 1;
+		case 0: // division_id
+			//MainLog.getLog().debug("Row: " + row);
+			resetPersistentObjects();
+			eventCount++;
+			break;
+		case 3: // group_nm
+			productGroup.setName(value.trim());
+			break;
+		case 5: // category_nm
+			productCategory.setName(value.trim());
+			break;
+		case 7: // upc_dsc
+			product.setDescription(value.trim());
+			break;
+		case 8: // SIZE_DSC
+			String size = value.trim();
+			if (foldedProductPackageNames.containsKey(size))
+				size = (String) foldedProductPackageNames.get(size);
+			productPackage.setName(size);
+			break;
+		case 9:
+			outOfStockEvent.setReason(value.trim());
+			break;
+		case 10: // scan_dt, in files of comma or tab separated values
+			outOfStockEvent.setDateOccurred(parseScanDate(value.trim()));
+			break;
+		case 14: // VEND_NBR
+			outOfStockEvent.setVendorNumber(Integer.valueOf((value.trim())));
+			break;
+		case 15: // VEND_SUB_NBR
+			outOfStockEvent.setVendorSubnumber(Integer.valueOf((value.trim())));
+			break;
+		case 16: // DSD_WHS_FLAG
+			outOfStockEvent.setDsdwhsFlag(value.trim());
+			break;
+		case 17: // VEND_NAME
+			outOfStockEvent.setVendorName(value.trim());
+			break;
+		default:
+			break;
 		}
 	}
 	
+	/**
+	 * Persists the event of the row, once all its cells are read: its last ones (VEND_NAME
+	 * in particular) may be empty.
+	 */
+	protected void endRow(int row)
+		throws Exception
+	{
+		if (unrecognizedStoreIds == null || !unrecognizedStoreIds.contains(storeId))
+			persistPersistentObjects();
+	}
+
+	protected int[] getNumberColumns()
+	{
+		int numberColumns[] = { 0, 1, 2, 4, 6, 11, 12, 13, 14, 15 };
+		return numberColumns;
+	}
+
+	/**
+	 * @param text a scan date given as text
+	 * @return the date
+	 * @throws ParseException if the text is not a date in one of the supported formats
+	 */
+	private Date parseScanDate(String text)
+		throws ParseException
+	{
+		if (text.equals(lastScanDateText))
+			return lastScanDate;
+
+		if (scanDateFormats == null)
+		{
+			scanDateFormats = new SimpleDateFormat[] { 
+				new SimpleDateFormat("yyyy-MM-dd"), new SimpleDateFormat("MM/dd/yyyy") };
+			for (int i=0; i<scanDateFormats.length; i++)
+				scanDateFormats[i].setLenient(false);
+		}
+
+		ParseException failure = null;
+		for (int i=0; i<scanDateFormats.length; i++)
+		{
+			try
+			{
+				lastScanDate = new Date(scanDateFormats[i].parse(text).getTime());
+				lastScanDateText = text;
+				return lastScanDate;
+			}
+			catch (ParseException e)
+			{
+				failure = e;
+			}
+		}
+		throw failure;
+	}
+
+	protected void afterCommit()
+	{
+		// the productdescriptions view has just been refreshed
+		if (productDescriptionsChanged)
+			ProductDescription.invalidateIndex();
+		OutOfStockEvent.dataChanged();
+	}
+
 	public String getUserActionDescription()
 	{
 		return "Out of stock events spreadsheet: " + (spreadsheetFileName != null ? spreadsheetFileName :
@@ -1,8 +1,11 @@
 package net.btlcpy.outofstock.spreadsheetparsers;
 
 import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Timestamp;
@@ -12,11 +15,13 @@ import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 import net.btlcpy.outofstock.loggers.MainLog;
 import net.btlcpy.outofstock.persistence.BatchManager;
 import net.btlcpy.outofstock.persistence.PersistenceManager;
+import net.btlcpy.outofstock.persistence.PipelinedBatchManager;
 import net.btlcpy.outofstock.persistence.beans.BasePersistentBean;
 import net.btlcpy.outofstock.persistence.beans.NamedUploadable;
 import net.btlcpy.outofstock.persistence.beans.NamedWithIdUploadable;
@@ -28,6 +33,12 @@ import org.apache.poi.hssf.eventusermodel.AbortableHSSFListener;
 import org.apache.poi.hssf.eventusermodel.HSSFEventFactory;
 import org.apache.poi.hssf.eventusermodel.HSSFListener;
 import org.apache.poi.hssf.eventusermodel.HSSFRequest;
+import org.apache.poi.hssf.eventusermodel.HSSFUserException;
+import org.apache.poi.hssf.record.BOFRecord;
+import org.apache.poi.hssf.record.BoundSheetRecord;
+import org.apache.poi.hssf.record.EOFRecord;
+import org.apache.poi.hssf.record.LabelSSTRecord;
+import org.apache.poi.hssf.record.NumberRecord;
 import org.apache.poi.hssf.record.Record;
 import org.apache.poi.hssf.record.SSTRecord;
 import org.apache.poi.poifs.filesystem.POIFSFileSystem;
@@ -43,7 +54,16 @@ import org.apache.poi.poifs.filesystem.POIFSFileSystem;
  * <p>
  * This class is an abstract base class that provides basic facilities for parsing those Excel
  * files. This class does NOT do the low-level reading and parsing itself; the Apache POI
- * library is used for that.
+ * library is used for that, for the Excel 97-2003 (.xls) format. Excel 2007 (.xlsx) files,
+ * which are not limited to 65,536 rows per sheet, are read with {@link XlsxSheetReader}
+ * instead; such files must end in ".xlsx" to be recognized. Files of comma or tab separated
+ * values, ending in ".csv" or ".tsv", are read with {@link DelimitedSheetReader}, for the
+ * subclasses that support them (see {@link #getNumberColumns()}).
+ * </p>
+ * <p>
+ * Either way, subclasses only see the cells of the relevant sheet (below its header row), one
+ * by one, row by row: see {@link #processNumber(int, int, double)} and
+ * {@link #processString(int, int, String)}.
  * </p>
  *  
  * @author Ahmed A. Abd-Allah
@@ -71,6 +91,9 @@ abstract public class SpreadsheetParser extends AbortableHSSFListener implements
 	/** Indicates whether the file is currently being processed or not */
 	protected boolean processing = false;
 	
+	/** The row of the last cell passed on, or -1 if none has been yet */
+	private int lastRow = -1;
+	
 	/** The database connection to use */
 	protected Connection connection = null;
 	
@@ -244,6 +267,176 @@ abstract public class SpreadsheetParser extends AbortableHSSFListener implements
 		totalRecordBytes += record.getRecordSize();
 	}
 
+	/**
+	 * See POI documentation for the place "abortableProcessRecord" methods have in the
+	 * overall way that POI is used to read Excel files. This method keeps track of the sheets
+	 * and the static strings of the file, and passes on the cells of the relevant sheet.
+	 * 
+	 * @param record the record read from the file/stream
+	 */
+	public short abortableProcessRecord(Record record)
+		throws HSSFUserException
+	{
+		try
+		{
+			if (debugging)
+				abortableProcessRecordForDebugging(record);
+
+			switch (record.getSid())
+			{
+			case SSTRecord.sid:
+				staticStringRecords = (SSTRecord) record;
+				break;
+			case BOFRecord.sid:
+				if (((BOFRecord) record).getType() == BOFRecord.TYPE_WORKSHEET)
+				{
+					if (relevantSheetPosition >= 1)
+					{
+						relevantSheetPosition--;
+						if (relevantSheetPosition > 0)
+							break;
+
+						// else we have reached the beginning of the relevant sheet
+						processing = true;
+						lastRow = -1;
+						startProcessing();
+					}
+				}
+				break;
+			case BoundSheetRecord.sid:
+				if (relevantSheetPosition <= 0) // still haven't identified relevant sheet
+					relevantSheetPosition--;
+				if (((BoundSheetRecord) record).getSheetname().equalsIgnoreCase(relevantSheetName))
+				{
+					relevantSheetPosition = (short) -relevantSheetPosition;
+				}
+				break;
+			case EOFRecord.sid:
+				// have we reached the end of the relevant sheet's data?
+				if (processing)
+				{
+					if (lastRow > 0)
+						endRow(lastRow);
+					finishProcessing();
+					processing = false;
+					return 1; // STOP PROCESSING
+				}
+				break;
+			case NumberRecord.sid:
+				if (processing)
+				{
+					NumberRecord numberRecord = (NumberRecord) record;
+					if (numberRecord.getRow() == 0)
+						break;
+					changeRow(numberRecord.getRow());
+					processNumber(numberRecord.getRow(), numberRecord.getColumn(), numberRecord.getValue());
+				}
+				break;
+			case LabelSSTRecord.sid:
+				if (processing)
+				{
+					LabelSSTRecord labelRecord = (LabelSSTRecord) record;
+					if (labelRecord.getRow() == 0)
+						break;
+					changeRow(labelRecord.getRow());
+					processString(labelRecord.getRow(), labelRecord.getColumn(), 
+						staticStringRecords.getString(labelRecord.getSSTIndex()).toString());
+				}
+				break;
+			}
+
+			return 0;
+		}
+		catch (Exception e)
+		{
+			MainLog.getLog().error("Parsing error", e);
+			errorIndicator = "Underlying exception: " + e.getClass().getName() + 
+				(e.getMessage() != null ? ": " + e.getMessage() : "") + "\n" +
+				"Record:\n" + record.toString();
+			return 1;
+		}
+	}
+
+	/**
+	 * Ends the row of the last cell passed on if the next cell is of another row.
+	 * 
+	 * @param row the row of the next cell
+	 */
+	private void changeRow(int row)
+		throws Exception
+	{
+		if (lastRow > 0 && row != lastRow)
+			endRow(lastRow);
+		lastRow = row;
+	}
+
+	/**
+	 * Called when the relevant sheet is reached, before any of its cells are passed on.
+	 * 
+	 * @throws Exception aborts the parsing
+	 */
+	abstract protected void startProcessing()
+		throws Exception;
+
+	/**
+	 * Called with every number (or date, as Excel stores dates as numbers) cell of the relevant
+	 * sheet, except those of its first (header) row. Cells come in order, row by row; empty
+	 * cells are skipped.
+	 * 
+	 * @param row the row of the cell (zero-based)
+	 * @param column the column of the cell (zero-based)
+	 * @param value the value of the cell
+	 * @throws Exception aborts the parsing
+	 */
+	abstract protected void processNumber(int row, int column, double value)
+		throws Exception;
+
+	/**
+	 * Called with every text cell of the relevant sheet, except those of its first (header) row.
+	 * See {@link #processNumber(int, int, double)}.
+	 * 
+	 * @param row the row of the cell (zero-based)
+	 * @param column the column of the cell (zero-based)
+	 * @param value the text of the cell (untrimmed)
+	 * @throws Exception aborts the parsing
+	 */
+	abstract protected void processString(int row, int column, String value)
+		throws Exception;
+
+	/**
+	 * Called after the last cell of every row that had cells passed on, whether or not the row's
+	 * trailing cells were empty. Subclasses that put together an object from the cells of a row
+	 * persist it here rather than on the cell of its last column, which may be empty.
+	 * 
+	 * @param row the row (zero-based)
+	 * @throws Exception aborts the parsing
+	 */
+	protected void endRow(int row)
+		throws Exception
+	{
+	}
+
+	/**
+	 * Files of comma or tab separated values do not say which of their fields are numbers, so
+	 * subclasses that support such files list the columns of numbers (and dates, which are
+	 * otherwise passed on as text) here.
+	 * 
+	 * @return the (zero-based) columns whose fields are passed on as numbers, or null if such
+	 * files are not supported
+	 */
+	protected int[] getNumberColumns()
+	{
+		return null;
+	}
+
+	/**
+	 * Called once all the cells of the relevant sheet have been passed on.
+	 * 
+	 * @throws Exception aborts the parsing
+	 */
+	abstract protected void finishProcessing()
+		throws Exception;
+
 	protected void resetPersistentObjects()
 	{
 		newPersistentObjects.clear();
@@ -464,6 +657,8 @@ abstract public class SpreadsheetParser extends AbortableHSSFListener implements
 					
 					// OLD WAY, inefficient
 					//mapping.create(connection);
+
+					newPersistentObjects.put(className, mapping);
 				}
 				
 				encounteredObjectCache.put(objectKey, mapping);
@@ -478,6 +673,7 @@ abstract public class SpreadsheetParser extends AbortableHSSFListener implements
 			// OLD WAY, inefficient
 			//mapping.create(connection);
 
+			newPersistentObjects.put(className, mapping);
 			encounteredObjectCache.put(objectKey, mapping);
 		}
 	}
@@ -511,6 +707,16 @@ abstract public class SpreadsheetParser extends AbortableHSSFListener implements
 		}
 	}
 
+	/**
+	 * Called once the parsed contents have been committed, while the connection is still
+	 * open. Derived classes refresh in-memory copies of data that only become visible to
+	 * others on commit (e.g. the materialized views, which are refreshed on commit).
+	 */
+	protected void afterCommit()
+	{
+		// nothing by default
+	}
+
 	// null means do NOT record in logs
 	abstract public String getUserActionDescription();
 
@@ -528,6 +734,8 @@ abstract public class SpreadsheetParser extends AbortableHSSFListener implements
 	{
 		InputStream fileInput = null;
 		InputStream workbookInputStream = null;
+		ZipFile xlsxFile = null;
+		File temporaryXlsxFile = null;
 		boolean committed = false;
 		
 		try
@@ -538,47 +746,95 @@ abstract public class SpreadsheetParser extends AbortableHSSFListener implements
 				recordTypes = new Hashtable();
 			}
 	
-			// Use the POI library to open either the input stream passed into the constructor
-			// or the file passed into the other constructor. Note that the input stream is
-			// takes precedence, just in case both the input stream and filename are set 
-			// simultaneously for whatever reason.
-			POIFSFileSystem poifsInput = null;
-			if (spreadsheetInputStream == null)
+			String name = (spreadsheetInputStream != null ? spreadsheetInputStreamName : spreadsheetFileName);
+			if (name != null && name.toLowerCase().endsWith(".xlsx"))
 			{
-				// ZIP files are supported.
-				if (spreadsheetFileName.toLowerCase().endsWith("zip"))
+				// An Excel 2007 file is a ZIP file whose parts must be looked up by name, so
+				// an uploaded one is put in a temporary file first
+				if (spreadsheetInputStream == null)
+					xlsxFile = new ZipFile(spreadsheetFileName);
+				else
 				{
-					fileInput = new ZipInputStream(new BufferedInputStream(new FileInputStream(spreadsheetFileName)));
-					((ZipInputStream) fileInput).getNextEntry();
+					temporaryXlsxFile = File.createTempFile("upload", ".xlsx");
+					OutputStream out = new FileOutputStream(temporaryXlsxFile);
+					try
+					{
+						byte buffer[] = new byte[64 * 1024];
+						int length;
+						while ((length = spreadsheetInputStream.read(buffer)) > 0)
+							out.write(buffer, 0, length);
+					}
+					finally
+					{
+						out.close();
+					}
+					xlsxFile = new ZipFile(temporaryXlsxFile);
 				}
-				else
+
+				uploadTime = new Timestamp(System.currentTimeMillis());
+				connection = PersistenceManager.getPersistenceManager().getConnection(false);
+
+				if (!new XlsxSheetReader(xlsxFile, this).read(relevantSheetName) && errorIndicator == null)
+					errorIndicator = "File is missing the required spreadsheet page named: " + relevantSheetName;
+			}
+			else if (name != null && (name.toLowerCase().endsWith(".csv") || name.toLowerCase().endsWith(".tsv")))
+			{
+				if (getNumberColumns() == null)
+					throw new SpreadsheetParsingException("Comma or tab separated files cannot be uploaded here");
+
+				if (spreadsheetInputStream == null)
 					fileInput = new FileInputStream(spreadsheetFileName);
-				poifsInput = new POIFSFileSystem(fileInput);
+
+				uploadTime = new Timestamp(System.currentTimeMillis());
+				connection = PersistenceManager.getPersistenceManager().getConnection(false);
+
+				new DelimitedSheetReader(this, name.toLowerCase().endsWith(".tsv") ? '\t' : ',').
+					read(spreadsheetInputStream != null ? spreadsheetInputStream : fileInput);
 			}
 			else
 			{
-				poifsInput = new POIFSFileSystem(spreadsheetInputStream);
-			}
+				// Use the POI library to open either the input stream passed into the constructor
+				// or the file passed into the other constructor. Note that the input stream is
+				// takes precedence, just in case both the input stream and filename are set 
+				// simultaneously for whatever reason.
+				POIFSFileSystem poifsInput = null;
+				if (spreadsheetInputStream == null)
+				{
+					// ZIP files are supported.
+					if (spreadsheetFileName.toLowerCase().endsWith("zip"))
+					{
+						fileInput = new ZipInputStream(new BufferedInputStream(new FileInputStream(spreadsheetFileName)));
+						((ZipInputStream) fileInput).getNextEntry();
+					}
+					else
+						fileInput = new FileInputStream(spreadsheetFileName);
+					poifsInput = new POIFSFileSystem(fileInput);
+				}
+				else
+				{
+					poifsInput = new POIFSFileSystem(spreadsheetInputStream);
+				}
 			
-			workbookInputStream = poifsInput.createDocumentInputStream("Workbook");
+				workbookInputStream = poifsInput.createDocumentInputStream("Workbook");
 	
-			HSSFRequest request = new HSSFRequest();
+				HSSFRequest request = new HSSFRequest();
 	
-			// lazy listen for ALL records with the listener set to be this object
-			request.addListenerForAllRecords(this);
+				// lazy listen for ALL records with the listener set to be this object
+				request.addListenerForAllRecords(this);
 	
-			HSSFEventFactory factory = new HSSFEventFactory();
+				HSSFEventFactory factory = new HSSFEventFactory();
 			
-			// Set the upload time for all parsed objects to be what we read right now.
-			uploadTime = new Timestamp(System.currentTimeMillis());
+				// Set the upload time for all parsed objects to be what we read right now.
+				uploadTime = new Timestamp(System.currentTimeMillis());
 	
-			connection = PersistenceManager.getPersistenceManager().getConnection(false);
+				connection = PersistenceManager.getPersistenceManager().getConnection(false);
 			
-			// Read and parse the spreadsheet.
-			factory.abortableProcessEvents(request, workbookInputStream);
+				// Read and parse the spreadsheet.
+				factory.abortableProcessEvents(request, workbookInputStream);
 			
-			if (errorIndicator == null && relevantSheetPosition != 0) // never reached the desired spreadsheet page
-				errorIndicator = "File is missing the required spreadsheet page named: " + relevantSheetName;
+				if (errorIndicator == null && relevantSheetPosition != 0) // never reached the desired spreadsheet page
+					errorIndicator = "File is missing the required spreadsheet page named: " + relevantSheetName;
+			}
 
 			if (errorIndicator != null)
 				throw new SpreadsheetParsingException(errorIndicator);
@@ -595,6 +851,8 @@ abstract public class SpreadsheetParser extends AbortableHSSFListener implements
 
 			connection.commit();
 			committed = true;
+			
+			afterCommit();
 	
 			try
 			{
@@ -633,6 +891,12 @@ abstract public class SpreadsheetParser extends AbortableHSSFListener implements
 			// once all the events are processed close our file input stream
 			try { if (fileInput != null) fileInput.close(); } catch (Exception e) {}
 			try { if (workbookInputStream != null) workbookInputStream.close(); } catch (Exception e) {}			
+			try { if (xlsxFile != null) xlsxFile.close(); } catch (Exception e) {}
+			if (temporaryXlsxFile != null)
+				temporaryXlsxFile.delete();
+			// stop writing rows in the background (dropping any left) before rolling back
+			if (batchManager instanceof PipelinedBatchManager)
+				((PipelinedBatchManager) batchManager).close();
 			try 
 			{ 
 				if (connection != null)
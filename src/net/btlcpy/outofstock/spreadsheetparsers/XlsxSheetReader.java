@@ -0,0 +1,428 @@
+package net.btlcpy.outofstock.spreadsheetparsers;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import net.btlcpy.outofstock.loggers.MainLog;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * <p>
+ * Reads a sheet of an Excel 2007 (.xlsx, Office Open XML) file and passes its cells on to a
+ * {@link SpreadsheetParser}, the same way the parser's own POI listener does for Excel 97-2003
+ * files: {@link SpreadsheetParser#startProcessing()}, then every number and text cell below the
+ * header row, with {@link SpreadsheetParser#endRow(int)} after each row that had any, then
+ * {@link SpreadsheetParser#finishProcessing()}.
+ * </p>
+ * <p>
+ * An .xlsx file is a ZIP file of XML parts. The sheet is read with a SAX parser as it is
+ * inflated, so memory use does not grow with the number of rows (unlike the .xls format, the
+ * .xlsx format allows for more than 65,536 rows per sheet). Text cells usually refer to the
+ * shared strings part of the file by index; that part is only read once the first such cell is
+ * met, and each of its strings is then handed out to all the cells referring to it.
+ * </p>
+ *
+ * @author Ahmed A. Abd-Allah
+ */
+public class XlsxSheetReader
+{
+	// ----- Static members ---------------------------------------------------
+	private static final String RELATIONSHIP_TYPES = "/relationships/";
+	private static final String OFFICE_DOCUMENT_TYPE = "officeDocument";
+	private static final String SHARED_STRINGS_TYPE = "sharedStrings";
+
+	/**
+	 * Thrown from within the SAX handlers to stop reading, once the parser is done or has failed.
+	 */
+	private static class StopReading extends SAXException
+	{
+		/** Recommended for Serializable purposes */
+		public static final long serialVersionUID = 1;
+
+		public StopReading()
+		{
+			super("Stopped reading");
+		}
+	}
+
+	/**
+	 * @param reference a cell reference, e.g. "AB12"
+	 * @return the (zero-based) column of the reference, or -1 if it has none
+	 */
+	private static int getColumn(String reference)
+	{
+		int column = 0;
+		int i = 0;
+		for (; i<reference.length(); i++)
+		{
+			char c = reference.charAt(i);
+			if (c >= 'A' && c <= 'Z')
+				column = column * 26 + (c - 'A' + 1);
+			else if (c >= 'a' && c <= 'z')
+				column = column * 26 + (c - 'a' + 1);
+			else
+				break;
+		}
+		return (i == 0 ? -1 : column - 1);
+	}
+
+	/**
+	 * @param base the part the target is relative to, e.g. "xl/workbook.xml"
+	 * @param target the target of a relationship, e.g. "worksheets/sheet1.xml"
+	 * @return the name of the ZIP entry of the target, e.g. "xl/worksheets/sheet1.xml"
+	 */
+	private static String resolve(String base, String target)
+	{
+		if (target.startsWith("/"))
+			return target.substring(1);
+		return base.substring(0, base.lastIndexOf('/') + 1) + target;
+	}
+
+	// ----- Instance members -------------------------------------------------
+	private ZipFile file;
+	private SpreadsheetParser parser;
+	private SAXParserFactory factory;
+
+	/** The name of the shared strings part, if any */
+	private String sharedStringsPart = null;
+	/** The shared strings, once read */
+	private ArrayList /* String */ sharedStrings = null;
+
+	/**
+	 * @param file the .xlsx file
+	 * @param parser the parser to pass the cells on to
+	 */
+	public XlsxSheetReader(ZipFile file, SpreadsheetParser parser)
+	{
+		this.file = file;
+		this.parser = parser;
+
+		factory = SAXParserFactory.newInstance();
+		factory.setNamespaceAware(true);
+		try
+		{
+			// uploaded files have no business referring to other files
+			factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+			factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+		}
+		catch (Exception e)
+		{
+			MainLog.getLog().debug("Unable to turn off external entities for .xlsx files: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Reads a sheet, passing its cells on to the parser. Stops early if the parser fails (see
+	 * {@link SpreadsheetParser#errorIndicator}).
+	 *
+	 * @param sheetName the name of the sheet (case is ignored)
+	 * @return false if the file has no such sheet
+	 * @throws Exception if the file cannot be read
+	 */
+	public boolean read(String sheetName)
+		throws Exception
+	{
+		HashMap /* String, String */ rootRelationships = readRelationships("_rels/.rels");
+		String workbookPart = (String) rootRelationships.get(OFFICE_DOCUMENT_TYPE);
+		if (workbookPart == null)
+			workbookPart = "xl/workbook.xml";
+		else
+			workbookPart = resolve("", workbookPart);
+
+		HashMap /* String, String */ workbookRelationships = readRelationships(
+			resolve(workbookPart, "_rels/" + workbookPart.substring(workbookPart.lastIndexOf('/') + 1) + ".rels"));
+		if (workbookRelationships.get(SHARED_STRINGS_TYPE) != null)
+			sharedStringsPart = resolve(workbookPart, (String) workbookRelationships.get(SHARED_STRINGS_TYPE));
+
+		String sheetId = findSheet(workbookPart, sheetName);
+		if (sheetId == null || workbookRelationships.get(sheetId) == null)
+			return false;
+
+		String sheetPart = resolve(workbookPart, (String) workbookRelationships.get(sheetId));
+		InputStream in = open(sheetPart);
+		if (in == null)
+			return false;
+
+		parser.processing = true;
+		try
+		{
+			parser.startProcessing();
+			parse(in, new SheetHandler());
+			if (parser.errorIndicator == null)
+				parser.finishProcessing();
+		}
+		catch (StopReading e)
+		{
+			// the parser failed
+		}
+		finally
+		{
+			parser.processing = false;
+			in.close();
+		}
+		return true;
+	}
+
+	/**
+	 * @return the relationships of a part, keyed both by their ID and by the last part of their
+	 * type (e.g. "sharedStrings"), to their targets; empty if there are none
+	 */
+	private HashMap /* String, String */ readRelationships(String relationshipsPart)
+		throws Exception
+	{
+		final HashMap /* String, String */ relationships = new HashMap();
+		InputStream in = open(relationshipsPart);
+		if (in == null)
+			return relationships;
+		try
+		{
+			parse(in, new DefaultHandler()
+				{
+					public void startElement(String uri, String localName, String qName, Attributes attributes)
+					{
+						if (!localName.equals("Relationship"))
+							return;
+						String target = attributes.getValue("Target");
+						if (target == null)
+							return;
+						if (attributes.getValue("Id") != null)
+							relationships.put(attributes.getValue("Id"), target);
+						String type = attributes.getValue("Type");
+						if (type != null && type.lastIndexOf(RELATIONSHIP_TYPES) >= 0)
+							relationships.put(type.substring(type.lastIndexOf(RELATIONSHIP_TYPES) + RELATIONSHIP_TYPES.length()), target);
+					}
+				});
+		}
+		finally
+		{
+			in.close();
+		}
+		return relationships;
+	}
+
+	/**
+	 * @return the relationship ID of the sheet, or null if the workbook has no such sheet
+	 */
+	private String findSheet(String workbookPart, final String sheetName)
+		throws Exception
+	{
+		final String sheetId[] = { null };
+		InputStream in = open(workbookPart);
+		if (in == null)
+			return null;
+		try
+		{
+			parse(in, new DefaultHandler()
+				{
+					public void startElement(String uri, String localName, String qName, Attributes attributes)
+					{
+						if (!localName.equals("sheet") || sheetId[0] != null ||
+							!sheetName.equalsIgnoreCase(attributes.getValue("name")))
+							return;
+						// the r:id attribute; the namespace differs between the transitional
+						// and strict flavors of the format
+						for (int i=0; i<attributes.getLength(); i++)
+							if (attributes.getLocalName(i).equals("id"))
+								sheetId[0] = attributes.getValue(i);
+					}
+				});
+		}
+		finally
+		{
+			in.close();
+		}
+		return sheetId[0];
+	}
+
+	/**
+	 * @param index the index of a shared string
+	 * @return the shared string
+	 */
+	private String getSharedString(int index)
+		throws Exception
+	{
+		if (sharedStrings == null)
+		{
+			sharedStrings = new ArrayList();
+			InputStream in = (sharedStringsPart != null ? open(sharedStringsPart) : null);
+			if (in != null)
+			{
+				try
+				{
+					parse(in, new SharedStringsHandler());
+				}
+				finally
+				{
+					in.close();
+				}
+			}
+		}
+		if (index < 0 || index >= sharedStrings.size())
+			throw new IOException("Shared string " + index + " is missing");
+		return (String) sharedStrings.get(index);
+	}
+
+	private InputStream open(String part)
+		throws IOException
+	{
+		ZipEntry entry = file.getEntry(part);
+		return (entry != null ? new BufferedInputStream(file.getInputStream(entry), 32 * 1024) : null);
+	}
+
+	private void parse(InputStream in, DefaultHandler handler)
+		throws Exception
+	{
+		SAXParser saxParser = factory.newSAXParser();
+		saxParser.parse(in, handler);
+	}
+
+	/**
+	 * Collects the strings of the shared strings part: the text of every &lt;si&gt; element, made
+	 * up of the &lt;t&gt; elements within it, except those of phonetic runs (&lt;rPh&gt;).
+	 */
+	private class SharedStringsHandler extends DefaultHandler
+	{
+		private StringBuffer text = new StringBuffer();
+		private boolean inText = false;
+		private boolean inPhonetic = false;
+
+		public void startElement(String uri, String localName, String qName, Attributes attributes)
+		{
+			if (localName.equals("si"))
+				text.setLength(0);
+			else if (localName.equals("rPh"))
+				inPhonetic = true;
+			else if (localName.equals("t") && !inPhonetic)
+				inText = true;
+		}
+
+		public void endElement(String uri, String localName, String qName)
+		{
+			if (localName.equals("si"))
+				sharedStrings.add(text.toString());
+			else if (localName.equals("rPh"))
+				inPhonetic = false;
+			else if (localName.equals("t"))
+				inText = false;
+		}
+
+		public void characters(char[] ch, int start, int length)
+		{
+			if (inText)
+				text.append(ch, start, length);
+		}
+	}
+
+	/**
+	 * Passes the cells of a sheet on to the parser as they are read.
+	 */
+	private class SheetHandler extends DefaultHandler
+	{
+		private int row = -1;
+		private int column = -1;
+		private String type = null;
+		private StringBuffer text = new StringBuffer();
+		private boolean inCell = false;
+		private boolean inText = false;
+		private boolean rowProcessed = false;
+
+		public void startElement(String uri, String localName, String qName, Attributes attributes)
+		{
+			if (localName.equals("c"))
+			{
+				String reference = attributes.getValue("r");
+				int referencedColumn = (reference != null ? getColumn(reference) : -1);
+				column = (referencedColumn >= 0 ? referencedColumn : column + 1);
+				type = attributes.getValue("t");
+				text.setLength(0);
+				inCell = true;
+			}
+			else if (inCell && (localName.equals("v") || localName.equals("t")))
+				inText = true;
+			else if (localName.equals("row"))
+			{
+				String reference = attributes.getValue("r");
+				row = (reference != null ? Integer.parseInt(reference) - 1 : row + 1);
+				column = -1;
+				rowProcessed = false;
+			}
+		}
+
+		public void endElement(String uri, String localName, String qName)
+			throws SAXException
+		{
+			if (localName.equals("v") || localName.equals("t"))
+				inText = false;
+			else if (localName.equals("c"))
+			{
+				inCell = false;
+				if (row > 0 && text.length() > 0)
+				{
+					processCell();
+					rowProcessed = true;
+				}
+			}
+			else if (localName.equals("row") && rowProcessed)
+				endRow();
+		}
+
+		public void characters(char[] ch, int start, int length)
+		{
+			if (inText)
+				text.append(ch, start, length);
+		}
+
+		private void processCell()
+			throws SAXException
+		{
+			try
+			{
+				if (type == null || type.equals("n"))
+					parser.processNumber(row, column, Double.parseDouble(text.toString()));
+				else if (type.equals("s"))
+					parser.processString(row, column, getSharedString(Integer.parseInt(text.toString().trim())));
+				else if (type.equals("inlineStr") || type.equals("str"))
+					parser.processString(row, column, text.toString());
+				else if (type.equals("b"))
+					parser.processNumber(row, column, text.toString().trim().equals("1") ? 1 : 0);
+				// else an error value ("e"), skipped like blank cells
+			}
+			catch (Exception e)
+			{
+				MainLog.getLog().error("Parsing error", e);
+				parser.errorIndicator = "Underlying exception: " + e.getClass().getName() +
+					(e.getMessage() != null ? ": " + e.getMessage() : "") + "\n" +
+					"Cell: row " + (row + 1) + ", column " + (column + 1);
+				throw new StopReading();
+			}
+		}
+
+		private void endRow()
+			throws SAXException
+		{
+			try
+			{
+				parser.endRow(row);
+			}
+			catch (Exception e)
+			{
+				MainLog.getLog().error("Parsing error", e);
+				parser.errorIndicator = "Underlying exception: " + e.getClass().getName() +
+					(e.getMessage() != null ? ": " + e.getMessage() : "") + "\n" +
+					"Row " + (row + 1);
+				throw new StopReading();
+			}
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package net.btlcpy.outofstock.spreadsheetwriters;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+
+import net.btlcpy.outofstock.loggers.MainLog;
+import net.btlcpy.outofstock.reports.Report;
+
+import org.apache.commons.collections.map.ListOrderedMap;
+
+/**
+ * <p>
+ * Exports reports as comma separated values (RFC 4180), for bulk downloads that are too large
+ * for an Excel workbook (HSSF sheets hold at most 65,536 rows) or that are loaded into other
+ * tools. Rows are written out one at a time as they are read from the report, so nothing
+ * beyond a write buffer is held in memory.
+ * </p>
+ *
+ * <p>
+ * The columns are laid out as by {@link ReportExporter}: every section (query) of the report
+ * starts with a header row of its column names, and cells of columns marked "__IGNORE__" are
+ * left empty. Sections are separated by an empty line. Dates are written as yyyy-mm-dd,
+ * timestamps as yyyy-mm-dd hh:mm:ss.fffffffff, and lists of values as one quoted cell with
+ * a value per line.
+ * </p>
+ *
+ * @author Ahmed A. Abd-Allah
+ */
+public class CsvExporter extends SpreadsheetWriter
+{
+	/**
+	 * Writes a report to a stream as UTF-8 encoded CSV. The stream is flushed but not closed.
+	 *
+	 * @param report the report to export
+	 * @param out the stream to write to
+	 * @throws IOException
+	 */
+	public static void export(Report report, OutputStream out)
+		throws IOException
+	{
+		Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), 32 * 1024);
+
+		ListOrderedMap queryResults = (report != null ? report.getResults() : null);
+		if (queryResults == null || queryResults.size() == 0)
+		{
+			writer.write("No data in entire report.\r\n");
+			writer.flush();
+			return;
+		}
+
+		MainLog.getLog().debug("Exporting a report as CSV.");
+
+		for (int queryCounter=0; queryCounter<queryResults.size(); queryCounter++)
+		{
+			if (queryCounter > 0)
+				writer.write("\r\n");
+
+			ListOrderedMap oneQueryResults = (ListOrderedMap) queryResults.getValue(queryCounter);
+			if (oneQueryResults == null || oneQueryResults.size() == 0)
+			{
+				writer.write("No data in report " + (queryCounter + 1) + ".\r\n");
+				continue;
+			}
+
+			String[] columnNames = getColumnNames((ListOrderedMap) oneQueryResults.getValue(0));
+			for (int i=0; i<columnNames.length; i++)
+			{
+				if (i > 0)
+					writer.write(',');
+				writeCell(writer, stripHTML(columnNames[i]).replace('\n', ' '));
+			}
+			writer.write("\r\n");
+
+			for (int r=0; r<oneQueryResults.size(); r++)
+			{
+				ListOrderedMap row = (ListOrderedMap) oneQueryResults.getValue(r);
+				for (int i=0; i<columnNames.length; i++)
+				{
+					if (i > 0)
+						writer.write(',');
+					Object value = getCellValue(row, columnNames, i);
+					if (value instanceof List)
+					{
+						List values = (List) value;
+						StringBuffer valuesString = new StringBuffer();
+						for (int j=0; j<values.size(); j++)
+						{
+							if (j > 0)
+								valuesString.append('\n');
+							valuesString.append(values.get(j));
+						}
+						writeCell(writer, valuesString.toString());
+					}
+					else if (value != null)
+						writeCell(writer, value.toString());
+				}
+				writer.write("\r\n");
+			}
+		}
+
+		writer.flush();
+	}
+
+	/**
+	 * Writes one cell, quoting it if it contains a comma, a quote, or a line break.
+	 */
+	private static void writeCell(Writer writer, String value)
+		throws IOException
+	{
+		boolean quote = false;
+		for (int i=0; i<value.length() && !quote; i++)
+		{
+			char c = value.charAt(i);
+			quote = (c == ',' || c == '"' || c == '\n' || c == '\r');
+		}
+
+		if (!quote)
+		{
+			writer.write(value);
+			return;
+		}
+
+		writer.write('"');
+		for (int i=0; i<value.length(); i++)
+		{
+			char c = value.charAt(i);
+			if (c == '"')
+				writer.write('"');
+			writer.write(c);
+		}
+		writer.write('"');
+	}
+}
@@ -1,9 +1,11 @@
 package net.btlcpy.outofstock.spreadsheetwriters;
 
 import java.io.FileOutputStream;
+import java.io.OutputStream;
 import java.sql.Date;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
@@ -51,9 +53,43 @@ public class ReportExporter extends SpreadsheetWriter
 	 */
 	public static void export(Report report, String fileLocation)
 	{
-		HSSFWorkbook workbook = null;
 		FileOutputStream fileOut = null;
 
+		try
+		{
+			fileOut = new FileOutputStream(fileLocation);
+			export(report, fileOut);
+		}
+		catch (Exception e)
+		{
+			MainLog.getLog().error("Error while exporting", e);
+		}
+		finally
+		{
+			try
+			{
+				if (fileOut != null)
+					fileOut.close();
+			}
+			catch (Exception e)
+			{
+				MainLog.getLog().error("Error while closing file during export", e);
+			}
+		}
+	}
+
+	/**
+	 * Same as {@link #export(Report, String)}, except that the workbook is written straight to
+	 * a stream (e.g. the response of a download) instead of to a file. The stream is flushed but
+	 * not closed.
+	 * 
+	 * @param report the Report object to export
+	 * @param out the stream to write the workbook to
+	 */
+	public static void export(Report report, OutputStream out)
+	{
+		HSSFWorkbook workbook = null;
+
 		try
 		{
 			int queryCounter = 0;
@@ -67,7 +103,7 @@ public class ReportExporter extends SpreadsheetWriter
 			MainLog.getLog().debug("Attempting to export a report.");
 
 			workbook = new HSSFWorkbook();
-			fileOut = new FileOutputStream(fileLocation);
+			CellStyles cellStyles = new CellStyles(workbook);
 			
 			if (report != null)
 			{
@@ -120,12 +156,7 @@ public class ReportExporter extends SpreadsheetWriter
 							if (!namesIdentified)
 							{
 								if (columnNames[queryCounter] == null)
-								{
-									Object[] columnObjects = row.keySet().toArray();
-									columnNames[queryCounter] = new String[ columnObjects.length ];
-									for (int i=0; i<columnObjects.length; i++)
-										columnNames[queryCounter][i] = columnObjects[i].toString();
-								}
+									columnNames[queryCounter] = getColumnNames(row);
 								namesIdentified = true;
 								
 								sheetRow = sheet.createRow(sheetRowNumber);
@@ -136,9 +167,7 @@ public class ReportExporter extends SpreadsheetWriter
 									sheetCell.setCellValue( new HSSFRichTextString(stripHTML(columnNames[queryCounter][i])) );
 									//sheetCell.setCellStyle(cellStyleForColumnNames);
 									reportExcelCellStyle = excelFormat.getCellStyle(sheetCellNumber, sheetRowNumber);
-									if (reportExcelCellStyle.getHssfCellStyle() == null)
-										createHssfCellStyle(workbook, reportExcelCellStyle);
-									sheetCell.setCellStyle(reportExcelCellStyle.getHssfCellStyle());
+									sheetCell.setCellStyle(cellStyles.get(reportExcelCellStyle));
 									sheetCellNumber++;
 								}
 								sheetRowNumber++;
@@ -148,10 +177,9 @@ public class ReportExporter extends SpreadsheetWriter
 							sheetCellNumber = 0;
 							for (int i=0; i<columnNames[queryCounter].length; i++)
 							{
-								Object value = row.get(columnNames[queryCounter][i]);
-								String dataKey = (String) row.get(i);
+								Object value = getCellValue(row, columnNames[queryCounter], i);
 
-								if (value == null || dataKey.startsWith("__IGNORE__"))
+								if (value == null)
 								{
 									sheetCellNumber++;
 									continue;
@@ -204,9 +232,7 @@ public class ReportExporter extends SpreadsheetWriter
 								}
 
 								reportExcelCellStyle = excelFormat.getCellStyle(sheetCellNumber, sheetRowNumber);
-								if (reportExcelCellStyle.getHssfCellStyle() == null)
-									createHssfCellStyle(workbook, reportExcelCellStyle);
-								sheetCell.setCellStyle(reportExcelCellStyle.getHssfCellStyle());
+								sheetCell.setCellStyle(cellStyles.get(reportExcelCellStyle));
 								
 								int heightOfMergedRegion = report.getHeightOfMergedRegion(queryCounter, i, sheetRowNumber-1);
 								int widthOfMergedRegion = report.getWidthOfMergedRegion(queryCounter, i, sheetRowNumber-1);
@@ -239,13 +265,11 @@ public class ReportExporter extends SpreadsheetWriter
 					sheetCellNumber = 0;
 					sheetCell = sheetRow.createCell(sheetCellNumber++, HSSFCell.CELL_TYPE_STRING);
 					sheetCell.setCellValue(new HSSFRichTextString("Report Parameters"));
-					if (excelFormat.getDefaultCellStyle().getHssfCellStyle() == null)
-						createHssfCellStyle(workbook, excelFormat.getDefaultCellStyle());
-					sheetCell.setCellStyle(excelFormat.getDefaultCellStyle().getHssfCellStyle());
+					sheetCell.setCellStyle(cellStyles.get(excelFormat.getDefaultCellStyle()));
 
 					sheetCell = sheetRow.createCell(sheetCellNumber++, HSSFCell.CELL_TYPE_STRING);
 					sheetCell.setCellValue(new HSSFRichTextString( report.getExcelReportDescription() ));
-					sheetCell.setCellStyle(excelFormat.getDefaultCellStyle().getHssfCellStyle());
+					sheetCell.setCellStyle(cellStyles.get(excelFormat.getDefaultCellStyle()));
 					
 					// -- Problematic on Linux --
 					for (short i=0; i<2; i++)
@@ -268,55 +292,87 @@ public class ReportExporter extends SpreadsheetWriter
 		{
 			try
 			{
-				if (fileOut != null)
-				{
-					if (workbook != null)
-						workbook.write(fileOut);
-					fileOut.close();
-				}
+				if (workbook != null)
+					workbook.write(out);
+				out.flush();
 			}
 			catch (Exception e)
 			{
-				MainLog.getLog().error("Error while closing file during export", e);
+				MainLog.getLog().error("Error while writing workbook during export", e);
 			}
 		}
 	}
 	
-	private static HSSFCellStyle createHssfCellStyle(HSSFWorkbook workbook, ReportExcelCellStyle reportExcelCellStyle)
+	/**
+	 * The HSSF cell styles (and fonts) of one workbook. Equal report cell styles share one
+	 * HSSF cell style, as a workbook may only hold so many (4000) and every one adds to its
+	 * size. The HSSF styles are kept here rather than on the report's cell styles, since a
+	 * report may be exported more than once, and HSSF styles belong to a single workbook.
+	 */
+	private static class CellStyles
 	{
-		HSSFCellStyle hssfCellStyle = workbook.createCellStyle();
-		hssfCellStyle.setWrapText(reportExcelCellStyle.isWrapText());
-		hssfCellStyle.setAlignment(reportExcelCellStyle.getAlignment());
-		hssfCellStyle.setVerticalAlignment(reportExcelCellStyle.getVerticalAlignment());
-		hssfCellStyle.setDataFormat(reportExcelCellStyle.getDataFormat());
-		hssfCellStyle.setFillPattern(reportExcelCellStyle.getFillPattern());
-		hssfCellStyle.setFillForegroundColor(reportExcelCellStyle.getFillForegroundColor());
-		hssfCellStyle.setFillBackgroundColor(reportExcelCellStyle.getFillBackgroundColor());
-
-		hssfCellStyle.setBorderTop(HSSFCellStyle.BORDER_THIN);
-		hssfCellStyle.setBorderRight(HSSFCellStyle.BORDER_THIN);
-		hssfCellStyle.setBorderBottom(HSSFCellStyle.BORDER_THIN);
-		hssfCellStyle.setBorderLeft(HSSFCellStyle.BORDER_THIN);
-		hssfCellStyle.setTopBorderColor(HSSFColor.GREY_25_PERCENT.index);
-		hssfCellStyle.setRightBorderColor(HSSFColor.GREY_25_PERCENT.index);
-		hssfCellStyle.setBottomBorderColor(HSSFColor.GREY_25_PERCENT.index);
-		hssfCellStyle.setLeftBorderColor(HSSFColor.GREY_25_PERCENT.index);
+		private HSSFWorkbook workbook;
+		private HashMap /* ReportExcelCellStyle, HSSFCellStyle */ cellStyles = new HashMap();
+		private HashMap /* ReportExcelFont, HSSFFont */ fonts = new HashMap();
+		/** The last style looked up; most cells have the same style as the one before */
+		private ReportExcelCellStyle lastCellStyle = null;
+		private HSSFCellStyle lastHssfCellStyle = null;
 		
-		ReportExcelFont reportExcelFont = reportExcelCellStyle.getFont();
-		if (reportExcelFont.getHssfFont() == null)
+		private CellStyles(HSSFWorkbook workbook)
 		{
-			HSSFFont hssfFont = workbook.createFont();
-			hssfFont.setFontName(reportExcelFont.getName());
-			hssfFont.setFontHeightInPoints(reportExcelFont.getHeightInPoints());
-			hssfFont.setColor(reportExcelFont.getColor());
-			hssfFont.setBoldweight(reportExcelFont.getBoldWeight());
+			this.workbook = workbook;
+		}
+		
+		private HSSFCellStyle get(ReportExcelCellStyle reportExcelCellStyle)
+		{
+			if (reportExcelCellStyle == lastCellStyle)
+				return lastHssfCellStyle;
 			
-			reportExcelFont.setHssfFont(hssfFont);
+			HSSFCellStyle hssfCellStyle = (HSSFCellStyle) cellStyles.get(reportExcelCellStyle);
+			if (hssfCellStyle == null)
+			{
+				hssfCellStyle = createHssfCellStyle(reportExcelCellStyle);
+				cellStyles.put(reportExcelCellStyle, hssfCellStyle);
+			}
+			lastCellStyle = reportExcelCellStyle;
+			lastHssfCellStyle = hssfCellStyle;
+			return hssfCellStyle;
 		}
-		hssfCellStyle.setFont(reportExcelFont.getHssfFont());
 		
-		reportExcelCellStyle.setHssfCellStyle(hssfCellStyle);
-
-		return hssfCellStyle;
+		private HSSFCellStyle createHssfCellStyle(ReportExcelCellStyle reportExcelCellStyle)
+		{
+			HSSFCellStyle hssfCellStyle = workbook.createCellStyle();
+			hssfCellStyle.setWrapText(reportExcelCellStyle.isWrapText());
+			hssfCellStyle.setAlignment(reportExcelCellStyle.getAlignment());
+			hssfCellStyle.setVerticalAlignment(reportExcelCellStyle.getVerticalAlignment());
+			hssfCellStyle.setDataFormat(reportExcelCellStyle.getDataFormat());
+			hssfCellStyle.setFillPattern(reportExcelCellStyle.getFillPattern());
+			hssfCellStyle.setFillForegroundColor(reportExcelCellStyle.getFillForegroundColor());
+			hssfCellStyle.setFillBackgroundColor(reportExcelCellStyle.getFillBackgroundColor());
+	
+			hssfCellStyle.setBorderTop(HSSFCellStyle.BORDER_THIN);
+			hssfCellStyle.setBorderRight(HSSFCellStyle.BORDER_THIN);
+			hssfCellStyle.setBorderBottom(HSSFCellStyle.BORDER_THIN);
+			hssfCellStyle.setBorderLeft(HSSFCellStyle.BORDER_THIN);
+			hssfCellStyle.setTopBorderColor(HSSFColor.GREY_25_PERCENT.index);
+			hssfCellStyle.setRightBorderColor(HSSFColor.GREY_25_PERCENT.index);
+			hssfCellStyle.setBottomBorderColor(HSSFColor.GREY_25_PERCENT.index);
+			hssfCellStyle.setLeftBorderColor(HSSFColor.GREY_25_PERCENT.index);
+			
+			ReportExcelFont reportExcelFont = reportExcelCellStyle.getFont();
+			HSSFFont hssfFont = (HSSFFont) fonts.get(reportExcelFont);
+			if (hssfFont == null)
+			{
+				hssfFont = workbook.createFont();
+				hssfFont.setFontName(reportExcelFont.getName());
+				hssfFont.setFontHeightInPoints(reportExcelFont.getHeightInPoints());
+				hssfFont.setColor(reportExcelFont.getColor());
+				hssfFont.setBoldweight(reportExcelFont.getBoldWeight());
+				fonts.put(reportExcelFont, hssfFont);
+			}
+			hssfCellStyle.setFont(hssfFont);
+	
+			return hssfCellStyle;
+		}
 	}
 }
@@ -1,5 +1,7 @@
 package net.btlcpy.outofstock.spreadsheetwriters;
 
+import org.apache.commons.collections.map.ListOrderedMap;
+
 /**
  * A class that represents the base for all spreadsheet writers (classes that are used to
  * generate Microsoft Excel spreadsheets).
@@ -8,6 +10,37 @@ package net.btlcpy.outofstock.spreadsheetwriters;
  */
 abstract public class SpreadsheetWriter
 {
+	/**
+	 * The columns of a section (query) of a report are those of its first row, in order.
+	 * 
+	 * @param firstRow the first row of the section
+	 * @return the names of the columns
+	 */
+	protected static String[] getColumnNames(ListOrderedMap firstRow)
+	{
+		Object[] columnObjects = firstRow.keySet().toArray();
+		String[] columnNames = new String[ columnObjects.length ];
+		for (int i=0; i<columnObjects.length; i++)
+			columnNames[i] = columnObjects[i].toString();
+		return columnNames;
+	}
+
+	/**
+	 * @param row a row of a section of a report
+	 * @param columnNames the names of the columns of the section
+	 * @param i the position of the column
+	 * @return the value of the column, or null if the cell is to be left empty (no value, or
+	 * a column marked "__IGNORE__", e.g. where a merged cell extends into the row)
+	 */
+	protected static Object getCellValue(ListOrderedMap row, String[] columnNames, int i)
+	{
+		Object value = row.get(columnNames[i]);
+		String dataKey = (String) row.get(i);
+		if (value == null || dataKey.startsWith("__IGNORE__"))
+			return null;
+		return value;
+	}
+
 	/**
 	 * A simple method that replaces certain HTML tokens from the report data (if any).
 	 * This method is used to translate HTML-formatted column names (and other strings
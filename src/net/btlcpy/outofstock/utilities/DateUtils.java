@@ -0,0 +1,81 @@
+package net.btlcpy.outofstock.utilities;
+
+import java.sql.Date;
+import java.util.Calendar;
+
+/**
+ * Converts dates to and from epoch days (the number of days since January 1, 1970), which
+ * are plain ints that can be stored in arrays, compared, and subtracted without going
+ * through a Calendar for every value. The conversions use the proleptic Gregorian calendar
+ * and the date as seen in the default time zone, i.e. the way java.sql.Date shows it.
+ *
+ * @author Ahmed A. Abd-Allah
+ */
+public class DateUtils
+{
+	/**
+	 * @param year e.g. 2006
+	 * @param month 1 (January) through 12 (December)
+	 * @param day 1 through 31
+	 * @return the epoch day of the date
+	 */
+	public static int toEpochDay(int year, int month, int day)
+	{
+		int y = (month <= 2 ? year - 1 : year);
+		int era = (y >= 0 ? y : y - 399) / 400;
+		int yearOfEra = y - era * 400;
+		int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+
+	/**
+	 * @param date the date (its time of day is ignored)
+	 * @param calendar a calendar to use for the conversion; calendars are not thread safe,
+	 * so callers converting many dates should pass their own (null means create one)
+	 * @return the epoch day of the date
+	 */
+	public static int toEpochDay(java.util.Date date, Calendar calendar)
+	{
+		if (calendar == null)
+			calendar = Calendar.getInstance();
+		calendar.setTime(date);
+		return toEpochDay(calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH) + 1,
+			calendar.get(Calendar.DAY_OF_MONTH));
+	}
+
+	/**
+	 * @param epochDay the epoch day
+	 * @return the day of the week, numbered as Calendar.DAY_OF_WEEK does: 1 (Sunday) through
+	 * 7 (Saturday). January 1, 1970 was a Thursday.
+	 */
+	public static int dayOfWeek(int epochDay)
+	{
+		int dayOfWeek = (epochDay + 4) % 7;
+		if (dayOfWeek < 0)
+			dayOfWeek += 7;
+		return dayOfWeek + 1;
+	}
+
+	/**
+	 * @param epochDay the epoch day
+	 * @return the date of the epoch day, at midnight
+	 */
+	public static Date toDate(int epochDay)
+	{
+		int z = epochDay + 719468;
+		int era = (z >= 0 ? z : z - 146096) / 146097;
+		int dayOfEra = z - era * 146097;
+		int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		int mp = (5 * dayOfYear + 2) / 153;
+		int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+		int month = (mp < 10 ? mp + 3 : mp - 9);
+		int year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+		Calendar calendar = Calendar.getInstance();
+		calendar.clear();
+		calendar.set(year, month - 1, day);
+		return new Date(calendar.getTime().getTime());
+	}
+}
@@ -26,6 +26,14 @@ import java.util.StringTokenizer;
  * {@link SelectBuilder#addFrom(String, boolean)}).
  * </p>
  * 
+ * <p>Conditions may also be added with '?' placeholders and the values to bind to them
+ * (see {@link SelectBuilder#addWhere(String, Object[], boolean)}). The builder keeps the
+ * values in the same order as the placeholders appear in the resulting statement, and
+ * {@link SelectBuilder#getParameters()} returns them for use with a prepared statement.
+ * Literal values change the SQL text and force the database to parse every statement
+ * anew; placeholders keep the SQL text identical across runs with different values.
+ * </p>
+ * 
  * @author Ahmed A. Abd-Allah
  */
 public class SelectBuilder
@@ -33,6 +41,8 @@ public class SelectBuilder
 	private StringBuffer select, where, group, having, order;
 	// The 'from' element needs care to avoid duplicate tables, so simple searching is important. 
 	private ArrayList from;
+	// Bind values for the '?' placeholders, per piece, in order of appearance. 
+	private ArrayList fromParameters, whereParameters, havingParameters;
 
 	public SelectBuilder()
 	{
@@ -117,9 +127,30 @@ public class SelectBuilder
 			if (from == null)
 				from = new ArrayList();
 			from.add("( " + s.toString() + " )");
+			fromParameters = addParameters(fromParameters, s.getParameters());
 		}		
 	}
 
+	/**
+	 * Replaces a table in the "FROM" fragment, e.g. to read an equivalent table instead
+	 * under the original name: replaceFrom("employees", "employeesummaries employees").
+	 *
+	 * @param table the table to replace, exactly as it was added
+	 * @param replacement what to put in its place
+	 * @return true if the table was found (and replaced)
+	 */
+	public boolean replaceFrom(String table, String replacement)
+	{
+		if (from == null)
+			return false;
+
+		int index = from.indexOf(table.trim());
+		if (index < 0)
+			return false;
+		from.set(index, replacement.trim());
+		return true;
+	}
+
 	/**
 	 * @param w examples: "age > 10", "age > 10 AND weight > 100"
 	 * @param and if true, the new condition is 'anded' else it is 'ored' to 
@@ -138,6 +169,21 @@ public class SelectBuilder
 		}
 	}
 
+	/**
+	 * @param w examples: "age > ?", "age > ? AND weight IN (?, ?)"
+	 * @param parameters the values to bind to the placeholders in the condition, in order
+	 * @param and if true, the new condition is 'anded' else it is 'ored' to 
+	 * the rest of the conditions
+	 */
+	public void addWhere(String w, Object[] parameters, boolean and)
+	{
+		if (w != null)
+		{
+			addWhere(w, and);
+			whereParameters = addParameters(whereParameters, parameters);
+		}
+	}
+
 	/**
 	 * @param g examples: "department"
 	 */
@@ -169,6 +215,19 @@ public class SelectBuilder
 		}
 	}
 
+	/**
+	 * @param h examples: "weight > ?"
+	 * @param parameters the values to bind to the placeholders in the condition, in order
+	 */
+	public void addHaving(String h, Object[] parameters, boolean and)
+	{
+		if (h != null)
+		{
+			addHaving(h, and);
+			havingParameters = addParameters(havingParameters, parameters);
+		}
+	}
+
 	/**
 	 * @param o examples: "salary", "firstname, lastname"
 	 */
@@ -184,6 +243,67 @@ public class SelectBuilder
 		}
 	}
 	
+	/**
+	 * @return the values to bind to the '?' placeholders of the resulting SQL SELECT 
+	 * statement, in order; an empty array if no values were added
+	 */
+	public Object[] getParameters()
+	{
+		ArrayList parameters = new ArrayList();
+		if (fromParameters != null)
+			parameters.addAll(fromParameters);
+		if (whereParameters != null)
+			parameters.addAll(whereParameters);
+		if (havingParameters != null)
+			parameters.addAll(havingParameters);
+		return parameters.toArray();
+	}
+
+	/**
+	 * @param selectBuilders select builders whose statements are combined into one, e.g.
+	 * with UNION
+	 * @return the parameters of all the select builders, in order
+	 */
+	public static Object[] getParameters(SelectBuilder[] selectBuilders)
+	{
+		ArrayList parameters = new ArrayList();
+		for (int i=0; i<selectBuilders.length; i++)
+		{
+			Object[] p = selectBuilders[i].getParameters();
+			for (int j=0; j<p.length; j++)
+				parameters.add(p[j]);
+		}
+		return parameters.toArray();
+	}
+
+	/**
+	 * @param count the number of placeholders
+	 * @return count comma-separated placeholders, e.g. "?, ?, ?" for an IN list
+	 */
+	public static String placeholders(int count)
+	{
+		StringBuffer p = new StringBuffer();
+		for (int i=0; i<count; i++)
+		{
+			if (i > 0)
+				p.append(", ");
+			p.append("?");
+		}
+		return p.toString();
+	}
+
+	private ArrayList addParameters(ArrayList list, Object[] parameters)
+	{
+		if (parameters != null)
+		{
+			if (list == null)
+				list = new ArrayList();
+			for (int i=0; i<parameters.length; i++)
+				list.add(parameters[i]);
+		}
+		return list;
+	}
+
 	/**
 	 * @return String representation of the select builder, i.e. the
 	 * resulting SQL SELECT statement based on the contents of the various
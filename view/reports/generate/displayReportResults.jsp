@@ -16,6 +16,7 @@
 <%@ page import="net.btlcpy.outofstock.persistence.beans.BottlerSalesRoute"%>
 <%@ page import="javax.portlet.PortletSession"%>
 <%@ page import="net.btlcpy.outofstock.reports.Report"%>
+<%@ page import="net.btlcpy.outofstock.reports.ReportPage"%>
 <%@ page import="java.util.Set"%>
 <%@ page import="java.util.Iterator"%>
 <%@ page import="java.util.List"%>
@@ -25,7 +26,7 @@
 <%@ page import="java.util.Calendar"%>
 <%@ page import="java.util.Locale"%>
 <%@ page import="java.sql.Date"%>
-<%@ page import="net.btlcpy.outofstock.utilities.PortletServletSharedContext"%>
+<%@ page import="net.btlcpy.outofstock.reports.ReportRegistry"%>
 <%@page import="java.sql.Timestamp"%>
 <portlet:defineObjects/>
 
@@ -78,17 +79,21 @@ String[] distributorDivisionPKID = (String[]) renderRequest.getPortletSession().
 String[] distributorDistrictPKID = (String[]) renderRequest.getPortletSession().getAttribute("distributorDistrict");
 String[] storePKID = (String[]) renderRequest.getPortletSession().getAttribute("store");
 
-Report report = (Report) renderRequest.getPortletSession().getAttribute("reportResults");
+// The report is registered under the session, which is also how the downloader finds it
+String reportSessionId = renderRequest.getPortletSession().getId();
+Report report = ReportRegistry.getRegistry().get(reportSessionId);
 
 String sortQueryNumber = renderRequest.getParameter("sortQueryNumber");
 String sortOnColumn = renderRequest.getParameter("sortOnColumn");
 String sortAscending = renderRequest.getParameter("sortAscending");
 
+// int subRows = (lostSalesMetric != null && lostSalesMetric.equals("all") ? 1 : 0);
+int subRows = 0;
+
 if (report != null && sortQueryNumber != null && sortOnColumn != null && sortAscending != null)
 {
 	String[] sortingColumns = { sortOnColumn };
-	// int subRows = (lostSalesMetric != null && lostSalesMetric.equals("all") ? 1 : 0);
-	report.sort(Integer.parseInt(sortQueryNumber), sortingColumns, Boolean.valueOf(sortAscending).booleanValue(), 0);
+	report.sort(Integer.parseInt(sortQueryNumber), sortingColumns, Boolean.valueOf(sortAscending).booleanValue(), subRows);
 }
 %>
 
@@ -194,9 +199,6 @@ if (report != null && sortQueryNumber != null && sortOnColumn != null && sortAsc
 		} // END IF no sections in report
 		else // BEGIN ELSE sections exist in report
 		{
-			// First, add the report reference to the portlet-servlet shared context to facilitate downloading Excel exports
-			PortletServletSharedContext.getInstance().put("report" + session.getId(), report);
-			
 			Set queryIndexes = reportResults.keySet();
 			columnNames = new String[queryIndexes.size()][];
 			
@@ -208,22 +210,25 @@ if (report != null && sortQueryNumber != null && sortOnColumn != null && sortAsc
 				//System.out.println("Query Index: " + queryIndex);
 		%>
 		<p class="parametersHeadingCellA"><%=report.getQueryTitle(queryCounter)%>&nbsp;&nbsp;&nbsp;
-			<a href="<%=request.getContextPath()%>/downloader?action=exportreport&sid=<%=session.getId()%>">
+			<a href="<%=request.getContextPath()%>/downloader?action=exportreport&sid=<%=reportSessionId%>">
 			<img title="Download report as Microsoft Excel workbook" alt="Download report as Microsoft Excel workbook" 
 			src='<%=renderResponse.encodeURL(renderRequest.getContextPath() + "/images/icon-ms-excel.gif") %>'/>
 			</a>&nbsp;&nbsp;
-			<a href="<%=request.getContextPath()%>/downloader?action=exportreport&sid=<%=session.getId()%>">
+			<a href="<%=request.getContextPath()%>/downloader?action=exportreport&sid=<%=reportSessionId%>">
 			Download report as Microsoft Excel workbook
+			</a>&nbsp;&nbsp;
+			<a href="<%=request.getContextPath()%>/downloader?action=exportreportcsv&sid=<%=reportSessionId%>">
+			Download report as CSV
 			</a>
 			<% if (reportType.equals("averages") && !lostSalesMetric.equals("all"))
 				{
 			%>
 			&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;&nbsp;
-			<a href="<%=request.getContextPath()%>/downloader?action=createtrendchart&sid=<%=session.getId()%>">
+			<a href="<%=request.getContextPath()%>/downloader?action=createtrendchart&sid=<%=reportSessionId%>">
 			<img title="Download trend chart as Microsoft Excel workbook" alt="Download trend chart as Microsoft Excel workbook" 
 			src='<%=renderResponse.encodeURL(renderRequest.getContextPath() + "/images/icon-ms-excel.gif") %>'/>
 			</a>&nbsp;&nbsp;
-			<a href="<%=request.getContextPath()%>/downloader?action=createtrendchart&sid=<%=session.getId()%>">
+			<a href="<%=request.getContextPath()%>/downloader?action=createtrendchart&sid=<%=reportSessionId%>">
 			Download trend chart as Microsoft Excel workbook
 			</a>
 			<%
@@ -242,17 +247,29 @@ if (report != null && sortQueryNumber != null && sortOnColumn != null && sortAsc
 				}
 				else
 				{
-					Set keys = oneSectionResults.keySet();
-					Iterator iterator = keys.iterator();
+					// Only the rows of the page being viewed are rendered; row numbers stay those of
+					// the whole section, as merged regions refer to them
+					// a missing or garbled page number shows the first page
+					String pageParameter = renderRequest.getParameter("page" + queryCounter);
+					int pageNumber = 0;
+					try
+					{
+						if (pageParameter != null)
+							pageNumber = Integer.parseInt(pageParameter.trim());
+					}
+					catch (NumberFormatException e)
+					{
+						pageNumber = 0;
+					}
+					ReportPage reportPage = report.getPage(queryCounter, pageNumber, Report.DEFAULT_PAGE_SIZE, subRows);
 		%>
 		<table class="reportTableA">
 		<%
 					boolean rowColorSwitcher = false;
-					int rowCounter = 0;
-					while (iterator.hasNext() ) // && (rowLimit == -1 || rowLimit-- > 0))
+					for (int rowCounter = reportPage.getFirstRow(); rowCounter < reportPage.getEndRow(); rowCounter++)
 					{
-						rowColorSwitcher = !rowColorSwitcher;
-						ListOrderedMap row = (ListOrderedMap) oneSectionResults.get(iterator.next());
+						rowColorSwitcher = (rowCounter % 2 == 0);
+						ListOrderedMap row = (ListOrderedMap) ((ListOrderedMap) oneSectionResults).getValue(rowCounter);
 						ReportCellFormat headerCellFormat = null;
 						ReportCellFormat dataCellFormat = null;
 						ReportCellFormat footerCellFormat = null;
@@ -396,11 +413,39 @@ if (report != null && sortQueryNumber != null && sortOnColumn != null && sortAsc
 		%>
 			</tr>
 		<%
-						rowCounter++;
 					}
 		%>
 		</table>
 		<%
+					if (reportPage.getNumberOfPages() > 1) // BEGIN IF more than one page
+					{
+		%>
+		<portlet:renderURL var="firstPageUrl">
+			<portlet:param name="destinationURL" value="/reports/generate/displayReportResults.jsp"/>
+			<portlet:param name="<%=\"page\" + queryCounter%>" value="0"/>
+		</portlet:renderURL>
+		<portlet:renderURL var="previousPageUrl">
+			<portlet:param name="destinationURL" value="/reports/generate/displayReportResults.jsp"/>
+			<portlet:param name="<%=\"page\" + queryCounter%>" value="<%=Integer.toString(reportPage.getPage() - 1)%>"/>
+		</portlet:renderURL>
+		<portlet:renderURL var="nextPageUrl">
+			<portlet:param name="destinationURL" value="/reports/generate/displayReportResults.jsp"/>
+			<portlet:param name="<%=\"page\" + queryCounter%>" value="<%=Integer.toString(reportPage.getPage() + 1)%>"/>
+		</portlet:renderURL>
+		<portlet:renderURL var="lastPageUrl">
+			<portlet:param name="destinationURL" value="/reports/generate/displayReportResults.jsp"/>
+			<portlet:param name="<%=\"page\" + queryCounter%>" value="<%=Integer.toString(reportPage.getNumberOfPages() - 1)%>"/>
+		</portlet:renderURL>
+		<p>
+			Rows <%=reportPage.getFirstRow() + 1%> to <%=reportPage.getEndRow()%> of <%=reportPage.getNumberOfRows()%>
+			(page <%=reportPage.getPage() + 1%> of <%=reportPage.getNumberOfPages()%>)&nbsp;&nbsp;&nbsp;
+			<%=reportPage.hasPrevious() ? "<a href=\"" + firstPageUrl.toString() + "\">First</a>" : "First"%>&nbsp;|
+			<%=reportPage.hasPrevious() ? "<a href=\"" + previousPageUrl.toString() + "\">Previous</a>" : "Previous"%>&nbsp;|
+			<%=reportPage.hasNext() ? "<a href=\"" + nextPageUrl.toString() + "\">Next</a>" : "Next"%>&nbsp;|
+			<%=reportPage.hasNext() ? "<a href=\"" + lastPageUrl.toString() + "\">Last</a>" : "Last"%>
+		</p>
+		<%
+					} // END IF more than one page
 				}
 				queryCounter++;
 			} // END LOOP over all sections of report
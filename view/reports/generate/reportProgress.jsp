@@ -0,0 +1,58 @@
+<%@ page language="java"%>
+<%@ taglib prefix="portlet" uri="http://java.sun.com/portlet" %>
+
+<%@ page import="net.btlcpy.outofstock.reports.ReportJob"%>
+<%@ page import="net.btlcpy.outofstock.reports.ReportJobQueue"%>
+<portlet:defineObjects/>
+
+<%
+String reportJobId = (String) renderRequest.getPortletSession().getAttribute("reportJob");
+ReportJobQueue reportJobQueue = ReportJobQueue.getQueue();
+ReportJob reportJob = (reportJobQueue != null ? reportJobQueue.getJob(reportJobId, renderRequest.getRemoteUser()) : null);
+%>
+
+	<portlet:renderURL var="indexUrl">
+		<portlet:param name="destinationURL" value="/reports/index.jsp"/>
+	</portlet:renderURL>
+	<portlet:renderURL var="specifyReportParametersUrl">
+		<portlet:param name="destinationURL" value="/reports/generate/specifyReportParameters.jsp"/>
+	</portlet:renderURL>
+	<portlet:renderURL var="reportProgressUrl">
+		<portlet:param name="destinationURL" value="/reports/generate/reportProgress.jsp"/>
+	</portlet:renderURL>
+	<portlet:actionURL var="actionURL"/>
+
+	<jsp:useBean id="crumbs" scope="page" class="net.btlcpy.outofstock.utilities.Crumbs">
+		<jsp:setProperty name="crumbs" property="headerTitle" value="Out Of Stock: Reports"/>
+		<jsp:setProperty name="crumbs" property="headerImageUrl" value='<%=renderResponse.encodeURL(renderRequest.getContextPath() + "/images/header.gif") %>'/>
+		<jsp:setProperty name="crumbs" property="headerCrumbNames" value="Main Menu|Specify Report Parameters|Generating Report"/>
+		<jsp:setProperty name="crumbs" property="headerCrumbLinks" value='<%=indexUrl.toString() + "|" + specifyReportParametersUrl.toString() + "|none" %>'/>
+	</jsp:useBean>
+
+	<%@ include file="/common/header.jsp"%>
+
+	<div class="mainContent">
+		<% if (reportJob == null) { %>
+		<p>There is no report being generated.</p>
+		<% } else { %>
+		<p>
+		<%=reportJob.getStatus() == ReportJob.QUEUED ? "The report is waiting to be generated." :
+			(reportJob.getNumberOfQueries() == 0 ? "The report is being generated." :
+				"The report is being generated: " + reportJob.getQueriesDone() + " of " +
+				reportJob.getNumberOfQueries() + " parts done.")%>
+		This page refreshes itself until the report is ready.
+		</p>
+
+		<form id="cancelReportForm" class="formStyle1" method="post" action="<%=actionURL.toString()%>">
+			<input type="hidden" name="portletAction" value="cancelReport"/>
+			<input type="hidden" name="goBackFromErrorURL" value='<%=renderResponse.encodeURL("/reports/generate/specifyReportParameters.jsp")%>'/>
+			<input type="submit" name="cancelReportSubmit" value="Cancel Report" id="cancelReport" class="formButton1"/>
+		</form>
+
+		<script language="JavaScript">
+			setTimeout("window.location.href = '<%=reportProgressUrl.toString()%>';", 3000);
+		</script>
+		<% } %>
+	</div>
+
+	<%@ include file="/common/footer.jsp"%>